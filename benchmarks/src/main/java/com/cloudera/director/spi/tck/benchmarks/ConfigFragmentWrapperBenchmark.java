@@ -0,0 +1,99 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.benchmarks;
+
+import com.cloudera.director.spi.tck.util.ConfigFragmentWrapper;
+import com.cloudera.director.spi.v2.model.ConfigurationProperty;
+import com.cloudera.director.spi.v2.model.LocalizationContext;
+import com.cloudera.director.spi.v2.model.util.DefaultLocalizationContext;
+import com.cloudera.director.spi.v2.model.util.SimpleConfigurationPropertyBuilder;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the configuration lookups that plugins make on the wrappers built by the
+ * TCK, with large property lists where a quarter of the properties are not set, for
+ * wrappers that look up the config object on every call and for snapshots.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ConfigFragmentWrapperBenchmark {
+
+  private static final LocalizationContext LOCALIZATION_CONTEXT =
+      new DefaultLocalizationContext(Locale.US, "");
+
+  @Param({"10", "100", "1000"})
+  public int properties;
+
+  @Param({"live", "snapshot"})
+  public String mode;
+
+  private ConfigFragmentWrapper wrapper;
+  private ConfigurationProperty setProperty;
+  private ConfigurationProperty unsetProperty;
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    List<ConfigurationProperty> propertyList = new ArrayList<ConfigurationProperty>();
+    Map<String, Object> values = new HashMap<String, Object>();
+    for (int i = 0; i < properties; i++) {
+      String key = "property" + i;
+      boolean set = i % 4 != 0;
+      propertyList.add(new SimpleConfigurationPropertyBuilder()
+          .configKey(key)
+          .required(i % 8 == 0)
+          .defaultValue(i % 8 == 0 ? null : "default" + i)
+          .defaultDescription("Property " + i)
+          .build());
+      if (set) {
+        values.put(key, "value" + i);
+      }
+    }
+    Config config = ConfigFactory.parseMap(values);
+
+    wrapper = "snapshot".equals(mode)
+        ? ConfigFragmentWrapper.snapshot(config, propertyList)
+        : new ConfigFragmentWrapper(config, propertyList);
+    setProperty = propertyList.get(properties - 1);
+    unsetProperty = propertyList.get(4);  // optional, not set
+  }
+
+  @Benchmark
+  public Map<String, String> getConfiguration() {
+    return wrapper.getConfiguration(LOCALIZATION_CONTEXT);
+  }
+
+  @Benchmark
+  public String getConfigurationValue() {
+    return wrapper.getConfigurationValue(setProperty, LOCALIZATION_CONTEXT);
+  }
+
+  @Benchmark
+  public String getUnsetConfigurationValue() {
+    return wrapper.getConfigurationValue(unsetProperty, LOCALIZATION_CONTEXT);
+  }
+}
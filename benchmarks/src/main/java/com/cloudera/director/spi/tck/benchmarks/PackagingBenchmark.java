@@ -0,0 +1,64 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.benchmarks;
+
+import com.cloudera.director.spi.tck.PluginMetadata;
+import com.cloudera.director.spi.tck.Summary;
+import com.cloudera.director.spi.tck.util.ClassReference;
+import com.cloudera.director.spi.tck.util.TCKUtil;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the packaging checks (shading and embedded jars) on plugins with many
+ * classes, both well shaded and not shaded at all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PackagingBenchmark {
+
+  @Param({"1000", "100000"})
+  public int classes;
+
+  @Param({"true", "false"})
+  public boolean shaded;
+
+  private final TCKUtil tckUtil = new TCKUtil();
+  private PluginMetadata metadata;
+
+  @Setup
+  public void setUp() {
+    Logger.getLogger(TCKUtil.class.getName()).setLevel(Level.WARNING);
+    metadata = new PluginMetadata(
+        Collections.singletonMap("v2",
+            Collections.singletonList(new ClassReference(SyntheticJars.LAUNCHER_CLASS))),
+        SyntheticJars.classNames(classes, shaded),
+        Collections.singletonList("META-INF/MANIFEST.MF"));
+  }
+
+  @Benchmark
+  public Summary validateJar() {
+    Summary summary = new Summary();
+    tckUtil.validateJar(summary, metadata, "v2");
+    return summary;
+  }
+}
@@ -0,0 +1,66 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.benchmarks;
+
+import com.cloudera.director.spi.tck.PluginMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the extraction of plugin metadata from jars of growing sizes, with
+ * {@link JarFile} and with the memory-mapped central directory scanner.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PluginMetadataBenchmark {
+
+  @Param({"1000", "10000", "100000", "500000"})
+  public int entries;
+
+  private File jar;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    jar = SyntheticJars.writeJar(entries);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    if (!jar.delete()) {
+      jar.deleteOnExit();
+    }
+  }
+
+  @Benchmark
+  public PluginMetadata jarFile() throws IOException {
+    try (JarFile jarFile = new JarFile(jar)) {
+      return PluginMetadata.fromExternalJarFile(jarFile);
+    }
+  }
+
+  @Benchmark
+  public PluginMetadata centralDirectory() throws IOException {
+    return PluginMetadata.fromExternalJarFile(jar);
+  }
+}
@@ -0,0 +1,179 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.benchmarks;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigParseOptions;
+import com.typesafe.config.ConfigSyntax;
+import com.typesafe.config.ConfigValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares JMH results in JSON format against a baseline, and exits with a non-zero
+ * status if any benchmark got slower by more than a given percentage, or if there
+ * is no baseline to compare with. A benchmark only counts as slower when the
+ * difference is also larger than the score errors of both runs together, so that
+ * noisy benchmarks do not fail the build. Benchmarks that are missing from either
+ * file are reported and ignored.
+ * <p/>
+ * Usage: {@code RegressionCheck <baseline.json> <results.json> <maxRegressionPercent>}
+ */
+public class RegressionCheck {
+
+  private static final int OK = 0;
+  private static final int REGRESSION = 1;
+  private static final int WRONG_ARGUMENTS = 2;
+  private static final int NO_BASELINE = 3;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 3) {
+      System.err.println("Usage: RegressionCheck <baseline.json> <results.json> "
+          + "<maxRegressionPercent>");
+      System.exit(WRONG_ARGUMENTS);
+    }
+
+    File baselineFile = new File(args[0]);
+    File resultsFile = new File(args[1]);
+    double maxRegressionPercent = Double.parseDouble(args[2]);
+
+    if (!baselineFile.isFile()) {
+      System.err.println("No baseline found at " + baselineFile + ". Copy " + resultsFile
+          + " there to create one.");
+      System.exit(NO_BASELINE);
+    }
+
+    Map<String, Score> baseline = readScores(baselineFile);
+    Map<String, Score> results = readScores(resultsFile);
+
+    int regressions = 0;
+    for (Map.Entry<String, Score> entry : results.entrySet()) {
+      Score before = baseline.get(entry.getKey());
+      Score after = entry.getValue();
+      if (before == null) {
+        System.out.println(String.format("NEW        %s: %.3f %s",
+            entry.getKey(), after.value, after.unit));
+        continue;
+      }
+      if (!before.unit.equals(after.unit) || before.higherIsBetter != after.higherIsBetter) {
+        System.out.println(String.format("SKIPPED    %s: baseline in %s, results in %s",
+            entry.getKey(), before.unit, after.unit));
+        continue;
+      }
+
+      double change = after.getRegressionPercent(before);
+      boolean regressed = change > maxRegressionPercent && after.isWorseBeyondError(before);
+      if (regressed) {
+        regressions++;
+      }
+      System.out.println(String.format("%-10s %s: %.3f +- %.3f -> %.3f +- %.3f %s (%+.1f%%)",
+          regressed ? "REGRESSED" : "OK", entry.getKey(), before.value, before.error,
+          after.value, after.error, after.unit, change));
+    }
+    for (String name : baseline.keySet()) {
+      if (!results.containsKey(name)) {
+        System.out.println("MISSING    " + name);
+      }
+    }
+
+    if (regressions > 0) {
+      System.out.println(String.format("%d benchmark(s) regressed by more than %.1f%%",
+          regressions, maxRegressionPercent));
+      System.exit(REGRESSION);
+    }
+    System.exit(OK);
+  }
+
+  /**
+   * Reads the primary scores of a JMH JSON result file, keyed by benchmark name and
+   * parameters.
+   */
+  private static Map<String, Score> readScores(File file) throws IOException {
+    String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    // JMH writes a top-level array, which Typesafe Config cannot parse on its own
+    Config config = ConfigFactory.parseString("{\"results\": " + json + "}",
+        ConfigParseOptions.defaults().setSyntax(ConfigSyntax.JSON));
+
+    Map<String, Score> scores = new TreeMap<String, Score>();
+    for (Config result : config.getConfigList("results")) {
+      StringBuilder key = new StringBuilder(result.getString("benchmark"));
+      if (result.hasPath("params")) {
+        // sort the parameters so that the key does not depend on their order
+        Map<String, String> params = new TreeMap<String, String>();
+        for (Map.Entry<String, ConfigValue> param : result.getConfig("params").entrySet()) {
+          params.put(param.getKey(), String.valueOf(param.getValue().unwrapped()));
+        }
+        key.append(params);
+      }
+
+      String mode = result.getString("mode");
+      scores.put(key.toString(), new Score(
+          result.getDouble("primaryMetric.score"),
+          getScoreError(result),
+          result.getString("primaryMetric.scoreUnit"),
+          "thrpt".equals(mode)));
+    }
+    return scores;
+  }
+
+  /**
+   * Gets the error of the primary score of a result, which JMH leaves out or writes
+   * as NaN when there were too few iterations to compute it.
+   */
+  private static double getScoreError(Config result) {
+    if (!result.hasPath("primaryMetric.scoreError")) {
+      return 0;
+    }
+    ConfigValue error = result.getValue("primaryMetric.scoreError");
+    if (!(error.unwrapped() instanceof Number)) {
+      return 0;
+    }
+    double value = ((Number) error.unwrapped()).doubleValue();
+    return Double.isNaN(value) ? 0 : value;
+  }
+
+  /**
+   * The primary score of a benchmark.
+   */
+  private static class Score {
+
+    private final double value;
+    private final double error;
+    private final String unit;
+    private final boolean higherIsBetter;
+
+    Score(double value, double error, String unit, boolean higherIsBetter) {
+      this.value = value;
+      this.error = error;
+      this.unit = unit;
+      this.higherIsBetter = higherIsBetter;
+    }
+
+    /**
+     * Gets how much worse this score is than a baseline score, in percent. Negative
+     * values are improvements.
+     */
+    double getRegressionPercent(Score baseline) {
+      if (baseline.value == 0) {
+        return 0;
+      }
+      double change = (value - baseline.value) / baseline.value * 100;
+      return higherIsBetter ? -change : change;
+    }
+
+    /**
+     * Checks whether this score is worse than a baseline score by more than the
+     * errors of both scores together.
+     */
+    boolean isWorseBeyondError(Score baseline) {
+      double difference = higherIsBetter ? baseline.value - value : value - baseline.value;
+      return difference > baseline.error + error;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.benchmarks;
+
+import com.cloudera.director.spi.tck.util.SingleLineFormatter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the formatting of log records, which the TCK emits for every poll.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SingleLineFormatterBenchmark {
+
+  private final SingleLineFormatter formatter = new SingleLineFormatter();
+  private LogRecord plainRecord;
+  private LogRecord parameterizedRecord;
+  private LogRecord thrownRecord;
+
+  @Setup
+  public void setUp() {
+    plainRecord = new LogRecord(Level.INFO,
+        "Found instance 2c8e3f5a as expected RUNNING after 4 polls in 408 ms");
+
+    parameterizedRecord = new LogRecord(Level.INFO, "Attempting connection to {0} on port {1}");
+    parameterizedRecord.setParameters(new Object[]{"10.0.0.1", 22});
+
+    thrownRecord = new LogRecord(Level.SEVERE, "Failed to get the state of instances");
+    thrownRecord.setThrown(new IllegalStateException("Simulated failure"));
+  }
+
+  @Benchmark
+  public String formatPlain() {
+    return formatter.format(plainRecord);
+  }
+
+  @Benchmark
+  public String formatParameterized() {
+    return formatter.format(parameterizedRecord);
+  }
+
+  @Benchmark
+  public String formatWithThrowable() {
+    return formatter.format(thrownRecord);
+  }
+}
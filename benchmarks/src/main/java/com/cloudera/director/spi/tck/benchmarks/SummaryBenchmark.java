@@ -0,0 +1,67 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.benchmarks;
+
+import com.cloudera.director.spi.tck.Summary;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures adding errors to a summary: many errors from one thread, and errors
+ * added by several threads to a shared summary, as parallel validations do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SummaryBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Volume {
+
+    @Param({"1000", "100000"})
+    public int errors;
+  }
+
+  @State(Scope.Benchmark)
+  public static class SharedSummary {
+
+    private Summary summary;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+      summary = new Summary();
+    }
+  }
+
+  @Benchmark
+  public Summary addErrors(Volume volume) {
+    Summary summary = new Summary();
+    for (int i = 0; i < volume.errors; i++) {
+      summary.addError("Class '%s' should be relocated under '%s'", i, "com.example");
+    }
+    return summary;
+  }
+
+  @Benchmark
+  @Threads(4)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void addErrorConcurrently(SharedSummary shared) {
+    shared.summary.addError("Instance %s failed", "id");
+  }
+}
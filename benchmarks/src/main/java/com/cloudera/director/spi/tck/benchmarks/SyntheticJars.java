@@ -0,0 +1,60 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates plugin jars and class lists shaped like shaded plugins: a launcher,
+ * a provider configuration file, and classes spread over many packages.
+ */
+final class SyntheticJars {
+
+  static final String LAUNCHER_CLASS = "com.example.plugin.ExampleLauncher";
+
+  private SyntheticJars() {
+  }
+
+  /**
+   * Gets class names for a plugin, all under the launcher package if shaded, or
+   * mostly in third-party packages if not.
+   */
+  static List<String> classNames(int count, boolean shaded) {
+    String prefix = shaded ? "com.example.plugin.shaded." : "";
+    List<String> classNames = new ArrayList<String>(count);
+    classNames.add(LAUNCHER_CLASS);
+    for (int i = 1; i < count; i++) {
+      classNames.add(prefix + "org.vendor" + (i % 50) + ".module" + (i % 7) + ".Class" + i);
+    }
+    return classNames;
+  }
+
+  /**
+   * Writes a deflated plugin jar with the given number of entries.
+   */
+  static File writeJar(int entryCount) throws IOException {
+    File file = File.createTempFile("plugin-" + entryCount + "-", ".jar");
+    file.deleteOnExit();
+
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+      out.putNextEntry(new ZipEntry(
+          "META-INF/services/com.cloudera.director.spi.v2.provider.Launcher"));
+      out.write((LAUNCHER_CLASS + "\n").getBytes(StandardCharsets.UTF_8));
+      out.closeEntry();
+
+      for (String className : classNames(entryCount - 1, true)) {
+        out.putNextEntry(new ZipEntry(className.replace('.', '/') + ".class"));
+        out.write(new byte[]{(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE});
+        out.closeEntry();
+      }
+    }
+    return file;
+  }
+}
@@ -0,0 +1,364 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import com.cloudera.director.spi.tck.util.InstanceStatusPoller;
+import com.cloudera.director.spi.tck.util.PollingPolicies;
+import com.cloudera.director.spi.tck.util.PollingPolicy;
+import com.cloudera.director.spi.tck.util.Stopwatch;
+import com.cloudera.director.spi.tck.util.TCKUtil;
+import com.cloudera.director.spi.v2.model.Instance;
+import com.cloudera.director.spi.v2.model.InstanceStatus;
+import com.cloudera.director.spi.v2.model.InstanceTemplate;
+import com.cloudera.director.spi.v2.provider.InstanceProvider;
+import com.typesafe.config.Config;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Stress test for an instance provider that allocates many instances with a single
+ * call, the way Director does when it bootstraps a large cluster. Every instance is
+ * tracked through RUNNING, the port check and deletion, and the time it took to get
+ * there is reported per instance and in aggregate.
+ */
+class BulkAllocationStage {
+
+  private static final Logger LOG = Logger.getLogger(BulkAllocationStage.class.getName());
+
+  private final TCKUtil tckUtil;
+  private final int count;
+  private final int minCount;
+  private final int expectedOpenPort;
+  private final PollingPolicy statusPollingPolicy;
+  private final PollingPolicy portPollingPolicy;
+
+  /**
+   * Creates a new bulk allocation stage.
+   *
+   * @param tckUtil TCK utilities
+   * @param config  the resource provider section of the configuration, with a bulk
+   *                allocation section
+   * @throws IllegalArgumentException if the counts are inconsistent
+   */
+  BulkAllocationStage(TCKUtil tckUtil, Config config) {
+    this.tckUtil = tckUtil;
+
+    Config bulkConfig = config.getConfig(Configurations.BULK_ALLOCATION_SECTION);
+    this.count = bulkConfig.getInt(Configurations.BULK_ALLOCATION_COUNT_PROPERTY);
+    this.minCount = bulkConfig.hasPath(Configurations.BULK_ALLOCATION_MIN_COUNT_PROPERTY) ?
+        bulkConfig.getInt(Configurations.BULK_ALLOCATION_MIN_COUNT_PROPERTY) : count;
+    this.expectedOpenPort = config.getInt(Configurations.EXPECTED_OPEN_PORT_PROPERTY);
+    this.statusPollingPolicy =
+        PollingPolicies.fromConfig(config, Configurations.INSTANCE_STATUS_POLLING_SECTION);
+    this.portPollingPolicy =
+        PollingPolicies.fromConfig(config, Configurations.PORT_POLLING_SECTION);
+
+    if (count < 1 || minCount < 1 || minCount > count) {
+      throw new IllegalArgumentException(String.format(
+          "Invalid bulk allocation counts: count %d, minCount %d", count, minCount));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  void run(Summary summary, ValidationContext context, String providerId,
+      InstanceProvider provider, InstanceTemplate template)
+      throws Exception {
+
+    List<String> requestedIds = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      requestedIds.add(tckUtil.newInstanceId());
+    }
+
+    context.recordAllocating(template, requestedIds);
+    LOG.info(String.format("Allocating %d instances in one call (minCount %d)", count, minCount));
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    Collection<Instance> instances = context.getSpiCallMetrics().time(providerId, "allocate",
+        () -> provider.allocate(template, requestedIds, minCount));
+    long allocateMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+
+    // every returned instance is tracked, so that it gets deleted with the others
+    Set<String> requested = new HashSet<String>(requestedIds);
+    List<String> unrequestedIds = new ArrayList<String>();
+    Map<String, InstanceTimings> timings = new LinkedHashMap<String, InstanceTimings>();
+    for (Instance instance : instances) {
+      if (!requested.contains(instance.getId())) {
+        summary.addError("Bulk allocation returned an instance that was not requested: %s",
+            instance.getId());
+        unrequestedIds.add(instance.getId());
+      }
+      timings.put(instance.getId(), new InstanceTimings());
+    }
+
+    try {
+      if (!unrequestedIds.isEmpty()) {
+        context.recordAllocating(template, unrequestedIds);
+      }
+      // the requested instances that were not returned were not allocated
+      List<String> missingIds = new ArrayList<String>(requestedIds);
+      missingIds.removeAll(timings.keySet());
+      if (!missingIds.isEmpty()) {
+        context.recordDeleted(template, missingIds);
+      }
+
+      if (instances.size() < minCount || instances.size() > count) {
+        summary.addError("Expected bulk allocation to return between %d and %d instances. Found %d",
+            minCount, count, instances.size());
+        return;
+      }
+      if (instances.size() < count) {
+        summary.addWarning("Bulk allocation returned %d of %d requested instances",
+            instances.size(), count);
+      }
+      if (summary.hasErrors()) {
+        return;
+      }
+
+      waitForInstanceStatuses(summary, context, providerId, provider, template, timings,
+          stopwatch, true,
+          InstanceStatus.RUNNING);
+      if (summary.hasErrors()) {
+        return;
+      }
+
+      if (expectedOpenPort == -1) {
+        LOG.info("Skipping the connectivity checks because expected open port is -1");
+      } else {
+        waitForPorts(summary, context, providerId, provider, template, timings, stopwatch);
+      }
+
+    } finally {
+      if (!timings.isEmpty()) {
+        Stopwatch deleteStopwatch = Stopwatch.createStarted();
+        try {
+          LOG.info(String.format("Deleting %d allocated instances", timings.size()));
+          final Set<String> allocatedIds = timings.keySet();
+          context.getSpiCallMetrics().time(providerId, "delete", () -> {
+            provider.delete(template, allocatedIds);
+            return null;
+          });
+
+        } catch (Exception e) {
+          LOG.severe("CRITICAL: Failed to delete allocated resources. Manual clean-up is necessary");
+          throw e;
+        }
+
+        waitForInstanceStatuses(summary, context, providerId, provider, template, timings,
+            deleteStopwatch, false,
+            InstanceStatus.DELETED, InstanceStatus.UNKNOWN);
+        recordDeleted(context, template, timings);
+      }
+    }
+
+    logReport(allocateMillis, timings);
+  }
+
+  /**
+   * Waits for the expected port of all tracked instances to open, probing all of
+   * them at the same time with the shared port prober.
+   */
+  @SuppressWarnings("unchecked")
+  private void waitForPorts(Summary summary, ValidationContext context, String providerId,
+      InstanceProvider provider, InstanceTemplate template, Map<String, InstanceTimings> timings,
+      final Stopwatch stopwatch) throws Exception {
+
+    Set<String> ids = timings.keySet();
+    Collection<Instance> instances = context.getSpiCallMetrics().time(providerId, "find",
+        () -> provider.find(template, ids));
+    LOG.info(String.format("Checking connectivity on port %d to %d instances",
+        expectedOpenPort, instances.size()));
+
+    List<Future<Long>> probes = new ArrayList<Future<Long>>();
+    List<Future<Long>> recorded = new ArrayList<Future<Long>>();
+    for (Instance instance : instances) {
+      final InstanceTimings instanceTimings = timings.get(instance.getId());
+      if (instanceTimings == null) {
+        continue;
+      }
+      CompletableFuture<Long> probe = context.getPortProber().probe(
+          new InetSocketAddress(instance.getPrivateIpAddress(), expectedOpenPort),
+          portPollingPolicy);
+      probes.add(probe);
+      recorded.add(probe.whenComplete((millis, failure) -> {
+        if (failure == null) {
+          instanceTimings.portOpenMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+        }
+      }));
+    }
+
+    try {
+      for (Future<Long> future : recorded) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          summary.addError("%s", e.getCause().getMessage());
+        }
+      }
+    } finally {
+      for (Future<Long> probe : probes) {
+        probe.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Waits for all tracked instances to be in one of the expected statuses. The state of
+   * all pending instances is polled with one call per tick by the shared poller.
+   */
+  private void waitForInstanceStatuses(Summary summary, ValidationContext context,
+      String providerId, InstanceProvider provider, InstanceTemplate template, Map<String, InstanceTimings> timings,
+      final Stopwatch stopwatch, final boolean running, InstanceStatus... expectedStatuses)
+      throws Exception {
+
+    List<InstanceStatus> expectedStatusesList = Arrays.asList(expectedStatuses);
+    LOG.info(String.format("Waiting for %d instance statuses to be in %s (%s)", timings.size(),
+        expectedStatusesList, statusPollingPolicy));
+
+    InstanceStatusPoller poller = context.getInstanceStatusPoller();
+    long stateCallsBefore = poller.getStateCallCount();
+
+    List<Future<InstanceStatus>> waits = new ArrayList<Future<InstanceStatus>>();
+    Map<String, Future<InstanceStatus>> futures = new LinkedHashMap<String, Future<InstanceStatus>>();
+    for (Map.Entry<String, InstanceTimings> entry : timings.entrySet()) {
+      final InstanceTimings instanceTimings = entry.getValue();
+      CompletableFuture<InstanceStatus> wait = poller.waitForStatus(providerId, provider, template,
+          entry.getKey(), statusPollingPolicy, expectedStatuses);
+      waits.add(wait);
+      futures.put(entry.getKey(), wait.whenComplete((status, failure) -> {
+        if (failure == null) {
+          instanceTimings.recordStatus(running, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        }
+      }));
+    }
+
+    List<String> timedOut = new ArrayList<String>();
+    try {
+      for (Map.Entry<String, Future<InstanceStatus>> entry : futures.entrySet()) {
+        try {
+          entry.getValue().get();
+
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof TimeoutException) {
+            timedOut.add(entry.getKey());
+          } else if (cause instanceof NoSuchElementException ||
+              cause instanceof IllegalStateException) {
+            summary.addError("%s", cause.getMessage());
+          } else if (cause instanceof Exception) {
+            throw (Exception) cause;
+          } else {
+            throw (Error) cause;
+          }
+        }
+      }
+
+    } finally {
+      for (Future<InstanceStatus> wait : waits) {
+        wait.cancel(false);
+      }
+    }
+
+    if (!timedOut.isEmpty()) {
+      summary.addError("%d instances did not transition to status in %s in %d seconds: %s",
+          timedOut.size(), expectedStatusesList,
+          TimeUnit.MILLISECONDS.toSeconds(statusPollingPolicy.getTimeoutMillis()), timedOut);
+    }
+    LOG.info(String.format("Finished waiting for %d instance statuses to be in %s with %d " +
+            "instance state calls", timings.size(), expectedStatusesList,
+        poller.getStateCallCount() - stateCallsBefore));
+  }
+
+  /**
+   * Records the instances that are known to be deleted in the allocation journal.
+   */
+  private void recordDeleted(ValidationContext context, InstanceTemplate template,
+      Map<String, InstanceTimings> timings) {
+    List<String> deletedIds = new ArrayList<String>();
+    for (Map.Entry<String, InstanceTimings> entry : timings.entrySet()) {
+      if (entry.getValue().deletedMillis >= 0) {
+        deletedIds.add(entry.getKey());
+      }
+    }
+    if (!deletedIds.isEmpty()) {
+      context.recordDeleted(template, deletedIds);
+    }
+  }
+
+  private void logReport(long allocateMillis, Map<String, InstanceTimings> timings) {
+    LOG.info(String.format("Bulk allocation report (%d instances, allocate call took %d ms):",
+        timings.size(), allocateMillis));
+
+    List<Long> readyMillis = new ArrayList<Long>();
+    for (Map.Entry<String, InstanceTimings> entry : timings.entrySet()) {
+      InstanceTimings instanceTimings = entry.getValue();
+      LOG.info(String.format("* %s running: %s, port open: %s, deleted: %s",
+          entry.getKey(),
+          formatMillis(instanceTimings.runningMillis),
+          formatMillis(instanceTimings.portOpenMillis),
+          formatMillis(instanceTimings.deletedMillis)));
+
+      long ready = instanceTimings.getReadyMillis();
+      if (ready >= 0) {
+        readyMillis.add(ready);
+      }
+    }
+
+    if (readyMillis.isEmpty()) {
+      return;
+    }
+
+    Collections.sort(readyMillis);
+    long lastReady = readyMillis.get(readyMillis.size() - 1);
+    double throughput = (lastReady == 0) ? 0 : readyMillis.size() * 60000.0 / lastReady;
+
+    LOG.info(String.format("Time to ready: min %d ms, median %d ms, max %d ms; " +
+            "throughput %.2f instances/minute",
+        readyMillis.get(0), readyMillis.get(readyMillis.size() / 2), lastReady, throughput));
+  }
+
+  private static String formatMillis(long millis) {
+    return (millis < 0) ? "n/a" : millis + " ms";
+  }
+
+  /**
+   * Milestones for one instance, in milliseconds since the allocation call (or since
+   * the deletion call for the deleted milestone), or -1 if not reached.
+   */
+  private static class InstanceTimings {
+
+    private long runningMillis = -1;
+    private long portOpenMillis = -1;
+    private long deletedMillis = -1;
+
+    void recordStatus(boolean running, long elapsedMillis) {
+      if (running) {
+        runningMillis = elapsedMillis;
+      } else {
+        deletedMillis = elapsedMillis;
+      }
+    }
+
+    /**
+     * An instance is ready when its port is open, or when it is running if the
+     * port check is skipped.
+     */
+    long getReadyMillis() {
+      return (portOpenMillis >= 0) ? portOpenMillis : runningMillis;
+    }
+  }
+}
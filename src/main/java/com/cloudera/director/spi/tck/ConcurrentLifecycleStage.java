@@ -0,0 +1,169 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import com.cloudera.director.spi.tck.util.DaemonThreadFactory;
+import com.cloudera.director.spi.tck.util.Stopwatch;
+import com.cloudera.director.spi.tck.util.TCKUtil;
+import com.cloudera.director.spi.v2.model.InstanceTemplate;
+import com.cloudera.director.spi.v2.provider.InstanceProvider;
+import com.typesafe.config.Config;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs many instance lifecycles of a resource provider at the same time, the way
+ * Director does while it grows several clusters. All lifecycles are started at once
+ * as {@link LifecyclePipeline asynchronous pipelines}: their waits are driven by the
+ * shared poller and port prober, and only their SPI calls take a thread from a
+ * bounded pool, so hundreds of lifecycles do not need hundreds of threads.
+ * <p/>
+ * Errors and exceptions of the lifecycles are reported once each with the number of
+ * lifecycles that hit them. Every lifecycle deletes its instance, whatever happens:
+ * if the stage is interrupted or fails before all lifecycles are over, the
+ * instances they allocated are deleted on the calling thread before the SPI call
+ * threads are stopped.
+ */
+class ConcurrentLifecycleStage {
+
+  private static final Logger LOG = Logger.getLogger(ConcurrentLifecycleStage.class.getName());
+
+  private static final int DEFAULT_CALL_THREADS = 16;
+
+  private final TCKUtil tckUtil;
+  private final Config config;
+  private final int count;
+  private final int callThreads;
+
+  /**
+   * Creates a new concurrent lifecycle stage.
+   *
+   * @param tckUtil TCK utilities
+   * @param config  the resource provider section of the configuration, with a
+   *                concurrent lifecycles section
+   * @throws IllegalArgumentException if the counts are not positive
+   */
+  ConcurrentLifecycleStage(TCKUtil tckUtil, Config config) {
+    this.tckUtil = tckUtil;
+    this.config = config;
+
+    Config lifecyclesConfig = config.getConfig(Configurations.CONCURRENT_LIFECYCLES_SECTION);
+    this.count = lifecyclesConfig.getInt(Configurations.CONCURRENT_LIFECYCLES_COUNT_PROPERTY);
+    this.callThreads =
+        lifecyclesConfig.hasPath(Configurations.CONCURRENT_LIFECYCLES_CALL_THREADS_PROPERTY) ?
+            lifecyclesConfig.getInt(Configurations.CONCURRENT_LIFECYCLES_CALL_THREADS_PROPERTY) :
+            DEFAULT_CALL_THREADS;
+
+    if (count < 1 || callThreads < 1) {
+      throw new IllegalArgumentException(String.format(
+          "Invalid concurrent lifecycle counts: count %d, callThreads %d", count, callThreads));
+    }
+  }
+
+  /**
+   * Runs the lifecycles and waits for all of them to finish.
+   *
+   * @param summary    a summary of errors and warnings that will be updated
+   * @param context    the validation context
+   * @param providerId the ID of the instance provider
+   * @param provider   the instance provider
+   * @param template   the template to allocate instances with
+   * @throws Exception if interrupted while waiting for the lifecycles
+   */
+  void run(Summary summary, ValidationContext context, String providerId,
+      InstanceProvider provider, InstanceTemplate template) throws Exception {
+
+    LOG.info(String.format("Starting %d instance lifecycles at the same time with up to %d " +
+        "SPI calls in flight", count, callThreads));
+
+    ExecutorService callExecutor = Executors.newFixedThreadPool(callThreads,
+        new DaemonThreadFactory("tck-lifecycle-calls"));
+    LifecyclePipeline pipeline = new LifecyclePipeline(context, callExecutor, providerId,
+        provider, template, config);
+    try {
+      long stateCallsBefore = context.getInstanceStatusPoller().getStateCallCount();
+      Stopwatch stopwatch = Stopwatch.createStarted();
+
+      List<Summary> lifecycleSummaries = new ArrayList<Summary>(count);
+      List<CompletableFuture<Void>> lifecycles = new ArrayList<CompletableFuture<Void>>(count);
+      for (int i = 0; i < count; i++) {
+        Summary lifecycleSummary = new Summary(summary.getMaxFindings());
+        lifecycleSummaries.add(lifecycleSummary);
+        lifecycles.add(pipeline.start(lifecycleSummary, tckUtil.newInstanceId(), null));
+      }
+
+      // wait for all lifecycles, including their deletions, before reporting failures
+      LifecyclePipeline.await(CompletableFuture.allOf(
+          lifecycles.toArray(new CompletableFuture<?>[lifecycles.size()]))
+          .handle((ignored, failure) -> null));
+      long elapsedMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+
+      int succeeded = 0;
+      Map<String, Integer> problems = new LinkedHashMap<String, Integer>();
+      Throwable firstFailure = null;
+      for (int i = 0; i < count; i++) {
+        Summary lifecycleSummary = lifecycleSummaries.get(i);
+        for (String error : lifecycleSummary.getErrors()) {
+          addProblem(problems, error);
+        }
+        for (String warning : lifecycleSummary.getWarnings()) {
+          summary.addWarning("%s", warning);
+        }
+        Throwable failure = getFailure(lifecycles.get(i));
+        if (failure != null) {
+          addProblem(problems, "Unexpected exception: " + failure);
+          firstFailure = (firstFailure == null) ? failure : firstFailure;
+        } else if (!lifecycleSummary.hasErrors()) {
+          succeeded++;
+        }
+      }
+      for (Map.Entry<String, Integer> problem : problems.entrySet()) {
+        summary.addError("%s (%d of %d lifecycles)", problem.getKey(), problem.getValue(), count);
+      }
+
+      long stateCalls = context.getInstanceStatusPoller().getStateCallCount() - stateCallsBefore;
+      double throughput = (elapsedMillis == 0) ? 0 : count * 60000.0 / elapsedMillis;
+      LOG.info(String.format("Finished %d concurrent instance lifecycles in %d ms " +
+              "(%d succeeded, %.2f lifecycles/minute, %d instance state calls)",
+          count, elapsedMillis, succeeded, throughput, stateCalls));
+      summary.addCounter(Summary.providerCounter(providerId, "concurrentLifecycles"), count);
+      summary.addCounter(Summary.providerCounter(providerId, "concurrentLifecyclesSucceeded"),
+          succeeded);
+      summary.addCounter(Summary.providerCounter(providerId, "concurrentLifecyclesMillis"),
+          elapsedMillis);
+
+      if (firstFailure != null) {
+        LOG.log(Level.SEVERE, "Instance lifecycle failed with an exception", firstFailure);
+      }
+
+    } finally {
+      // the steps still queued, deletions included, are dropped by the shutdown
+      pipeline.deleteUnfinished();
+      callExecutor.shutdownNow();
+    }
+  }
+
+  private static void addProblem(Map<String, Integer> problems, String problem) {
+    Integer times = problems.get(problem);
+    problems.put(problem, (times == null) ? 1 : times + 1);
+  }
+
+  private static Throwable getFailure(CompletableFuture<Void> lifecycle) {
+    try {
+      lifecycle.join();
+      return null;
+    } catch (CompletionException e) {
+      return (e.getCause() != null) ? e.getCause() : e;
+    }
+  }
+}
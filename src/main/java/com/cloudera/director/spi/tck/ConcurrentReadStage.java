@@ -0,0 +1,291 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import com.cloudera.director.spi.tck.util.DaemonThreadFactory;
+import com.cloudera.director.spi.tck.util.LatencyHistogram;
+import com.cloudera.director.spi.tck.util.Stopwatch;
+import com.cloudera.director.spi.v2.compute.ComputeInstanceTemplate;
+import com.cloudera.director.spi.v2.compute.ComputeProvider;
+import com.cloudera.director.spi.v2.model.Instance;
+import com.cloudera.director.spi.v2.model.InstanceState;
+import com.cloudera.director.spi.v2.model.InstanceStatus;
+import com.cloudera.director.spi.v2.model.InstanceTemplate;
+import com.cloudera.director.spi.v2.provider.InstanceProvider;
+import com.typesafe.config.Config;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Stress test for the read path of an instance provider, which Director calls from
+ * many threads at the same time. Once an instance is RUNNING, {@code getInstanceState},
+ * {@code find} and {@code getHostKeyFingerprints} are called from 1, 2, 4 and up to
+ * the maximum number of threads at the same time. Every result is compared with the
+ * result of a call made from a single thread, and every exception is reported.
+ * <p/>
+ * The throughput and the p99 latency of each method are logged and reported as
+ * counters for every thread count, so that lock contention in the plugin shows as
+ * a throughput that stops growing with the number of threads.
+ */
+class ConcurrentReadStage {
+
+  private static final Logger LOG = Logger.getLogger(ConcurrentReadStage.class.getName());
+
+  private static final int DEFAULT_MAX_THREADS = 8;
+  private static final int DEFAULT_CALLS_PER_THREAD = 10;
+
+  private static final String GET_INSTANCE_STATE = "getInstanceState";
+  private static final String FIND = "find";
+  private static final String GET_HOST_KEY_FINGERPRINTS = "getHostKeyFingerprints";
+
+  private static final String THROUGHPUT_COUNTER = "concurrentReadsPerSecondAt%dThreads";
+  private static final String P99_COUNTER = "concurrentReadsP99MicrosAt%dThreads";
+
+  private final int maxThreads;
+  private final int callsPerThread;
+
+  /**
+   * Creates a new concurrent read stage.
+   *
+   * @param config the resource provider section of the configuration, with a
+   *               concurrent reads section
+   * @throws IllegalArgumentException if the counts are not positive
+   */
+  ConcurrentReadStage(Config config) {
+    Config readsConfig = config.getConfig(Configurations.CONCURRENT_READS_SECTION);
+    this.maxThreads = readsConfig.hasPath(Configurations.CONCURRENT_READS_MAX_THREADS_PROPERTY) ?
+        readsConfig.getInt(Configurations.CONCURRENT_READS_MAX_THREADS_PROPERTY) :
+        DEFAULT_MAX_THREADS;
+    this.callsPerThread =
+        readsConfig.hasPath(Configurations.CONCURRENT_READS_CALLS_PER_THREAD_PROPERTY) ?
+            readsConfig.getInt(Configurations.CONCURRENT_READS_CALLS_PER_THREAD_PROPERTY) :
+            DEFAULT_CALLS_PER_THREAD;
+
+    if (maxThreads < 1 || callsPerThread < 1) {
+      throw new IllegalArgumentException(String.format(
+          "Invalid concurrent read counts: maxThreads %d, callsPerThread %d",
+          maxThreads, callsPerThread));
+    }
+  }
+
+  /**
+   * Gets the thread counts to test: the powers of two up to the maximum, and the
+   * maximum itself.
+   */
+  static List<Integer> getThreadCounts(int maxThreads) {
+    List<Integer> threadCounts = new ArrayList<Integer>();
+    for (int threads = 1; threads < maxThreads; threads *= 2) {
+      threadCounts.add(threads);
+    }
+    threadCounts.add(maxThreads);
+    return threadCounts;
+  }
+
+  /**
+   * Calls the read methods concurrently for an instance that is RUNNING.
+   *
+   * @param summary    a summary of errors and warnings that will be updated
+   * @param providerId the ID of the instance provider, which the counters are kept under
+   * @param provider   the instance provider
+   * @param template   the template the instance was allocated with
+   * @param instanceId the ID of the running instance
+   * @throws Exception if the reference calls fail
+   */
+  @SuppressWarnings("unchecked")
+  void run(Summary summary, String providerId, InstanceProvider provider,
+      InstanceTemplate template, String instanceId) throws Exception {
+
+    List<String> instanceIds = Collections.singletonList(instanceId);
+    Map<String, Read> reads = new LinkedHashMap<String, Read>();
+    reads.put(GET_INSTANCE_STATE, () -> {
+      Map<String, InstanceState> states = provider.getInstanceState(template, instanceIds);
+      InstanceState state = states.get(instanceId);
+      return (state == null) ? "missing" : state.getInstanceStatus();
+    });
+    reads.put(FIND, () -> {
+      Collection<Instance> instances = provider.find(template, instanceIds);
+      List<Object> found = new ArrayList<Object>();
+      for (Instance instance : instances) {
+        InetAddress address = instance.getPrivateIpAddress();
+        found.add(instance.getId() + "@" + address);
+      }
+      return found;
+    });
+    if (provider instanceof ComputeProvider) {
+      reads.put(GET_HOST_KEY_FINGERPRINTS, () -> ((ComputeProvider) provider)
+          .getHostKeyFingerprints((ComputeInstanceTemplate) template, instanceIds));
+    }
+
+    // the results of calls from a single thread are the reference for all other calls
+    Map<String, Object> expected = new LinkedHashMap<String, Object>();
+    for (Map.Entry<String, Read> read : reads.entrySet()) {
+      expected.put(read.getKey(), read.getValue().call());
+    }
+    if (!InstanceStatus.RUNNING.equals(expected.get(GET_INSTANCE_STATE))) {
+      summary.addError("Expected instance %s to be RUNNING before the concurrent reads. " +
+          "Found: %s", instanceId, expected.get(GET_INSTANCE_STATE));
+      return;
+    }
+
+    LOG.info(String.format("Calling %s from up to %d threads at the same time, %d calls " +
+        "per thread", reads.keySet(), maxThreads, callsPerThread));
+
+    ExecutorService executor = Executors.newFixedThreadPool(maxThreads,
+        new DaemonThreadFactory("tck-concurrent-reads"));
+    try {
+      double singleThreadThroughput = 0;
+      double lastThroughput = 0;
+      for (int threads : getThreadCounts(maxThreads)) {
+        Level level = new Level(threads);
+        level.run(executor, reads, expected);
+        level.report(summary, providerId);
+
+        lastThroughput = level.getThroughput();
+        if (threads == 1) {
+          singleThreadThroughput = lastThroughput;
+        }
+      }
+
+      if (maxThreads > 1 && lastThroughput <= singleThreadThroughput) {
+        summary.addWarning("Read throughput does not grow with concurrency: %.1f calls/s " +
+                "with 1 thread, %.1f calls/s with %d threads", singleThreadThroughput,
+            lastThroughput, maxThreads);
+      }
+
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * A read call whose result can be compared between calls.
+   */
+  private interface Read {
+    Object call() throws Exception;
+  }
+
+  /**
+   * The calls made at one thread count.
+   */
+  private class Level {
+
+    private final int threads;
+    private final Map<String, LatencyHistogram> latencies =
+        new LinkedHashMap<String, LatencyHistogram>();
+    // distinct problems with the number of times they happened
+    private final ConcurrentMap<String, AtomicLong> problems =
+        new ConcurrentHashMap<String, AtomicLong>();
+    private long elapsedNanos;
+
+    Level(int threads) {
+      this.threads = threads;
+    }
+
+    void run(ExecutorService executor, Map<String, Read> reads, Map<String, Object> expected)
+        throws Exception {
+      for (String method : reads.keySet()) {
+        latencies.put(method, new LatencyHistogram());
+      }
+
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            start.await();
+            for (int call = 0; call < callsPerThread; call++) {
+              for (Map.Entry<String, Read> read : reads.entrySet()) {
+                callAndCompare(read.getKey(), read.getValue(), expected.get(read.getKey()));
+              }
+            }
+            return null;
+          }
+        }));
+      }
+
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      start.countDown();
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+      elapsedNanos = stopwatch.elapsed(TimeUnit.NANOSECONDS);
+    }
+
+    private void callAndCompare(String method, Read read, Object expected) {
+      long callStart = System.nanoTime();
+      try {
+        Object result = read.call();
+        if (!Objects.equals(expected, result)) {
+          recordProblem(String.format("%s returned %s instead of %s", method, result, expected));
+        }
+      } catch (Exception e) {
+        recordProblem(String.format("%s failed: %s", method, e));
+      } finally {
+        latencies.get(method).record(System.nanoTime() - callStart);
+      }
+    }
+
+    private void recordProblem(String problem) {
+      AtomicLong count = problems.get(problem);
+      if (count == null) {
+        AtomicLong newCount = new AtomicLong();
+        count = problems.putIfAbsent(problem, newCount);
+        if (count == null) {
+          count = newCount;
+        }
+      }
+      count.incrementAndGet();
+    }
+
+    double getThroughput() {
+      long calls = 0;
+      for (LatencyHistogram histogram : latencies.values()) {
+        calls += histogram.getCount();
+      }
+      return (elapsedNanos == 0) ? 0 :
+          calls * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    void report(Summary summary, String providerId) {
+      long p99Nanos = 0;
+      StringBuilder methodLatencies = new StringBuilder();
+      for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+        long methodP99Nanos = entry.getValue().getPercentile(99);
+        p99Nanos = Math.max(p99Nanos, methodP99Nanos);
+        methodLatencies.append(String.format(", %s p99 %.1f ms", entry.getKey(),
+            methodP99Nanos / (double) TimeUnit.MILLISECONDS.toNanos(1)));
+      }
+
+      double throughput = getThroughput();
+      LOG.info(String.format("Concurrent reads with %d threads: %.1f calls/s%s", threads,
+          throughput, methodLatencies));
+      summary.addCounter(Summary.providerCounter(providerId,
+          String.format(THROUGHPUT_COUNTER, threads)), Math.round(throughput));
+      summary.addCounter(Summary.providerCounter(providerId,
+          String.format(P99_COUNTER, threads)), TimeUnit.NANOSECONDS.toMicros(p99Nanos));
+
+      for (Map.Entry<String, AtomicLong> problem : problems.entrySet()) {
+        summary.addError("With %d concurrent threads %s (%d times)", threads, problem.getKey(),
+            problem.getValue().get());
+      }
+    }
+  }
+}
@@ -38,4 +38,293 @@ public final class Configurations {
    */
   public static final String EXPECTED_OPEN_PORT_PROPERTY = "expectedOpenPort";
 
+  /**
+   * The maximum number of cloud providers and resource providers that are validated
+   * at the same time. Optional, defaults to 1 (sequential validation).
+   */
+  public static final String PARALLELISM_PROPERTY = "parallelism";
+
+  /**
+   * A directory where plugin metadata and packaging check results are cached between
+   * runs, keyed by the size, modification time and digest of the plugin jar.
+   * Optional, no caching by default.
+   */
+  public static final String PLUGIN_CACHE_DIRECTORY_PROPERTY = "pluginCacheDirectory";
+
+  /**
+   * A file where the IDs of allocated instances are journaled until they are deleted,
+   * so that the instances left behind by a run that died can be deleted with the
+   * cleanup mode. Optional, no journal by default.
+   */
+  public static final String ALLOCATION_JOURNAL_PROPERTY = "allocationJournal";
+
+  /**
+   * The maximum number of distinct errors, and of distinct warnings, kept by the
+   * summary of a validation. Further findings are only counted. Optional, defaults
+   * to 1000.
+   */
+  public static final String MAX_FINDINGS_PROPERTY = "maxFindings";
+
+  /**
+   * The HOCON section identifier for the optional bulk allocation stress test of
+   * an instance provider.
+   */
+  public static final String BULK_ALLOCATION_SECTION = "bulkAllocation";
+
+  /**
+   * The number of instances requested in a single allocation call by the bulk
+   * allocation stress test.
+   */
+  public static final String BULK_ALLOCATION_COUNT_PROPERTY = "count";
+
+  /**
+   * The minimum number of instances that must be allocated for the bulk allocation
+   * call to succeed. Optional, defaults to the requested number of instances.
+   */
+  public static final String BULK_ALLOCATION_MIN_COUNT_PROPERTY = "minCount";
+
+  /**
+   * The HOCON section identifier for the optional partial allocation test of an
+   * instance provider, which asks for more instances than the environment can
+   * satisfy and checks that the allocation gives up in time and cleans up.
+   */
+  public static final String PARTIAL_ALLOCATION_SECTION = "partialAllocation";
+
+  /**
+   * The number of instances requested by the partial allocation test.
+   */
+  public static final String PARTIAL_ALLOCATION_COUNT_PROPERTY = "count";
+
+  /**
+   * The minimum number of instances of the partial allocation test. Optional,
+   * defaults to the requested number of instances.
+   */
+  public static final String PARTIAL_ALLOCATION_MIN_COUNT_PROPERTY = "minCount";
+
+  /**
+   * How long the allocate call of the partial allocation test may take to return or
+   * fail, as a HOCON duration. Optional, defaults to 5 minutes.
+   */
+  public static final String PARTIAL_ALLOCATION_DEADLINE_PROPERTY = "deadline";
+
+  /**
+   * The HOCON section identifier for the optional readiness benchmark of a database
+   * server provider, which measures how long a database server takes to answer
+   * with its wire protocol, not only to accept connections.
+   */
+  public static final String DATABASE_READINESS_SECTION = "databaseReadiness";
+
+  /**
+   * The wire protocol probed by the database readiness benchmark, either
+   * {@code mysql} or {@code postgresql}. Optional, defaults to the protocol of the
+   * {@code type} resource template configuration.
+   */
+  public static final String DATABASE_READINESS_PROTOCOL_PROPERTY = "protocol";
+
+  /**
+   * The HOCON section identifier for the optional concurrent read stress test of an
+   * instance provider, run while the instance of the lifecycle test is RUNNING.
+   */
+  public static final String CONCURRENT_READS_SECTION = "concurrentReads";
+
+  /**
+   * The maximum number of threads that call the read methods at the same time.
+   * Optional, defaults to 8.
+   */
+  public static final String CONCURRENT_READS_MAX_THREADS_PROPERTY = "maxThreads";
+
+  /**
+   * The number of times each thread calls every read method. Optional, defaults to 10.
+   */
+  public static final String CONCURRENT_READS_CALLS_PER_THREAD_PROPERTY = "callsPerThread";
+
+  /**
+   * The HOCON section identifier for the optional test that runs many instance
+   * lifecycles of a resource provider at the same time.
+   */
+  public static final String CONCURRENT_LIFECYCLES_SECTION = "concurrentLifecycles";
+
+  /**
+   * The number of instance lifecycles to run at the same time.
+   */
+  public static final String CONCURRENT_LIFECYCLES_COUNT_PROPERTY = "count";
+
+  /**
+   * The maximum number of SPI calls in flight at the same time for the concurrent
+   * lifecycles. Optional, defaults to 16.
+   */
+  public static final String CONCURRENT_LIFECYCLES_CALL_THREADS_PROPERTY = "callThreads";
+
+  /**
+   * The HOCON section identifier for the optional soak test of an instance provider,
+   * which repeats the instance lifecycle to expose slow degradation.
+   */
+  public static final String SOAK_SECTION = "soak";
+
+  /**
+   * The number of lifecycle iterations of the soak test. Optional if a duration is
+   * set, the test stops at whichever limit comes first.
+   */
+  public static final String SOAK_ITERATIONS_PROPERTY = "iterations";
+
+  /**
+   * How long to keep starting lifecycle iterations in the soak test, as a HOCON
+   * duration. Optional if a number of iterations is set.
+   */
+  public static final String SOAK_DURATION_PROPERTY = "duration";
+
+  /**
+   * The number of first iterations of the soak test that are left out of the trends,
+   * while caches fill up and code is compiled. Optional, defaults to 1.
+   */
+  public static final String SOAK_WARMUP_ITERATIONS_PROPERTY = "warmupIterations";
+
+  /**
+   * The HOCON section identifier for the maximum growth per iteration of the values
+   * sampled by the soak test. A value over its limit is an error. Values without a
+   * limit are held to a default limit, and going over it is only a warning.
+   */
+  public static final String SOAK_MAX_SLOPES_SECTION = "maxSlopes";
+
+  /**
+   * The maximum growth per iteration of the wall time of an iteration, as a duration.
+   */
+  public static final String SOAK_CYCLE_TIME_SLOPE_PROPERTY = "cycleTime";
+
+  /**
+   * The maximum growth per iteration of the mean latency of each SPI method, as a
+   * duration.
+   */
+  public static final String SOAK_CALL_LATENCY_SLOPE_PROPERTY = "callLatency";
+
+  /**
+   * The maximum growth per iteration of the heap used after garbage collection, as a
+   * memory size.
+   */
+  public static final String SOAK_HEAP_AFTER_GC_SLOPE_PROPERTY = "heapAfterGc";
+
+  /**
+   * The maximum growth per iteration of the number of live threads.
+   */
+  public static final String SOAK_LIVE_THREADS_SLOPE_PROPERTY = "liveThreads";
+
+  /**
+   * The maximum growth per iteration of the number of open file descriptors.
+   */
+  public static final String SOAK_OPEN_FILE_DESCRIPTORS_SLOPE_PROPERTY = "openFileDescriptors";
+
+
+  /**
+   * The HOCON section identifier for the policy used to poll instance statuses.
+   */
+  public static final String INSTANCE_STATUS_POLLING_SECTION = "instanceStatusPolling";
+
+  /**
+   * The HOCON section identifier for the policy used to poll the expected open port.
+   */
+  public static final String PORT_POLLING_SECTION = "portPolling";
+
+  /**
+   * The polling strategy, either "exponential" (default) or "fixed".
+   */
+  public static final String POLLING_STRATEGY_PROPERTY = "strategy";
+
+  /**
+   * How long to keep polling before giving up, as a HOCON duration.
+   */
+  public static final String POLLING_TIMEOUT_PROPERTY = "timeout";
+
+  /**
+   * The delay between polls for the fixed polling strategy, as a HOCON duration.
+   */
+  public static final String POLLING_INTERVAL_PROPERTY = "interval";
+
+  /**
+   * The delay between polls during the fast initial phase of the exponential polling
+   * strategy, as a HOCON duration.
+   */
+  public static final String POLLING_INITIAL_DELAY_PROPERTY = "initialDelay";
+
+  /**
+   * The number of polls in the fast initial phase of the exponential polling strategy.
+   */
+  public static final String POLLING_FAST_ATTEMPTS_PROPERTY = "fastAttempts";
+
+  /**
+   * The growth factor of the delay for the exponential polling strategy.
+   */
+  public static final String POLLING_MULTIPLIER_PROPERTY = "multiplier";
+
+  /**
+   * The maximum delay between polls for the exponential polling strategy, as a
+   * HOCON duration.
+   */
+  public static final String POLLING_MAX_DELAY_PROPERTY = "maxDelay";
+
+  /**
+   * The maximum fraction by which a delay is randomly changed for the exponential
+   * polling strategy, between 0 and 1.
+   */
+  public static final String POLLING_JITTER_PROPERTY = "jitter";
+
+  /**
+   * Optional top-level section with limits on the cost of plugin startup phases,
+   * with one subsection per phase ({@code initialize}, {@code createCloudProvider}),
+   * each with optional {@code warning} and {@code error} sections.
+   */
+  public static final String STARTUP_THRESHOLDS_SECTION = "startupThresholds";
+
+  /**
+   * The limit on the wall time of a startup phase, as a duration.
+   */
+  public static final String STARTUP_WALL_TIME_PROPERTY = "wallTime";
+
+  /**
+   * The limit on the CPU time of a startup phase, as a duration.
+   */
+  public static final String STARTUP_CPU_TIME_PROPERTY = "cpuTime";
+
+  /**
+   * The limit on the number of classes loaded during a startup phase.
+   */
+  public static final String STARTUP_CLASSES_LOADED_PROPERTY = "classesLoaded";
+
+  /**
+   * The limit on the bytes allocated during a startup phase, as a memory size.
+   */
+  public static final String STARTUP_ALLOCATED_BYTES_PROPERTY = "allocatedBytes";
+
+  /**
+   * The limit on the number of threads started during a startup phase.
+   */
+  public static final String STARTUP_THREADS_STARTED_PROPERTY = "threadsStarted";
+
+  /**
+   * Optional top-level section for the check of threads and file descriptors left
+   * behind by a plugin after teardown.
+   */
+  public static final String LEAK_CHECK_SECTION = "leakCheck";
+
+  /**
+   * How long plugin threads are given to finish after teardown before they are
+   * reported, as a HOCON duration. Optional, defaults to 2 seconds.
+   */
+  public static final String LEAK_CHECK_GRACE_PERIOD_PROPERTY = "gracePeriod";
+
+  /**
+   * Whether to check for file descriptors left open. Optional, defaults to true.
+   */
+  public static final String LEAK_CHECK_FILE_DESCRIPTORS_PROPERTY = "checkFileDescriptors";
+
+  /**
+   * Regular expressions for the names of plugin threads that may outlive the plugin.
+   */
+  public static final String LEAK_CHECK_THREAD_ALLOWLIST_PROPERTY = "threadAllowlist";
+
+  /**
+   * Regular expressions for the targets of file descriptors that may stay open, such
+   * as a file path or {@code socket:\[.*\]}.
+   */
+  public static final String LEAK_CHECK_FILE_DESCRIPTOR_ALLOWLIST_PROPERTY =
+      "fileDescriptorAllowlist";
 }
@@ -0,0 +1,235 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import com.cloudera.director.spi.tck.util.DatabaseProtocolProbe;
+import com.cloudera.director.spi.tck.util.PollingPolicies;
+import com.cloudera.director.spi.tck.util.PollingPolicy;
+import com.cloudera.director.spi.tck.util.Stopwatch;
+import com.cloudera.director.spi.tck.util.TCKUtil;
+import com.cloudera.director.spi.v2.database.DatabaseServerInstance;
+import com.cloudera.director.spi.v2.model.Instance;
+import com.cloudera.director.spi.v2.model.InstanceStatus;
+import com.cloudera.director.spi.v2.model.InstanceTemplate;
+import com.cloudera.director.spi.v2.provider.InstanceProvider;
+import com.typesafe.config.Config;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Measures how long a database server takes to become usable. A TCP connect only
+ * shows that the port is open, which for most database servers comes well before
+ * they accept sessions, so the stage also waits for the server to answer with its
+ * wire protocol (see {@link DatabaseProtocolProbe}).
+ * <p/>
+ * The stage allocates one database server and reports, from the allocate call, the
+ * time to RUNNING, to the port accepting connections and to the first protocol
+ * response, then the time from the delete call to DELETED.
+ */
+class DatabaseReadinessStage {
+
+  private static final Logger LOG = Logger.getLogger(DatabaseReadinessStage.class.getName());
+
+  /**
+   * The resource template configuration key of the database type.
+   */
+  private static final String DATABASE_TYPE_KEY = "type";
+
+  private final TCKUtil tckUtil;
+  private final DatabaseProtocolProbe probe;
+  private final int expectedOpenPort;
+  private final PollingPolicy statusPollingPolicy;
+  private final PollingPolicy portPollingPolicy;
+
+  /**
+   * Creates a new database readiness stage.
+   *
+   * @param tckUtil TCK utilities
+   * @param config  the resource provider section of the configuration, with a database
+   *                readiness section
+   * @throws IllegalArgumentException if the protocol is missing or unknown
+   */
+  DatabaseReadinessStage(TCKUtil tckUtil, Config config) {
+    this.tckUtil = tckUtil;
+
+    Config readinessConfig = config.getConfig(Configurations.DATABASE_READINESS_SECTION);
+    String typePath = Configurations.RESOURCE_CONFIGS_SECTION + "." + DATABASE_TYPE_KEY;
+    DatabaseProtocolProbe.Protocol protocol;
+    if (readinessConfig.hasPath(Configurations.DATABASE_READINESS_PROTOCOL_PROPERTY)) {
+      protocol = DatabaseProtocolProbe.Protocol.valueOf(readinessConfig
+          .getString(Configurations.DATABASE_READINESS_PROTOCOL_PROPERTY)
+          .toUpperCase(Locale.ROOT));
+    } else if (config.hasPath(typePath)) {
+      protocol = DatabaseProtocolProbe.Protocol.fromDatabaseType(config.getString(typePath));
+    } else {
+      throw new IllegalArgumentException("Set the protocol of the database readiness " +
+          "benchmark, or the database type of the resource template");
+    }
+    this.probe = new DatabaseProtocolProbe(protocol);
+
+    this.expectedOpenPort = config.getInt(Configurations.EXPECTED_OPEN_PORT_PROPERTY);
+    this.statusPollingPolicy =
+        PollingPolicies.fromConfig(config, Configurations.INSTANCE_STATUS_POLLING_SECTION);
+    this.portPollingPolicy =
+        PollingPolicies.fromConfig(config, Configurations.PORT_POLLING_SECTION);
+  }
+
+  @SuppressWarnings("unchecked")
+  void run(Summary summary, ValidationContext context, String providerId,
+      InstanceProvider provider, InstanceTemplate template) throws Exception {
+
+    String id = tckUtil.newInstanceId();
+    List<String> instanceIds = Collections.singletonList(id);
+    context.recordAllocating(template, instanceIds);
+
+    LOG.info(String.format("Allocating database server %s to measure its readiness with " +
+        "the %s protocol", id, probe.getProtocol()));
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    long runningMillis = -1;
+    long portOpenMillis = -1;
+    long firstResponseMillis = -1;
+    Throwable failure = null;
+    try {
+      Collection<Instance> instances = (Collection<Instance>) context.getSpiCallMetrics()
+          .time(providerId, "allocate", () -> provider.allocate(template, instanceIds, 1));
+      if (instances.size() != 1) {
+        summary.addError("Expected allocation to return exactly one instance. Found: %s",
+            instances);
+        return;
+      }
+
+      if (!waitForStatus(summary, context, providerId, provider, template, id,
+          InstanceStatus.RUNNING)) {
+        return;
+      }
+      runningMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+      summary.addCounter(Summary.providerCounter(providerId, "databaseRunningMillis"),
+          runningMillis);
+
+      instances = (Collection<Instance>) context.getSpiCallMetrics()
+          .time(providerId, "find", () -> provider.find(template, instanceIds));
+      if (instances.size() != 1) {
+        summary.addError("Expected to find exactly one instance after allocation. Found: %s",
+            instances);
+        return;
+      }
+      InetSocketAddress address = getAddress(summary, instances.iterator().next());
+      if (address == null) {
+        return;
+      }
+
+      try {
+        context.getPortProber().probe(address, portPollingPolicy).get();
+      } catch (ExecutionException e) {
+        summary.addError("%s", e.getCause().getMessage());
+        return;
+      }
+      portOpenMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+      summary.addCounter(Summary.providerCounter(providerId, "databasePortOpenMillis"),
+          portOpenMillis);
+
+      if (probe.waitForResponse(summary, address, portPollingPolicy) < 0) {
+        return;
+      }
+      firstResponseMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+      summary.addCounter(Summary.providerCounter(providerId, "databaseFirstResponseMillis"),
+          firstResponseMillis);
+
+    } catch (Throwable t) {
+      failure = t;
+      throw t;
+
+    } finally {
+      long deletedMillis = -1;
+      try {
+        deletedMillis = deleteAndWait(summary, context, providerId, provider, template, id);
+      } catch (Exception e) {
+        // a failed delete must not hide why the stage failed in the first place
+        if (failure == null) {
+          throw e;
+        }
+        failure.addSuppressed(e);
+      }
+      LOG.info(String.format("Database server readiness (ms, -1 if not reached): RUNNING " +
+              "%d, port open %d, first %s response %d. Deleted in %d ms", runningMillis,
+          portOpenMillis, probe.getProtocol(), firstResponseMillis, deletedMillis));
+    }
+  }
+
+  /**
+   * Gets the address of the database server, on the port it reports or else on the
+   * expected open port.
+   *
+   * @return the address, or null if there is no port to probe
+   */
+  private InetSocketAddress getAddress(Summary summary, Instance instance) {
+    Integer port = (instance instanceof DatabaseServerInstance) ?
+        ((DatabaseServerInstance<?>) instance).getPort() : null;
+    if (port == null) {
+      port = expectedOpenPort;
+    }
+    if (port == -1) {
+      summary.addError("The database server %s has no port, and the expected open port is " +
+          "not set", instance.getId());
+      return null;
+    }
+    return new InetSocketAddress(instance.getPrivateIpAddress(), port);
+  }
+
+  /**
+   * Waits for the instance to have one of the expected statuses.
+   *
+   * @return true if the instance reached one of the statuses
+   */
+  private boolean waitForStatus(Summary summary, ValidationContext context, String providerId,
+      InstanceProvider provider, InstanceTemplate template, String id,
+      InstanceStatus... expectedStatuses) throws InterruptedException {
+    try {
+      context.getInstanceStatusPoller().waitForStatus(providerId, provider, template, id,
+          statusPollingPolicy, expectedStatuses).get();
+      return true;
+    } catch (ExecutionException e) {
+      summary.addError("%s", e.getCause().getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Deletes the instance and waits for it to go away.
+   *
+   * @return the number of milliseconds from the delete call to DELETED, or -1 if the
+   * instance did not go away
+   */
+  private long deleteAndWait(Summary summary, ValidationContext context, String providerId,
+      InstanceProvider provider, InstanceTemplate template, String id) throws Exception {
+    List<String> instanceIds = Collections.singletonList(id);
+    LOG.info("Deleting the database server");
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    try {
+      context.getSpiCallMetrics().time(providerId, "delete", () -> {
+        provider.delete(template, instanceIds);
+        return null;
+      });
+    } catch (Exception e) {
+      LOG.severe("CRITICAL: Failed to delete allocated resources. Manual clean-up is necessary");
+      throw e;
+    }
+
+    if (!waitForStatus(summary, context, providerId, provider, template, id,
+        InstanceStatus.DELETED, InstanceStatus.UNKNOWN)) {
+      return -1;
+    }
+    long deletedMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+    summary.addCounter(Summary.providerCounter(providerId, "databaseDeletedMillis"),
+        deletedMillis);
+    context.recordDeleted(template, instanceIds);
+    return deletedMillis;
+  }
+}
@@ -0,0 +1,198 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import com.cloudera.director.spi.tck.util.InstanceStatusPoller;
+import com.cloudera.director.spi.tck.util.LogPrefix;
+import com.cloudera.director.spi.tck.util.PollingPolicy;
+import com.cloudera.director.spi.tck.util.SpiCallMetrics;
+import com.cloudera.director.spi.v2.model.InstanceStatus;
+import com.cloudera.director.spi.v2.model.InstanceTemplate;
+import com.cloudera.director.spi.v2.provider.InstanceProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Deletes instances in the background. Instances of the same template that are
+ * queued within a short delay of each other are deleted with a single delete call,
+ * and the wait for them to be DELETED is driven by the shared instance status poller
+ * without holding up the lifecycle that queued them. The waits are collected by
+ * {@link #drain(Summary)} at the end of the validation.
+ */
+class DeletionQueue {
+
+  private static final Logger LOG = Logger.getLogger(DeletionQueue.class.getName());
+
+  /**
+   * How long a batch stays open for more instances after the first one is queued.
+   */
+  static final long BATCH_DELAY_MILLIS = 50;
+
+  private final ScheduledExecutorService scheduler;
+  private final Executor callExecutor;
+  private final InstanceStatusPoller poller;
+  private final SpiCallMetrics metrics;
+  private final BiConsumer<InstanceTemplate, List<String>> deletedListener;
+
+  // open batches by template, guarded by this
+  private final Map<InstanceTemplate, Batch> batches = new IdentityHashMap<InstanceTemplate, Batch>();
+
+  // waits for DELETED not yet collected by drain, by instance ID, guarded by this
+  private final Map<String, CompletableFuture<InstanceStatus>> waits =
+      new LinkedHashMap<String, CompletableFuture<InstanceStatus>>();
+
+  /**
+   * Creates a new deletion queue.
+   *
+   * @param scheduler       the scheduler that closes batches
+   * @param callExecutor    the executor for the delete calls
+   * @param poller          the poller that waits for instances to be deleted
+   * @param metrics         the metrics the delete calls are recorded in
+   * @param deletedListener called with the IDs of instances known to be deleted
+   */
+  DeletionQueue(ScheduledExecutorService scheduler, Executor callExecutor,
+      InstanceStatusPoller poller, SpiCallMetrics metrics,
+      BiConsumer<InstanceTemplate, List<String>> deletedListener) {
+    this.scheduler = scheduler;
+    this.callExecutor = callExecutor;
+    this.poller = poller;
+    this.metrics = metrics;
+    this.deletedListener = deletedListener;
+  }
+
+  /**
+   * Queues an instance for deletion. Log lines of the delete call have the log prefix
+   * of the thread that opened the batch.
+   *
+   * @param providerId          the ID of the instance provider
+   * @param provider            the instance provider
+   * @param template            the template the instance was allocated with
+   * @param id                  the ID of the instance
+   * @param statusPollingPolicy the policy for the wait for DELETED
+   * @return a future that completes when the delete call of the batch returns, and
+   * fails with the exception of the delete call
+   */
+  synchronized CompletableFuture<Void> delete(String providerId, InstanceProvider provider,
+      InstanceTemplate template, String id, PollingPolicy statusPollingPolicy) {
+    Batch batch = batches.get(template);
+    if (batch == null) {
+      batch = new Batch(providerId, provider, template, statusPollingPolicy,
+          LogPrefix.getLabel());
+      batches.put(template, batch);
+      final Batch scheduled = batch;
+      scheduler.schedule(() -> close(scheduled), BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    batch.ids.add(id);
+    return batch.called;
+  }
+
+  private synchronized void close(Batch batch) {
+    batches.remove(batch.template);
+    callExecutor.execute(batch::run);
+  }
+
+  private synchronized void addWait(String id, CompletableFuture<InstanceStatus> wait) {
+    waits.put(id, wait);
+  }
+
+  /**
+   * Waits for all the instances whose delete call returned to be DELETED, and adds an
+   * error for each instance that is not.
+   *
+   * @param summary a summary of errors and warnings that will be updated
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void drain(Summary summary) throws InterruptedException {
+    Map<String, CompletableFuture<InstanceStatus>> pending;
+    synchronized (this) {
+      pending = new LinkedHashMap<String, CompletableFuture<InstanceStatus>>(waits);
+      waits.clear();
+    }
+
+    LOG.info(String.format("Waiting for %d deleted instances to be in %s", pending.size(),
+        Arrays.asList(InstanceStatus.DELETED, InstanceStatus.UNKNOWN)));
+    for (Map.Entry<String, CompletableFuture<InstanceStatus>> entry : pending.entrySet()) {
+      try {
+        entry.getValue().get();
+
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof TimeoutException || cause instanceof NoSuchElementException ||
+            cause instanceof IllegalStateException) {
+          summary.addError("%s", cause.getMessage());
+        } else {
+          summary.addError("Unexpected exception while waiting for instance %s to be " +
+              "deleted: %s", entry.getKey(), cause);
+        }
+        LOG.severe("CRITICAL: Instance " + entry.getKey() + " may not be deleted. Manual " +
+            "clean-up may be necessary");
+      }
+    }
+  }
+
+  /**
+   * The instances of one template that are deleted with one call.
+   */
+  private class Batch {
+
+    private final String providerId;
+    private final InstanceProvider provider;
+    private final InstanceTemplate template;
+    private final PollingPolicy statusPollingPolicy;
+    private final String logLabel;
+    private final List<String> ids = new ArrayList<String>();
+    private final CompletableFuture<Void> called = new CompletableFuture<Void>();
+
+    Batch(String providerId, InstanceProvider provider, InstanceTemplate template,
+        PollingPolicy statusPollingPolicy, String logLabel) {
+      this.providerId = providerId;
+      this.provider = provider;
+      this.template = template;
+      this.statusPollingPolicy = statusPollingPolicy;
+      this.logLabel = logLabel;
+    }
+
+    void run() {
+      if (logLabel != null) {
+        LogPrefix.set(logLabel);
+      }
+      try {
+        LOG.info(String.format("Deleting %d allocated instances", ids.size()));
+        metrics.time(providerId, "delete", () -> {
+          provider.delete(template, ids);
+          return null;
+        });
+      } catch (Throwable t) {
+        LOG.severe("CRITICAL: Failed to delete allocated resources. Manual clean-up is " +
+            "necessary");
+        called.completeExceptionally(t);
+        return;
+      } finally {
+        LogPrefix.clear();
+      }
+
+      for (final String id : ids) {
+        CompletableFuture<InstanceStatus> wait = poller.waitForStatus(providerId, provider,
+            template, id, statusPollingPolicy, InstanceStatus.DELETED, InstanceStatus.UNKNOWN);
+        addWait(id, wait);
+        wait.thenRun(() -> deletedListener.accept(template, Collections.singletonList(id)));
+      }
+      called.complete(null);
+    }
+  }
+}
@@ -0,0 +1,366 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import com.cloudera.director.spi.tck.util.AllocationJournal;
+import com.cloudera.director.spi.tck.util.ClassReference;
+import com.cloudera.director.spi.tck.util.ConfigFragmentWrapper;
+import com.cloudera.director.spi.tck.util.PollingPolicies;
+import com.cloudera.director.spi.tck.util.PollingPolicy;
+import com.cloudera.director.spi.tck.util.StartupThresholds;
+import com.cloudera.director.spi.tck.util.TCKUtil;
+import com.cloudera.director.spi.v2.common.http.HttpProxyParameters;
+import com.cloudera.director.spi.v2.model.ConfigurationProperty;
+import com.cloudera.director.spi.v2.model.InstanceStatus;
+import com.cloudera.director.spi.v2.model.InstanceTemplate;
+import com.cloudera.director.spi.v2.provider.CloudProvider;
+import com.cloudera.director.spi.v2.provider.CloudProviderMetadata;
+import com.cloudera.director.spi.v2.provider.InstanceProvider;
+import com.cloudera.director.spi.v2.provider.Launcher;
+import com.cloudera.director.spi.v2.provider.ResourceProvider;
+import com.cloudera.director.spi.v2.provider.ResourceProviderMetadata;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Deletes the instances that the allocation journal shows as allocated but not
+ * deleted, which are left behind when a TCK run dies before it cleans up.
+ * <p/>
+ * The plugin is called the way the validation calls it, with the same configuration
+ * file, and the templates are created again from the configuration and tags in the
+ * journal. The journal leaves out sensitive template properties, like passwords, so
+ * they are taken from the configuration file. The leftovers of each template are
+ * deleted in batches, with one delete call per batch, and every instance is waited
+ * for until it is DELETED. The journal is removed once it has no leftovers.
+ * <p/>
+ * A journal that another TCK process has open is not cleaned up, since the
+ * instances it shows as allocated may still be in use by that process.
+ */
+public class JournalCleanup {
+
+  private static final Logger LOG = Logger.getLogger(JournalCleanup.class.getName());
+
+  private static final String SPI_VERSION = "v2";
+
+  private static final TCKUtil TCK_UTIL = new TCKUtil();
+
+  /**
+   * The maximum number of instances deleted with one delete call.
+   */
+  static final int DELETE_BATCH_SIZE = 100;
+
+  private final Config config;
+  private final File journalFile;
+
+  /**
+   * Creates a new cleanup.
+   *
+   * @param config the configuration file of the runs that wrote the journal
+   * @throws IllegalArgumentException if the configuration has no allocation journal
+   */
+  public JournalCleanup(Config config) {
+    if (!config.hasPath(Configurations.ALLOCATION_JOURNAL_PROPERTY)) {
+      throw new IllegalArgumentException("No " + Configurations.ALLOCATION_JOURNAL_PROPERTY +
+          " in the configuration");
+    }
+    this.config = config;
+    this.journalFile = new File(config.getString(Configurations.ALLOCATION_JOURNAL_PROPERTY));
+  }
+
+  /**
+   * Loads a plugin with a new class loader and deletes the leftovers of its launchers.
+   *
+   * @param pluginFile the plugin jar
+   * @param metadata   the metadata of the plugin
+   * @return a summary with an error for every leftover that could not be deleted
+   * @throws Exception if the plugin fails with an unexpected exception
+   */
+  public Summary cleanUp(File pluginFile, PluginMetadata metadata) throws Exception {
+    Summary summary = Summary.fromConfig(config);
+    if (AllocationJournal.readLeftovers(journalFile).isEmpty()) {
+      LOG.info("No leftover instances in the allocation journal: " + journalFile);
+      return summary;
+    }
+    AllocationJournal journal = openJournal(summary);
+    if (journal == null) {
+      return summary;
+    }
+
+    Thread currentThread = Thread.currentThread();
+    ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+    try (URLClassLoader classLoader = TCK_UTIL.getClassLoader(pluginFile)) {
+      currentThread.setContextClassLoader(classLoader);
+
+      for (ClassReference launcherClassRef : metadata.getLauncherClasses(SPI_VERSION)) {
+        Launcher launcher = (Launcher) classLoader.loadClass(
+            launcherClassRef.getCanonicalClassName()).newInstance();
+        launcher.initialize(
+            new File(config.getString(Configurations.CONFIGURATION_DIRECTORY_PROPERTY)),
+            new HttpProxyParameters());
+        deleteLeftovers(launcher, journal, summary);
+      }
+      reportRemainingLeftovers(journal, summary);
+
+    } finally {
+      currentThread.setContextClassLoader(contextClassLoader);
+      journal.close();
+    }
+    return summary;
+  }
+
+  /**
+   * Deletes the leftovers of an initialized launcher.
+   *
+   * @param launcher the launcher, already initialized
+   * @return a summary with an error for every leftover that could not be deleted
+   * @throws Exception if the plugin fails with an unexpected exception
+   */
+  public Summary cleanUp(Launcher launcher) throws Exception {
+    Summary summary = Summary.fromConfig(config);
+    AllocationJournal journal = openJournal(summary);
+    if (journal == null) {
+      return summary;
+    }
+    try {
+      deleteLeftovers(launcher, journal, summary);
+      reportRemainingLeftovers(journal, summary);
+    } finally {
+      journal.close();
+    }
+    return summary;
+  }
+
+  /**
+   * Opens the journal, which fails if another TCK process has it open.
+   *
+   * @return the journal, or null with an error in the summary
+   */
+  private AllocationJournal openJournal(Summary summary) {
+    try {
+      return AllocationJournal.open(journalFile);
+    } catch (IOException e) {
+      summary.addError("Not cleaning up the allocation journal %s: %s", journalFile,
+          e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Deletes the leftovers of the cloud providers of an initialized launcher.
+   */
+  private void deleteLeftovers(Launcher launcher, AllocationJournal journal, Summary summary)
+      throws Exception {
+    // read once the journal is locked, so no other process adds to it any more
+    Map<AllocationJournal.Template, Set<String>> leftovers =
+        AllocationJournal.readLeftovers(journalFile);
+    if (leftovers.isEmpty()) {
+      return;
+    }
+
+    // the context holds its own reference to the journal, which it closes
+    ValidationContext context = new ValidationContext(1,
+        StartupThresholds.fromConfig(ConfigFactory.empty()), AllocationJournal.open(journalFile));
+    try {
+      for (CloudProviderMetadata cloudMetadata : launcher.getCloudProviderMetadata()) {
+        Map<AllocationJournal.Template, Set<String>> cloudLeftovers =
+            select(leftovers, cloudMetadata.getId(), null);
+        if (cloudLeftovers.isEmpty()) {
+          continue;
+        }
+        if (!config.hasPath(cloudMetadata.getId())) {
+          summary.addError("No configuration for cloud provider %s to delete leftover instances",
+              cloudMetadata.getId());
+          continue;
+        }
+
+        Config cloudConfig = config.getConfig(cloudMetadata.getId());
+        CloudProvider cloudProvider = launcher.createCloudProvider(cloudMetadata.getId(),
+            ConfigFragmentWrapper.snapshot(cloudConfig.getConfig(Configurations.CONFIGS_SECTION),
+                cloudMetadata.getCredentialsProviderMetadata().getCredentialsConfigurationProperties(),
+                cloudMetadata.getProviderConfigurationProperties()),
+            Locale.getDefault());
+
+        for (ResourceProviderMetadata resourceMetadata :
+            cloudMetadata.getResourceProviderMetadata()) {
+          Map<AllocationJournal.Template, Set<String>> resourceLeftovers =
+              select(cloudLeftovers, cloudMetadata.getId(), resourceMetadata.getId());
+          if (!resourceLeftovers.isEmpty()) {
+            deleteLeftovers(summary, context, cloudProvider, resourceMetadata,
+                cloudConfig.getConfig(resourceMetadata.getId()), resourceLeftovers);
+          }
+        }
+      }
+
+    } finally {
+      context.close();
+    }
+  }
+
+  /**
+   * Deletes the leftovers of one resource provider, in batches per template.
+   */
+  @SuppressWarnings("unchecked")
+  private void deleteLeftovers(Summary summary, ValidationContext context,
+      CloudProvider cloudProvider, ResourceProviderMetadata metadata, Config config,
+      Map<AllocationJournal.Template, Set<String>> leftovers) throws Exception {
+
+    ResourceProvider resourceProvider = cloudProvider.createResourceProvider(metadata.getId(),
+        ConfigFragmentWrapper.snapshot(config.getConfig(Configurations.CONFIGS_SECTION),
+            metadata.getProviderConfigurationProperties()));
+    if (!(resourceProvider instanceof InstanceProvider)) {
+      summary.addError("Unknown resource provider type: %s",
+          resourceProvider.getClass().getCanonicalName());
+      return;
+    }
+    InstanceProvider provider = (InstanceProvider) resourceProvider;
+    PollingPolicy statusPollingPolicy =
+        PollingPolicies.fromConfig(config, Configurations.INSTANCE_STATUS_POLLING_SECTION);
+
+    for (Map.Entry<AllocationJournal.Template, Set<String>> entry : leftovers.entrySet()) {
+      AllocationJournal.Template journalTemplate = entry.getKey();
+      InstanceTemplate template = (InstanceTemplate) provider.createResourceTemplate("cleanup",
+          ConfigFragmentWrapper.snapshot(ConfigFactory.parseMap(
+              withSensitiveConfigs(journalTemplate.getConfigs(), metadata, config)),
+              metadata.getResourceTemplateConfigurationProperties()),
+          journalTemplate.getTags());
+      context.registerTemplate(template, journalTemplate);
+
+      List<String> ids = new ArrayList<String>(entry.getValue());
+      LOG.info(String.format("Deleting %d leftover instances of the %s", ids.size(),
+          journalTemplate));
+      for (int from = 0; from < ids.size(); from += DELETE_BATCH_SIZE) {
+        List<String> batch = ids.subList(from, Math.min(ids.size(), from + DELETE_BATCH_SIZE));
+        try {
+          context.getSpiCallMetrics().time(metadata.getId(), "delete", () -> {
+            provider.delete(template, batch);
+            return null;
+          });
+        } catch (Exception e) {
+          summary.addError("Failed to delete %d leftover instances %s: %s", batch.size(), batch, e);
+          continue;
+        }
+        waitForDeleted(summary, context, metadata.getId(), provider, template,
+            statusPollingPolicy, batch);
+      }
+    }
+  }
+
+  /**
+   * Adds the sensitive template properties, which the journal leaves out, from the
+   * resource configuration of the configuration file.
+   */
+  private static Map<String, String> withSensitiveConfigs(Map<String, String> configs,
+      ResourceProviderMetadata metadata, Config config) {
+    if (!config.hasPath(Configurations.RESOURCE_CONFIGS_SECTION)) {
+      return configs;
+    }
+    Config resourceConfigs = config.getConfig(Configurations.RESOURCE_CONFIGS_SECTION);
+    Map<String, String> result = new HashMap<String, String>(configs);
+    for (ConfigurationProperty property : metadata.getResourceTemplateConfigurationProperties()) {
+      String key = property.getConfigKey();
+      if (property.isSensitive() && resourceConfigs.hasPath(key)) {
+        result.put(key, resourceConfigs.getString(key));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Waits for the instances of a batch to be deleted and records the deleted ones in
+   * the journal.
+   */
+  private void waitForDeleted(Summary summary, ValidationContext context, String providerId,
+      InstanceProvider provider, InstanceTemplate template, PollingPolicy statusPollingPolicy,
+      List<String> batch) throws Exception {
+
+    Map<String, CompletableFuture<InstanceStatus>> waits =
+        new LinkedHashMap<String, CompletableFuture<InstanceStatus>>();
+    for (String id : batch) {
+      waits.put(id, context.getInstanceStatusPoller().waitForStatus(providerId, provider,
+          template, id, statusPollingPolicy, InstanceStatus.DELETED, InstanceStatus.UNKNOWN));
+    }
+
+    List<String> deleted = new ArrayList<String>();
+    for (Map.Entry<String, CompletableFuture<InstanceStatus>> entry : waits.entrySet()) {
+      try {
+        entry.getValue().get();
+        deleted.add(entry.getKey());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof TimeoutException || cause instanceof NoSuchElementException ||
+            cause instanceof IllegalStateException) {
+          summary.addError("%s", cause.getMessage());
+        } else if (cause instanceof Exception) {
+          throw (Exception) cause;
+        } else {
+          throw (Error) cause;
+        }
+      }
+    }
+    if (!deleted.isEmpty()) {
+      context.recordDeleted(template, deleted);
+    }
+  }
+
+  /**
+   * Reports the leftovers that are still in the journal, and removes the journal if
+   * there are none. Runs while the journal is still locked.
+   */
+  private void reportRemainingLeftovers(AllocationJournal journal, Summary summary)
+      throws Exception {
+    try {
+      if (journal.deleteIfEmpty()) {
+        LOG.info("All leftover instances are deleted. Removed the allocation journal: " +
+            journalFile);
+        return;
+      }
+    } catch (IOException e) {
+      summary.addWarning("Unable to remove the allocation journal %s: %s", journalFile,
+          e.getMessage());
+      return;
+    }
+
+    Map<AllocationJournal.Template, Set<String>> leftovers =
+        AllocationJournal.readLeftovers(journalFile);
+    for (Map.Entry<AllocationJournal.Template, Set<String>> entry : leftovers.entrySet()) {
+      summary.addError("%d instances of the %s are still in the allocation journal: %s",
+          entry.getValue().size(), entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Selects the leftovers of a cloud provider, and optionally of one of its resource
+   * providers.
+   */
+  private static Map<AllocationJournal.Template, Set<String>> select(
+      Map<AllocationJournal.Template, Set<String>> leftovers, String cloudProviderId,
+      String resourceProviderId) {
+    Map<AllocationJournal.Template, Set<String>> selected =
+        new LinkedHashMap<AllocationJournal.Template, Set<String>>();
+    for (Map.Entry<AllocationJournal.Template, Set<String>> entry : leftovers.entrySet()) {
+      AllocationJournal.Template template = entry.getKey();
+      if (template.getCloudProviderId().equals(cloudProviderId) &&
+          (resourceProviderId == null ||
+              template.getResourceProviderId().equals(resourceProviderId))) {
+        selected.put(template, entry.getValue());
+      }
+    }
+    return selected;
+  }
+}
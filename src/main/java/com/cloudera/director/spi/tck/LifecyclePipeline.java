@@ -0,0 +1,374 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import com.cloudera.director.spi.tck.util.LogPrefix;
+import com.cloudera.director.spi.tck.util.PollingPolicies;
+import com.cloudera.director.spi.tck.util.PollingPolicy;
+import com.cloudera.director.spi.v2.compute.ComputeInstanceTemplate;
+import com.cloudera.director.spi.v2.compute.ComputeProvider;
+import com.cloudera.director.spi.v2.model.Instance;
+import com.cloudera.director.spi.v2.model.InstanceStatus;
+import com.cloudera.director.spi.v2.model.InstanceTemplate;
+import com.cloudera.director.spi.v2.provider.InstanceProvider;
+import com.typesafe.config.Config;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The lifecycle of one instance as a chain of asynchronous steps: allocate, wait
+ * for RUNNING, find, wait for the expected open port, get the host key fingerprints
+ * (for compute providers), an optional check while the instance is running, and
+ * delete. The instance ID is recorded in the allocation journal before the allocate
+ * call, and the wait for DELETED is left to the {@link DeletionQueue}.
+ * <p/>
+ * No thread waits for an instance: the status and port waits are futures completed
+ * by the shared instance status poller and port prober, and only the SPI calls
+ * themselves take a thread of the call executor. Many lifecycles can therefore
+ * overlap without a thread each. The instance is deleted whenever the allocate call
+ * was made, whatever happens after it, but not when it could not be recorded in the
+ * journal, since the allocate call is then never made. Lifecycles cut short by an
+ * interrupt, whose remaining steps will never run once the call executor is shut
+ * down, are cleaned up with {@link #deleteUnfinished()}.
+ * <p/>
+ * Errors go to the summary of the lifecycle, and a step is skipped once the summary
+ * has errors, so each lifecycle should have its own summary. Unexpected exceptions
+ * fail the future.
+ */
+class LifecyclePipeline {
+
+  private static final Logger LOG = Logger.getLogger(LifecyclePipeline.class.getName());
+
+  /**
+   * A check made while the instance is running, before it is deleted. It runs on a
+   * thread of the call executor and may block.
+   */
+  interface RunningCheck {
+    void run(Summary summary, String instanceId) throws Exception;
+  }
+
+  private final ValidationContext context;
+  private final Executor callExecutor;
+  private final String providerId;
+  private final InstanceProvider provider;
+  private final InstanceTemplate template;
+  private final int expectedOpenPort;
+  private final PollingPolicy statusPollingPolicy;
+  private final PollingPolicy portPollingPolicy;
+
+  // IDs of the instances whose allocate call was made and whose delete call has not
+  // returned yet
+  private final Set<String> unfinishedIds =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * Creates a new lifecycle pipeline.
+   *
+   * @param context      the validation context
+   * @param callExecutor the executor for SPI calls and the running check
+   * @param providerId   the ID of the instance provider
+   * @param provider     the instance provider
+   * @param template     the template to allocate instances with
+   * @param config       the resource provider section of the configuration
+   */
+  LifecyclePipeline(ValidationContext context, Executor callExecutor, String providerId,
+      InstanceProvider provider, InstanceTemplate template, Config config) {
+    this.context = context;
+    this.callExecutor = callExecutor;
+    this.providerId = providerId;
+    this.provider = provider;
+    this.template = template;
+    this.expectedOpenPort = config.getInt(Configurations.EXPECTED_OPEN_PORT_PROPERTY);
+    this.statusPollingPolicy =
+        PollingPolicies.fromConfig(config, Configurations.INSTANCE_STATUS_POLLING_SECTION);
+    this.portPollingPolicy =
+        PollingPolicies.fromConfig(config, Configurations.PORT_POLLING_SECTION);
+  }
+
+  /**
+   * Starts the lifecycle of a new instance. Log lines of the lifecycle have the log
+   * prefix of the calling thread.
+   *
+   * @param summary      the summary of this lifecycle
+   * @param id           the ID of the instance to allocate
+   * @param runningCheck a check to make while the instance is running, or null
+   * @return a future that completes when the delete call for the instance returns
+   */
+  CompletableFuture<Void> start(Summary summary, String id, RunningCheck runningCheck) {
+    Lifecycle lifecycle = new Lifecycle(summary, id, LogPrefix.getLabel());
+    return lifecycle.run(runningCheck);
+  }
+
+  /**
+   * Deletes the instances of the lifecycles that were allocated and are not deleted
+   * yet, with a delete call on the calling thread. Call it before the call executor
+   * is shut down when the lifecycles were not awaited to the end, e.g. on interrupt.
+   * Does nothing once all lifecycles are complete.
+   */
+  void deleteUnfinished() {
+    List<String> ids = new ArrayList<String>(unfinishedIds);
+    if (ids.isEmpty()) {
+      return;
+    }
+
+    // the interrupt that cut the lifecycles short must not also cut short the clean-up
+    boolean interrupted = Thread.interrupted();
+    try {
+      LOG.info(String.format("Deleting %d instances of unfinished lifecycles", ids.size()));
+      context.getSpiCallMetrics().time(providerId, "delete", () -> {
+        provider.delete(template, ids);
+        return null;
+      });
+      unfinishedIds.removeAll(ids);
+    } catch (Exception e) {
+      LOG.log(Level.SEVERE, "CRITICAL: Failed to delete allocated resources. Manual " +
+          "clean-up is necessary for instances " + ids, e);
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Waits for a lifecycle to complete.
+   *
+   * @param lifecycle the future of the lifecycle
+   * @throws Exception the exception that failed the lifecycle
+   */
+  static void await(Future<Void> lifecycle) throws Exception {
+    try {
+      lifecycle.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw (Error) cause;
+    }
+  }
+
+  /**
+   * The steps of one lifecycle.
+   */
+  private class Lifecycle {
+
+    private final Summary summary;
+    private final String id;
+    private final List<String> instanceIds;
+    private final Executor executor;
+    private volatile boolean allocateCalled;
+
+    Lifecycle(Summary summary, String id, final String logLabel) {
+      this.summary = summary;
+      this.id = id;
+      this.instanceIds = Collections.singletonList(id);
+      // every step runs with the log prefix of the thread that started the lifecycle
+      this.executor = command -> callExecutor.execute(() -> {
+        if (logLabel != null) {
+          LogPrefix.set(logLabel);
+        }
+        try {
+          command.run();
+        } finally {
+          LogPrefix.clear();
+        }
+      });
+    }
+
+    @SuppressWarnings("unchecked")
+    CompletableFuture<Void> run(RunningCheck runningCheck) {
+      CompletableFuture<Collection<Instance>> allocation = submit(() -> {
+        context.recordAllocating(template, instanceIds);
+        return null;
+      }).thenComposeAsync(ignored -> call("allocate", () -> {
+        LOG.info("Allocating one instance with ID: " + id);
+        allocateCalled = true;
+        unfinishedIds.add(id);
+        return provider.allocate(template, instanceIds, 1);
+      }), executor);
+
+      CompletableFuture<Void> whileAllocated = allocation.thenComposeAsync(instances -> {
+        if (instances.size() != 1) {
+          summary.addError("Expected allocation to return exactly one instance. Found: %s",
+              instances);
+          return done();
+        }
+        return waitForStatus(InstanceStatus.RUNNING)
+            .thenComposeAsync(unlessFailed(ignored -> checkRunningInstance()), executor)
+            .thenComposeAsync(unlessFailed(ignored -> runCheck(runningCheck)), executor);
+      }, executor);
+
+      // delete even if the allocate call failed, in case it allocated the instance anyway,
+      // but not if it was never made
+      return whileAllocated
+          .handle((ignored, failure) -> failure)
+          .thenComposeAsync(failure -> (allocateCalled ? delete() : done())
+              .handle((ignored, deleteFailure) -> {
+                Throwable first = unwrap(failure);
+                Throwable second = unwrap(deleteFailure);
+                if (first != null && second != null && first != second) {
+                  first.addSuppressed(second);
+                }
+                if (first != null || second != null) {
+                  throw new CompletionException((first != null) ? first : second);
+                }
+                return null;
+              }), executor);
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Void> checkRunningInstance() {
+      return call("find", () -> (Collection<Instance>) provider.find(template, instanceIds))
+          .thenComposeAsync(instances -> {
+            if (instances.size() != 1) {
+              summary.addError("Expected to find exactly one instance after allocation. " +
+                  "Found: %s", instances);
+              return done();
+            }
+            return waitForPort(instances.iterator().next())
+                .thenComposeAsync(unlessFailed(ignored -> checkHostKeyFingerprints()),
+                    executor);
+          }, executor);
+    }
+
+    private CompletableFuture<Void> waitForPort(Instance instance) {
+      if (expectedOpenPort == -1) {
+        LOG.info(String.format("Skipping check of connectivity to %s because expected open " +
+            "port is %d", instance.getPrivateIpAddress(), expectedOpenPort));
+        return done();
+      }
+      LOG.info(String.format("Checking connectivity on port %d to %s",
+          expectedOpenPort, instance.getPrivateIpAddress()));
+      return context.getPortProber()
+          .probe(new InetSocketAddress(instance.getPrivateIpAddress(), expectedOpenPort),
+              portPollingPolicy)
+          .handle((millis, failure) -> {
+            if (failure != null) {
+              summary.addError("%s", unwrap(failure).getMessage());
+            }
+            return null;
+          });
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Void> checkHostKeyFingerprints() {
+      if (!(provider instanceof ComputeProvider)) {
+        return done();
+      }
+      ComputeProvider computeProvider = (ComputeProvider) provider;
+      return call("getHostKeyFingerprints", () -> {
+        LOG.info("Attempting to retrieve the host key fingerprints for instance");
+        return (Map<String, Set<String>>) computeProvider.getHostKeyFingerprints(
+            (ComputeInstanceTemplate) template, instanceIds);
+      }).thenAccept(hostKeyFingerprints -> {
+        if (hostKeyFingerprints.isEmpty()) {
+          LOG.warning("No host key fingerprint returned for the instance");
+          return;
+        }
+
+        if (hostKeyFingerprints.size() != 1) {
+          summary.addError("Expected to retrieve an empty host key fingerprint map or exactly " +
+              "one set of host key fingerprints. Found: %s", hostKeyFingerprints);
+          return;
+        }
+
+        Set<String> fingerprintsForInstance = hostKeyFingerprints.get(id);
+        if (fingerprintsForInstance.isEmpty()) {
+          summary.addError("Expected the set of host key fingerprints for the instance to " +
+              "not be empty");
+        }
+      });
+    }
+
+    private CompletableFuture<Void> runCheck(RunningCheck runningCheck) {
+      if (runningCheck == null) {
+        return done();
+      }
+      return submit(() -> {
+        runningCheck.run(summary, id);
+        return null;
+      });
+    }
+
+    private CompletableFuture<Void> delete() {
+      LOG.info("Deleting allocated resources");
+      return context.getDeletionQueue().delete(providerId, provider, template, id,
+          statusPollingPolicy)
+          .whenComplete((ignored, failure) -> unfinishedIds.remove(id));
+    }
+
+    private CompletableFuture<Void> waitForStatus(InstanceStatus... expectedStatuses) {
+      LOG.info(String.format("Waiting for instance status to be in %s (%s)",
+          Arrays.asList(expectedStatuses), statusPollingPolicy));
+      return context.getInstanceStatusPoller()
+          .waitForStatus(providerId, provider, template, id, statusPollingPolicy,
+              expectedStatuses)
+          .handle((status, failure) -> {
+            Throwable cause = unwrap(failure);
+            if (cause instanceof TimeoutException || cause instanceof NoSuchElementException ||
+                cause instanceof IllegalStateException) {
+              summary.addError("%s", cause.getMessage());
+            } else if (cause != null) {
+              throw new CompletionException(cause);
+            }
+            return null;
+          });
+    }
+
+    /**
+     * Makes an SPI call on the call executor and records how long it took.
+     */
+    private <T> CompletableFuture<T> call(String method, Callable<T> call) {
+      return submit(() -> context.getSpiCallMetrics().time(providerId, method, call));
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> task) {
+      CompletableFuture<T> future = new CompletableFuture<T>();
+      executor.execute(() -> {
+        try {
+          future.complete(task.call());
+        } catch (Throwable t) {
+          future.completeExceptionally(t);
+        }
+      });
+      return future;
+    }
+
+    /**
+     * Wraps a step so that it is skipped once the lifecycle has errors.
+     */
+    private <T> Function<T, CompletableFuture<Void>> unlessFailed(
+        Function<T, CompletableFuture<Void>> step) {
+      return value -> summary.hasErrors() ? done() : step.apply(value);
+    }
+  }
+
+  private static CompletableFuture<Void> done() {
+    return CompletableFuture.completedFuture(null);
+  }
+
+  private static Throwable unwrap(Throwable failure) {
+    return (failure instanceof CompletionException && failure.getCause() != null) ?
+        failure.getCause() : failure;
+  }
+}
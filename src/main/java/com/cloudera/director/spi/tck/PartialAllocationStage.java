@@ -0,0 +1,291 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import com.cloudera.director.spi.tck.util.DaemonThreadFactory;
+import com.cloudera.director.spi.tck.util.LogPrefix;
+import com.cloudera.director.spi.tck.util.PollingPolicies;
+import com.cloudera.director.spi.tck.util.PollingPolicy;
+import com.cloudera.director.spi.tck.util.Stopwatch;
+import com.cloudera.director.spi.tck.util.TCKUtil;
+import com.cloudera.director.spi.v2.model.Instance;
+import com.cloudera.director.spi.v2.model.InstanceStatus;
+import com.cloudera.director.spi.v2.model.InstanceTemplate;
+import com.cloudera.director.spi.v2.model.exception.UnrecoverableProviderException;
+import com.cloudera.director.spi.v2.provider.InstanceProvider;
+import com.typesafe.config.Config;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks the {@code minCount} contract of {@link InstanceProvider#allocate}: when the
+ * environment cannot satisfy the minimum number of instances, the allocate call
+ * should fail in time with an {@link UnrecoverableProviderException}, and leave none
+ * of the instances it could allocate behind.
+ * Director relies on this to give up on a cluster bootstrap instead of hanging.
+ * <p/>
+ * The stage asks for more instances than the environment is expected to satisfy,
+ * for example more than a quota or than the capacity of the simulated cloud. It
+ * reports how long the allocate call took and how long the unreturned instances
+ * took to disappear, then deletes whatever it can find.
+ */
+class PartialAllocationStage {
+
+  private static final Logger LOG = Logger.getLogger(PartialAllocationStage.class.getName());
+
+  private static final long DEFAULT_DEADLINE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  private final TCKUtil tckUtil;
+  private final int count;
+  private final int minCount;
+  private final long deadlineMillis;
+  private final PollingPolicy statusPollingPolicy;
+
+  /**
+   * Creates a new partial allocation stage.
+   *
+   * @param tckUtil TCK utilities
+   * @param config  the resource provider section of the configuration, with a partial
+   *                allocation section
+   * @throws IllegalArgumentException if the counts or the deadline are invalid
+   */
+  PartialAllocationStage(TCKUtil tckUtil, Config config) {
+    this.tckUtil = tckUtil;
+
+    Config partialConfig = config.getConfig(Configurations.PARTIAL_ALLOCATION_SECTION);
+    this.count = partialConfig.getInt(Configurations.PARTIAL_ALLOCATION_COUNT_PROPERTY);
+    this.minCount = partialConfig.hasPath(Configurations.PARTIAL_ALLOCATION_MIN_COUNT_PROPERTY) ?
+        partialConfig.getInt(Configurations.PARTIAL_ALLOCATION_MIN_COUNT_PROPERTY) : count;
+    this.deadlineMillis = partialConfig.hasPath(Configurations.PARTIAL_ALLOCATION_DEADLINE_PROPERTY) ?
+        partialConfig.getDuration(Configurations.PARTIAL_ALLOCATION_DEADLINE_PROPERTY,
+            TimeUnit.MILLISECONDS) : DEFAULT_DEADLINE_MILLIS;
+    this.statusPollingPolicy =
+        PollingPolicies.fromConfig(config, Configurations.INSTANCE_STATUS_POLLING_SECTION);
+
+    if (count < 1 || minCount < 1 || minCount > count || deadlineMillis <= 0) {
+      throw new IllegalArgumentException(String.format(
+          "Invalid partial allocation settings: count %d, minCount %d, deadline %d ms",
+          count, minCount, deadlineMillis));
+    }
+  }
+
+  void run(Summary summary, ValidationContext context, String providerId,
+      InstanceProvider provider, InstanceTemplate template) throws Exception {
+
+    List<String> requestedIds = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      requestedIds.add(tckUtil.newInstanceId());
+    }
+    context.recordAllocating(template, requestedIds);
+
+    LOG.info(String.format("Allocating %d instances with minCount %d, expecting the call to " +
+        "return or fail within %d ms", count, minCount, deadlineMillis));
+
+    // the call gets its own thread, so that it can be abandoned if it hangs
+    ExecutorService callThread = Executors.newSingleThreadExecutor(
+        new DaemonThreadFactory("tck-partial-allocation"));
+    Set<String> returnedIds = new LinkedHashSet<String>();
+    Set<String> unrequestedIds = new LinkedHashSet<String>();
+    Set<String> leftoverIds = new LinkedHashSet<String>();
+    try {
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      Future<Collection<Instance>> call = callThread.submit(allocate(context, providerId,
+          provider, template, requestedIds));
+      Collection<Instance> instances = null;
+      try {
+        instances = call.get(deadlineMillis, TimeUnit.MILLISECONDS);
+        LOG.info(String.format("Allocation returned %d instances in %d ms", instances.size(),
+            stopwatch.elapsed(TimeUnit.MILLISECONDS)));
+
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        if (cause instanceof UnrecoverableProviderException) {
+          LOG.info(String.format("Allocation failed in %d ms as expected: %s",
+              stopwatch.elapsed(TimeUnit.MILLISECONDS), cause));
+        } else {
+          // a plugin bug, such as a NullPointerException, is not the expected failure
+          LOG.log(Level.SEVERE, "Allocation failed with an unexpected exception", cause);
+          summary.addError("Expected allocation to fail with an " +
+              "UnrecoverableProviderException. It failed with: %s", cause);
+        }
+
+      } catch (TimeoutException e) {
+        summary.addError("Expected allocation of %d instances with minCount %d to return or " +
+            "fail within %d ms", count, minCount, deadlineMillis);
+        call.cancel(true);
+        callThread.shutdown();
+        if (!callThread.awaitTermination(statusPollingPolicy.getTimeoutMillis(),
+            TimeUnit.MILLISECONDS)) {
+          summary.addError("Allocation did not stop within %d ms of being interrupted",
+              statusPollingPolicy.getTimeoutMillis());
+        }
+      }
+      long allocateMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+      summary.addCounter(Summary.providerCounter(providerId, "partialAllocationMillis"),
+          allocateMillis);
+
+      if (instances != null) {
+        checkReturnedInstances(summary, providerId, requestedIds, instances, returnedIds,
+            unrequestedIds);
+        if (!unrequestedIds.isEmpty()) {
+          context.recordAllocating(template, unrequestedIds);
+        }
+      }
+
+      // instances that were not returned must not exist, or not for long
+      Stopwatch cleanupStopwatch = Stopwatch.createStarted();
+      List<String> unreturnedIds = new ArrayList<String>(requestedIds);
+      unreturnedIds.removeAll(returnedIds);
+      leftoverIds.addAll(waitForGone(context, providerId, provider, template,
+          unreturnedIds));
+      if (leftoverIds.isEmpty()) {
+        long cleanupMillis = cleanupStopwatch.elapsed(TimeUnit.MILLISECONDS);
+        LOG.info(String.format("No instances left behind %d ms after the allocation ended",
+            cleanupMillis));
+        summary.addCounter(
+            Summary.providerCounter(providerId, "partialAllocationCleanupMillis"), cleanupMillis);
+        if (!unreturnedIds.isEmpty()) {
+          context.recordDeleted(template, unreturnedIds);
+        }
+      } else {
+        summary.addError("%d instances that were not returned by the allocation were left " +
+            "behind: %s", leftoverIds.size(), leftoverIds);
+      }
+
+    } finally {
+      callThread.shutdownNow();
+      Set<String> allocatedIds = new LinkedHashSet<String>(returnedIds);
+      allocatedIds.addAll(unrequestedIds);
+      allocatedIds.addAll(leftoverIds);
+      if (!allocatedIds.isEmpty()) {
+        deleteAndWait(summary, context, providerId, provider, template, allocatedIds);
+      }
+    }
+  }
+
+  /**
+   * The allocate call, run on its own thread with the log prefix of the stage.
+   */
+  @SuppressWarnings("unchecked")
+  private Callable<Collection<Instance>> allocate(
+      final ValidationContext context, final String providerId, final InstanceProvider provider,
+      final InstanceTemplate template, final List<String> requestedIds) {
+    final String logLabel = LogPrefix.getLabel();
+    return () -> {
+      if (logLabel != null) {
+        LogPrefix.set(logLabel);
+      }
+      try {
+        return (Collection<Instance>) context.getSpiCallMetrics().time(providerId, "allocate",
+            () -> provider.allocate(template, requestedIds, minCount));
+      } finally {
+        LogPrefix.clear();
+      }
+    };
+  }
+
+  /**
+   * Sorts the returned instances into requested and unrequested ones, which are both
+   * deleted at the end of the stage.
+   */
+  private void checkReturnedInstances(Summary summary, String providerId,
+      List<String> requestedIds, Collection<Instance> instances, Set<String> returnedIds,
+      Set<String> unrequestedIds) {
+    Set<String> requested = new HashSet<String>(requestedIds);
+    for (Instance instance : instances) {
+      if (requested.contains(instance.getId())) {
+        returnedIds.add(instance.getId());
+      } else {
+        summary.addError("Partial allocation returned an instance that was not requested: %s",
+            instance.getId());
+        unrequestedIds.add(instance.getId());
+      }
+    }
+    summary.addCounter(Summary.providerCounter(providerId, "partialAllocationReturned"),
+        returnedIds.size());
+
+    if (returnedIds.size() < minCount) {
+      summary.addError("Expected allocation to fail when fewer than minCount %d instances " +
+          "can be allocated. It returned %d instances instead", minCount, returnedIds.size());
+    } else {
+      summary.addWarning("Partial allocation got %d of %d requested instances with minCount " +
+              "%d, so the failure path was not exercised. Request more instances than the " +
+              "environment can satisfy", returnedIds.size(), count, minCount);
+    }
+  }
+
+  /**
+   * Waits for instances to be DELETED or UNKNOWN.
+   *
+   * @return the IDs of the instances that are still there
+   */
+  private List<String> waitForGone(ValidationContext context, String providerId,
+      InstanceProvider provider, InstanceTemplate template, List<String> ids)
+      throws InterruptedException {
+
+    Map<String, CompletableFuture<InstanceStatus>> waits =
+        new LinkedHashMap<String, CompletableFuture<InstanceStatus>>();
+    for (String id : ids) {
+      waits.put(id, context.getInstanceStatusPoller().waitForStatus(providerId, provider,
+          template, id, statusPollingPolicy, InstanceStatus.DELETED, InstanceStatus.UNKNOWN));
+    }
+
+    List<String> leftoverIds = new ArrayList<String>();
+    for (Map.Entry<String, CompletableFuture<InstanceStatus>> entry : waits.entrySet()) {
+      try {
+        entry.getValue().get();
+      } catch (ExecutionException e) {
+        LOG.warning(String.format("Instance %s was left behind: %s", entry.getKey(),
+            e.getCause().getMessage()));
+        leftoverIds.add(entry.getKey());
+      }
+    }
+    return leftoverIds;
+  }
+
+  private void deleteAndWait(Summary summary, ValidationContext context, String providerId,
+      InstanceProvider provider, InstanceTemplate template, Set<String> ids) throws Exception {
+    LOG.info(String.format("Deleting %d allocated instances", ids.size()));
+    try {
+      context.getSpiCallMetrics().time(providerId, "delete", () -> {
+        provider.delete(template, ids);
+        return null;
+      });
+    } catch (Exception e) {
+      LOG.severe("CRITICAL: Failed to delete allocated resources. Manual clean-up is necessary");
+      throw e;
+    }
+
+    List<String> remainingIds = waitForGone(context, providerId, provider,
+        template, new ArrayList<String>(ids));
+    List<String> deletedIds = new ArrayList<String>(ids);
+    deletedIds.removeAll(remainingIds);
+    if (!deletedIds.isEmpty()) {
+      context.recordDeleted(template, deletedIds);
+    }
+    if (!remainingIds.isEmpty()) {
+      summary.addError("%d instances did not transition to status in [DELETED, UNKNOWN]: %s",
+          remainingIds.size(), remainingIds);
+    }
+  }
+}
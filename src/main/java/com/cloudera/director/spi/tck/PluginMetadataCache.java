@@ -0,0 +1,432 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import static com.cloudera.director.spi.tck.util.Preconditions.checkNotNull;
+
+import com.cloudera.director.spi.tck.util.ClassReference;
+import com.cloudera.director.spi.tck.util.TCKUtil;
+import com.typesafe.config.Config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent cache of plugin metadata and packaging verdicts, so that running the
+ * TCK again and again against the same plugin jar skips the jar scan and the shading
+ * checks.
+ * <p/>
+ * Entries are keyed by the size, modification time and SHA-256 digest of the jar.
+ * Packaging verdicts are also keyed by the SPI version and by the version of the
+ * TCK and of its packaging checks, so that a newer TCK checks the jar again.
+ * Every entry is written to a temporary file that is then atomically renamed, and
+ * is never modified afterwards, so several TCK processes can share a cache
+ * directory without locks: readers only ever see complete files, and concurrent
+ * writers of the same entry write the same content. Unreadable entries are
+ * ignored and rewritten.
+ * <p/>
+ * A packaging verdict keeps the category of each finding and the number of reports
+ * of each category. A verdict that dropped findings because there were too many is
+ * not cached, so that a later run with a higher maximum gets all of them.
+ */
+public class PluginMetadataCache {
+
+  private static final Logger LOG = Logger.getLogger(PluginMetadataCache.class.getName());
+
+  private static final int METADATA_MAGIC = 0x54434b4d;  // TCKM
+  private static final int PACKAGING_MAGIC = 0x54434b50;  // TCKP
+  private static final int FORMAT_VERSION = 2;
+
+  private static final String METADATA_SUFFIX = ".metadata";
+  private static final String PACKAGING_SUFFIX = ".packaging";
+
+  private static final int MAX_DIGESTS = 256;
+
+  // bounds the lists read from an entry, so that a corrupt count fails fast
+  private static final int MAX_LIST_SIZE = 1 << 20;
+
+  // digests of jars recently hashed by this process, keyed by path, size and mtime
+  private static final Map<String, String> DIGESTS = Collections.synchronizedMap(
+      new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > MAX_DIGESTS;
+        }
+      });
+
+  /**
+   * The version of this TCK and of its packaging checks, part of the key of the
+   * cached packaging verdicts.
+   */
+  static final String CHECKS_VERSION = "tck" + getTckVersion() + "-checks"
+      + TCKUtil.PACKAGING_CHECKS_VERSION;
+
+  /**
+   * Creates a cache from the plugin cache directory configured in the TCK
+   * configuration file, if any.
+   *
+   * @param config the TCK configuration
+   * @return the cache, or null if caching is not configured
+   */
+  public static PluginMetadataCache fromConfig(Config config) {
+    if (!config.hasPath(Configurations.PLUGIN_CACHE_DIRECTORY_PROPERTY)) {
+      return null;
+    }
+    return new PluginMetadataCache(
+        new File(config.getString(Configurations.PLUGIN_CACHE_DIRECTORY_PROPERTY)));
+  }
+
+  private final File directory;
+  private final String checksVersion;
+
+  /**
+   * Creates a cache that stores its entries in a directory. The directory is
+   * created when the first entry is stored.
+   *
+   * @param directory the cache directory
+   */
+  public PluginMetadataCache(File directory) {
+    this(directory, CHECKS_VERSION);
+  }
+
+  PluginMetadataCache(File directory, String checksVersion) {
+    this.directory = checkNotNull(directory, "directory is null");
+    this.checksVersion = checkNotNull(checksVersion, "checksVersion is null");
+  }
+
+  /**
+   * Gets the metadata of a plugin jar from the cache, or extracts it from the jar
+   * and stores it in the cache.
+   *
+   * @param pluginFile the plugin jar
+   * @return the plugin metadata
+   * @throws IOException if the jar cannot be read
+   */
+  public PluginMetadata getMetadata(File pluginFile) throws IOException {
+    File entry = getEntryFile(pluginFile, METADATA_SUFFIX);
+    PluginMetadata metadata = null;
+    if (entry.isFile()) {
+      try (DataInputStream in = open(entry, METADATA_MAGIC)) {
+        metadata = readMetadata(in);
+        LOG.info("Loaded plugin metadata from cache: " + entry);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Ignoring unreadable plugin metadata cache entry " + entry, e);
+      }
+    }
+
+    if (metadata == null) {
+      final PluginMetadata scanned = PluginMetadata.fromExternalJarFile(pluginFile);
+      store(entry, METADATA_MAGIC, out -> writeMetadata(out, scanned));
+      metadata = scanned;
+    }
+    return metadata;
+  }
+
+  /**
+   * Gets the cached outcome of the packaging checks of a plugin jar for an SPI version.
+   *
+   * @param pluginFile the plugin jar
+   * @param spiVersion the SPI version
+   * @return a summary with the errors and warnings of the packaging checks, with the
+   * maximum number of findings it was checked with, or null if they are not cached
+   * @throws IOException if the jar cannot be read
+   */
+  public Summary getPackagingSummary(File pluginFile, String spiVersion) throws IOException {
+    File entry = getPackagingEntryFile(pluginFile, spiVersion);
+    if (!entry.isFile()) {
+      return null;
+    }
+    try (DataInputStream in = open(entry, PACKAGING_MAGIC)) {
+      int maxFindings = readVarInt(in);
+      if (maxFindings < 1) {
+        throw new IOException("Invalid maximum number of findings " + maxFindings);
+      }
+      Summary summary = new Summary(maxFindings);
+      List<String> errorCategories = readStrings(in);
+      List<String> errors = readStrings(in);
+      Map<String, Long> errorCounts = readCounts(in);
+      List<String> warningCategories = readStrings(in);
+      List<String> warnings = readStrings(in);
+      Map<String, Long> warningCounts = readCounts(in);
+      if (errorCategories.size() != errors.size() ||
+          warningCategories.size() != warnings.size()) {
+        throw new IOException("Findings and their categories do not match");
+      }
+      summary.restoreErrors(errorCategories, errors, errorCounts);
+      summary.restoreWarnings(warningCategories, warnings, warningCounts);
+      LOG.info("Loaded packaging verdict from cache: " + entry);
+      return summary;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Ignoring unreadable packaging cache entry " + entry, e);
+      return null;
+    }
+  }
+
+  /**
+   * Stores the outcome of the packaging checks of a plugin jar for an SPI version,
+   * unless it dropped findings.
+   *
+   * @param pluginFile the plugin jar
+   * @param spiVersion the SPI version
+   * @param summary    a summary with the errors and warnings of the packaging checks
+   * @throws IOException if the jar cannot be read or the entry cannot be written
+   */
+  public void putPackagingSummary(File pluginFile, String spiVersion, Summary summary)
+      throws IOException {
+    if (summary.getDroppedErrorCount() > 0 || summary.getDroppedWarningCount() > 0) {
+      LOG.info("Not caching a packaging verdict with dropped findings");
+      return;
+    }
+    File entry = getPackagingEntryFile(pluginFile, spiVersion);
+    store(entry, PACKAGING_MAGIC, out -> {
+      writeVarInt(out, summary.getMaxFindings());
+      writeStrings(out, summary.getErrorCategories());
+      writeStrings(out, summary.getErrors());
+      writeCounts(out, summary.getErrorCounts());
+      writeStrings(out, summary.getWarningCategories());
+      writeStrings(out, summary.getWarnings());
+      writeCounts(out, summary.getWarningCounts());
+    });
+  }
+
+  private File getPackagingEntryFile(File pluginFile, String spiVersion) throws IOException {
+    return getEntryFile(pluginFile, "-" + spiVersion + "-" + checksVersion + PACKAGING_SUFFIX);
+  }
+
+  private File getEntryFile(File pluginFile, String suffix) throws IOException {
+    long size = pluginFile.length();
+    long lastModified = pluginFile.lastModified();
+    String fileKey = pluginFile.getCanonicalPath() + ":" + size + ":" + lastModified;
+
+    String digest = DIGESTS.get(fileKey);
+    if (digest == null) {
+      digest = sha256(pluginFile);
+      DIGESTS.put(fileKey, digest);
+    }
+    return new File(directory, digest + "-" + size + "-" + lastModified + suffix);
+  }
+
+  /**
+   * Gets the version of this TCK from the manifest of its jar, or "dev" when the
+   * TCK does not run from its jar.
+   */
+  private static String getTckVersion() {
+    String version = PluginMetadataCache.class.getPackage().getImplementationVersion();
+    return version == null ? "dev" : version.replaceAll("[^A-Za-z0-9._-]", "_");
+  }
+
+  private static String sha256(File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      while (channel.read(buffer) >= 0) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Writes the content of a cache entry.
+   */
+  private interface EntryWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  /**
+   * Writes an entry to a temporary file in the cache directory, then atomically
+   * moves it in place.
+   */
+  private void store(File entry, int magic, EntryWriter writer) throws IOException {
+    Files.createDirectories(directory.toPath());
+    Path tempFile = Files.createTempFile(directory.toPath(), entry.getName() + ".", ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          Files.newOutputStream(tempFile)))) {
+        out.writeInt(magic);
+        out.writeByte(FORMAT_VERSION);
+        writer.write(out);
+      }
+      try {
+        Files.move(tempFile, entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tempFile, entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  private static DataInputStream open(File entry, int magic) throws IOException {
+    InputStream in = new BufferedInputStream(Files.newInputStream(entry.toPath()));
+    DataInputStream data = new DataInputStream(in);
+    try {
+      if (data.readInt() != magic || data.readByte() != FORMAT_VERSION) {
+        throw new IOException("Unknown cache entry format");
+      }
+      return data;
+    } catch (IOException e) {
+      data.close();
+      throw e;
+    }
+  }
+
+  static void writeMetadata(DataOutputStream out, PluginMetadata metadata) throws IOException {
+    Map<String, List<ClassReference>> launchers = metadata.getLaunchers();
+    writeVarInt(out, launchers.size());
+    for (Map.Entry<String, List<ClassReference>> entry : launchers.entrySet()) {
+      out.writeUTF(entry.getKey());
+      List<String> classNames = new ArrayList<String>();
+      for (ClassReference ref : entry.getValue()) {
+        classNames.add(ref.getCanonicalClassName());
+      }
+      writeStrings(out, classNames);
+    }
+    writeStrings(out, metadata.getClasses());
+    writeStrings(out, metadata.getFiles());
+  }
+
+  static PluginMetadata readMetadata(DataInputStream in) throws IOException {
+    int launcherCount = readCount(in);
+    Map<String, List<ClassReference>> launchers = new HashMap<String, List<ClassReference>>();
+    for (int i = 0; i < launcherCount; i++) {
+      String spiVersion = in.readUTF();
+      List<ClassReference> refs = new ArrayList<ClassReference>();
+      for (String className : readStrings(in)) {
+        refs.add(new ClassReference(className));
+      }
+      launchers.put(spiVersion, refs);
+    }
+    List<String> classes = readStrings(in);
+    List<String> files = readStrings(in);
+    return new PluginMetadata(launchers, classes, files);
+  }
+
+  /**
+   * Writes a list of strings, each one as the length of the prefix it shares with
+   * the previous one and the rest of the string. Class and file names in a jar are
+   * mostly grouped by package, so this is much smaller than the plain names.
+   */
+  private static void writeStrings(DataOutputStream out, List<String> values)
+      throws IOException {
+    writeVarInt(out, values.size());
+    String previous = "";
+    for (String value : values) {
+      int shared = 0;
+      int max = Math.min(previous.length(), value.length());
+      while (shared < max && previous.charAt(shared) == value.charAt(shared)) {
+        shared++;
+      }
+      writeVarInt(out, shared);
+      out.writeUTF(value.substring(shared));
+      previous = value;
+    }
+  }
+
+  private static List<String> readStrings(DataInputStream in) throws IOException {
+    int count = readCount(in);
+    List<String> values = new ArrayList<String>();
+    String previous = "";
+    for (int i = 0; i < count; i++) {
+      int shared = readVarInt(in);
+      if (shared < 0 || shared > previous.length()) {
+        throw new IOException("Invalid shared prefix length " + shared);
+      }
+      String value = previous.substring(0, shared) + in.readUTF();
+      values.add(value);
+      previous = value;
+    }
+    return values;
+  }
+
+  private static void writeCounts(DataOutputStream out, Map<String, Long> counts)
+      throws IOException {
+    writeVarInt(out, counts.size());
+    for (Map.Entry<String, Long> entry : counts.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeLong(entry.getValue());
+    }
+  }
+
+  private static Map<String, Long> readCounts(DataInputStream in) throws IOException {
+    int count = readCount(in);
+    Map<String, Long> counts = new HashMap<String, Long>();
+    for (int i = 0; i < count; i++) {
+      String key = in.readUTF();
+      long value = in.readLong();
+      if (value < 0) {
+        throw new IOException("Invalid count " + value + " for " + key);
+      }
+      counts.put(key, value);
+    }
+    return counts;
+  }
+
+  private static int readCount(InputStream in) throws IOException {
+    int count = readVarInt(in);
+    if (count < 0 || count > MAX_LIST_SIZE) {
+      throw new IOException("Invalid count " + count);
+    }
+    return count;
+  }
+
+  private static void writeVarInt(OutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static int readVarInt(InputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.read();
+      if (b < 0) {
+        throw new EOFException();
+      }
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Invalid variable length integer");
+  }
+}
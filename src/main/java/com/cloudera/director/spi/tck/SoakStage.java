@@ -0,0 +1,339 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import com.cloudera.director.spi.tck.util.LinearTrend;
+import com.cloudera.director.spi.tck.util.ResourceUsage;
+import com.cloudera.director.spi.tck.util.SpiCallMetrics;
+import com.cloudera.director.spi.tck.util.Stopwatch;
+import com.typesafe.config.Config;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Endurance test for an instance provider that repeats the instance lifecycle for a
+ * number of iterations or for a duration, the way a Director server uses a plugin
+ * for days. After every iteration it samples the wall time of the iteration, the
+ * mean latency of each SPI method, the heap used after garbage collection, the
+ * number of live threads and the number of open file descriptors. The trend of each
+ * value is fitted with a straight line, and a value that grows by more than its
+ * configured slope per iteration fails the stage. A value without a configured slope
+ * is held to a default slope, and only raises a warning when it goes over it.
+ * <p/>
+ * Instances are deleted in the background, so each iteration waits for the deletions
+ * it queued to finish before sampling, and a plugin that slows down its deletes shows
+ * in the iteration wall time.
+ * <p/>
+ * Heap, threads and file descriptors are sampled in the JVM as a whole, so the soak
+ * test is best run with a parallelism of 1.
+ */
+class SoakStage {
+
+  private static final Logger LOG = Logger.getLogger(SoakStage.class.getName());
+
+  private static final int DEFAULT_WARMUP_ITERATIONS = 1;
+  private static final int MIN_TREND_SAMPLES = 3;
+
+  private static final double DEFAULT_MAX_CYCLE_TIME_SLOPE_MILLIS = 50;
+  private static final double DEFAULT_MAX_CALL_LATENCY_SLOPE_MILLIS = 10;
+  private static final double DEFAULT_MAX_HEAP_AFTER_GC_SLOPE_BYTES = 1024 * 1024;
+  private static final double DEFAULT_MAX_LIVE_THREADS_SLOPE = 0.5;
+  private static final double DEFAULT_MAX_OPEN_FILE_DESCRIPTORS_SLOPE = 0.5;
+
+  private static final String SOAK_ITERATIONS_COUNTER = "soakIterations";
+
+  /**
+   * One run of the instance lifecycle.
+   */
+  interface Cycle {
+    void run(Summary summary) throws Exception;
+  }
+
+  private final int iterations;
+  private final long durationMillis;
+  private final int warmupIterations;
+  private final SlopeLimit maxCycleTimeSlopeMillis;
+  private final SlopeLimit maxCallLatencySlopeMillis;
+  private final SlopeLimit maxHeapAfterGcSlopeBytes;
+  private final SlopeLimit maxLiveThreadsSlope;
+  private final SlopeLimit maxOpenFileDescriptorsSlope;
+
+  /**
+   * Creates a new soak stage.
+   *
+   * @param config the resource provider section of the configuration, with a soak
+   *               section
+   * @throws IllegalArgumentException if neither a number of iterations nor a
+   *                                  duration is set
+   */
+  SoakStage(Config config) {
+    Config soakConfig = config.getConfig(Configurations.SOAK_SECTION);
+    if (!soakConfig.hasPath(Configurations.SOAK_ITERATIONS_PROPERTY) &&
+        !soakConfig.hasPath(Configurations.SOAK_DURATION_PROPERTY)) {
+      throw new IllegalArgumentException(String.format(
+          "The soak test needs a number of %s, a %s or both",
+          Configurations.SOAK_ITERATIONS_PROPERTY, Configurations.SOAK_DURATION_PROPERTY));
+    }
+
+    this.iterations = soakConfig.hasPath(Configurations.SOAK_ITERATIONS_PROPERTY) ?
+        soakConfig.getInt(Configurations.SOAK_ITERATIONS_PROPERTY) : Integer.MAX_VALUE;
+    this.durationMillis = soakConfig.hasPath(Configurations.SOAK_DURATION_PROPERTY) ?
+        soakConfig.getDuration(Configurations.SOAK_DURATION_PROPERTY, TimeUnit.MILLISECONDS) :
+        Long.MAX_VALUE;
+    this.warmupIterations = soakConfig.hasPath(Configurations.SOAK_WARMUP_ITERATIONS_PROPERTY) ?
+        soakConfig.getInt(Configurations.SOAK_WARMUP_ITERATIONS_PROPERTY) :
+        DEFAULT_WARMUP_ITERATIONS;
+
+    Config slopes = soakConfig.hasPath(Configurations.SOAK_MAX_SLOPES_SECTION) ?
+        soakConfig.getConfig(Configurations.SOAK_MAX_SLOPES_SECTION) : null;
+    this.maxCycleTimeSlopeMillis = getMillis(slopes,
+        Configurations.SOAK_CYCLE_TIME_SLOPE_PROPERTY, DEFAULT_MAX_CYCLE_TIME_SLOPE_MILLIS);
+    this.maxCallLatencySlopeMillis = getMillis(slopes,
+        Configurations.SOAK_CALL_LATENCY_SLOPE_PROPERTY, DEFAULT_MAX_CALL_LATENCY_SLOPE_MILLIS);
+    this.maxHeapAfterGcSlopeBytes = (slopes != null &&
+        slopes.hasPath(Configurations.SOAK_HEAP_AFTER_GC_SLOPE_PROPERTY)) ?
+        new SlopeLimit(slopes.getBytes(Configurations.SOAK_HEAP_AFTER_GC_SLOPE_PROPERTY), true) :
+        new SlopeLimit(DEFAULT_MAX_HEAP_AFTER_GC_SLOPE_BYTES, false);
+    this.maxLiveThreadsSlope = getDouble(slopes,
+        Configurations.SOAK_LIVE_THREADS_SLOPE_PROPERTY, DEFAULT_MAX_LIVE_THREADS_SLOPE);
+    this.maxOpenFileDescriptorsSlope = getDouble(slopes,
+        Configurations.SOAK_OPEN_FILE_DESCRIPTORS_SLOPE_PROPERTY,
+        DEFAULT_MAX_OPEN_FILE_DESCRIPTORS_SLOPE);
+
+    if (iterations < 1 || warmupIterations < 0) {
+      throw new IllegalArgumentException(String.format(
+          "Invalid soak iteration counts: iterations %d, warmupIterations %d",
+          iterations, warmupIterations));
+    }
+  }
+
+  private static SlopeLimit getMillis(Config slopes, String path, double defaultMillis) {
+    if (slopes == null || !slopes.hasPath(path)) {
+      return new SlopeLimit(defaultMillis, false);
+    }
+    return new SlopeLimit(slopes.getDuration(path, TimeUnit.NANOSECONDS) /
+        (double) TimeUnit.MILLISECONDS.toNanos(1), true);
+  }
+
+  private static SlopeLimit getDouble(Config slopes, String path, double defaultSlope) {
+    return (slopes != null && slopes.hasPath(path)) ?
+        new SlopeLimit(slopes.getDouble(path), true) : new SlopeLimit(defaultSlope, false);
+  }
+
+  /**
+   * Runs the lifecycle until the number of iterations or the duration is reached,
+   * or until an iteration fails, then checks the trends.
+   *
+   * @param summary    a summary of errors and warnings that will be updated
+   * @param context    the validation context
+   * @param providerId the ID of the instance provider, qualified by its cloud provider as
+   *                   in the SPI call statistics, to pick its SPI call latencies
+   * @param cycle      one run of the instance lifecycle
+   * @throws Exception if an iteration throws an exception
+   */
+  void run(Summary summary, ValidationContext context, String providerId, Cycle cycle)
+      throws Exception {
+
+    LOG.info(String.format("Starting soak test with up to %s iterations for up to %s",
+        (iterations == Integer.MAX_VALUE) ? "unlimited" : iterations,
+        (durationMillis == Long.MAX_VALUE) ? "unlimited time" : durationMillis + " ms"));
+
+    List<Sample> samples = new ArrayList<Sample>();
+    Stopwatch soakStopwatch = Stopwatch.createStarted();
+    try {
+      for (int iteration = 1; iteration <= iterations &&
+          soakStopwatch.elapsed(TimeUnit.MILLISECONDS) < durationMillis; iteration++) {
+
+        Map<String, long[]> callTotalsBefore = getCallTotals(context, providerId);
+        Summary iterationSummary = new Summary(summary.getMaxFindings());
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        cycle.run(iterationSummary);
+        // wait for the deletions of this iteration, so that the instances are gone
+        // before sampling and their leftovers are not counted in the next iteration
+        context.getDeletionQueue().drain(iterationSummary);
+        long cycleMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+
+        Sample sample = Sample.capture(iteration, cycleMillis,
+            getMeanLatencies(callTotalsBefore, getCallTotals(context, providerId)));
+        samples.add(sample);
+        LOG.info("Soak " + sample);
+
+        for (String warning : iterationSummary.getWarnings()) {
+          summary.addWarning("Soak iteration %d: %s", iteration, warning);
+        }
+        if (iterationSummary.hasErrors()) {
+          for (String error : iterationSummary.getErrors()) {
+            summary.addError("Soak iteration %d: %s", iteration, error);
+          }
+          return;
+        }
+      }
+
+    } finally {
+      summary.addCounter(SOAK_ITERATIONS_COUNTER, samples.size());
+    }
+
+    checkTrends(summary, samples.subList(Math.min(warmupIterations, samples.size()),
+        samples.size()));
+  }
+
+  private void checkTrends(Summary summary, List<Sample> samples) {
+    if (samples.size() < MIN_TREND_SAMPLES) {
+      summary.addWarning("The soak test ran %d iterations after warmup, at least %d are " +
+          "needed to compute trends", samples.size(), MIN_TREND_SAMPLES);
+      return;
+    }
+
+    List<Long> cycleMillis = new ArrayList<Long>();
+    List<Long> heapAfterGcBytes = new ArrayList<Long>();
+    List<Long> liveThreads = new ArrayList<Long>();
+    List<Long> openFileDescriptors = new ArrayList<Long>();
+    Map<String, List<Double>> meanLatencyMillis = new TreeMap<String, List<Double>>();
+    for (Sample sample : samples) {
+      cycleMillis.add(sample.cycleMillis);
+      heapAfterGcBytes.add(sample.heapAfterGcBytes);
+      liveThreads.add(sample.liveThreads);
+      if (sample.openFileDescriptors != ResourceUsage.UNKNOWN) {
+        openFileDescriptors.add(sample.openFileDescriptors);
+      }
+      for (Map.Entry<String, Double> entry : sample.meanLatencyMillis.entrySet()) {
+        List<Double> latencies = meanLatencyMillis.get(entry.getKey());
+        if (latencies == null) {
+          latencies = new ArrayList<Double>();
+          meanLatencyMillis.put(entry.getKey(), latencies);
+        }
+        latencies.add(entry.getValue());
+      }
+    }
+
+    LOG.info(String.format("Soak trends over %d iterations after warmup:", samples.size()));
+    checkTrend(summary, "iteration wall time", cycleMillis, " ms", maxCycleTimeSlopeMillis);
+    for (Map.Entry<String, List<Double>> entry : meanLatencyMillis.entrySet()) {
+      if (entry.getValue().size() >= MIN_TREND_SAMPLES) {
+        checkTrend(summary, "mean latency of " + entry.getKey(), entry.getValue(), " ms",
+            maxCallLatencySlopeMillis);
+      }
+    }
+    checkTrend(summary, "heap used after GC", heapAfterGcBytes, " bytes",
+        maxHeapAfterGcSlopeBytes);
+    checkTrend(summary, "live threads", liveThreads, "", maxLiveThreadsSlope);
+    if (openFileDescriptors.size() == samples.size()) {
+      checkTrend(summary, "open file descriptors", openFileDescriptors, "",
+          maxOpenFileDescriptorsSlope);
+    }
+  }
+
+  private static void checkTrend(Summary summary, String name, List<? extends Number> values,
+      String unit, SlopeLimit maxSlope) {
+    double slope = LinearTrend.slope(values);
+    LOG.info(String.format("* %s: %+.3f%s per iteration (first %s, last %s)", name, slope, unit,
+        values.get(0), values.get(values.size() - 1)));
+    if (slope <= maxSlope.max) {
+      return;
+    }
+    if (maxSlope.configured) {
+      summary.addError("The %s grows by %.3f%s per iteration during the soak test, " +
+          "over the limit of %.3f%s", name, slope, unit, maxSlope.max, unit);
+    } else {
+      summary.addWarning("The %s grows by %.3f%s per iteration during the soak test, " +
+          "over the default limit of %.3f%s", name, slope, unit, maxSlope.max, unit);
+    }
+  }
+
+  /**
+   * Gets the number of calls and their total latency for each SPI method of a provider.
+   */
+  private static Map<String, long[]> getCallTotals(ValidationContext context,
+      String providerId) {
+    Map<String, long[]> result = new LinkedHashMap<String, long[]>();
+    for (SpiCallMetrics.CallStats callStats : context.getSpiCallMetrics().getCallStats()) {
+      if (callStats.getProviderId().equals(providerId)) {
+        result.put(callStats.getMethod(), new long[]{
+            callStats.getLatencies().getCount(), callStats.getTotalNanos()});
+      }
+    }
+    return result;
+  }
+
+  private static Map<String, Double> getMeanLatencies(Map<String, long[]> before,
+      Map<String, long[]> after) {
+    Map<String, Double> result = new TreeMap<String, Double>();
+    for (Map.Entry<String, long[]> entry : after.entrySet()) {
+      long[] totalsBefore = before.get(entry.getKey());
+      long count = entry.getValue()[0] - ((totalsBefore == null) ? 0 : totalsBefore[0]);
+      long nanos = entry.getValue()[1] - ((totalsBefore == null) ? 0 : totalsBefore[1]);
+      if (count > 0) {
+        result.put(entry.getKey(),
+            nanos / (double) count / TimeUnit.MILLISECONDS.toNanos(1));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The maximum growth per iteration of a sampled value.
+   */
+  private static class SlopeLimit {
+
+    private final double max;
+    private final boolean configured;
+
+    private SlopeLimit(double max, boolean configured) {
+      this.max = max;
+      this.configured = configured;
+    }
+  }
+
+  /**
+   * The values sampled after one iteration.
+   */
+  private static class Sample {
+
+    private final int iteration;
+    private final long cycleMillis;
+    private final long heapAfterGcBytes;
+    private final long liveThreads;
+    private final long openFileDescriptors;
+    private final Map<String, Double> meanLatencyMillis;
+
+    private Sample(int iteration, long cycleMillis, long heapAfterGcBytes, long liveThreads,
+        long openFileDescriptors, Map<String, Double> meanLatencyMillis) {
+      this.iteration = iteration;
+      this.cycleMillis = cycleMillis;
+      this.heapAfterGcBytes = heapAfterGcBytes;
+      this.liveThreads = liveThreads;
+      this.openFileDescriptors = openFileDescriptors;
+      this.meanLatencyMillis = meanLatencyMillis;
+    }
+
+    static Sample capture(int iteration, long cycleMillis,
+        Map<String, Double> meanLatencyMillis) {
+      System.gc();
+      return new Sample(iteration, cycleMillis,
+          ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(),
+          ManagementFactory.getThreadMXBean().getThreadCount(),
+          ResourceUsage.capture().getOpenFileDescriptorCount(),
+          meanLatencyMillis);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder latencies = new StringBuilder();
+      for (Map.Entry<String, Double> entry : meanLatencyMillis.entrySet()) {
+        latencies.append(String.format(", %s %.1f ms", entry.getKey(), entry.getValue()));
+      }
+      return String.format("iteration %d: %d ms, heap after GC %d KB, %d live threads, " +
+              "%s open file descriptors%s", iteration, cycleMillis, heapAfterGcBytes / 1024,
+          liveThreads,
+          (openFileDescriptors == ResourceUsage.UNKNOWN) ? "unknown" : openFileDescriptors,
+          latencies);
+    }
+  }
+}
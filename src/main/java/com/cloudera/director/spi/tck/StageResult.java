@@ -0,0 +1,57 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of one validation stage (e.g. the lifecycle test of a resource
+ * provider): its name, how long it took and the errors and warnings it found.
+ */
+public class StageResult {
+
+  private final String name;
+  private final long durationMillis;
+  private final List<String> errors;
+  private final List<String> warnings;
+
+  public StageResult(String name, long durationMillis, List<String> errors,
+      List<String> warnings) {
+    this.name = name;
+    this.durationMillis = durationMillis;
+    this.errors = Collections.unmodifiableList(new ArrayList<String>(errors));
+    this.warnings = Collections.unmodifiableList(new ArrayList<String>(warnings));
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  public boolean isPassed() {
+    return errors.isEmpty();
+  }
+
+  public List<String> getErrors() {
+    return errors;
+  }
+
+  public List<String> getWarnings() {
+    return warnings;
+  }
+
+  @Override
+  public String toString() {
+    return "StageResult{" +
+        "name='" + name + '\'' +
+        ", durationMillis=" + durationMillis +
+        ", errors=" + errors +
+        ", warnings=" + warnings +
+        '}';
+  }
+}
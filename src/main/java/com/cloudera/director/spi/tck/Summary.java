@@ -2,45 +2,265 @@
 
 package com.cloudera.director.spi.tck;
 
+import static com.cloudera.director.spi.tck.util.Preconditions.checkNotNull;
+
+import com.cloudera.director.spi.tck.util.SpiCallMetrics;
+import com.typesafe.config.Config;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.IllegalFormatException;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * An object that collects validation errors and warnings.
+ * An object that collects validation errors and warnings. Safe for use by
+ * validations that run in parallel, without locks, so that many stages can report
+ * into the same summary and summaries can be merged cheaply.
+ * <p/>
+ * Errors and warnings are findings made of a format and its arguments, formatted
+ * only when they are read. Arguments other than strings, numbers, booleans,
+ * characters and enums are converted to strings when the finding is added, so that
+ * later changes to them do not show. A finding reported again is kept once, and
+ * each kind of finding keeps at most a maximum number of distinct findings; the
+ * findings beyond it are counted as dropped. For every category of finding, which
+ * is its format, the summary counts all reports, including duplicates and dropped
+ * findings.
+ * <p/>
+ * Besides errors and warnings a summary also keeps the results of the validation
+ * stages, the latency statistics of SPI calls and named counters (e.g. the number
+ * of polls), for machine-readable reports.
  */
 public class Summary {
 
-  private List<String> errors = new ArrayList<String>();
-  private List<String> warnings = new ArrayList<String>();
+  /**
+   * The default maximum number of distinct errors, and of distinct warnings.
+   */
+  public static final int DEFAULT_MAX_FINDINGS = 1000;
+
+  private final Findings errors;
+  private final Findings warnings;
+  private final Queue<StageResult> stages = new ConcurrentLinkedQueue<StageResult>();
+  private final Queue<SpiCallMetrics.CallStats> spiCallStats =
+      new ConcurrentLinkedQueue<SpiCallMetrics.CallStats>();
+  private final ConcurrentMap<String, LongAdder> counters =
+      new ConcurrentHashMap<String, LongAdder>();
+
+  public Summary() {
+    this(DEFAULT_MAX_FINDINGS);
+  }
+
+  /**
+   * Creates a new summary.
+   *
+   * @param maxFindings the maximum number of distinct errors, and of distinct warnings
+   * @throws IllegalArgumentException if the maximum is not positive
+   */
+  public Summary(int maxFindings) {
+    if (maxFindings < 1) {
+      throw new IllegalArgumentException("The maximum number of findings must be positive: " +
+          maxFindings);
+    }
+    this.errors = new Findings(maxFindings);
+    this.warnings = new Findings(maxFindings);
+  }
 
+  /**
+   * Creates a new summary with the maximum number of findings of a configuration.
+   *
+   * @param config the TCK configuration
+   * @return a new summary
+   */
+  public static Summary fromConfig(Config config) {
+    return new Summary(config.hasPath(Configurations.MAX_FINDINGS_PROPERTY) ?
+        config.getInt(Configurations.MAX_FINDINGS_PROPERTY) : DEFAULT_MAX_FINDINGS);
+  }
+
+  /**
+   * Gets the maximum number of distinct errors, and of distinct warnings.
+   */
+  public int getMaxFindings() {
+    return errors.maxFindings;
+  }
+
+  /**
+   * Adds everything reported to another summary to this one. The findings of the
+   * other summary are subject to the maximum of this summary.
+   *
+   * @param other the other summary
+   */
   public void add(Summary other) {
-    errors.addAll(other.getErrors());
-    warnings.addAll(other.getWarnings());
+    add(null, other);
+  }
+
+  /**
+   * Adds everything reported to another summary to this one, with every error and
+   * warning, their categories and the stage names prefixed, e.g. by the name of the
+   * plugin they belong to. The findings of the other summary are subject to the
+   * maximum of this summary.
+   *
+   * @param prefix the prefix, or null to add the other summary as it is
+   * @param other  the other summary
+   */
+  public void add(String prefix, Summary other) {
+    if (other == this) {
+      throw new IllegalArgumentException("A summary cannot be added to itself");
+    }
+    errors.addAll(other.errors, prefix);
+    warnings.addAll(other.warnings, prefix);
+    if (prefix == null) {
+      stages.addAll(other.stages);
+    } else {
+      for (StageResult stage : other.stages) {
+        stages.add(new StageResult(prefix + stage.getName(), stage.getDurationMillis(),
+            prefixAll(prefix, stage.getErrors()), prefixAll(prefix, stage.getWarnings())));
+      }
+    }
+    spiCallStats.addAll(other.spiCallStats);
+    for (Map.Entry<String, LongAdder> entry : other.counters.entrySet()) {
+      addCounter(entry.getKey(), entry.getValue().sum());
+    }
   }
 
   public void addError(String format, Object... args) {
-    errors.add(String.format(format, args));
+    errors.add(new Finding(format, args));
   }
 
   public boolean hasErrors() {
-    return errors.size() > 0;
+    return !errors.isEmpty();
   }
 
+  /**
+   * Gets the distinct errors, in the order they were first reported.
+   */
   public List<String> getErrors() {
-    return Collections.unmodifiableList(errors);
+    return errors.getMessages();
+  }
+
+  /**
+   * Gets the number of times each category of error was reported.
+   */
+  public Map<String, Long> getErrorCounts() {
+    return errors.getCategoryCounts();
+  }
+
+  /**
+   * Gets the number of errors that were not kept because there were too many.
+   */
+  public long getDroppedErrorCount() {
+    return errors.getDroppedCount();
+  }
+
+  /**
+   * Gets the category of each distinct error, in the order of {@link #getErrors}.
+   */
+  List<String> getErrorCategories() {
+    return errors.getCategories();
+  }
+
+  /**
+   * Restores errors that were read back from a cache. Each error keeps its category,
+   * and the category counts are added as they are rather than counted again.
+   *
+   * @param categories     the category of each distinct error
+   * @param messages       the message of each distinct error
+   * @param categoryCounts the number of times each category of error was reported
+   */
+  void restoreErrors(List<String> categories, List<String> messages,
+      Map<String, Long> categoryCounts) {
+    errors.restore(categories, messages, categoryCounts);
   }
 
   public void addWarning(String format, Object... args) {
-    warnings.add(String.format(format, args));
+    warnings.add(new Finding(format, args));
   }
 
   public boolean hasWarnings() {
-    return warnings.size() > 0;
+    return !warnings.isEmpty();
   }
 
+  /**
+   * Gets the distinct warnings, in the order they were first reported.
+   */
   public List<String> getWarnings() {
-    return Collections.unmodifiableList(warnings);
+    return warnings.getMessages();
+  }
+
+  /**
+   * Gets the number of times each category of warning was reported.
+   */
+  public Map<String, Long> getWarningCounts() {
+    return warnings.getCategoryCounts();
+  }
+
+  /**
+   * Gets the number of warnings that were not kept because there were too many.
+   */
+  public long getDroppedWarningCount() {
+    return warnings.getDroppedCount();
+  }
+
+  /**
+   * Gets the category of each distinct warning, in the order of {@link #getWarnings}.
+   */
+  List<String> getWarningCategories() {
+    return warnings.getCategories();
+  }
+
+  /**
+   * Restores warnings that were read back from a cache, like {@link #restoreErrors}.
+   */
+  void restoreWarnings(List<String> categories, List<String> messages,
+      Map<String, Long> categoryCounts) {
+    warnings.restore(categories, messages, categoryCounts);
+  }
+
+  public void addStage(StageResult stage) {
+    stages.add(stage);
+  }
+
+  public List<StageResult> getStages() {
+    return Collections.unmodifiableList(new ArrayList<StageResult>(stages));
+  }
+
+  public void addSpiCallStats(Collection<SpiCallMetrics.CallStats> callStats) {
+    spiCallStats.addAll(callStats);
+  }
+
+  public List<SpiCallMetrics.CallStats> getSpiCallStats() {
+    return Collections.unmodifiableList(new ArrayList<SpiCallMetrics.CallStats>(spiCallStats));
+  }
+
+  /**
+   * Gets the name of a counter of one provider. Counters with the same name are added
+   * up when summaries are combined, so measurements of a provider, like durations and
+   * rates, are kept under its ID instead of being summed with those of other providers.
+   *
+   * @param providerId the ID of the provider, as in {@code aws/compute}
+   * @param name       the name of the counter
+   * @return the name of the counter of the provider
+   */
+  public static String providerCounter(String providerId, String name) {
+    return providerId + "/" + name;
+  }
+
+  public void addCounter(String name, long delta) {
+    counterFor(counters, name).add(delta);
+  }
+
+  public Map<String, Long> getCounters() {
+    return sums(counters);
   }
 
   @Override
@@ -50,24 +270,245 @@ public class Summary {
 
     Summary that = (Summary) o;
 
-    if (!errors.equals(that.errors)) return false;
-    if (!warnings.equals(that.warnings)) return false;
+    if (!getErrors().equals(that.getErrors())) return false;
+    if (!getWarnings().equals(that.getWarnings())) return false;
 
     return true;
   }
 
   @Override
   public int hashCode() {
-    int result = errors.hashCode();
-    result = 31 * result + warnings.hashCode();
+    int result = getErrors().hashCode();
+    result = 31 * result + getWarnings().hashCode();
     return result;
   }
 
   @Override
   public String toString() {
     return "Summary{" +
-        "errors=" + errors +
-        ", warnings=" + warnings +
+        "errors=" + getErrors() +
+        ", warnings=" + getWarnings() +
         '}';
   }
+
+  private static List<String> prefixAll(String prefix, List<String> values) {
+    List<String> result = new ArrayList<String>();
+    for (String value : values) {
+      result.add(prefix + value);
+    }
+    return result;
+  }
+
+  /**
+   * Gets the counter of a key, creating it if needed. Existing counters are found
+   * without locking.
+   */
+  private static <K> LongAdder counterFor(ConcurrentMap<K, LongAdder> counters, K key) {
+    LongAdder counter = counters.get(key);
+    if (counter == null) {
+      LongAdder created = new LongAdder();
+      counter = counters.putIfAbsent(key, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+    return counter;
+  }
+
+  private static Map<String, Long> sums(ConcurrentMap<String, LongAdder> counters) {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().sum());
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  /**
+   * An error or a warning, formatted when its message is first read. Findings with
+   * the same format and arguments are equal.
+   */
+  private static final class Finding {
+
+    private final String format;
+    private final Object[] args;
+    private final int hashCode;
+    private volatile String message;
+
+    Finding(String format, Object[] args) {
+      this.format = checkNotNull(format, "format is null");
+      this.args = (args == null) ? new Object[0] : new Object[args.length];
+      for (int i = 0; i < this.args.length; i++) {
+        this.args[i] = isValue(args[i]) ? args[i] : String.valueOf(args[i]);
+      }
+      this.hashCode = 31 * format.hashCode() + Arrays.hashCode(this.args);
+    }
+
+    /**
+     * Creates a finding of a category whose message was already formatted, e.g. read
+     * back from a cache or prefixed.
+     */
+    static Finding restored(String category, String message) {
+      Finding finding = new Finding(category, new Object[]{message});
+      finding.message = message;
+      return finding;
+    }
+
+    private static boolean isValue(Object arg) {
+      return arg == null || arg instanceof String || arg instanceof Integer ||
+          arg instanceof Long || arg instanceof Double || arg instanceof Float ||
+          arg instanceof Short || arg instanceof Byte || arg instanceof BigInteger ||
+          arg instanceof BigDecimal || arg instanceof Boolean || arg instanceof Character ||
+          arg instanceof Enum;
+    }
+
+    String getCategory() {
+      return format;
+    }
+
+    String getMessage() {
+      String result = message;
+      if (result == null) {
+        try {
+          result = String.format(format, args);
+        } catch (IllegalFormatException e) {
+          // keep what was reported rather than lose the finding
+          result = format + " " + Arrays.toString(args);
+        }
+        message = result;
+      }
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      Finding that = (Finding) o;
+      return hashCode == that.hashCode && format.equals(that.format) &&
+          Arrays.equals(args, that.args);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+
+  /**
+   * The distinct findings of one kind, with the number of reports of each category.
+   * The distinct findings are bounded: a new finding takes one of a fixed number of
+   * slots once it is known to be new, or is dropped. Only distinct findings compete
+   * for slots, so nothing is dropped below the bound. Right at the bound, a report of
+   * a finding that is about to be dropped may be counted as kept.
+   */
+  private static final class Findings {
+
+    private final int maxFindings;
+    private final ConcurrentMap<Finding, Boolean> kept = new ConcurrentHashMap<Finding, Boolean>();
+    private final Queue<Finding> order = new ConcurrentLinkedQueue<Finding>();
+    private final AtomicInteger slots = new AtomicInteger();
+    private final ConcurrentMap<String, LongAdder> categoryCounts =
+        new ConcurrentHashMap<String, LongAdder>();
+    private final LongAdder dropped = new LongAdder();
+
+    Findings(int maxFindings) {
+      this.maxFindings = maxFindings;
+    }
+
+    void add(Finding finding) {
+      counterFor(categoryCounts, finding.getCategory()).increment();
+      if (!keep(finding)) {
+        dropped.increment();
+      }
+    }
+
+    void addAll(Findings other, String prefix) {
+      for (Finding finding : other.order) {
+        if (prefix != null) {
+          finding = Finding.restored(prefix + finding.getCategory(),
+              prefix + finding.getMessage());
+        }
+        if (!keep(finding)) {
+          dropped.increment();
+        }
+      }
+      dropped.add(other.dropped.sum());
+      for (Map.Entry<String, LongAdder> entry : other.categoryCounts.entrySet()) {
+        String category = (prefix == null) ? entry.getKey() : prefix + entry.getKey();
+        counterFor(categoryCounts, category).add(entry.getValue().sum());
+      }
+    }
+
+    void restore(List<String> categories, List<String> messages,
+        Map<String, Long> counts) {
+      if (categories.size() != messages.size()) {
+        throw new IllegalArgumentException(String.format(
+            "%d categories for %d messages", categories.size(), messages.size()));
+      }
+      for (int i = 0; i < messages.size(); i++) {
+        if (!keep(Finding.restored(categories.get(i), messages.get(i)))) {
+          dropped.increment();
+        }
+      }
+      for (Map.Entry<String, Long> entry : counts.entrySet()) {
+        counterFor(categoryCounts, entry.getKey()).add(entry.getValue());
+      }
+    }
+
+    /**
+     * Keeps a finding unless it is new and there is no slot left for it.
+     *
+     * @return false if the finding was dropped
+     */
+    private boolean keep(Finding finding) {
+      if (kept.containsKey(finding)) {
+        return true;
+      }
+      if (slots.get() >= maxFindings) {
+        // another thread may have just kept it
+        return kept.containsKey(finding);
+      }
+      if (kept.putIfAbsent(finding, Boolean.TRUE) != null) {
+        return true;
+      }
+
+      // the finding is new, so it takes a slot or is dropped again
+      if (slots.incrementAndGet() > maxFindings) {
+        slots.decrementAndGet();
+        kept.remove(finding);
+        return false;
+      }
+      order.add(finding);
+      return true;
+    }
+
+    boolean isEmpty() {
+      return kept.isEmpty() && dropped.sum() == 0;
+    }
+
+    List<String> getMessages() {
+      List<String> messages = new ArrayList<String>();
+      for (Finding finding : order) {
+        messages.add(finding.getMessage());
+      }
+      return Collections.unmodifiableList(messages);
+    }
+
+    List<String> getCategories() {
+      List<String> categories = new ArrayList<String>();
+      for (Finding finding : order) {
+        categories.add(finding.getCategory());
+      }
+      return Collections.unmodifiableList(categories);
+    }
+
+    Map<String, Long> getCategoryCounts() {
+      return sums(categoryCounts);
+    }
+
+    long getDroppedCount() {
+      return dropped.sum();
+    }
+  }
 }
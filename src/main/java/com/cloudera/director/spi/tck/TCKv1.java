@@ -2,13 +2,18 @@
 
 package com.cloudera.director.spi.tck;
 
+import com.cloudera.director.spi.tck.util.ClassLoaderLeakCheck;
 import com.cloudera.director.spi.tck.util.ClassReference;
+import com.cloudera.director.spi.tck.util.ResourceLeakCheck;
+import com.cloudera.director.spi.tck.util.ResourceUsage;
 import com.cloudera.director.spi.tck.util.TCKUtil;
+import com.cloudera.director.spi.tck.util.ValidationWindow;
 import com.cloudera.director.spi.v1.provider.Launcher;
 import com.cloudera.director.spi.v2.adapters.v1.FromV1;
 import com.typesafe.config.Config;
 
 import java.io.File;
+import java.net.URLClassLoader;
 import java.util.logging.Logger;
 
 /**
@@ -25,42 +30,78 @@ public class TCKv1 implements TCK {
   public Summary validate(File pluginFile, PluginMetadata metadata, Config config)
       throws Exception {
 
-    Summary summary = new Summary();
+    Summary summary = Summary.fromConfig(config);
 
-    TCK_UTIL.validateJar(summary, metadata, SPI_VERSION);
+    TCK_UTIL.validateJar(summary, metadata, SPI_VERSION, pluginFile,
+        PluginMetadataCache.fromConfig(config));
 
     if (summary.hasErrors()) {
       return summary;  // no need to continue if we found some errors already
     }
 
-    ClassLoader classLoader = TCK_UTIL.getClassLoader(pluginFile);
+    try (ValidationWindow window = ValidationWindow.open()) {
+      ResourceUsage usageBefore = ResourceUsage.capture();
+      ResourceLeakCheck resourceLeakCheck = ResourceLeakCheck.start(config, window);
+      ClassLoaderLeakCheck leakCheck = validateLaunchers(summary, pluginFile, metadata, config);
 
-    // Load each launcher and try to create an instance using the default constructor
-
-    for (ClassReference launcherClassRef : metadata.getLauncherClasses(SPI_VERSION)) {
-      LOG.info(String.format("Creating an instance of the launcher class: %s",
-          launcherClassRef.getCanonicalClassName()));
+      TCKv2.runStage(summary, "teardown", stageSummary -> {
+        resourceLeakCheck.check(stageSummary, leakCheck);
+        TCK_UTIL.checkPluginUnloaded(stageSummary, leakCheck, usageBefore, window);
+      });
+    }
 
-      Class<?> launcherClass = classLoader.loadClass(
-          launcherClassRef.getCanonicalClassName());
+    return summary;
+  }
 
-      if (!Launcher.class.isAssignableFrom(launcherClass)) {
-        summary.addError("%s should implement the SPI Launcher interface",
-            launcherClass.getCanonicalName());
-        return summary;
+  /**
+   * Loads the plugin with a new class loader and validates all its launchers. The
+   * class loader is closed before returning, and no reference to it or to any plugin
+   * object outlives this method, so that the caller can check that it is collected.
+   */
+  private ClassLoaderLeakCheck validateLaunchers(Summary summary, File pluginFile,
+      PluginMetadata metadata, Config config) throws Exception {
+
+    Thread currentThread = Thread.currentThread();
+    ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+    try (URLClassLoader classLoader = TCK_UTIL.getClassLoader(pluginFile)) {
+      ClassLoaderLeakCheck leakCheck = new ClassLoaderLeakCheck(classLoader);
+
+      // Call the plugin with its own context class loader, like Director does, so that
+      // the threads it starts can be traced back to it
+      currentThread.setContextClassLoader(classLoader);
+
+      // Load each launcher and try to create an instance using the default constructor
+
+      for (ClassReference launcherClassRef : metadata.getLauncherClasses(SPI_VERSION)) {
+        LOG.info(String.format("Creating an instance of the launcher class: %s",
+            launcherClassRef.getCanonicalClassName()));
+
+        Class<?> launcherClass = classLoader.loadClass(
+            launcherClassRef.getCanonicalClassName());
+
+        if (!Launcher.class.isAssignableFrom(launcherClass)) {
+          summary.addError("%s should implement the SPI Launcher interface",
+              launcherClass.getCanonicalName());
+          break;
+        }
+
+        Launcher launcher = (Launcher) launcherClass.newInstance();
+
+        com.cloudera.director.spi.v2.provider.Launcher convertedLauncher =
+            FromV1.fromV1(launcher);
+        TCKv2 tckV2 = new TCKv2();
+        // the adapter is a TCK class, so profile the plugin with its own class loader
+        tckV2.validate(convertedLauncher, classLoader, config, summary);
+
+        if (summary.hasErrors()) {
+          break;  // no need to continue if we found some errors for one launcher
+        }
       }
 
-      Launcher launcher = (Launcher) launcherClass.newInstance();
+      return leakCheck;
 
-      com.cloudera.director.spi.v2.provider.Launcher convertedLauncher = FromV1.fromV1(launcher);
-      TCKv2 tckV2 = new TCKv2();
-      tckV2.validate(convertedLauncher, config, summary);
-
-      if (summary.hasErrors()) {
-        break;  // no need to continue if we found some errors for one launcher
-      }
+    } finally {
+      currentThread.setContextClassLoader(contextClassLoader);
     }
-
-    return summary;
   }
 }
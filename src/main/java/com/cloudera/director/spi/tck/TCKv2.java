@@ -2,17 +2,23 @@
 
 package com.cloudera.director.spi.tck;
 
+import com.cloudera.director.spi.tck.util.AllocationJournal;
+import com.cloudera.director.spi.tck.util.ClassLoaderLeakCheck;
 import com.cloudera.director.spi.tck.util.ClassReference;
 import com.cloudera.director.spi.tck.util.ConfigFragmentWrapper;
+import com.cloudera.director.spi.tck.util.DaemonThreadFactory;
+import com.cloudera.director.spi.tck.util.LogPrefix;
+import com.cloudera.director.spi.tck.util.ResourceLeakCheck;
+import com.cloudera.director.spi.tck.util.ResourceUsage;
+import com.cloudera.director.spi.tck.util.StartupProfile;
+import com.cloudera.director.spi.tck.util.StartupThresholds;
 import com.cloudera.director.spi.tck.util.Stopwatch;
 import com.cloudera.director.spi.tck.util.TCKUtil;
+import com.cloudera.director.spi.tck.util.ValidationWindow;
 import com.cloudera.director.spi.v2.common.http.HttpProxyParameters;
-import com.cloudera.director.spi.v2.compute.ComputeInstanceTemplate;
 import com.cloudera.director.spi.v2.compute.ComputeProvider;
 import com.cloudera.director.spi.v2.database.DatabaseServerProvider;
-import com.cloudera.director.spi.v2.model.Instance;
-import com.cloudera.director.spi.v2.model.InstanceState;
-import com.cloudera.director.spi.v2.model.InstanceStatus;
+import com.cloudera.director.spi.v2.model.ConfigurationProperty;
 import com.cloudera.director.spi.v2.model.InstanceTemplate;
 import com.cloudera.director.spi.v2.model.LocalizationContext;
 import com.cloudera.director.spi.v2.model.util.ChildLocalizationContext;
@@ -26,16 +32,19 @@ import com.typesafe.config.Config;
 import com.typesafe.config.ConfigValue;
 
 import java.io.File;
-import java.util.Arrays;
-import java.util.Collection;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -49,81 +58,306 @@ public class TCKv2 implements TCK {
 
   private static final TCKUtil TCK_UTIL = new TCKUtil();
 
-  private static final int DEFAULT_TIMEOUT_MINUTES = 10;
-  private static final int DEFAULT_WAIT_BETWEEN_ATTEMPTS_SECONDS = 5;
+  private static final int DEFAULT_PARALLELISM = 1;
+
+  private static final String LAUNCHER_METRICS_ID = "launcher";
+
+  private static final String INITIALIZE_PHASE = "initialize";
+  private static final String CREATE_CLOUD_PROVIDER_PHASE = "createCloudProvider";
+
+  private static final String INSTANCE_STATE_CALLS_COUNTER = "instanceStateCalls";
+  private static final String PORT_CONNECT_ATTEMPTS_COUNTER = "portConnectAttempts";
+
+  /**
+   * A validation stage that reports into its own summary.
+   */
+  interface Stage {
+    void run(Summary stageSummary) throws Exception;
+  }
 
   public Summary validate(File pluginFile, PluginMetadata metadata, Config config)
       throws Exception {
 
-    Summary summary = new Summary();
-    TCK_UTIL.validateJar(summary, metadata, SPI_VERSION);
+    Summary summary = Summary.fromConfig(config);
+    PluginMetadataCache cache = PluginMetadataCache.fromConfig(config);
+    runStage(summary, "packaging", stageSummary ->
+        TCK_UTIL.validateJar(stageSummary, metadata, SPI_VERSION, pluginFile, cache));
 
     if (summary.hasErrors()) {
       return summary;  // no need to continue if we found some errors already
     }
 
-    ClassLoader classLoader = TCK_UTIL.getClassLoader(pluginFile);
+    try (ValidationWindow window = ValidationWindow.open()) {
+      ResourceUsage usageBefore = ResourceUsage.capture();
+      ResourceLeakCheck resourceLeakCheck = ResourceLeakCheck.start(config, window);
+      ClassLoaderLeakCheck leakCheck = validateLaunchers(summary, pluginFile, metadata, config);
+
+      runStage(summary, "teardown", stageSummary -> {
+        resourceLeakCheck.check(stageSummary, leakCheck);
+        TCK_UTIL.checkPluginUnloaded(stageSummary, leakCheck, usageBefore, window);
+      });
+    }
+
+    return summary;
+  }
 
-    // Load each launcher and try to create an instance using the default constructor
+  /**
+   * Loads the plugin with a new class loader and validates all its launchers. The
+   * class loader is closed before returning, and no reference to it or to any plugin
+   * object outlives this method, so that the caller can check that it is collected.
+   */
+  private ClassLoaderLeakCheck validateLaunchers(Summary summary, File pluginFile,
+      PluginMetadata metadata, Config config) throws Exception {
 
-    for (ClassReference launcherClassRef : metadata.getLauncherClasses(SPI_VERSION)) {
-      LOG.info(String.format("Creating an instance of the launcher class: %s",
-          launcherClassRef.getCanonicalClassName()));
+    Thread currentThread = Thread.currentThread();
+    ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+    try (URLClassLoader classLoader = TCK_UTIL.getClassLoader(pluginFile)) {
+      ClassLoaderLeakCheck leakCheck = new ClassLoaderLeakCheck(classLoader);
 
-      Class<?> launcherClass = classLoader.loadClass(
-          launcherClassRef.getCanonicalClassName());
+      // Call the plugin with its own context class loader, like Director does, so that
+      // the threads it starts can be traced back to it
+      currentThread.setContextClassLoader(classLoader);
 
-      if (!Launcher.class.isAssignableFrom(launcherClass)) {
-        summary.addError("%s should implement the SPI Launcher interface",
-            launcherClass.getCanonicalName());
-        return summary;
-      }
+      // Load each launcher and try to create an instance using the default constructor
 
-      Launcher launcher = (Launcher) launcherClass.newInstance();
-      validate(launcher , config, summary);
+      for (ClassReference launcherClassRef : metadata.getLauncherClasses(SPI_VERSION)) {
+        LOG.info(String.format("Creating an instance of the launcher class: %s",
+            launcherClassRef.getCanonicalClassName()));
 
-      if (summary.hasErrors()) {
-        break;  // no need to continue if we found some errors for one launcher
+        Class<?> launcherClass = classLoader.loadClass(
+            launcherClassRef.getCanonicalClassName());
+
+        if (!Launcher.class.isAssignableFrom(launcherClass)) {
+          summary.addError("%s should implement the SPI Launcher interface",
+              launcherClass.getCanonicalName());
+          break;
+        }
+
+        Launcher launcher = (Launcher) launcherClass.newInstance();
+        validate(launcher, classLoader, config, summary);
+
+        if (summary.hasErrors()) {
+          break;  // no need to continue if we found some errors for one launcher
+        }
       }
-    }
 
-    return summary;
+      return leakCheck;
+
+    } finally {
+      currentThread.setContextClassLoader(contextClassLoader);
+    }
   }
 
   public void validate(Launcher launcher, Config config, Summary summary) throws Exception {
+    validate(launcher, launcher.getClass().getClassLoader(), config, summary);
+  }
+
+  /**
+   * Validates a launcher that was loaded by a plugin class loader. The launcher class
+   * may not come from the plugin class loader itself, e.g. when it adapts a launcher
+   * of an earlier version of the SPI.
+   */
+  void validate(Launcher launcher, ClassLoader pluginClassLoader, Config config,
+      Summary summary) throws Exception {
     // Initialize with a configuration directory the plugin test config file
     String configurationDirectory = config.getString(Configurations.CONFIGURATION_DIRECTORY_PROPERTY);
 
-    LOG.info(String.format("Initializing the plugin with configuration directory: %s",
-        configurationDirectory));
+    int parallelism = config.hasPath(Configurations.PARALLELISM_PROPERTY) ?
+        config.getInt(Configurations.PARALLELISM_PROPERTY) : DEFAULT_PARALLELISM;
+
+    AllocationJournal journal = null;
+    if (config.hasPath(Configurations.ALLOCATION_JOURNAL_PROPERTY)) {
+      File journalFile = new File(config.getString(Configurations.ALLOCATION_JOURNAL_PROPERTY));
+      LOG.info("Recording allocated instances in the allocation journal: " + journalFile);
+      journal = AllocationJournal.open(journalFile);
+    }
 
-    launcher.initialize(new File(configurationDirectory), new HttpProxyParameters());
+    ValidationContext context = new ValidationContext(parallelism,
+        StartupThresholds.fromConfig(config), journal);
+    try {
+      LOG.info(String.format("Initializing the plugin with configuration directory: %s",
+          configurationDirectory));
+
+      runStage(summary, "initialize " + launcher.getClass().getName(), stageSummary -> {
+        StartupProfile.Recorder recorder =
+            StartupProfile.start(INITIALIZE_PHASE, pluginClassLoader);
+        context.getSpiCallMetrics().time(LAUNCHER_METRICS_ID, "initialize", () -> {
+          launcher.initialize(new File(configurationDirectory), new HttpProxyParameters());
+          return null;
+        });
+        recordStartupProfile(stageSummary, context, null, recorder.stop());
+      });
+
+      Locale locale = Locale.getDefault();
+      LocalizationContext rootLocalizationContext = launcher.getLocalizationContext(locale);
+
+      if (parallelism > 1) {
+        validateInParallel(summary, context, launcher, pluginClassLoader, config,
+            rootLocalizationContext, parallelism);
 
-    // Sequentially validate all cloud providers that are part of this plugin
+      } else {
+        // Sequentially validate all cloud providers that are part of this plugin
 
-    Locale locale = Locale.getDefault();
-    LocalizationContext rootLocalizationContext = launcher.getLocalizationContext(locale);
-    for (CloudProviderMetadata providerMetadata : launcher.getCloudProviderMetadata()) {
-      validateCloudProvider(summary, launcher, providerMetadata,
-          config.getConfig(providerMetadata.getId()), rootLocalizationContext);
+        for (CloudProviderMetadata providerMetadata : launcher.getCloudProviderMetadata()) {
+          validateCloudProvider(summary, context, launcher, pluginClassLoader, providerMetadata,
+              config.getConfig(providerMetadata.getId()), rootLocalizationContext);
 
-      if (summary.hasErrors()) {
-        break;  // no need to continue if we found some errors for one cloud provider
+          if (summary.hasErrors()) {
+            break;  // no need to continue if we found some errors for one cloud provider
+          }
+        }
+      }
+
+    } finally {
+      try {
+        // Instances are deleted in the background, so wait for all of them to be gone
+        // before the plugin is shut down, also when the validation failed
+
+        runStage(summary, "pending deletions", stageSummary ->
+            context.getDeletionQueue().drain(stageSummary));
+
+      } finally {
+        LOG.info(String.format("Made %d instance state calls while waiting for instance " +
+            "statuses", context.getInstanceStatusPoller().getStateCallCount()));
+        context.getSpiCallMetrics().log(LOG);
+        summary.addSpiCallStats(context.getSpiCallMetrics().getCallStats());
+        summary.addCounter(INSTANCE_STATE_CALLS_COUNTER,
+            context.getInstanceStatusPoller().getStateCallCount());
+        summary.addCounter(PORT_CONNECT_ATTEMPTS_COUNTER,
+            context.getPortProber().getConnectAttemptCount());
+        context.close();
       }
     }
   }
 
-  private void validateCloudProvider(Summary summary, Launcher launcher,
-      CloudProviderMetadata metadata, Config config, LocalizationContext rootLocalizationContext)
+  /**
+   * Validates all cloud providers and all their resource providers at the same time
+   * using a bounded pool of threads. Each resource provider reports into its own summary
+   * so that a failure in one of them does not cut short the others. All validations
+   * are allowed to finish (and clean up) before the first exception, if any, is rethrown.
+   */
+  private void validateInParallel(final Summary summary, final ValidationContext context,
+      final Launcher launcher, final ClassLoader pluginClassLoader, final Config config,
+      final LocalizationContext rootLocalizationContext, int parallelism)
       throws Exception {
 
-    LOG.info(String.format("Validating cloud provider ID: %s Name: %s",
-        metadata.getId(), metadata.getName(rootLocalizationContext)));
+    LOG.info(String.format("Validating cloud providers and resource providers " +
+        "with up to %d parallel validations", parallelism));
+
+    final ExecutorService executor =
+        Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory("tck-validation"));
+    try {
+      List<Future<List<Future<?>>>> cloudProviderFutures =
+          new ArrayList<Future<List<Future<?>>>>();
+
+      for (final CloudProviderMetadata providerMetadata : launcher.getCloudProviderMetadata()) {
+        final String logPrefix = LogPrefix.nest(providerMetadata.getId());
+        cloudProviderFutures.add(executor.submit(() -> {
+          LogPrefix.set(logPrefix);
+          try {
+            return submitResourceProviderValidations(executor, summary, context, launcher,
+                pluginClassLoader, providerMetadata, config.getConfig(providerMetadata.getId()),
+                rootLocalizationContext);
+          } finally {
+            LogPrefix.clear();
+          }
+        }));
+      }
+
+      // Resource provider validations are submitted by the cloud provider tasks, so
+      // no pool thread ever blocks waiting for another task in the same pool
+
+      Throwable failure = null;
+      List<Future<?>> resourceProviderFutures = new ArrayList<Future<?>>();
+      for (Future<List<Future<?>>> future : cloudProviderFutures) {
+        try {
+          resourceProviderFutures.addAll(future.get());
+        } catch (ExecutionException e) {
+          failure = recordFailure(failure, e);
+        }
+      }
+      for (Future<?> future : resourceProviderFutures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          failure = recordFailure(failure, e);
+        }
+      }
+
+      if (failure instanceof Exception) {
+        throw (Exception) failure;
+      } else if (failure instanceof Error) {
+        throw (Error) failure;
+      }
+
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private List<Future<?>> submitResourceProviderValidations(ExecutorService executor,
+      final Summary summary, final ValidationContext context, Launcher launcher,
+      ClassLoader pluginClassLoader, CloudProviderMetadata metadata,
+      final Config config, LocalizationContext rootLocalizationContext) throws Exception {
+
+    final LocalizationContext cloudLocalizationContext =
+        metadata.getLocalizationContext(rootLocalizationContext);
+    final CloudProvider provider = createCloudProvider(summary, context, launcher,
+        pluginClassLoader, metadata, config, rootLocalizationContext, cloudLocalizationContext);
+
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (final ResourceProviderMetadata current : metadata.getResourceProviderMetadata()) {
+      final String logPrefix = LogPrefix.nest(current.getId());
+      futures.add(executor.submit(() -> {
+        Summary resourceProviderSummary = new Summary(summary.getMaxFindings());
+        LogPrefix.set(logPrefix);
+        try {
+          validateResourceProvider(resourceProviderSummary, context, provider, current,
+              config.getConfig(current.getId()), cloudLocalizationContext);
+          return null;
+        } finally {
+          summary.add(resourceProviderSummary);
+          LogPrefix.clear();
+        }
+      }));
+    }
+    return futures;
+  }
+
+  private Throwable recordFailure(Throwable failure, ExecutionException e) {
+    LOG.log(Level.SEVERE, "Validation failed with an exception", e.getCause());
+    return (failure == null) ? e.getCause() : failure;
+  }
+
+  private void validateCloudProvider(Summary summary, ValidationContext context, Launcher launcher,
+      ClassLoader pluginClassLoader, CloudProviderMetadata metadata, Config config,
+      LocalizationContext rootLocalizationContext)
+      throws Exception {
 
     LocalizationContext cloudLocalizationContext =
         metadata.getLocalizationContext(rootLocalizationContext);
 
-    ConfigFragmentWrapper configWrapper = new ConfigFragmentWrapper(
+    CloudProvider provider = createCloudProvider(summary, context, launcher, pluginClassLoader,
+        metadata, config, rootLocalizationContext, cloudLocalizationContext);
+
+    for (ResourceProviderMetadata current : metadata.getResourceProviderMetadata()) {
+      validateResourceProvider(summary, context, provider, current, config.getConfig(current.getId()),
+          cloudLocalizationContext);
+      if (summary.hasErrors()) {
+        break;  // no need to continue if we failed to validate one resource provider
+      }
+    }
+  }
+
+  private CloudProvider createCloudProvider(Summary summary, ValidationContext context,
+      Launcher launcher, ClassLoader pluginClassLoader,
+      CloudProviderMetadata metadata, Config config, LocalizationContext rootLocalizationContext,
+      LocalizationContext cloudLocalizationContext) throws Exception {
+
+    LOG.info(String.format("Validating cloud provider ID: %s Name: %s",
+        metadata.getId(), metadata.getName(rootLocalizationContext)));
+
+    ConfigFragmentWrapper configWrapper = ConfigFragmentWrapper.snapshot(
         config.getConfig(Configurations.CONFIGS_SECTION),
         metadata.getCredentialsProviderMetadata().getCredentialsConfigurationProperties(),
         metadata.getProviderConfigurationProperties()
@@ -131,47 +365,77 @@ public class TCKv2 implements TCK {
     configWrapper.dump("Configuration properties for the cloud provider:", LOG,
         cloudLocalizationContext);
 
-    CloudProvider provider =
-        launcher.createCloudProvider(metadata.getId(), configWrapper,
-            cloudLocalizationContext.getLocale());
+    StartupProfile.Recorder recorder =
+        StartupProfile.start(CREATE_CLOUD_PROVIDER_PHASE, pluginClassLoader);
+    CloudProvider provider = context.getSpiCallMetrics().time(metadata.getId(),
+        "createCloudProvider", () -> launcher.createCloudProvider(metadata.getId(), configWrapper,
+            cloudLocalizationContext.getLocale()));
+    recordStartupProfile(summary, context, metadata.getId(), recorder.stop());
+    return provider;
+  }
 
-    for (ResourceProviderMetadata current : metadata.getResourceProviderMetadata()) {
-      validateResourceProvider(summary, provider, current, config.getConfig(current.getId()),
-          cloudLocalizationContext);
-      if (summary.hasErrors()) {
-        break;  // no need to continue if we failed to validate one resource provider
-      }
+  /**
+   * Logs the cost of a plugin startup phase, adds it to the report counters and
+   * checks it against the configured thresholds. The counters of a phase that runs
+   * once per cloud provider are keyed by the cloud provider ID.
+   *
+   * @param providerId the cloud provider ID, or null for a phase of the launcher
+   */
+  private void recordStartupProfile(Summary summary, ValidationContext context,
+      String providerId, StartupProfile profile) {
+    LOG.info("Startup profile of " + profile);
+
+    String prefix = (providerId == null) ? profile.getPhase() :
+        Summary.providerCounter(providerId, profile.getPhase());
+    summary.addCounter(prefix + "WallMillis", profile.getWallTimeMillis());
+    if (profile.getCpuTimeMillis() != StartupProfile.UNKNOWN) {
+      summary.addCounter(prefix + "CpuMillis", profile.getCpuTimeMillis());
+    }
+    summary.addCounter(prefix + "ClassesLoaded", profile.getClassesLoaded());
+    if (profile.getAllocatedBytes() != StartupProfile.UNKNOWN) {
+      summary.addCounter(prefix + "AllocatedBytes", profile.getAllocatedBytes());
     }
+    summary.addCounter(prefix + "ThreadsStarted", profile.getThreadsStarted());
+
+    context.getStartupThresholds().check(summary, profile);
   }
 
-  private void validateResourceProvider(Summary summary, CloudProvider provider,
+  private void validateResourceProvider(Summary summary, ValidationContext context,
+      CloudProvider provider,
       ResourceProviderMetadata metadata, Config config,
       LocalizationContext cloudLocalizationContext) throws Exception {
 
     LOG.info(String.format("Validating resource provider ID: %s Name: %s",
         metadata.getId(), metadata.getDescription(cloudLocalizationContext)));
 
+    String cloudProviderId = provider.getProviderMetadata().getId();
+    // resource provider IDs are only unique within a cloud provider, so SPI call
+    // statistics and counters of the resource provider are keyed by both
+    String stagePrefix = cloudProviderId + "/" + metadata.getId();
+
     LocalizationContext resourceProviderLocalizationContext =
         metadata.getLocalizationContext(cloudLocalizationContext);
 
-    ConfigFragmentWrapper configWrapper = new ConfigFragmentWrapper(
+    ConfigFragmentWrapper configWrapper = ConfigFragmentWrapper.snapshot(
         config.getConfig(Configurations.CONFIGS_SECTION),
         metadata.getProviderConfigurationProperties()
     );
     configWrapper.dump("Configuration properties for the resource provider:", LOG,
         resourceProviderLocalizationContext);
 
-    ResourceProvider resourceProvider =
-        provider.createResourceProvider(metadata.getId(), configWrapper);
+    ResourceProvider resourceProvider = context.getSpiCallMetrics().time(stagePrefix,
+        "createResourceProvider", () -> provider.createResourceProvider(metadata.getId(), configWrapper));
 
     if (resourceProvider instanceof ComputeProvider) {
       LOG.info("Attempting to use this provider as a COMPUTE provider");
-      validateInstanceProvider(summary, (ComputeProvider) resourceProvider, metadata, config,
+      validateInstanceProvider(summary, context, cloudProviderId, stagePrefix,
+          (ComputeProvider) resourceProvider, metadata, config,
           resourceProviderLocalizationContext);
 
     } else if (resourceProvider instanceof DatabaseServerProvider) {
       LOG.info("Attempting to use this provider as a DATABASE SERVER provider");
-      validateInstanceProvider(summary, (DatabaseServerProvider) resourceProvider, metadata, config,
+      validateInstanceProvider(summary, context, cloudProviderId, stagePrefix,
+          (DatabaseServerProvider) resourceProvider, metadata, config,
           resourceProviderLocalizationContext);
 
     } else {
@@ -180,7 +444,8 @@ public class TCKv2 implements TCK {
     }
   }
 
-  private void validateInstanceProvider(Summary summary, InstanceProvider provider,
+  private void validateInstanceProvider(Summary summary, ValidationContext context,
+      String cloudProviderId, String stagePrefix, InstanceProvider provider,
       ResourceProviderMetadata metadata, Config config,
       LocalizationContext resourceProviderLocalizationContext)
       throws Exception {
@@ -188,7 +453,7 @@ public class TCKv2 implements TCK {
     LocalizationContext templateLocalizationContext =
         new ChildLocalizationContext(resourceProviderLocalizationContext, "template");
 
-    ConfigFragmentWrapper configWrapper = new ConfigFragmentWrapper(
+    ConfigFragmentWrapper configWrapper = ConfigFragmentWrapper.snapshot(
         config.getConfig(Configurations.RESOURCE_CONFIGS_SECTION),
         metadata.getResourceTemplateConfigurationProperties()
     );
@@ -196,86 +461,116 @@ public class TCKv2 implements TCK {
         templateLocalizationContext);
 
     Map<String, String> tags = convertToMap(config.getConfig(Configurations.RESOURCE_TAGS_SECTION));
-    InstanceTemplate template = (InstanceTemplate) provider.createResourceTemplate("test", configWrapper, tags);
-
-    String id;
-    do {
-      id = UUID.randomUUID().toString();
-    } while (Character.isDigit(id.charAt(0)));
-    List<String> instanceIds = Collections.singletonList(id);
-
-    LOG.info("Allocating one instance with ID: " + id);
-    Collection<Instance> instances = provider.allocate(template, instanceIds, 1);
-    if (instances.size() != 1) {
-      summary.addError("Expected allocation to return exactly one instance. Found: %s",
-          instances);
-      return;
+    InstanceTemplate template = (InstanceTemplate) context.getSpiCallMetrics().time(
+        stagePrefix, "createResourceTemplate",
+        () -> provider.createResourceTemplate("test", configWrapper, tags));
+    context.registerTemplate(template, new AllocationJournal.Template(cloudProviderId,
+        metadata.getId(), withoutSensitiveConfigs(
+            convertToMap(config.getConfig(Configurations.RESOURCE_CONFIGS_SECTION)), metadata),
+        tags));
+
+    runStage(summary, stagePrefix + " lifecycle", stageSummary ->
+        validateInstanceLifecycle(stageSummary, context, stagePrefix, provider, template,
+            config));
+
+    if (!summary.hasErrors() && provider instanceof DatabaseServerProvider &&
+        config.hasPath(Configurations.DATABASE_READINESS_SECTION)) {
+      runStage(summary, stagePrefix + " database readiness", stageSummary ->
+          new DatabaseReadinessStage(TCK_UTIL, config).run(stageSummary, context,
+              stagePrefix, provider, template));
     }
 
-    try {
-      waitForInstanceStatus(summary, provider, template, id, InstanceStatus.RUNNING);
-      if (summary.hasErrors()) {
-        return;
-      }
+    if (!summary.hasErrors() && config.hasPath(Configurations.BULK_ALLOCATION_SECTION)) {
+      runStage(summary, stagePrefix + " bulk allocation", stageSummary ->
+          new BulkAllocationStage(TCK_UTIL, config).run(stageSummary, context, stagePrefix,
+              provider, template));
+    }
 
-      instances = provider.find(template, instanceIds);
-      if (instances.size() != 1) {
-        summary.addError("Expected to find exactly one instance after allocation. Found: %s",
-            instances);
-        return;
-      }
-      Instance instance = instances.iterator().next();
+    if (!summary.hasErrors() && config.hasPath(Configurations.PARTIAL_ALLOCATION_SECTION)) {
+      runStage(summary, stagePrefix + " partial allocation", stageSummary ->
+          new PartialAllocationStage(TCK_UTIL, config).run(stageSummary, context,
+              stagePrefix, provider, template));
+    }
 
-      int expectedOpenPort = config.getInt(Configurations.EXPECTED_OPEN_PORT_PROPERTY);
-      if (expectedOpenPort == -1) {
-        LOG.info(String.format("Skipping check of connectivity to %s because expected open port is %d",
-                               instance.getPrivateIpAddress(), expectedOpenPort));
-      } else {
-        LOG.info(String.format("Checking connectivity on port %d to %s",
-            expectedOpenPort, instance.getPrivateIpAddress()));
-        TCK_UTIL.waitForPort(summary, instance.getPrivateIpAddress(), expectedOpenPort);
-      }
+    if (!summary.hasErrors() && config.hasPath(Configurations.CONCURRENT_LIFECYCLES_SECTION)) {
+      runStage(summary, stagePrefix + " concurrent lifecycles", stageSummary ->
+          new ConcurrentLifecycleStage(TCK_UTIL, config).run(stageSummary, context,
+              stagePrefix, provider, template));
+    }
 
-      if (provider instanceof ComputeProvider) {
-        checkHostKeyFingerprints((ComputeProvider) provider, (ComputeInstanceTemplate) template, id, summary);
-      }
+    if (!summary.hasErrors() && config.hasPath(Configurations.SOAK_SECTION)) {
+      runStage(summary, stagePrefix + " soak", stageSummary ->
+          new SoakStage(config).run(stageSummary, context, stagePrefix,
+              iterationSummary -> validateInstanceLifecycle(iterationSummary, context,
+                  stagePrefix, provider, template,
+                  config.withoutPath(Configurations.CONCURRENT_READS_SECTION))));
+    }
+  }
 
-    } finally {
-      try {
-        LOG.info("Deleting allocated resources");
-        provider.delete(template, instanceIds);
+  /**
+   * Runs the lifecycle of one instance and waits for it, up to the delete call for the
+   * instance. The concurrent reads, if configured, run while the instance is up.
+   */
+  private void validateInstanceLifecycle(Summary summary, ValidationContext context,
+      String stagePrefix, InstanceProvider provider, InstanceTemplate template, Config config)
+      throws Exception {
 
-      } catch (Exception e) {
-        LOG.severe("CRITICAL: Failed to delete allocated resources. Manual clean-up is necessary");
-        throw e;
-      }
+    LifecyclePipeline pipeline = new LifecyclePipeline(context, context.getCallExecutor(),
+        stagePrefix, provider, template, config);
+
+    LifecyclePipeline.RunningCheck concurrentReads = null;
+    if (config.hasPath(Configurations.CONCURRENT_READS_SECTION)) {
+      concurrentReads = (runningSummary, instanceId) ->
+          runStage(runningSummary, stagePrefix + " concurrent reads", stageSummary ->
+              new ConcurrentReadStage(config).run(stageSummary, stagePrefix, provider, template,
+                  instanceId));
+    }
 
-      waitForInstanceStatus(summary, provider, template, id, InstanceStatus.DELETED,
-                            InstanceStatus.UNKNOWN);
+    try {
+      LifecyclePipeline.await(pipeline.start(summary, TCK_UTIL.newInstanceId(), concurrentReads));
+    } finally {
+      pipeline.deleteUnfinished();
     }
   }
 
-  private void checkHostKeyFingerprints(ComputeProvider provider, ComputeInstanceTemplate template, String instanceId,
-                                        Summary summary) throws InterruptedException {
-    LOG.info("Attempting to retrieve the host key fingerprints for instance");
-    Map<String, Set<String>> hostKeyFingerprints =
-        provider.getHostKeyFingerprints(template, Collections.singletonList(instanceId));
+  /**
+   * Runs a validation stage and records its duration, errors and warnings, both as
+   * a stage result and in the summary. A stage that throws an exception is recorded
+   * as failed before the exception is propagated.
+   */
+  static void runStage(Summary summary, String name, Stage stage) throws Exception {
+    Summary stageSummary = new Summary(summary.getMaxFindings());
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    List<String> exceptionErrors = Collections.emptyList();
+    try {
+      stage.run(stageSummary);
 
-    if (hostKeyFingerprints.isEmpty()) {
-      LOG.warning("No host key fingerprint returned for the instance");
-      return;
-    }
+    } catch (Throwable t) {
+      exceptionErrors = Collections.singletonList("Unexpected exception: " + t);
+      throw t;
 
-    if (hostKeyFingerprints.size() != 1) {
-      summary.addError("Expected to retrieve an empty host key fingerprint map or exactly one set of " +
-          "host key fingerprints. Found: %s", hostKeyFingerprints);
-      return;
+    } finally {
+      List<String> errors = new ArrayList<String>(stageSummary.getErrors());
+      errors.addAll(exceptionErrors);
+      summary.add(stageSummary);
+      summary.addStage(new StageResult(name, stopwatch.elapsed(TimeUnit.MILLISECONDS), errors,
+          stageSummary.getWarnings()));
     }
+  }
 
-    Set<String> fingerprintsForInstance = hostKeyFingerprints.get(instanceId);
-    if (fingerprintsForInstance.isEmpty()) {
-      summary.addError("Expected the set of host key fingerprints for the instance to not be empty");
+  /**
+   * Leaves the sensitive template properties, like passwords, out of a template
+   * configuration, so that they are not written to the allocation journal.
+   */
+  private static Map<String, String> withoutSensitiveConfigs(Map<String, String> configs,
+      ResourceProviderMetadata metadata) {
+    Map<String, String> result = new HashMap<String, String>(configs);
+    for (ConfigurationProperty property : metadata.getResourceTemplateConfigurationProperties()) {
+      if (property.isSensitive()) {
+        result.remove(property.getConfigKey());
+      }
     }
+    return result;
   }
 
   private Map<String, String> convertToMap(Config section) {
@@ -285,40 +580,4 @@ public class TCKv2 implements TCK {
     }
     return Collections.unmodifiableMap(result);
   }
-
-  private void waitForInstanceStatus(Summary summary, InstanceProvider provider,
-      InstanceTemplate template, String id, InstanceStatus... expectedStatuses) throws InterruptedException {
-
-    List<InstanceStatus> expectedStatusesList = Arrays.asList(expectedStatuses);
-    LOG.info(String.format("Waiting for instance status to be in %s " +
-            "(%d seconds between checks, %d minutes timeout)", expectedStatusesList,
-        DEFAULT_WAIT_BETWEEN_ATTEMPTS_SECONDS, DEFAULT_TIMEOUT_MINUTES));
-
-    Stopwatch stopwatch = Stopwatch.createStarted();
-    List<String> instanceIds = Collections.singletonList(id);
-
-    while (stopwatch.elapsed(TimeUnit.MINUTES) < DEFAULT_TIMEOUT_MINUTES) {
-      Map<String, InstanceState> states = provider.getInstanceState(template, instanceIds);
-      if (states.containsKey(id)) {
-        InstanceStatus status = states.get(id).getInstanceStatus();
-        if (expectedStatusesList.contains(status)) {
-          LOG.info("Found instance as expected " + status);
-          break;
-
-        } else {
-          LOG.info("Instance status is " + status);
-          TimeUnit.SECONDS.sleep(DEFAULT_WAIT_BETWEEN_ATTEMPTS_SECONDS);
-        }
-
-      } else {
-        summary.addError("The instance ID was not part of the list of states");
-        break;
-      }
-    }
-
-    if (stopwatch.elapsed(TimeUnit.MINUTES) >= DEFAULT_TIMEOUT_MINUTES) {
-      summary.addError("Instance did not transition to status in %s in %s minutes",
-          expectedStatusesList, DEFAULT_TIMEOUT_MINUTES);
-    }
-  }
 }
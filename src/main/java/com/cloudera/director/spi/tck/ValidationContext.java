@@ -0,0 +1,184 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import com.cloudera.director.spi.tck.util.AllocationJournal;
+import com.cloudera.director.spi.tck.util.DaemonThreadFactory;
+import com.cloudera.director.spi.tck.util.InstanceStatusPoller;
+import com.cloudera.director.spi.tck.util.PortProber;
+import com.cloudera.director.spi.tck.util.SpiCallMetrics;
+import com.cloudera.director.spi.tck.util.StartupThresholds;
+import com.cloudera.director.spi.v2.model.InstanceTemplate;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Services shared by all the validations of one launcher, including those that run
+ * in parallel.
+ */
+class ValidationContext {
+
+  private static final Logger LOG = Logger.getLogger(ValidationContext.class.getName());
+
+  private static final long TERMINATION_TIMEOUT_SECONDS = 5;
+
+  private final SpiCallMetrics spiCallMetrics = new SpiCallMetrics();
+  private final ScheduledExecutorService scheduler;
+  private final ExecutorService callExecutor;
+  private final InstanceStatusPoller instanceStatusPoller;
+  private final PortProber portProber;
+  private final StartupThresholds startupThresholds;
+  private final AllocationJournal journal;
+  private final DeletionQueue deletionQueue;
+
+  // how the templates of journaled instances are described in the journal
+  private final Map<InstanceTemplate, AllocationJournal.Template> journalTemplates =
+      Collections.synchronizedMap(new IdentityHashMap<InstanceTemplate, AllocationJournal.Template>());
+
+  /**
+   * Creates a new validation context without an allocation journal.
+   *
+   * @param schedulerThreads  the number of threads for background polling, and for
+   *                          the SPI calls of instance lifecycles
+   * @param startupThresholds the limits on the cost of plugin startup phases
+   * @throws IOException if the port prober cannot be started
+   */
+  ValidationContext(int schedulerThreads, StartupThresholds startupThresholds)
+      throws IOException {
+    this(schedulerThreads, startupThresholds, null);
+  }
+
+  /**
+   * Creates a new validation context.
+   *
+   * @param schedulerThreads  the number of threads for background polling, and for
+   *                          the SPI calls of instance lifecycles
+   * @param startupThresholds the limits on the cost of plugin startup phases
+   * @param journal           the journal of allocated instances, or null. It is closed
+   *                          with this context
+   * @throws IOException if the port prober cannot be started
+   */
+  ValidationContext(int schedulerThreads, StartupThresholds startupThresholds,
+      AllocationJournal journal) throws IOException {
+    this.startupThresholds = startupThresholds;
+    this.journal = journal;
+    this.scheduler = Executors.newScheduledThreadPool(Math.max(1, schedulerThreads),
+        new DaemonThreadFactory("tck-scheduler"));
+    this.callExecutor = Executors.newFixedThreadPool(Math.max(1, schedulerThreads),
+        new DaemonThreadFactory("tck-spi-calls"));
+    this.instanceStatusPoller = new InstanceStatusPoller(scheduler, spiCallMetrics);
+    this.portProber = new PortProber();
+    this.deletionQueue = new DeletionQueue(scheduler, callExecutor, instanceStatusPoller,
+        spiCallMetrics, this::recordDeleted);
+  }
+
+  SpiCallMetrics getSpiCallMetrics() {
+    return spiCallMetrics;
+  }
+
+  /**
+   * Gets the executor for the SPI calls of instance lifecycles, which never blocks
+   * waiting for an instance.
+   */
+  ExecutorService getCallExecutor() {
+    return callExecutor;
+  }
+
+  InstanceStatusPoller getInstanceStatusPoller() {
+    return instanceStatusPoller;
+  }
+
+  PortProber getPortProber() {
+    return portProber;
+  }
+
+  StartupThresholds getStartupThresholds() {
+    return startupThresholds;
+  }
+
+  DeletionQueue getDeletionQueue() {
+    return deletionQueue;
+  }
+
+  /**
+   * Registers how the instances of a template are described in the allocation
+   * journal. Instances of templates that are not registered are not journaled.
+   *
+   * @param template        the template
+   * @param journalTemplate the description of the template in the journal
+   */
+  void registerTemplate(InstanceTemplate template, AllocationJournal.Template journalTemplate) {
+    journalTemplates.put(template, journalTemplate);
+  }
+
+  /**
+   * Records instance IDs in the allocation journal before they are allocated.
+   *
+   * @param template    the template the instances are allocated with
+   * @param instanceIds the instance IDs
+   * @throws IOException if the journal cannot be written, in which case the instances
+   *                     should not be allocated
+   */
+  void recordAllocating(InstanceTemplate template, Collection<String> instanceIds)
+      throws IOException {
+    AllocationJournal.Template journalTemplate = journalTemplates.get(template);
+    if (journal != null && journalTemplate != null) {
+      journal.recordAllocating(journalTemplate, instanceIds);
+    }
+  }
+
+  /**
+   * Records instance IDs in the allocation journal once they are known to be deleted.
+   * A failure is only logged: the instances are then deleted again by the cleanup.
+   *
+   * @param template    the template the instances were allocated with
+   * @param instanceIds the instance IDs
+   */
+  void recordDeleted(InstanceTemplate template, Collection<String> instanceIds) {
+    AllocationJournal.Template journalTemplate = journalTemplates.get(template);
+    if (journal != null && journalTemplate != null) {
+      try {
+        journal.recordDeleted(journalTemplate, instanceIds);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to record deleted instances in the allocation journal", e);
+      }
+    }
+  }
+
+  /**
+   * Stops all background work and waits for it to finish, so that no TCK thread is
+   * still calling into the plugin when it is unloaded.
+   */
+  void close() throws IOException {
+    scheduler.shutdownNow();
+    callExecutor.shutdownNow();
+    try {
+      awaitTermination(scheduler);
+      awaitTermination(callExecutor);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      portProber.close();
+      if (journal != null) {
+        journal.close();
+      }
+    }
+  }
+
+  private static void awaitTermination(ExecutorService executor) throws InterruptedException {
+    if (!executor.awaitTermination(TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      LOG.warning(String.format("Background TCK threads still running after %d seconds",
+          TERMINATION_TIMEOUT_SECONDS));
+    }
+  }
+}
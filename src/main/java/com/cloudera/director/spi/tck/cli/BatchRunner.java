@@ -0,0 +1,331 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.cli;
+
+import com.cloudera.director.spi.tck.Summary;
+import com.cloudera.director.spi.tck.util.DaemonThreadFactory;
+import com.cloudera.director.spi.tck.util.LogPrefix;
+import com.cloudera.director.spi.tck.util.Stopwatch;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigRenderOptions;
+import com.typesafe.config.ConfigValueFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Validates several plugins in one JVM, at the same time, on a bounded pool of
+ * threads. The plugins are listed in a manifest file:
+ * <pre>
+ *   parallelism: 4
+ *   plugins: [
+ *     { name: aws, plugin: aws-provider.jar, config: aws.conf }
+ *     { name: azure, plugin: azure-provider.jar, config: azure.conf }
+ *   ]
+ * </pre>
+ * Relative paths are resolved against the directory of the manifest. Each plugin
+ * is loaded with its own class loader and its log lines are prefixed with its name.
+ * The optional top-level {@code maxFindings} of the manifest bounds the findings of
+ * the combined summary, and that of each plugin configuration the findings of the
+ * plugin.
+ */
+class BatchRunner {
+
+  private static final Logger LOG = Logger.getLogger(BatchRunner.class.getName());
+
+  static final String PARALLELISM_PROPERTY = "parallelism";
+  static final String PLUGINS_PROPERTY = "plugins";
+  static final String NAME_PROPERTY = "name";
+  static final String PLUGIN_PROPERTY = "plugin";
+  static final String CONFIG_PROPERTY = "config";
+
+  static final String BATCH_REPORT_FILE_NAME = "batch.json";
+
+  private final File manifestFile;
+  private final File workingDirectory;
+
+  /**
+   * Creates a batch runner.
+   *
+   * @param manifestFile     the batch manifest
+   * @param workingDirectory the directory that relative paths in the configuration
+   *                         files of the plugins are resolved against
+   */
+  BatchRunner(File manifestFile, File workingDirectory) {
+    this.manifestFile = manifestFile;
+    this.workingDirectory = workingDirectory;
+  }
+
+  /**
+   * Validates all the plugins of the manifest.
+   *
+   * @param reportDirectory the directory to write one report per plugin to, or null
+   * @param summary         a summary that receives the combined summary of all plugins
+   * @return {@link ExitCodes#OK} if all plugins passed, otherwise the exit code of
+   * the first failed plugin in manifest order
+   * @throws Exception if the reports cannot be written
+   */
+  int run(File reportDirectory, Summary summary) throws Exception {
+    if (!manifestFile.isFile()) {
+      LOG.severe("Batch manifest not a file or not found: " + manifestFile.getAbsolutePath());
+      return ExitCodes.INVALID_BATCH_MANIFEST;
+    }
+
+    Config manifest;
+    List<PluginRun> runs;
+    int parallelism;
+    try {
+      manifest = Runner.parseConfigFile(manifestFile).resolve();
+      runs = parsePlugins(manifest, manifestFile.getAbsoluteFile().getParentFile());
+      parallelism = manifest.hasPath(PARALLELISM_PROPERTY) ?
+          manifest.getInt(PARALLELISM_PROPERTY) :
+          Math.min(runs.size(), Runtime.getRuntime().availableProcessors());
+    } catch (ConfigException e) {
+      LOG.severe("Invalid batch manifest " + manifestFile.getAbsolutePath() + ": " +
+          e.getMessage());
+      return ExitCodes.INVALID_BATCH_MANIFEST;
+    }
+    if (runs.isEmpty()) {
+      LOG.severe("No plugins listed in batch manifest: " + manifestFile.getAbsolutePath());
+      return ExitCodes.INVALID_BATCH_MANIFEST;
+    }
+
+    if (reportDirectory != null && !reportDirectory.isDirectory() && !reportDirectory.mkdirs()) {
+      throw new IOException("Unable to create report directory " + reportDirectory);
+    }
+
+    validateAll(runs, Math.max(1, parallelism), reportDirectory);
+
+    Summary combined = combine(manifest, runs);
+    logResults(runs, combined);
+    summary.add(combined);
+    if (reportDirectory != null) {
+      writeBatchReport(new File(reportDirectory, BATCH_REPORT_FILE_NAME), runs);
+    }
+
+    for (PluginRun run : runs) {
+      if (run.exitCode != ExitCodes.OK) {
+        return run.exitCode;
+      }
+    }
+    return ExitCodes.OK;
+  }
+
+  /**
+   * Reads the list of plugins from a manifest. Plugins without a name are named
+   * after their jar file.
+   *
+   * @throws ConfigException if the manifest is not valid
+   */
+  static List<PluginRun> parsePlugins(Config manifest, File baseDirectory) {
+    List<PluginRun> runs = new ArrayList<PluginRun>();
+    Set<String> names = new HashSet<String>();
+
+    for (Config entry : manifest.getConfigList(PLUGINS_PROPERTY)) {
+      File pluginFile = resolve(baseDirectory, entry.getString(PLUGIN_PROPERTY));
+      File configFile = resolve(baseDirectory, entry.getString(CONFIG_PROPERTY));
+      String name = entry.hasPath(NAME_PROPERTY) ?
+          entry.getString(NAME_PROPERTY) : stripExtension(pluginFile.getName());
+
+      if (!names.add(name)) {
+        throw new ConfigException.BadValue(entry.origin(), NAME_PROPERTY,
+            "Duplicate plugin name '" + name + "'");
+      }
+      runs.add(new PluginRun(name, pluginFile, configFile));
+    }
+    return runs;
+  }
+
+  private static File resolve(File baseDirectory, String path) {
+    File file = new File(path);
+    return file.isAbsolute() ? file : new File(baseDirectory, path);
+  }
+
+  private static String stripExtension(String fileName) {
+    int dot = fileName.lastIndexOf('.');
+    return (dot > 0) ? fileName.substring(0, dot) : fileName;
+  }
+
+  /**
+   * Validates all plugins on a bounded pool of threads. A plugin that fails with an
+   * exception is recorded as failed and does not affect the others.
+   */
+  private void validateAll(List<PluginRun> runs, int parallelism, final File reportDirectory)
+      throws InterruptedException {
+    LOG.info(String.format("Validating %d plugins with up to %d parallel validations",
+        runs.size(), parallelism));
+
+    ExecutorService executor =
+        Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory("tck-batch"));
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (final PluginRun run : runs) {
+        futures.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            LogPrefix.set(run.name);
+            try {
+              run.validate(reportDirectory, workingDirectory);
+            } finally {
+              LogPrefix.clear();
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          // PluginRun.validate records its own failures
+          LOG.log(Level.SEVERE, "Unexpected batch failure", e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Combines the summaries of all plugins, with every error and warning, their
+   * categories and the stage names prefixed by the name of the plugin they belong to.
+   */
+  static Summary combine(Config manifest, List<PluginRun> runs) {
+    Summary combined = Summary.fromConfig(manifest);
+    for (PluginRun run : runs) {
+      combined.add(run.name + ": ", run.summary);
+    }
+    return combined;
+  }
+
+  private static void logResults(List<PluginRun> runs, Summary combined) {
+    LOG.info("Batch results:");
+    for (PluginRun run : runs) {
+      String line = String.format("* %s: %s (exit code %d) in %d ms", run.name,
+          run.exitCode == ExitCodes.OK ? "passed" : "FAILED", run.exitCode, run.durationMillis);
+      if (run.exitCode == ExitCodes.OK) {
+        LOG.info(line);
+      } else {
+        LOG.severe(line);
+      }
+    }
+
+    if (combined.hasErrors()) {
+      LOG.severe("Plugin validation errors:");
+      for (String error : combined.getErrors()) {
+        LOG.severe("* " + error);
+      }
+    }
+    if (combined.hasWarnings()) {
+      LOG.warning("Plugin validation warnings:");
+      for (String warning : combined.getWarnings()) {
+        LOG.warning("* " + warning);
+      }
+    }
+  }
+
+  static void writeBatchReport(File file, List<PluginRun> runs) throws IOException {
+    List<Object> plugins = new ArrayList<Object>();
+    boolean passed = true;
+    for (PluginRun run : runs) {
+      Map<String, Object> plugin = new LinkedHashMap<String, Object>();
+      plugin.put("name", run.name);
+      plugin.put("plugin", run.pluginFile.getPath());
+      plugin.put("config", run.configFile.getPath());
+      plugin.put("exitCode", run.exitCode);
+      plugin.put("durationMillis", run.durationMillis);
+      plugin.put("errors", run.summary.getErrors().size());
+      plugin.put("warnings", run.summary.getWarnings().size());
+      plugins.add(plugin);
+      passed &= run.exitCode == ExitCodes.OK;
+    }
+
+    Map<String, Object> root = new LinkedHashMap<String, Object>();
+    root.put("status", passed ? "passed" : "failed");
+    root.put("plugins", plugins);
+
+    String json = ConfigValueFactory.fromMap(root)
+        .render(ConfigRenderOptions.concise().setJson(true).setFormatted(true));
+
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+        StandardCharsets.UTF_8)) {
+      writer.write(json);
+      writer.write('\n');
+    }
+  }
+
+  /**
+   * The validation of one plugin of the batch.
+   */
+  static class PluginRun {
+
+    final String name;
+    final File pluginFile;
+    final File configFile;
+    volatile Summary summary = new Summary();
+
+    volatile int exitCode = ExitCodes.PLUGIN_VALIDATION_FAILED;
+    volatile long durationMillis;
+
+    PluginRun(String name, File pluginFile, File configFile) {
+      this.name = name;
+      this.pluginFile = pluginFile;
+      this.configFile = configFile;
+    }
+
+    void validate(File reportDirectory, File workingDirectory) {
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      File reportFile = (reportDirectory == null) ? null : new File(reportDirectory, name + ".json");
+      summary = newSummary(workingDirectory);
+      try {
+        exitCode = Runner.validatePlugin(pluginFile, configFile, reportFile, workingDirectory,
+            summary);
+        if (exitCode != ExitCodes.OK && !summary.hasErrors()) {
+          summary.addError("Validation did not run (exit code %d). See the log for details.",
+              exitCode);
+        }
+
+      } catch (Exception e) {
+        LOG.log(Level.SEVERE, "Validation failed with an exception", e);
+        summary.addError("Validation failed with an exception: %s", e);
+        exitCode = ExitCodes.PLUGIN_VALIDATION_FAILED;
+
+      } finally {
+        durationMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+      }
+    }
+
+    /**
+     * Creates the summary of the run with the maximum number of findings of the plugin
+     * configuration. A configuration that cannot be loaded gets the default maximum,
+     * and the validation reports why it cannot be loaded.
+     */
+    private Summary newSummary(File workingDirectory) {
+      if (configFile.isFile()) {
+        try {
+          return Summary.fromConfig(Runner.loadConfigFile(configFile, workingDirectory));
+        } catch (ConfigException e) {
+          LOG.log(Level.FINE, "Unable to load " + configFile, e);
+        }
+      }
+      return new Summary();
+    }
+  }
+}
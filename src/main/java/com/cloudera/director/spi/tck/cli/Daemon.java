@@ -0,0 +1,338 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.cli;
+
+import com.cloudera.director.spi.tck.Summary;
+import com.cloudera.director.spi.tck.util.OwnerOnlyFiles;
+import com.cloudera.director.spi.tck.util.SingleLineFormatter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Runs validation jobs sent by {@link DaemonClient} in a long-running JVM, so that
+ * quick validations do not pay for JVM startup, class loading and JIT warmup every
+ * time. Every job loads the plugin with a fresh class loader.
+ * <p/>
+ * The daemon only listens on the loopback interface and runs one job at a time;
+ * other clients wait for their turn. While a job runs, everything that is logged in
+ * the JVM is streamed to its client. Other users of the host are kept out with a
+ * random token, which the daemon writes to a file that only its owner can read, and
+ * which clients must send first.
+ * <p/>
+ * The protocol is line based, in UTF-8, and every text is escaped to fit on one
+ * line. The client sends the token, its working directory, the number of command
+ * line arguments of the job and then the arguments, one per line. The daemon
+ * answers with records of the form {@code <type> <text>}: {@link #LOG_RECORD}
+ * records while the job runs, then one {@link #ERROR_RECORD} or
+ * {@link #WARNING_RECORD} record for each entry of the final summary, and finally
+ * an {@link #EXIT_RECORD} record with the exit code.
+ */
+class Daemon {
+
+  private static final Logger LOG = Logger.getLogger(Daemon.class.getName());
+
+  static final String LOG_RECORD = "LOG";
+  static final String ERROR_RECORD = "ERROR";
+  static final String WARNING_RECORD = "WARNING";
+  static final String EXIT_RECORD = "EXIT";
+
+  /**
+   * How long the daemon waits for each line of a job before it drops the client.
+   */
+  static final long READ_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  private static final int TOKEN_BYTES = 32;
+
+  private final int port;
+  private final File tokenFile;
+  private final String token;
+
+  /**
+   * Creates a daemon.
+   *
+   * @param port      the port to listen on
+   * @param tokenFile the file to write the token of the daemon to
+   */
+  Daemon(int port, File tokenFile) {
+    this.port = port;
+    this.tokenFile = tokenFile;
+
+    byte[] bytes = new byte[TOKEN_BYTES];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder hex = new StringBuilder(2 * bytes.length);
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b & 0xff));
+    }
+    this.token = hex.toString();
+  }
+
+  /**
+   * Gets the default token file of the daemon that listens on a port, in the home
+   * directory of the user.
+   */
+  static File getDefaultTokenFile(int port) {
+    return new File(System.getProperty("user.home"),
+        ".director-spi-tck" + File.separator + "daemon-" + port + ".token");
+  }
+
+  /**
+   * Accepts and runs jobs until the JVM is stopped.
+   *
+   * @throws IOException if the daemon cannot listen on its port
+   */
+  void serve() throws IOException {
+    try (ServerSocket serverSocket = bind()) {
+      LOG.info("TCK daemon listening on " + serverSocket.getLocalSocketAddress() +
+          ", token in " + tokenFile.getAbsolutePath());
+      serve(serverSocket);
+    } finally {
+      Files.deleteIfExists(tokenFile.toPath());
+    }
+  }
+
+  /**
+   * Accepts and runs jobs until the thread is interrupted or the socket is closed.
+   *
+   * @param serverSocket the socket returned by {@link #bind()}
+   */
+  void serve(ServerSocket serverSocket) {
+    while (!Thread.currentThread().isInterrupted() && !serverSocket.isClosed()) {
+      try (Socket socket = serverSocket.accept()) {
+        handle(socket);
+      } catch (IOException e) {
+        if (!serverSocket.isClosed()) {
+          LOG.log(Level.WARNING, "Lost connection to client", e);
+        }
+      } catch (RuntimeException | Error e) {
+        // one broken job must not stop the daemon for the next clients
+        LOG.log(Level.SEVERE, "Unexpected failure of a job", e);
+      }
+    }
+  }
+
+  /**
+   * Listens on the port of the daemon and writes its token file.
+   *
+   * @return the server socket
+   * @throws IOException if the daemon cannot listen on its port or write its token
+   */
+  ServerSocket bind() throws IOException {
+    ServerSocket serverSocket = new ServerSocket();
+    try {
+      serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+      writeToken();
+    } catch (IOException e) {
+      serverSocket.close();
+      throw e;
+    }
+    return serverSocket;
+  }
+
+  /**
+   * Writes the token to a new file, so that a file left behind by someone else,
+   * maybe with looser permissions, is never reused.
+   */
+  private void writeToken() throws IOException {
+    File directory = tokenFile.getAbsoluteFile().getParentFile();
+    OwnerOnlyFiles.createDirectories(directory.toPath());
+    Files.deleteIfExists(tokenFile.toPath());
+    try (FileChannel channel = OwnerOnlyFiles.open(tokenFile.toPath(),
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      ByteBuffer buffer = ByteBuffer.wrap(token.getBytes(StandardCharsets.UTF_8));
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+
+  /**
+   * Reads the token of a daemon from its token file.
+   *
+   * @param tokenFile the token file
+   * @return the token
+   * @throws IOException if the token file cannot be read
+   */
+  static String readToken(File tokenFile) throws IOException {
+    return new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.UTF_8).trim();
+  }
+
+  /**
+   * Reads one job from a client, runs it and streams back its output.
+   */
+  void handle(Socket socket) throws IOException {
+    socket.setSoTimeout((int) READ_TIMEOUT_MILLIS);
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    final Writer writer = new BufferedWriter(
+        new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+    if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+        readLine(reader).getBytes(StandardCharsets.UTF_8))) {
+      LOG.warning("Rejected a client with a wrong token");
+      writeRecord(writer, ERROR_RECORD, "Wrong token, the TCK daemon rejected the job");
+      writeRecord(writer, EXIT_RECORD, Integer.toString(ExitCodes.DAEMON_TOKEN_REJECTED));
+      writer.flush();
+      return;
+    }
+
+    File workingDirectory = new File(readLine(reader));
+    int argCount;
+    try {
+      argCount = Integer.parseInt(readLine(reader));
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid argument count", e);
+    }
+    List<String> args = new ArrayList<String>();
+    for (int i = 0; i < argCount; i++) {
+      args.add(readLine(reader));
+    }
+    LOG.info("Running job in " + workingDirectory + ": " + args);
+
+    Handler handler = new StreamingHandler(writer);
+    Logger rootLogger = Logger.getLogger("");
+    rootLogger.addHandler(handler);
+
+    Summary summary = new Summary();
+    int exitCode;
+    try {
+      exitCode = Runner.run(args.toArray(new String[args.size()]), workingDirectory, summary);
+
+    } catch (Throwable t) {
+      // plugins can fail with linkage errors, which must not end the daemon
+      LOG.log(Level.SEVERE, "Validation failed with an exception", t);
+      summary.addError("Validation failed with an exception: %s", t);
+      exitCode = ExitCodes.UNEXPECTED_EXCEPTION;
+
+    } finally {
+      rootLogger.removeHandler(handler);
+    }
+
+    synchronized (writer) {
+      for (String error : summary.getErrors()) {
+        writeRecord(writer, ERROR_RECORD, error);
+      }
+      for (String warning : summary.getWarnings()) {
+        writeRecord(writer, WARNING_RECORD, warning);
+      }
+      writeRecord(writer, EXIT_RECORD, Integer.toString(exitCode));
+      writer.flush();
+    }
+    LOG.info("Job finished with exit code " + exitCode);
+  }
+
+  private static String readLine(BufferedReader reader) throws IOException {
+    String line = reader.readLine();
+    if (line == null) {
+      throw new EOFException("The client closed the connection before the end of the job");
+    }
+    return unescape(line);
+  }
+
+  static void writeRecord(Writer writer, String type, String text) throws IOException {
+    writer.write(type);
+    writer.write(' ');
+    writer.write(escape(text));
+    writer.write('\n');
+  }
+
+  /**
+   * Escapes a string so that it fits on a single line.
+   */
+  static String escape(String text) {
+    StringBuilder escaped = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '\\') {
+        escaped.append("\\\\");
+      } else if (c == '\n') {
+        escaped.append("\\n");
+      } else if (c == '\r') {
+        escaped.append("\\r");
+      } else {
+        escaped.append(c);
+      }
+    }
+    return escaped.toString();
+  }
+
+  static String unescape(String text) {
+    StringBuilder unescaped = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '\\' && i + 1 < text.length()) {
+        char next = text.charAt(++i);
+        unescaped.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+      } else {
+        unescaped.append(c);
+      }
+    }
+    return unescaped.toString();
+  }
+
+  /**
+   * Streams log records to a client. A client that goes away does not fail the job.
+   */
+  private static class StreamingHandler extends Handler {
+
+    private final Writer writer;
+    private volatile boolean broken;
+
+    StreamingHandler(Writer writer) {
+      this.writer = writer;
+      setFormatter(new SingleLineFormatter());
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+      if (broken || !isLoggable(record)) {
+        return;
+      }
+      String text = getFormatter().format(record);
+      int end = text.length();
+      while (end > 0 && (text.charAt(end - 1) == '\n' || text.charAt(end - 1) == '\r')) {
+        end--;
+      }
+      synchronized (writer) {
+        try {
+          writeRecord(writer, LOG_RECORD, text.substring(0, end));
+          writer.flush();
+        } catch (IOException e) {
+          broken = true;
+        }
+      }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
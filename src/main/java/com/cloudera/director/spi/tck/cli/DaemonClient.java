@@ -0,0 +1,137 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.cli;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sends a validation job to a running {@link Daemon} and prints what it streams
+ * back. The client only depends on the JDK, so it starts much faster than a full
+ * TCK run.
+ */
+class DaemonClient {
+
+  // options whose value is a path, which the daemon would resolve against its own
+  // working directory
+  private static final List<String> PATH_OPTIONS =
+      Arrays.asList(Runner.REPORT_OPTION, Runner.BATCH_OPTION);
+
+  private final int port;
+  private final File tokenFile;
+  private final PrintStream out;
+  private final PrintStream err;
+
+  /**
+   * Creates a client.
+   *
+   * @param port      the port of the daemon
+   * @param tokenFile the token file of the daemon
+   * @param out       the stream to print the final summary to
+   * @param err       the stream to print the log of the job to
+   */
+  DaemonClient(int port, File tokenFile, PrintStream out, PrintStream err) {
+    this.port = port;
+    this.tokenFile = tokenFile;
+    this.out = out;
+    this.err = err;
+  }
+
+  /**
+   * Runs a job on the daemon. Log lines are printed to the error stream, like the
+   * console log of a local run, and the final summary to the output stream.
+   *
+   * @param args the command line arguments of the job
+   * @return the exit code of the job, or {@link ExitCodes#DAEMON_UNAVAILABLE} if the
+   * daemon cannot be reached or goes away before the end of the job, or
+   * {@link ExitCodes#DAEMON_PROTOCOL_ERROR} if its exit code cannot be read
+   */
+  int run(List<String> args) {
+    String token;
+    try {
+      token = Daemon.readToken(tokenFile);
+    } catch (IOException e) {
+      err.println("Unable to read the token of the TCK daemon from " + tokenFile + ": " + e);
+      return ExitCodes.DAEMON_UNAVAILABLE;
+    }
+
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      Writer writer = new BufferedWriter(
+          new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+      List<String> absoluteArgs = toAbsolutePaths(args);
+      writeLine(writer, token);
+      writeLine(writer, new File("").getAbsolutePath());
+      writeLine(writer, Integer.toString(absoluteArgs.size()));
+      for (String arg : absoluteArgs) {
+        writeLine(writer, arg);
+      }
+      writer.flush();
+
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int space = line.indexOf(' ');
+        String type = (space < 0) ? line : line.substring(0, space);
+        String text = (space < 0) ? "" : Daemon.unescape(line.substring(space + 1));
+
+        if (Daemon.LOG_RECORD.equals(type)) {
+          err.println(text);
+        } else if (Daemon.ERROR_RECORD.equals(type)) {
+          out.println("ERROR: " + text);
+        } else if (Daemon.WARNING_RECORD.equals(type)) {
+          out.println("WARNING: " + text);
+        } else if (Daemon.EXIT_RECORD.equals(type)) {
+          try {
+            return Integer.parseInt(text);
+          } catch (NumberFormatException e) {
+            err.println("Invalid exit code from the TCK daemon: " + text);
+            return ExitCodes.DAEMON_PROTOCOL_ERROR;
+          }
+        }
+      }
+      err.println("The TCK daemon closed the connection before the end of the job");
+      return ExitCodes.DAEMON_UNAVAILABLE;
+
+    } catch (IOException e) {
+      err.println("Unable to reach the TCK daemon on port " + port + ": " + e.getMessage());
+      return ExitCodes.DAEMON_UNAVAILABLE;
+    }
+  }
+
+  private static void writeLine(Writer writer, String text) throws IOException {
+    writer.write(Daemon.escape(text));
+    writer.write('\n');
+  }
+
+  /**
+   * Makes all paths in the job arguments absolute.
+   */
+  static List<String> toAbsolutePaths(List<String> args) {
+    List<String> result = new ArrayList<String>();
+    for (int i = 0; i < args.size(); i++) {
+      String arg = args.get(i);
+      if (PATH_OPTIONS.contains(arg) && i + 1 < args.size()) {
+        result.add(arg);
+        result.add(new File(args.get(++i)).getAbsolutePath());
+      } else if (arg.startsWith("--")) {
+        result.add(arg);
+      } else {
+        result.add(new File(arg).getAbsolutePath());
+      }
+    }
+    return result;
+  }
+}
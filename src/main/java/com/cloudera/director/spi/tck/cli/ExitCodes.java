@@ -15,11 +15,23 @@ public final class ExitCodes {
    */
   public static final int OK = 0;
 
+  /**
+   * The TCK failed with an unexpected exception (see stderr output for details).
+   * This is also the exit code of the JVM for uncaught exceptions.
+   */
+  public static final int UNEXPECTED_EXCEPTION = 1;
+
   /**
    * Failed to validate the plugin (see stderr output for details).
    */
   public static final int PLUGIN_VALIDATION_FAILED = 5;
 
+  /**
+   * Failed to delete some of the instances left in the allocation journal (see stderr
+   * output for details).
+   */
+  public static final int CLEANUP_FAILED = 6;
+
   /**
    * Wrong number of arguments for the validation tool.
    */
@@ -40,9 +52,34 @@ public final class ExitCodes {
    */
   public static final int CONFIG_FILE_NOT_FOUND = 30;
 
+  /**
+   * Batch manifest file not found or not valid.
+   */
+  public static final int INVALID_BATCH_MANIFEST = 31;
+
+  /**
+   * The configuration file has no allocation journal to clean up.
+   */
+  public static final int NO_ALLOCATION_JOURNAL = 32;
+
   /**
    * There is no TCK that can check the given SPI version.
    */
   public static final int UNSUPPORTED_SPI_VERSION = 40;
 
+  /**
+   * The TCK daemon could not be reached, or went away before the end of the job.
+   */
+  public static final int DAEMON_UNAVAILABLE = 50;
+
+  /**
+   * The TCK daemon rejected the job because the client did not send its token.
+   */
+  public static final int DAEMON_TOKEN_REJECTED = 51;
+
+  /**
+   * The TCK daemon ended the job with an exit code that is not a number.
+   */
+  public static final int DAEMON_PROTOCOL_ERROR = 52;
+
 }
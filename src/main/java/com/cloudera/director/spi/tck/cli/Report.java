@@ -0,0 +1,323 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.cli;
+
+import com.cloudera.director.spi.tck.StageResult;
+import com.cloudera.director.spi.tck.Summary;
+import com.cloudera.director.spi.tck.util.LatencyHistogram;
+import com.cloudera.director.spi.tck.util.SpiCallMetrics;
+import com.typesafe.config.ConfigRenderOptions;
+import com.typesafe.config.ConfigValueFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A machine-readable report of a TCK run, with the status and duration of every
+ * validation stage, SPI call latency statistics and poll counts. The report can be
+ * written as a JSON document or as JUnit XML for continuous integration servers.
+ */
+class Report {
+
+  private static final String PASSED = "passed";
+  private static final String FAILED = "failed";
+
+  private final File pluginFile;
+  private final File configFile;
+  private final List<Validation> validations = new ArrayList<Validation>();
+
+  Report(File pluginFile, File configFile) {
+    this.pluginFile = pluginFile;
+    this.configFile = configFile;
+  }
+
+  /**
+   * Adds the outcome of validating the plugin with the TCK for one SPI version.
+   *
+   * @param spiVersion     the SPI version
+   * @param summary        the validation summary
+   * @param durationMillis how long the validation took
+   */
+  void addValidation(String spiVersion, Summary summary, long durationMillis) {
+    validations.add(new Validation(spiVersion, summary, durationMillis));
+  }
+
+  boolean isPassed() {
+    for (Validation validation : validations) {
+      if (validation.summary.hasErrors()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes the report as JSON and as JUnit XML. The JSON document is written to the
+   * given file and the JUnit XML next to it, with an {@code .xml} extension.
+   *
+   * @param reportFile the JSON report file
+   * @throws IOException if the files cannot be written
+   */
+  void write(File reportFile) throws IOException {
+    writeJson(reportFile);
+    writeJUnitXml(getJUnitXmlFile(reportFile));
+  }
+
+  static File getJUnitXmlFile(File reportFile) {
+    String name = reportFile.getName();
+    int dot = name.lastIndexOf('.');
+    String base = (dot > 0) ? name.substring(0, dot) : name;
+    String extension = (dot > 0) ? name.substring(dot) : "";
+    String xmlName = ".xml".equalsIgnoreCase(extension) ? base + ".junit.xml" : base + ".xml";
+    return new File(reportFile.getAbsoluteFile().getParentFile(), xmlName);
+  }
+
+  void writeJson(File file) throws IOException {
+    Map<String, Object> root = new LinkedHashMap<String, Object>();
+    root.put("plugin", pluginFile.getPath());
+    root.put("config", configFile.getPath());
+    root.put("status", isPassed() ? PASSED : FAILED);
+    root.put("durationMillis", getDurationMillis());
+
+    List<Object> validationList = new ArrayList<Object>();
+    for (Validation validation : validations) {
+      validationList.add(toJson(validation));
+    }
+    root.put("validations", validationList);
+
+    String json = ConfigValueFactory.fromMap(root)
+        .render(ConfigRenderOptions.concise().setJson(true).setFormatted(true));
+
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+        StandardCharsets.UTF_8)) {
+      writer.write(json);
+      writer.write('\n');
+    }
+  }
+
+  void writeJUnitXml(File file) throws IOException {
+    Document document;
+    try {
+      document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    } catch (ParserConfigurationException e) {
+      throw new IOException("Unable to create XML document", e);
+    }
+
+    Element testSuites = document.createElement("testsuites");
+    testSuites.setAttribute("name", "director-spi-tck");
+    document.appendChild(testSuites);
+
+    int totalTests = 0;
+    int totalFailures = 0;
+    for (Validation validation : validations) {
+      List<StageResult> testCases = validation.getTestCases();
+
+      Element testSuite = document.createElement("testsuite");
+      testSuite.setAttribute("name", pluginFile.getName() + " (" + validation.spiVersion + ")");
+      testSuite.setAttribute("tests", String.valueOf(testCases.size()));
+      testSuite.setAttribute("failures", String.valueOf(countFailures(testCases)));
+      testSuite.setAttribute("errors", "0");
+      testSuite.setAttribute("time", formatSeconds(validation.durationMillis));
+      testSuites.appendChild(testSuite);
+
+      Element properties = document.createElement("properties");
+      for (Map.Entry<String, Long> entry : validation.summary.getCounters().entrySet()) {
+        addProperty(properties, entry.getKey(), String.valueOf(entry.getValue()));
+      }
+      for (SpiCallMetrics.CallStats callStats : validation.summary.getSpiCallStats()) {
+        String prefix = "spi." + callStats.getProviderId() + "." + callStats.getMethod() + ".";
+        for (Map.Entry<String, Object> entry : toJson(callStats).entrySet()) {
+          if (!"provider".equals(entry.getKey()) && !"method".equals(entry.getKey())) {
+            addProperty(properties, prefix + entry.getKey(), String.valueOf(entry.getValue()));
+          }
+        }
+      }
+      testSuite.appendChild(properties);
+
+      for (StageResult stage : testCases) {
+        Element testCase = document.createElement("testcase");
+        testCase.setAttribute("classname", "director-spi-tck." + validation.spiVersion);
+        testCase.setAttribute("name", stage.getName());
+        testCase.setAttribute("time", formatSeconds(stage.getDurationMillis()));
+        if (!stage.isPassed()) {
+          Element failure = document.createElement("failure");
+          failure.setAttribute("message", stage.getErrors().get(0));
+          failure.setTextContent(join(stage.getErrors()));
+          testCase.appendChild(failure);
+        }
+        if (!stage.getWarnings().isEmpty()) {
+          Element systemOut = document.createElement("system-out");
+          systemOut.setTextContent(join(stage.getWarnings()));
+          testCase.appendChild(systemOut);
+        }
+        testSuite.appendChild(testCase);
+      }
+
+      totalTests += testCases.size();
+      totalFailures += countFailures(testCases);
+    }
+
+    testSuites.setAttribute("tests", String.valueOf(totalTests));
+    testSuites.setAttribute("failures", String.valueOf(totalFailures));
+    testSuites.setAttribute("time", formatSeconds(getDurationMillis()));
+
+    try (OutputStream out = new FileOutputStream(file)) {
+      Transformer transformer = TransformerFactory.newInstance().newTransformer();
+      transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+      transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+      transformer.transform(new DOMSource(document), new StreamResult(out));
+    } catch (TransformerException e) {
+      throw new IOException("Unable to write JUnit XML report to " + file, e);
+    }
+  }
+
+  private long getDurationMillis() {
+    long total = 0;
+    for (Validation validation : validations) {
+      total += validation.durationMillis;
+    }
+    return total;
+  }
+
+  private static Map<String, Object> toJson(Validation validation) {
+    Map<String, Object> result = new LinkedHashMap<String, Object>();
+    result.put("spiVersion", validation.spiVersion);
+    result.put("status", validation.summary.hasErrors() ? FAILED : PASSED);
+    result.put("durationMillis", validation.durationMillis);
+    result.put("errors", validation.summary.getErrors());
+    result.put("warnings", validation.summary.getWarnings());
+    result.put("errorCounts", validation.summary.getErrorCounts());
+    result.put("warningCounts", validation.summary.getWarningCounts());
+    result.put("droppedErrors", validation.summary.getDroppedErrorCount());
+    result.put("droppedWarnings", validation.summary.getDroppedWarningCount());
+
+    List<Object> stages = new ArrayList<Object>();
+    for (StageResult stage : validation.summary.getStages()) {
+      Map<String, Object> current = new LinkedHashMap<String, Object>();
+      current.put("name", stage.getName());
+      current.put("status", stage.isPassed() ? PASSED : FAILED);
+      current.put("durationMillis", stage.getDurationMillis());
+      current.put("errors", stage.getErrors());
+      current.put("warnings", stage.getWarnings());
+      stages.add(current);
+    }
+    result.put("stages", stages);
+
+    List<Object> spiCalls = new ArrayList<Object>();
+    for (SpiCallMetrics.CallStats callStats : validation.summary.getSpiCallStats()) {
+      spiCalls.add(toJson(callStats));
+    }
+    result.put("spiCalls", spiCalls);
+    result.put("counters", validation.summary.getCounters());
+    return result;
+  }
+
+  private static Map<String, Object> toJson(SpiCallMetrics.CallStats callStats) {
+    LatencyHistogram latencies = callStats.getLatencies();
+    Map<String, Object> result = new LinkedHashMap<String, Object>();
+    result.put("provider", callStats.getProviderId());
+    result.put("method", callStats.getMethod());
+    result.put("count", latencies.getCount());
+    result.put("errors", callStats.getFailureCount());
+    result.put("minMillis", toMillis(latencies.getMin()));
+    result.put("p50Millis", toMillis(latencies.getPercentile(50)));
+    result.put("p90Millis", toMillis(latencies.getPercentile(90)));
+    result.put("p99Millis", toMillis(latencies.getPercentile(99)));
+    result.put("maxMillis", toMillis(latencies.getMax()));
+    return result;
+  }
+
+  private static double toMillis(long nanos) {
+    return Math.round(nanos / (double) TimeUnit.MILLISECONDS.toNanos(1) * 1000) / 1000.0;
+  }
+
+  private static int countFailures(List<StageResult> stages) {
+    int failures = 0;
+    for (StageResult stage : stages) {
+      if (!stage.isPassed()) {
+        failures++;
+      }
+    }
+    return failures;
+  }
+
+  private static void addProperty(Element properties, String name, String value) {
+    Element property = properties.getOwnerDocument().createElement("property");
+    property.setAttribute("name", name);
+    property.setAttribute("value", value);
+    properties.appendChild(property);
+  }
+
+  private static String formatSeconds(long millis) {
+    return String.format("%.3f", millis / 1000.0);
+  }
+
+  private static String join(List<String> lines) {
+    StringBuilder builder = new StringBuilder();
+    for (String line : lines) {
+      builder.append(line).append('\n');
+    }
+    return builder.toString();
+  }
+
+  /**
+   * The outcome of validating the plugin with the TCK for one SPI version.
+   */
+  private static class Validation {
+
+    private final String spiVersion;
+    private final Summary summary;
+    private final long durationMillis;
+
+    Validation(String spiVersion, Summary summary, long durationMillis) {
+      this.spiVersion = spiVersion;
+      this.summary = summary;
+      this.durationMillis = durationMillis;
+    }
+
+    /**
+     * Gets the stages as test cases, plus one test case for the errors and warnings
+     * that were not reported by any stage.
+     */
+    List<StageResult> getTestCases() {
+      List<StageResult> testCases = new ArrayList<StageResult>(summary.getStages());
+
+      List<String> otherErrors = new ArrayList<String>(summary.getErrors());
+      List<String> otherWarnings = new ArrayList<String>(summary.getWarnings());
+      for (StageResult stage : testCases) {
+        for (String error : stage.getErrors()) {
+          otherErrors.remove(error);
+        }
+        for (String warning : stage.getWarnings()) {
+          otherWarnings.remove(warning);
+        }
+      }
+
+      if (testCases.isEmpty() || !otherErrors.isEmpty() || !otherWarnings.isEmpty()) {
+        testCases.add(new StageResult("validation", 0, otherErrors, otherWarnings));
+      }
+      return testCases;
+    }
+  }
+}
@@ -2,25 +2,34 @@
 
 package com.cloudera.director.spi.tck.cli;
 
+import com.cloudera.director.spi.tck.Configurations;
+import com.cloudera.director.spi.tck.JournalCleanup;
 import com.cloudera.director.spi.tck.PluginMetadata;
+import com.cloudera.director.spi.tck.PluginMetadataCache;
 import com.cloudera.director.spi.tck.Summary;
 import com.cloudera.director.spi.tck.TCK;
 import com.cloudera.director.spi.tck.TCKv1;
 import com.cloudera.director.spi.tck.TCKv2;
+import com.cloudera.director.spi.tck.sim.SimulatedLauncher;
 import com.cloudera.director.spi.tck.util.SingleLineFormatter;
+import com.cloudera.director.spi.tck.util.Stopwatch;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigParseOptions;
 import com.typesafe.config.ConfigSyntax;
+import com.typesafe.config.ConfigValueFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.jar.JarFile;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Handler;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -31,19 +40,88 @@ public class Runner {
 
   private static final Logger LOG = Logger.getLogger(Runner.class.getName());
 
-  private static final Map<String, TCK> TCKS;
+  static final String REPORT_OPTION = "--report";
+  static final String BATCH_OPTION = "--batch";
+  static final String DAEMON_OPTION = "--daemon";
+  static final String CONNECT_OPTION = "--connect";
+  static final String SIMULATE_OPTION = "--simulate";
+  static final String CLEANUP_OPTION = "--cleanup";
 
-  static {
-    Map<String, TCK> validators = new HashMap<String, TCK>();
-    validators.put("v1", new TCKv1());
-    validators.put("v2", new TCKv2());
+  /**
+   * The name the simulated plugin has in reports.
+   */
+  private static final String SIMULATED_PLUGIN = "simulated";
 
-    TCKS = Collections.unmodifiableMap(validators);
+  /**
+   * The properties of a configuration file that hold paths.
+   */
+  private static final List<String> PATH_PROPERTIES = Arrays.asList(
+      Configurations.CONFIGURATION_DIRECTORY_PROPERTY,
+      Configurations.PLUGIN_CACHE_DIRECTORY_PROPERTY,
+      Configurations.ALLOCATION_JOURNAL_PROPERTY);
+
+  private static final String USAGE =
+      "Usage: java -jar director-spi-tck-*.jar [--report <report-file>] <plugin-jar> <config-file>\n"
+          + "   or: java -jar director-spi-tck-*.jar [--report <report-directory>] "
+          + "--batch <manifest-file>\n"
+          + "   or: java -jar director-spi-tck-*.jar [--report <report-file>] --simulate <config-file>\n"
+          + "   or: java -jar director-spi-tck-*.jar --cleanup <plugin-jar> <config-file>\n"
+          + "   or: java -jar director-spi-tck-*.jar --daemon <port>\n"
+          + "   or: java -jar director-spi-tck-*.jar --connect <port> <arguments of any of the above>";
+
+  /**
+   * The TCKs by SPI version, in a holder class so that the daemon client does not
+   * load them.
+   */
+  private static final class Tcks {
+
+    private static final Map<String, TCK> TCKS;
+
+    static {
+      Map<String, TCK> validators = new HashMap<String, TCK>();
+      validators.put("v1", new TCKv1());
+      validators.put("v2", new TCKv2());
+
+      TCKS = Collections.unmodifiableMap(validators);
+    }
   }
 
   public static void main(String[] args) throws Exception {
     configureRootLogger();
-    System.exit(run(args));
+
+    if (args.length > 0 && CONNECT_OPTION.equals(args[0])) {
+      if (args.length < 2) {
+        LOG.severe(USAGE);
+        System.exit(ExitCodes.WRONG_ARGUMENT_COUNT);
+      }
+      List<String> jobArgs = Arrays.asList(args).subList(2, args.length);
+      int port = parsePort(args[1]);
+      System.exit(new DaemonClient(port, Daemon.getDefaultTokenFile(port), System.out,
+          System.err).run(jobArgs));
+    }
+
+    if (args.length > 0 && DAEMON_OPTION.equals(args[0])) {
+      if (args.length != 2) {
+        LOG.severe(USAGE);
+        System.exit(ExitCodes.WRONG_ARGUMENT_COUNT);
+      }
+      int port = parsePort(args[1]);
+      new Daemon(port, Daemon.getDefaultTokenFile(port)).serve();
+      return;
+    }
+
+    System.exit(run(args, new File("").getAbsoluteFile(), new Summary()));
+  }
+
+  private static int parsePort(String port) {
+    try {
+      return Integer.parseInt(port);
+    } catch (NumberFormatException e) {
+      LOG.severe("Invalid port: " + port);
+      LOG.severe(USAGE);
+      System.exit(ExitCodes.WRONG_ARGUMENT_COUNT);
+      return -1;
+    }
   }
 
   /**
@@ -59,15 +137,97 @@ public class Runner {
     }
   }
 
-  private static int run(String[] args) throws Exception {
-    if (args.length != 2) {
-      LOG.severe("Usage: java -jar director-spi-tck-*.jar <plugin-jar> <config-file>");
+  /**
+   * Runs the TCK with command line arguments.
+   *
+   * @param args             the command line arguments, without the daemon options
+   * @param workingDirectory the directory that relative paths in the configuration
+   *                         files are resolved against
+   * @param summary          a summary that receives the outcome of all the validations
+   * @return the exit code
+   * @throws Exception if a TCK fails with an exception
+   */
+  static int run(String[] args, File workingDirectory, Summary summary) throws Exception {
+    List<String> arguments = new ArrayList<String>();
+    File reportFile = null;
+    File manifestFile = null;
+    boolean simulate = false;
+    boolean cleanup = false;
+
+    for (int i = 0; i < args.length; i++) {
+      if ((REPORT_OPTION.equals(args[i]) || BATCH_OPTION.equals(args[i]))
+          && (i + 1 == args.length || args[i + 1].startsWith("--"))) {
+        LOG.severe("Missing argument for option: " + args[i]);
+        LOG.severe(USAGE);
+        return ExitCodes.WRONG_ARGUMENT_COUNT;
+      } else if (REPORT_OPTION.equals(args[i])) {
+        reportFile = new File(args[++i]);
+      } else if (BATCH_OPTION.equals(args[i])) {
+        manifestFile = new File(args[++i]);
+      } else if (SIMULATE_OPTION.equals(args[i])) {
+        simulate = true;
+      } else if (CLEANUP_OPTION.equals(args[i])) {
+        cleanup = true;
+      } else if (args[i].startsWith("--")) {
+        LOG.severe("Unknown option: " + args[i]);
+        LOG.severe(USAGE);
+        return ExitCodes.WRONG_ARGUMENT_COUNT;
+      } else {
+        arguments.add(args[i]);
+      }
+    }
+
+    if (cleanup) {
+      if (simulate || manifestFile != null || reportFile != null || arguments.size() != 2) {
+        LOG.severe(USAGE);
+        return ExitCodes.WRONG_ARGUMENT_COUNT;
+      }
+      return cleanUpPlugin(new File(arguments.get(0)), new File(arguments.get(1)),
+          workingDirectory, summary);
+    }
+
+    if (simulate) {
+      if (manifestFile != null || arguments.size() != 1) {
+        LOG.severe(USAGE);
+        return ExitCodes.WRONG_ARGUMENT_COUNT;
+      }
+      return validateSimulatedPlugin(new File(arguments.get(0)), reportFile, workingDirectory,
+          summary);
+    }
+
+    if (manifestFile != null) {
+      if (!arguments.isEmpty()) {
+        LOG.severe(USAGE);
+        return ExitCodes.WRONG_ARGUMENT_COUNT;
+      }
+      return new BatchRunner(manifestFile, workingDirectory).run(reportFile, summary);
+    }
+
+    if (arguments.size() != 2) {
+      LOG.severe(USAGE);
       return ExitCodes.WRONG_ARGUMENT_COUNT;
     }
 
-    File pluginFile = new File(args[0]);
-    File configFile = new File(args[1]);
+    return validatePlugin(new File(arguments.get(0)), new File(arguments.get(1)), reportFile,
+        workingDirectory, summary);
+  }
 
+  /**
+   * Validates a plugin jar with the TCKs for all the SPI versions it implements,
+   * stopping at the first SPI version that fails. Safe to call for several plugins
+   * at the same time: each plugin is loaded with its own class loader.
+   *
+   * @param pluginFile       the plugin jar
+   * @param configFile       the configuration file that drives the validation
+   * @param reportFile       the file to write a report to, or null
+   * @param workingDirectory the directory that relative paths in the configuration
+   *                         file are resolved against
+   * @param summary          a summary that receives the outcome of all the validations
+   * @return the exit code for the plugin
+   * @throws Exception if a TCK fails with an exception
+   */
+  static int validatePlugin(File pluginFile, File configFile, File reportFile,
+      File workingDirectory, Summary summary) throws Exception {
     if (!pluginFile.isFile()) {
       LOG.severe("Plugin not a file or not found: " + pluginFile.getAbsolutePath());
       return ExitCodes.PLUGIN_FILE_NOT_FOUND;
@@ -80,48 +240,220 @@ public class Runner {
 
     // Extract implementation metadata and run the compatibility checks
 
-    PluginMetadata metadata = PluginMetadata.fromExternalJarFile(new JarFile(pluginFile));
+    Config config = loadConfigFile(configFile, workingDirectory);
+    PluginMetadataCache cache = PluginMetadataCache.fromConfig(config);
+    PluginMetadata metadata = (cache == null) ?
+        PluginMetadata.fromExternalJarFile(pluginFile) : cache.getMetadata(pluginFile);
     if (metadata.getLaunchers().isEmpty()) {
       LOG.severe("No plugin launchers found: " + pluginFile.getAbsolutePath());
       return ExitCodes.NO_LAUNCHERS_FOUND;
     }
 
     List<TCK> tcks = new ArrayList<TCK>();
+    List<String> spiVersions = new ArrayList<String>();
     for (String spiVersion : metadata.getSpiVersions()) {
 
-      TCK tck = TCKS.get(spiVersion);
+      TCK tck = Tcks.TCKS.get(spiVersion);
       if (tck == null) {
         LOG.severe("No compatibility kit available for this plugin version: " + spiVersion);
         return ExitCodes.UNSUPPORTED_SPI_VERSION;
       }
       tcks.add(tck);
+      spiVersions.add(spiVersion);
     }
 
-    for (TCK tck : tcks) {
-      Summary summary = tck.validate(pluginFile, metadata, parseConfigFile(configFile).resolve());
-      if (summary.hasErrors()) {
-        logErrors(summary);
-        logWarnings(summary);
+    Report report = new Report(pluginFile, configFile);
+    Throwable failure = null;
+    try {
+      for (int i = 0; i < tcks.size(); i++) {
+        Summary tckSummary = validate(report, spiVersions.get(i), tcks.get(i), pluginFile,
+            metadata, config);
+        summary.add(tckSummary);
+        if (!logOutcome(tckSummary)) {
+          return ExitCodes.PLUGIN_VALIDATION_FAILED;
+        }
+      }
 
-        LOG.severe("Validation failed. See above for details.");
-        return ExitCodes.PLUGIN_VALIDATION_FAILED;
+      return ExitCodes.OK;
 
-      } else {
-        logWarnings(summary);
+    } catch (Throwable t) {
+      failure = t;
+      throw t;
+
+    } finally {
+      writeReport(report, reportFile, failure);
+    }
+  }
 
-        LOG.info("Validation succeeded.");
+  /**
+   * Validates the built-in simulated plugin with the v2 TCK. There is no plugin jar,
+   * so the packaging checks and the checks for plugin unloading and leaks are skipped.
+   *
+   * @param configFile       the configuration file that drives the validation
+   * @param reportFile       the file to write a report to, or null
+   * @param workingDirectory the directory that relative paths in the configuration
+   *                         file are resolved against
+   * @param summary          a summary that receives the outcome of the validation
+   * @return the exit code
+   * @throws Exception if the TCK fails with an exception
+   */
+  static int validateSimulatedPlugin(File configFile, File reportFile, File workingDirectory,
+      Summary summary) throws Exception {
+    if (!configFile.isFile()) {
+      LOG.severe("Config not a file or not found: " + configFile.getAbsolutePath());
+      return ExitCodes.CONFIG_FILE_NOT_FOUND;
+    }
+
+    Config config = loadConfigFile(configFile, workingDirectory);
+    Report report = new Report(new File(SIMULATED_PLUGIN), configFile);
+    SimulatedLauncher launcher = new SimulatedLauncher();
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    Summary tckSummary = Summary.fromConfig(config);
+    Throwable failure = null;
+    try {
+      new TCKv2().validate(launcher, config, tckSummary);
+
+    } catch (Throwable t) {
+      if (t instanceof Exception) {
+        tckSummary.addError("Validation failed with an exception: %s", t);
       }
+      failure = t;
+      throw t;
+
+    } finally {
+      launcher.shutdown();
+      report.addValidation("v2", tckSummary, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+      summary.add(tckSummary);
+      writeReport(report, reportFile, failure);
+    }
+
+    return logOutcome(tckSummary) ? ExitCodes.OK : ExitCodes.PLUGIN_VALIDATION_FAILED;
+  }
+
+  /**
+   * Deletes the instances that earlier runs with a configuration file left in their
+   * allocation journal.
+   *
+   * @param pluginFile       the plugin jar
+   * @param configFile       the configuration file of the runs, with an allocation journal
+   * @param workingDirectory the directory that relative paths in the configuration
+   *                         file are resolved against
+   * @param summary          a summary that receives the outcome of the cleanup
+   * @return the exit code
+   * @throws Exception if the plugin fails with an exception
+   */
+  static int cleanUpPlugin(File pluginFile, File configFile, File workingDirectory,
+      Summary summary) throws Exception {
+    if (!pluginFile.isFile()) {
+      LOG.severe("Plugin not a file or not found: " + pluginFile.getAbsolutePath());
+      return ExitCodes.PLUGIN_FILE_NOT_FOUND;
+    }
+
+    if (!configFile.isFile()) {
+      LOG.severe("Config not a file or not found: " + configFile.getAbsolutePath());
+      return ExitCodes.CONFIG_FILE_NOT_FOUND;
     }
 
+    Config config = loadConfigFile(configFile, workingDirectory);
+    if (!config.hasPath(Configurations.ALLOCATION_JOURNAL_PROPERTY)) {
+      LOG.severe("No " + Configurations.ALLOCATION_JOURNAL_PROPERTY + " in config: " +
+          configFile.getAbsolutePath());
+      return ExitCodes.NO_ALLOCATION_JOURNAL;
+    }
+
+    Summary cleanupSummary = new JournalCleanup(config).cleanUp(pluginFile,
+        PluginMetadata.fromExternalJarFile(pluginFile));
+    summary.add(cleanupSummary);
+    if (cleanupSummary.hasErrors()) {
+      logErrors(cleanupSummary);
+      LOG.severe("Cleanup failed. See above for details.");
+      return ExitCodes.CLEANUP_FAILED;
+    }
+    LOG.info("Cleanup succeeded.");
     return ExitCodes.OK;
   }
 
+  /**
+   * Logs the errors and warnings of a validation.
+   *
+   * @return true if the validation succeeded
+   */
+  private static boolean logOutcome(Summary summary) {
+    if (summary.hasErrors()) {
+      logErrors(summary);
+      logWarnings(summary);
+
+      LOG.severe("Validation failed. See above for details.");
+      return false;
+    }
+
+    logWarnings(summary);
+
+    LOG.info("Validation succeeded.");
+    return true;
+  }
+
+  /**
+   * Writes a report, if a report file was requested. When the validation failed with
+   * an exception, a failure to write the report is logged and added to it as a
+   * suppressed exception, so that it does not hide the failure of the validation.
+   *
+   * @param report     the report
+   * @param reportFile the file to write the report to, or null
+   * @param failure    the exception the validation failed with, or null
+   * @throws IOException if the report cannot be written and the validation did not fail
+   */
+  static void writeReport(Report report, File reportFile, Throwable failure)
+      throws IOException {
+    if (reportFile == null) {
+      return;
+    }
+    try {
+      report.write(reportFile);
+    } catch (IOException | RuntimeException e) {
+      if (failure == null) {
+        throw e;
+      }
+      LOG.log(Level.SEVERE, "Failed to write the validation report to " + reportFile.getPath(), e);
+      failure.addSuppressed(e);
+      return;
+    }
+    LOG.info(String.format("Wrote validation report to %s and %s",
+        reportFile.getPath(), Report.getJUnitXmlFile(reportFile).getPath()));
+  }
+
+  /**
+   * Validates the plugin with one TCK and adds the outcome to the report, even if
+   * the TCK fails with an exception.
+   */
+  static Summary validate(Report report, String spiVersion, TCK tck, File pluginFile,
+      PluginMetadata metadata, Config config) throws Exception {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    Summary summary = null;
+    try {
+      summary = tck.validate(pluginFile, metadata, config);
+      return summary;
+
+    } catch (Throwable t) {
+      summary = Summary.fromConfig(config);
+      summary.addError("Validation failed with an exception: %s", t);
+      throw t;
+
+    } finally {
+      report.addValidation(spiVersion, summary, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+    }
+  }
+
   private static void logErrors(Summary summary) {
     if (summary.hasErrors()) {
       LOG.severe("Plugin validation errors:");
       for (String error : summary.getErrors()) {
         LOG.severe("* " + error);
       }
+      if (summary.getDroppedErrorCount() > 0) {
+        LOG.severe(String.format("* and %d more errors, see the error counts of the report",
+            summary.getDroppedErrorCount()));
+      }
     }
   }
 
@@ -131,10 +463,37 @@ public class Runner {
       for (String warning : summary.getWarnings()) {
         LOG.warning("* " + warning);
       }
+      if (summary.getDroppedWarningCount() > 0) {
+        LOG.warning(String.format("* and %d more warnings, see the warning counts of the " +
+            "report", summary.getDroppedWarningCount()));
+      }
+    }
+  }
+
+  /**
+   * Parses and resolves a configuration file, and resolves the relative paths it
+   * holds against a working directory, which is not the one of the JVM when the job
+   * runs in the daemon.
+   *
+   * @param configFile       the configuration file
+   * @param workingDirectory the directory to resolve relative paths against
+   * @return the configuration
+   */
+  static Config loadConfigFile(File configFile, File workingDirectory) {
+    Config config = parseConfigFile(configFile).resolve();
+    for (String property : PATH_PROPERTIES) {
+      if (config.hasPath(property)) {
+        File path = new File(config.getString(property));
+        if (!path.isAbsolute()) {
+          config = config.withValue(property,
+              ConfigValueFactory.fromAnyRef(new File(workingDirectory, path.getPath()).getPath()));
+        }
+      }
     }
+    return config;
   }
 
-  private static Config parseConfigFile(File configFile) {
+  static Config parseConfigFile(File configFile) {
     ConfigParseOptions options = ConfigParseOptions.defaults()
         .setSyntax(ConfigSyntax.CONF)
         .setAllowMissing(false);
@@ -0,0 +1,233 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.sim;
+
+import com.cloudera.director.spi.tck.util.DatabaseProtocolProbe;
+import com.cloudera.director.spi.tck.util.DatabaseProtocolProbe.Protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A local server that speaks just enough of a database wire protocol for the
+ * {@link com.cloudera.director.spi.tck.util.DatabaseProtocolProbe} to see it as ready,
+ * so that database server validation can run offline:
+ * <ul>
+ * <li>for MySQL, every connection gets a handshake packet;</li>
+ * <li>for PostgreSQL, a startup message gets a cleartext password request;</li>
+ * <li>without a protocol, connections are accepted and closed.</li>
+ * </ul>
+ * Like a real server that is still starting up, the server does not accept sessions
+ * until the session delay has elapsed, so the port opens before it does. Until then
+ * MySQL connections are closed without a word, and PostgreSQL startup messages get
+ * the error that PostgreSQL sends while it starts up.
+ */
+public class FakeDatabaseServer implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(FakeDatabaseServer.class.getName());
+
+  static final String SERVER_VERSION = "5.7.0-fake";
+
+  private static final int READ_TIMEOUT_MILLIS = 1000;
+
+  private final ServerSocket serverSocket;
+  private final Protocol protocol;
+  private final long sessionStartNanos;
+  private final Thread acceptThread;
+
+  /**
+   * Starts a server.
+   *
+   * @param address            the address to listen on, with port 0 for any free port
+   * @param protocol           the protocol to speak, or null to only accept connections
+   * @param sessionDelayMillis how long after the start connections are closed
+   *                           without a response
+   * @return the started server
+   * @throws IOException if the server cannot listen on the address
+   */
+  public static FakeDatabaseServer start(InetSocketAddress address, Protocol protocol,
+      long sessionDelayMillis) throws IOException {
+    ServerSocket serverSocket = new ServerSocket();
+    try {
+      serverSocket.setReuseAddress(true);
+      serverSocket.bind(address);
+    } catch (IOException e) {
+      serverSocket.close();
+      throw e;
+    }
+    return new FakeDatabaseServer(serverSocket, protocol, sessionDelayMillis);
+  }
+
+  private FakeDatabaseServer(ServerSocket serverSocket, Protocol protocol,
+      long sessionDelayMillis) {
+    this.serverSocket = serverSocket;
+    this.protocol = protocol;
+    this.sessionStartNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sessionDelayMillis);
+    this.acceptThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        acceptConnections();
+      }
+    }, "fake-database-server-" + serverSocket.getLocalPort());
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+    LOG.info(String.format("Fake %s server listening on %s",
+        protocol == null ? "database" : protocol, serverSocket.getLocalSocketAddress()));
+  }
+
+  /**
+   * Gets the port the server listens on.
+   */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  private void acceptConnections() {
+    // connections are handled one at a time, which is plenty for probes
+    while (!serverSocket.isClosed()) {
+      try (Socket socket = serverSocket.accept()) {
+        LOG.finest("Accepted connection from " + socket.getRemoteSocketAddress());
+        boolean acceptsSessions = System.nanoTime() - sessionStartNanos >= 0;
+        if (protocol == Protocol.POSTGRESQL || (protocol != null && acceptsSessions)) {
+          socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+          respond(socket, acceptsSessions);
+        }
+      } catch (IOException e) {
+        if (!serverSocket.isClosed()) {
+          LOG.log(Level.FINE, "Connection failed", e);
+        }
+      }
+    }
+  }
+
+  private void respond(Socket socket, boolean acceptsSessions) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    if (protocol == Protocol.MYSQL) {
+      out.write(mySqlHandshake((int) Thread.currentThread().getId()));
+    } else {
+      // startup message: int32 length, including itself, then the rest of the message
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      int length = in.readInt();
+      if (length < 8 || length > 10000) {
+        throw new IOException("Unexpected startup message length: " + length);
+      }
+      in.readFully(new byte[length - 4]);
+      out.write(acceptsSessions ? postgreSqlCleartextPasswordRequest() :
+          postgreSqlError(DatabaseProtocolProbe.POSTGRESQL_CANNOT_CONNECT_NOW,
+              "the database system is starting up"));
+    }
+    out.flush();
+  }
+
+  /**
+   * Builds a PostgreSQL AuthenticationCleartextPassword message.
+   */
+  static byte[] postgreSqlCleartextPasswordRequest() {
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    message.write('R');
+    writeBigEndianInt(message, 8);
+    writeBigEndianInt(message, 3);
+    return message.toByteArray();
+  }
+
+  /**
+   * Builds a fatal PostgreSQL ErrorResponse message.
+   */
+  static byte[] postgreSqlError(String sqlState, String text) {
+    ByteArrayOutputStream fields = new ByteArrayOutputStream();
+    fields.write('S');
+    writeNullTerminated(fields, "FATAL");
+    fields.write('C');
+    writeNullTerminated(fields, sqlState);
+    fields.write('M');
+    writeNullTerminated(fields, text);
+    fields.write(0);
+
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    message.write('E');
+    writeBigEndianInt(message, 4 + fields.size());
+    byte[] bytes = fields.toByteArray();
+    message.write(bytes, 0, bytes.length);
+    return message.toByteArray();
+  }
+
+  /**
+   * Builds a MySQL protocol version 10 handshake packet, with a fixed scramble.
+   */
+  static byte[] mySqlHandshake(int connectionId) {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    payload.write(10);
+    writeNullTerminated(payload, SERVER_VERSION);
+    writeInt(payload, connectionId, 4);
+    for (int i = 0; i < 8; i++) {
+      payload.write('a' + i);
+    }
+    payload.write(0);
+    writeInt(payload, 0xf7ff, 2);  // lower capability flags
+    payload.write(0x21);           // utf8_general_ci
+    writeInt(payload, 0x0002, 2);  // autocommit
+    writeInt(payload, 0x8000, 2);  // upper capability flags, with plugin auth
+    payload.write(21);
+    for (int i = 0; i < 10; i++) {
+      payload.write(0);
+    }
+    for (int i = 0; i < 12; i++) {
+      payload.write('i' + i);
+    }
+    payload.write(0);
+    writeNullTerminated(payload, "mysql_native_password");
+
+    ByteArrayOutputStream packet = new ByteArrayOutputStream();
+    writeInt(packet, payload.size(), 3);
+    packet.write(0);
+    byte[] bytes = payload.toByteArray();
+    packet.write(bytes, 0, bytes.length);
+    return packet.toByteArray();
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int value, int length) {
+    for (int i = 0; i < length; i++) {
+      out.write(value >>> (8 * i));
+    }
+  }
+
+  private static void writeBigEndianInt(ByteArrayOutputStream out, int value) {
+    for (int i = 3; i >= 0; i--) {
+      out.write(value >>> (8 * i));
+    }
+  }
+
+  private static void writeNullTerminated(ByteArrayOutputStream out, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.write(bytes, 0, bytes.length);
+    out.write(0);
+  }
+
+  /**
+   * Stops accepting connections. The port is closed when this method returns.
+   */
+  @Override
+  public void close() {
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to close the fake database server", e);
+    }
+    // the port only stops accepting connections once the accept call returns
+    try {
+      acceptThread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
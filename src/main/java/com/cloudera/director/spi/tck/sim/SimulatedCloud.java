@@ -0,0 +1,263 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.sim;
+
+import com.cloudera.director.spi.v2.model.InstanceState;
+import com.cloudera.director.spi.v2.model.InstanceStatus;
+import com.cloudera.director.spi.v2.model.exception.UnrecoverableProviderException;
+import com.cloudera.director.spi.v2.model.util.SimpleInstanceState;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The state of a simulated cloud shared by its compute and database server
+ * providers. Instance statuses are computed from the clock when they are asked for,
+ * so no thread is needed per instance and thousands of instances cost next to
+ * nothing.
+ * <p/>
+ * All instances have the loopback address. While at least one instance has been
+ * allocated and not deleted, and the settings allow it, the cloud accepts
+ * connections on the configured port of that address, which is what the TCK
+ * checks once an instance is running. Connections get the handshake of the
+ * configured database protocol, if any, once the session delay has elapsed.
+ * <p/>
+ * Deleted instances are forgotten the first time their status is read once they
+ * are {@link InstanceStatus#DELETED DELETED}, or at the latest some time after
+ * that, so that instances that are never polled again do not pile up.
+ */
+class SimulatedCloud {
+
+  private static final Logger LOG = Logger.getLogger(SimulatedCloud.class.getName());
+
+  /**
+   * How long a deleted instance that nobody polls stays known as DELETED, by default.
+   */
+  static final long DELETED_RETENTION_MILLIS = 60000;
+
+  private final SimulationSettings settings;
+  private final long deletedRetentionMillis;
+  private final ConcurrentMap<String, SimulatedInstance> instances =
+      new ConcurrentHashMap<String, SimulatedInstance>();
+  // deleted instances, in the order of their deletion
+  private final Queue<SimulatedInstance> deleted = new ConcurrentLinkedQueue<SimulatedInstance>();
+
+  // guarded by this
+  private int liveInstanceCount;
+  private FakeDatabaseServer server;
+
+  SimulatedCloud(SimulationSettings settings) {
+    this(settings, DELETED_RETENTION_MILLIS);
+  }
+
+  SimulatedCloud(SimulationSettings settings, long deletedRetentionMillis) {
+    this.settings = settings;
+    this.deletedRetentionMillis = deletedRetentionMillis;
+  }
+
+  SimulationSettings getSettings() {
+    return settings;
+  }
+
+  /**
+   * Allocates instances. Each requested instance fails to be allocated with the
+   * configured probability, and instances beyond the capacity of the cloud are not
+   * allocated.
+   *
+   * @param ids      the IDs of the requested instances
+   * @param minCount the minimum number of instances to allocate
+   * @return the allocated instances. For IDs that already exist, the existing
+   * instances are returned
+   * @throws InterruptedException           if interrupted during the allocation delay
+   * @throws UnrecoverableProviderException if fewer than the minimum number of instances
+   *                                        could be allocated, in which case none are
+   */
+  List<SimulatedInstance> allocate(Collection<String> ids, int minCount)
+      throws InterruptedException {
+    TimeUnit.MILLISECONDS.sleep(settings.getAllocationDelayMillis());
+    purgeDeleted(System.nanoTime());
+
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    List<SimulatedInstance> allocated = new ArrayList<SimulatedInstance>();
+    for (String id : ids) {
+      if (random.nextDouble() >= settings.getAllocationFailureRate()) {
+        allocated.add(new SimulatedInstance(id, System.nanoTime(),
+            random.nextDouble() < settings.getStartFailureRate()));
+      }
+    }
+
+    synchronized (this) {
+      // existing IDs are returned as they are, and do not count against the capacity
+      int capacity = settings.getCapacity();
+      List<SimulatedInstance> stored = new ArrayList<SimulatedInstance>(allocated.size());
+      List<SimulatedInstance> added = new ArrayList<SimulatedInstance>(allocated.size());
+      for (SimulatedInstance instance : allocated) {
+        SimulatedInstance existing = instances.get(instance.getId());
+        if (existing != null) {
+          stored.add(existing);
+        } else if (capacity <= 0 || liveInstanceCount + added.size() < capacity) {
+          stored.add(instance);
+          added.add(instance);
+        }
+      }
+      if (stored.size() < minCount) {
+        throw new UnrecoverableProviderException(String.format(
+            "Simulated capacity shortage: allocated %d instances, needed at least %d",
+            stored.size(), minCount));
+      }
+
+      // open the port first, so that a failure leaves no instance behind
+      if (!added.isEmpty() && settings.isOpenPort() && server == null) {
+        openPort();
+      }
+      for (SimulatedInstance instance : added) {
+        instances.put(instance.getId(), instance);
+        liveInstanceCount++;
+      }
+      return stored;
+    }
+  }
+
+  /**
+   * Gets the instances that exist and have not been fully deleted.
+   */
+  List<SimulatedInstance> find(Collection<String> ids) throws InterruptedException {
+    TimeUnit.MILLISECONDS.sleep(settings.getStateCallDelayMillis());
+    long now = System.nanoTime();
+    purgeDeleted(now);
+
+    List<SimulatedInstance> found = new ArrayList<SimulatedInstance>();
+    for (String id : ids) {
+      SimulatedInstance instance = instances.get(id);
+      if (instance != null && instance.getStatus(now, settings) != InstanceStatus.DELETED) {
+        found.add(instance);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Gets the status of instances. Unknown instances, including instances that have
+   * been deleted for a while, have the status {@link InstanceStatus#UNKNOWN}.
+   */
+  Map<String, InstanceStatus> getStatuses(Collection<String> ids) throws InterruptedException {
+    TimeUnit.MILLISECONDS.sleep(settings.getStateCallDelayMillis());
+    long now = System.nanoTime();
+    purgeDeleted(now);
+
+    Map<String, InstanceStatus> statuses = new LinkedHashMap<String, InstanceStatus>();
+    for (String id : ids) {
+      SimulatedInstance instance = instances.get(id);
+      if (instance == null) {
+        statuses.put(id, InstanceStatus.UNKNOWN);
+        continue;
+      }
+      InstanceStatus status = instance.getStatus(now, settings);
+      if (status == InstanceStatus.DELETED) {
+        instances.remove(id, instance);
+      }
+      statuses.put(id, status);
+    }
+    return statuses;
+  }
+
+  /**
+   * Gets the state of instances, as returned by the providers.
+   */
+  Map<String, InstanceState> getInstanceStates(Collection<String> ids)
+      throws InterruptedException {
+    Map<String, InstanceState> states = new LinkedHashMap<String, InstanceState>();
+    for (Map.Entry<String, InstanceStatus> status : getStatuses(ids).entrySet()) {
+      states.put(status.getKey(), new SimpleInstanceState(status.getValue()));
+    }
+    return states;
+  }
+
+  /**
+   * Starts deleting instances. Unknown instances are ignored.
+   */
+  void delete(Collection<String> ids) throws InterruptedException {
+    TimeUnit.MILLISECONDS.sleep(settings.getStateCallDelayMillis());
+    long now = System.nanoTime();
+
+    synchronized (this) {
+      for (String id : ids) {
+        SimulatedInstance instance = instances.get(id);
+        if (instance != null && instance.markDeleted(now)) {
+          liveInstanceCount--;
+          deleted.add(instance);
+        }
+      }
+      if (liveInstanceCount == 0) {
+        closePort();
+      }
+    }
+  }
+
+  /**
+   * Gets the number of instances the cloud knows of, including deleted instances
+   * that have not been forgotten yet.
+   */
+  int getKnownInstanceCount() {
+    return instances.size();
+  }
+
+  /**
+   * Stops accepting connections and forgets all instances.
+   */
+  synchronized void shutdown() {
+    instances.clear();
+    deleted.clear();
+    liveInstanceCount = 0;
+    closePort();
+  }
+
+  /**
+   * Forgets the instances that have been DELETED for longer than the retention
+   * time, whether or not their status was read since.
+   */
+  private void purgeDeleted(long nowNanos) {
+    long ageNanos = TimeUnit.MILLISECONDS.toNanos(
+        settings.getDeletionTimeMillis() + deletedRetentionMillis);
+    SimulatedInstance instance;
+    while ((instance = deleted.peek()) != null && instance.isDeletedFor(nowNanos, ageNanos)) {
+      if (deleted.remove(instance)) {
+        instances.remove(instance.getId(), instance);
+      }
+    }
+  }
+
+  // guarded by this
+  private void openPort() {
+    InetSocketAddress address =
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), settings.getPort());
+    try {
+      server = FakeDatabaseServer.start(address, settings.getDatabaseProtocol(),
+          settings.getSessionDelayMillis());
+    } catch (IOException e) {
+      throw new UnrecoverableProviderException("Unable to listen on " + address, e);
+    }
+    LOG.info("Simulated instances accept connections on " + address);
+  }
+
+  // guarded by this
+  private void closePort() {
+    if (server != null) {
+      server.close();
+      server = null;
+    }
+  }
+}
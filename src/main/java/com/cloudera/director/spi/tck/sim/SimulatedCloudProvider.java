@@ -0,0 +1,54 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.sim;
+
+import com.cloudera.director.spi.v2.model.ConfigurationProperty;
+import com.cloudera.director.spi.v2.model.Configured;
+import com.cloudera.director.spi.v2.model.LocalizationContext;
+import com.cloudera.director.spi.v2.provider.CloudProviderMetadata;
+import com.cloudera.director.spi.v2.provider.ResourceProvider;
+import com.cloudera.director.spi.v2.provider.ResourceProviderMetadata;
+import com.cloudera.director.spi.v2.provider.util.AbstractCloudProvider;
+import com.cloudera.director.spi.v2.provider.util.SimpleCloudProviderMetadataBuilder;
+import com.cloudera.director.spi.v2.provider.util.SimpleCredentialsProviderMetadata;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * The simulated cloud provider, with a compute provider and a database server
+ * provider that share the same simulated cloud.
+ */
+class SimulatedCloudProvider extends AbstractCloudProvider {
+
+  static final String ID = "simulated";
+
+  static final CloudProviderMetadata METADATA = new SimpleCloudProviderMetadataBuilder()
+      .id(ID)
+      .name("Simulated")
+      .description("A simulated cloud for offline runs of the TCK")
+      .configurationProperties(Collections.<ConfigurationProperty>emptyList())
+      .credentialsProviderMetadata(
+          new SimpleCredentialsProviderMetadata(Collections.<ConfigurationProperty>emptyList()))
+      .resourceProviderMetadata(Arrays.<ResourceProviderMetadata>asList(
+          SimulatedComputeProvider.METADATA, SimulatedDatabaseServerProvider.METADATA))
+      .build();
+
+  private final SimulatedCloud cloud;
+
+  SimulatedCloudProvider(SimulatedCloud cloud, LocalizationContext rootLocalizationContext) {
+    super(METADATA, rootLocalizationContext);
+    this.cloud = cloud;
+  }
+
+  @Override
+  public ResourceProvider createResourceProvider(String resourceProviderId,
+      Configured configuration) {
+    if (SimulatedComputeProvider.ID.equals(resourceProviderId)) {
+      return new SimulatedComputeProvider(cloud, configuration, getLocalizationContext());
+    } else if (SimulatedDatabaseServerProvider.ID.equals(resourceProviderId)) {
+      return new SimulatedDatabaseServerProvider(cloud, configuration, getLocalizationContext());
+    }
+    throw new IllegalArgumentException("Resource provider not found: " + resourceProviderId);
+  }
+}
@@ -0,0 +1,36 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.sim;
+
+import com.cloudera.director.spi.v2.compute.ComputeInstanceTemplate;
+import com.cloudera.director.spi.v2.compute.util.AbstractComputeInstance;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A simulated compute instance, at the loopback address.
+ */
+class SimulatedComputeInstance
+    extends AbstractComputeInstance<ComputeInstanceTemplate, SimulatedInstance> {
+
+  SimulatedComputeInstance(ComputeInstanceTemplate template, SimulatedInstance instance) {
+    super(template, instance.getId(), instance);
+  }
+
+  @Override
+  public InetAddress getPrivateIpAddress() {
+    return InetAddress.getLoopbackAddress();
+  }
+
+  @Override
+  public Map<String, String> getProperties() {
+    return Collections.emptyMap();
+  }
+
+  @Override
+  public String toString() {
+    return "SimulatedComputeInstance{id='" + getId() + "'}";
+  }
+}
@@ -0,0 +1,101 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.sim;
+
+import com.cloudera.director.spi.v2.compute.ComputeInstanceTemplate;
+import com.cloudera.director.spi.v2.compute.util.AbstractComputeProvider;
+import com.cloudera.director.spi.v2.model.ConfigurationProperty;
+import com.cloudera.director.spi.v2.model.Configured;
+import com.cloudera.director.spi.v2.model.InstanceState;
+import com.cloudera.director.spi.v2.model.LocalizationContext;
+import com.cloudera.director.spi.v2.provider.ResourceProviderMetadata;
+import com.cloudera.director.spi.v2.provider.util.SimpleResourceProviderMetadata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compute provider of the simulated cloud.
+ */
+class SimulatedComputeProvider
+    extends AbstractComputeProvider<SimulatedComputeInstance, ComputeInstanceTemplate> {
+
+  static final String ID = "compute";
+
+  static final ResourceProviderMetadata METADATA = SimpleResourceProviderMetadata.builder()
+      .id(ID)
+      .name("Simulated compute")
+      .description("Simulated compute instances")
+      .providerClass(SimulatedComputeProvider.class)
+      .providerConfigurationProperties(Collections.<ConfigurationProperty>emptyList())
+      .resourceTemplateConfigurationProperties(ComputeInstanceTemplate.getConfigurationProperties())
+      .build();
+
+  private final SimulatedCloud cloud;
+
+  SimulatedComputeProvider(SimulatedCloud cloud, Configured configuration,
+      LocalizationContext cloudLocalizationContext) {
+    super(configuration, METADATA, cloudLocalizationContext);
+    this.cloud = cloud;
+  }
+
+  @Override
+  public ComputeInstanceTemplate createResourceTemplate(String name, Configured configuration,
+      Map<String, String> tags) {
+    return new ComputeInstanceTemplate(name, configuration, tags, getLocalizationContext());
+  }
+
+  @Override
+  public Collection<SimulatedComputeInstance> allocate(ComputeInstanceTemplate template,
+      Collection<String> instanceIds, int minCount) throws InterruptedException {
+    return wrap(template, cloud.allocate(instanceIds, minCount));
+  }
+
+  @Override
+  public Collection<SimulatedComputeInstance> find(ComputeInstanceTemplate template,
+      Collection<String> instanceIds) throws InterruptedException {
+    return wrap(template, cloud.find(instanceIds));
+  }
+
+  @Override
+  public Map<String, InstanceState> getInstanceState(ComputeInstanceTemplate template,
+      Collection<String> instanceIds) {
+    try {
+      return cloud.getInstanceStates(instanceIds);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while getting instance states", e);
+    }
+  }
+
+  @Override
+  public void delete(ComputeInstanceTemplate template, Collection<String> instanceIds)
+      throws InterruptedException {
+    cloud.delete(instanceIds);
+  }
+
+  @Override
+  public Map<String, Set<String>> getHostKeyFingerprints(ComputeInstanceTemplate template,
+      Collection<String> instanceIds) throws InterruptedException {
+    Map<String, Set<String>> fingerprints = new LinkedHashMap<String, Set<String>>();
+    for (SimulatedInstance instance : cloud.find(instanceIds)) {
+      fingerprints.put(instance.getId(), Collections.singleton(instance.getHostKeyFingerprint()));
+    }
+    return fingerprints;
+  }
+
+  private static List<SimulatedComputeInstance> wrap(ComputeInstanceTemplate template,
+      List<SimulatedInstance> instances) {
+    List<SimulatedComputeInstance> computeInstances =
+        new ArrayList<SimulatedComputeInstance>(instances.size());
+    for (SimulatedInstance instance : instances) {
+      computeInstances.add(new SimulatedComputeInstance(template, instance));
+    }
+    return computeInstances;
+  }
+}
@@ -0,0 +1,45 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.sim;
+
+import com.cloudera.director.spi.v2.database.DatabaseServerInstanceTemplate;
+import com.cloudera.director.spi.v2.database.util.AbstractDatabaseServerInstance;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A simulated database server instance, at the loopback address.
+ */
+class SimulatedDatabaseServerInstance
+    extends AbstractDatabaseServerInstance<DatabaseServerInstanceTemplate, SimulatedInstance> {
+
+  private final int port;
+
+  SimulatedDatabaseServerInstance(DatabaseServerInstanceTemplate template,
+      SimulatedInstance instance, int port) {
+    super(template, instance.getId(), instance);
+    this.port = port;
+  }
+
+  @Override
+  public InetAddress getPrivateIpAddress() {
+    return InetAddress.getLoopbackAddress();
+  }
+
+  @Override
+  public Integer getPort() {
+    return port;
+  }
+
+  @Override
+  public Map<String, String> getProperties() {
+    return Collections.emptyMap();
+  }
+
+  @Override
+  public String toString() {
+    return "SimulatedDatabaseServerInstance{id='" + getId() + "'}";
+  }
+}
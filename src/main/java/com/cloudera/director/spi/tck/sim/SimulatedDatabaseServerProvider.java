@@ -0,0 +1,95 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.sim;
+
+import com.cloudera.director.spi.v2.database.DatabaseServerInstanceTemplate;
+import com.cloudera.director.spi.v2.database.util.AbstractDatabaseServerProvider;
+import com.cloudera.director.spi.v2.model.ConfigurationProperty;
+import com.cloudera.director.spi.v2.model.Configured;
+import com.cloudera.director.spi.v2.model.InstanceState;
+import com.cloudera.director.spi.v2.model.LocalizationContext;
+import com.cloudera.director.spi.v2.provider.ResourceProviderMetadata;
+import com.cloudera.director.spi.v2.provider.util.SimpleResourceProviderMetadata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Database server provider of the simulated cloud. Database servers listen on the
+ * same port as all other simulated instances.
+ */
+class SimulatedDatabaseServerProvider extends AbstractDatabaseServerProvider<
+    SimulatedDatabaseServerInstance, DatabaseServerInstanceTemplate> {
+
+  static final String ID = "database";
+
+  static final ResourceProviderMetadata METADATA = SimpleResourceProviderMetadata.builder()
+      .id(ID)
+      .name("Simulated database")
+      .description("Simulated database servers")
+      .providerClass(SimulatedDatabaseServerProvider.class)
+      .providerConfigurationProperties(Collections.<ConfigurationProperty>emptyList())
+      .resourceTemplateConfigurationProperties(
+          DatabaseServerInstanceTemplate.getConfigurationProperties())
+      .build();
+
+  private final SimulatedCloud cloud;
+
+  SimulatedDatabaseServerProvider(SimulatedCloud cloud, Configured configuration,
+      LocalizationContext cloudLocalizationContext) {
+    super(configuration, METADATA, cloudLocalizationContext);
+    this.cloud = cloud;
+  }
+
+  @Override
+  public DatabaseServerInstanceTemplate createResourceTemplate(String name,
+      Configured configuration, Map<String, String> tags) {
+    return new DatabaseServerInstanceTemplate(name, configuration, tags,
+        getLocalizationContext());
+  }
+
+  @Override
+  public Collection<SimulatedDatabaseServerInstance> allocate(
+      DatabaseServerInstanceTemplate template, Collection<String> instanceIds, int minCount)
+      throws InterruptedException {
+    return wrap(template, cloud.allocate(instanceIds, minCount));
+  }
+
+  @Override
+  public Collection<SimulatedDatabaseServerInstance> find(
+      DatabaseServerInstanceTemplate template, Collection<String> instanceIds)
+      throws InterruptedException {
+    return wrap(template, cloud.find(instanceIds));
+  }
+
+  @Override
+  public Map<String, InstanceState> getInstanceState(DatabaseServerInstanceTemplate template,
+      Collection<String> instanceIds) {
+    try {
+      return cloud.getInstanceStates(instanceIds);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while getting instance states", e);
+    }
+  }
+
+  @Override
+  public void delete(DatabaseServerInstanceTemplate template, Collection<String> instanceIds)
+      throws InterruptedException {
+    cloud.delete(instanceIds);
+  }
+
+  private List<SimulatedDatabaseServerInstance> wrap(DatabaseServerInstanceTemplate template,
+      List<SimulatedInstance> instances) {
+    int port = cloud.getSettings().getPort();
+    List<SimulatedDatabaseServerInstance> databaseServerInstances =
+        new ArrayList<SimulatedDatabaseServerInstance>(instances.size());
+    for (SimulatedInstance instance : instances) {
+      databaseServerInstances.add(new SimulatedDatabaseServerInstance(template, instance, port));
+    }
+    return databaseServerInstances;
+  }
+}
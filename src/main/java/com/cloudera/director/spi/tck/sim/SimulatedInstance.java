@@ -0,0 +1,90 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.sim;
+
+import com.cloudera.director.spi.v2.model.InstanceStatus;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An instance of the simulated cloud, which serves as the details of the compute and
+ * database server instances returned to the TCK.
+ */
+final class SimulatedInstance {
+
+  private static final long NOT_DELETED = -1;
+
+  private final String id;
+  private final long allocatedAtNanos;
+  private final boolean failsToStart;
+  private volatile long deletedAtNanos = NOT_DELETED;
+
+  SimulatedInstance(String id, long allocatedAtNanos, boolean failsToStart) {
+    this.id = id;
+    this.allocatedAtNanos = allocatedAtNanos;
+    this.failsToStart = failsToStart;
+  }
+
+  String getId() {
+    return id;
+  }
+
+  /**
+   * Computes the status of the instance at a point in time.
+   *
+   * @param nowNanos the point in time, from {@link System#nanoTime()}
+   * @param settings the simulation settings
+   * @return the status of the instance
+   */
+  InstanceStatus getStatus(long nowNanos, SimulationSettings settings) {
+    long deletedAt = deletedAtNanos;
+    if (deletedAt != NOT_DELETED) {
+      return (nowNanos - deletedAt >=
+          TimeUnit.MILLISECONDS.toNanos(settings.getDeletionTimeMillis())) ?
+          InstanceStatus.DELETED : InstanceStatus.DELETING;
+    }
+    if (nowNanos - allocatedAtNanos <
+        TimeUnit.MILLISECONDS.toNanos(settings.getPendingTimeMillis())) {
+      return InstanceStatus.PENDING;
+    }
+    return failsToStart ? InstanceStatus.FAILED : InstanceStatus.RUNNING;
+  }
+
+  /**
+   * Marks the instance as deleted, unless it already was.
+   *
+   * @param nowNanos the time of the deletion, from {@link System#nanoTime()}
+   * @return true if the instance was not deleted yet
+   */
+  synchronized boolean markDeleted(long nowNanos) {
+    if (deletedAtNanos != NOT_DELETED) {
+      return false;
+    }
+    deletedAtNanos = nowNanos;
+    return true;
+  }
+
+  /**
+   * Tells whether the instance was marked as deleted at least some time ago.
+   *
+   * @param nowNanos      the current time, from {@link System#nanoTime()}
+   * @param durationNanos the time since the deletion
+   * @return true if the instance was deleted at least that long ago
+   */
+  boolean isDeletedFor(long nowNanos, long durationNanos) {
+    long deletedAt = deletedAtNanos;
+    return deletedAt != NOT_DELETED && nowNanos - deletedAt >= durationNanos;
+  }
+
+  /**
+   * Gets a fingerprint of the simulated host key, stable for the instance.
+   */
+  String getHostKeyFingerprint() {
+    return String.format("SHA256:simulated-%08x", id.hashCode());
+  }
+
+  @Override
+  public String toString() {
+    return "SimulatedInstance{id='" + id + "'}";
+  }
+}
@@ -0,0 +1,64 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.sim;
+
+import com.cloudera.director.spi.v2.common.http.HttpProxyParameters;
+import com.cloudera.director.spi.v2.model.Configured;
+import com.cloudera.director.spi.v2.model.util.DefaultLocalizationContext;
+import com.cloudera.director.spi.v2.provider.CloudProvider;
+import com.cloudera.director.spi.v2.provider.util.AbstractLauncher;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Launcher of a simulated cloud with compute and database server instances, to
+ * run the TCK without a real plugin or cloud account. This is useful to benchmark
+ * and profile the TCK itself, and to try out a TCK configuration offline.
+ * <p/>
+ * The behavior of the simulated cloud is read from {@code simulation.conf} in the
+ * configuration directory; see {@link SimulationSettings}.
+ */
+public class SimulatedLauncher extends AbstractLauncher {
+
+  private static final Logger LOG = Logger.getLogger(SimulatedLauncher.class.getName());
+
+  private volatile SimulatedCloud cloud;
+
+  public SimulatedLauncher() {
+    super(Collections.singletonList(SimulatedCloudProvider.METADATA),
+        new DefaultLocalizationContext.Factory());
+  }
+
+  @Override
+  public void initialize(File configurationDirectory, HttpProxyParameters httpProxyParameters) {
+    SimulationSettings settings =
+        SimulationSettings.fromConfigurationDirectory(configurationDirectory);
+    LOG.info("Simulating a cloud with " + settings);
+    cloud = new SimulatedCloud(settings);
+  }
+
+  @Override
+  public CloudProvider createCloudProvider(String cloudProviderId, Configured configuration,
+      Locale locale) {
+    if (!SimulatedCloudProvider.ID.equals(cloudProviderId)) {
+      throw new IllegalArgumentException("Cloud provider not found: " + cloudProviderId);
+    }
+    if (cloud == null) {
+      throw new IllegalStateException("The launcher has not been initialized");
+    }
+    return new SimulatedCloudProvider(cloud, getLocalizationContext(locale));
+  }
+
+  /**
+   * Forgets all simulated instances and stops accepting connections for them. Safe
+   * to call even if the launcher was never initialized.
+   */
+  public void shutdown() {
+    if (cloud != null) {
+      cloud.shutdown();
+    }
+  }
+}
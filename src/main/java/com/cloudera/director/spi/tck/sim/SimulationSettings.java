@@ -0,0 +1,173 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.sim;
+
+import com.cloudera.director.spi.tck.util.DatabaseProtocolProbe.Protocol;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the simulated cloud behaves, read from an optional {@code simulation.conf}
+ * HOCON file in the plugin configuration directory:
+ * <pre>
+ *   simulation {
+ *     allocationDelay: 50ms       # duration of every allocate call
+ *     stateCallDelay: 1ms         # duration of every other call
+ *     pendingTime: 200ms          # from allocation to RUNNING
+ *     deletionTime: 100ms         # from deletion to DELETED
+ *     allocationFailureRate: 0.0  # fraction of requested instances that are not allocated
+ *     startFailureRate: 0.0       # fraction of allocated instances that end up FAILED
+ *     capacity: 0                 # maximum number of live instances, 0 for no limit
+ *     openPort: true              # accept connections while instances exist
+ *     port: 7222                  # the port, the expected open port of the TCK
+ *     databaseProtocol: none      # handshake on the port: none, mysql or postgresql
+ *     sessionDelay: 0ms           # from opening the port to the first handshake
+ *   }
+ * </pre>
+ */
+final class SimulationSettings {
+
+  static final String SETTINGS_FILE_NAME = "simulation.conf";
+
+  private static final String SETTINGS_SECTION = "simulation";
+
+  private static final Config DEFAULTS = ConfigFactory.parseString(
+      "allocationDelay: 50ms\n" +
+          "stateCallDelay: 1ms\n" +
+          "pendingTime: 200ms\n" +
+          "deletionTime: 100ms\n" +
+          "allocationFailureRate: 0.0\n" +
+          "startFailureRate: 0.0\n" +
+          "capacity: 0\n" +
+          "openPort: true\n" +
+          "port: 7222\n" +
+          "databaseProtocol: none\n" +
+          "sessionDelay: 0ms\n");
+
+  private final long allocationDelayMillis;
+  private final long stateCallDelayMillis;
+  private final long pendingTimeMillis;
+  private final long deletionTimeMillis;
+  private final double allocationFailureRate;
+  private final double startFailureRate;
+  private final int capacity;
+  private final boolean openPort;
+  private final int port;
+  private final Protocol databaseProtocol;
+  private final long sessionDelayMillis;
+
+  /**
+   * Reads the settings from the configuration directory, with defaults for all
+   * missing settings.
+   *
+   * @param configurationDirectory the plugin configuration directory
+   * @return the settings
+   * @throws com.typesafe.config.ConfigException if the settings file is invalid
+   */
+  static SimulationSettings fromConfigurationDirectory(File configurationDirectory) {
+    File settingsFile = new File(configurationDirectory, SETTINGS_FILE_NAME);
+    Config config = settingsFile.isFile() ?
+        ConfigFactory.parseFile(settingsFile).resolve() : ConfigFactory.empty();
+    return fromConfig(config.hasPath(SETTINGS_SECTION) ?
+        config.getConfig(SETTINGS_SECTION) : ConfigFactory.empty());
+  }
+
+  static SimulationSettings fromConfig(Config config) {
+    return new SimulationSettings(config.withFallback(DEFAULTS));
+  }
+
+  private SimulationSettings(Config config) {
+    this.allocationDelayMillis = config.getDuration("allocationDelay", TimeUnit.MILLISECONDS);
+    this.stateCallDelayMillis = config.getDuration("stateCallDelay", TimeUnit.MILLISECONDS);
+    this.pendingTimeMillis = config.getDuration("pendingTime", TimeUnit.MILLISECONDS);
+    this.deletionTimeMillis = config.getDuration("deletionTime", TimeUnit.MILLISECONDS);
+    this.allocationFailureRate = config.getDouble("allocationFailureRate");
+    this.startFailureRate = config.getDouble("startFailureRate");
+    this.capacity = config.getInt("capacity");
+    this.openPort = config.getBoolean("openPort");
+    this.port = config.getInt("port");
+    String protocolName = config.getString("databaseProtocol");
+    this.databaseProtocol = protocolName.equalsIgnoreCase("none") ? null :
+        Protocol.valueOf(protocolName.toUpperCase(Locale.ROOT));
+    this.sessionDelayMillis = config.getDuration("sessionDelay", TimeUnit.MILLISECONDS);
+
+    if (allocationFailureRate < 0 || allocationFailureRate > 1 ||
+        startFailureRate < 0 || startFailureRate > 1) {
+      throw new IllegalArgumentException(String.format(
+          "Failure rates must be between 0 and 1: allocationFailureRate %s, startFailureRate %s",
+          allocationFailureRate, startFailureRate));
+    }
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+    }
+  }
+
+  long getAllocationDelayMillis() {
+    return allocationDelayMillis;
+  }
+
+  long getStateCallDelayMillis() {
+    return stateCallDelayMillis;
+  }
+
+  long getPendingTimeMillis() {
+    return pendingTimeMillis;
+  }
+
+  long getDeletionTimeMillis() {
+    return deletionTimeMillis;
+  }
+
+  double getAllocationFailureRate() {
+    return allocationFailureRate;
+  }
+
+  double getStartFailureRate() {
+    return startFailureRate;
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  boolean isOpenPort() {
+    return openPort;
+  }
+
+  int getPort() {
+    return port;
+  }
+
+  /**
+   * Gets the database protocol spoken on the port, or null if connections are only
+   * accepted.
+   */
+  Protocol getDatabaseProtocol() {
+    return databaseProtocol;
+  }
+
+  long getSessionDelayMillis() {
+    return sessionDelayMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "SimulationSettings{" +
+        "allocationDelayMillis=" + allocationDelayMillis +
+        ", stateCallDelayMillis=" + stateCallDelayMillis +
+        ", pendingTimeMillis=" + pendingTimeMillis +
+        ", deletionTimeMillis=" + deletionTimeMillis +
+        ", allocationFailureRate=" + allocationFailureRate +
+        ", startFailureRate=" + startFailureRate +
+        ", capacity=" + capacity +
+        ", openPort=" + openPort +
+        ", port=" + port +
+        ", databaseProtocol=" + databaseProtocol +
+        ", sessionDelayMillis=" + sessionDelayMillis +
+        '}';
+  }
+}
@@ -0,0 +1,345 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static com.cloudera.director.spi.tck.util.Preconditions.checkNotNull;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigRenderOptions;
+import com.typesafe.config.ConfigValue;
+import com.typesafe.config.ConfigValueFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * An append-only local journal of the instances allocated by the TCK, so that
+ * instances left behind by a TCK process that died can be found and deleted later.
+ * <p/>
+ * Instance IDs are recorded before the allocate call that uses them and recorded
+ * again once they are known to be deleted. Each record is one line of JSON and is
+ * forced to disk before the method that writes it returns. A torn last line, left
+ * by a crash in the middle of a write, is skipped when the journal is read.
+ * <p/>
+ * The journal file is created readable only by its owner, and an open journal holds
+ * a lock on its file, so that a journal is never written by two TCK processes, nor
+ * cleaned up while a run still writes to it. Within one JVM, e.g. in batch mode,
+ * the validations that open the same journal share it.
+ */
+public class AllocationJournal implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(AllocationJournal.class.getName());
+
+  private static final String ALLOCATING = "allocating";
+  private static final String DELETED = "deleted";
+
+  private static final String EVENT = "event";
+  private static final String TIME = "time";
+  private static final String CLOUD_PROVIDER = "cloudProvider";
+  private static final String RESOURCE_PROVIDER = "resourceProvider";
+  private static final String CONFIGS = "configs";
+  private static final String TAGS = "tags";
+  private static final String INSTANCE_IDS = "instanceIds";
+
+  // the journals open in this JVM, by absolute path, guarded by itself
+  private static final Map<Path, AllocationJournal> OPEN_JOURNALS =
+      new HashMap<Path, AllocationJournal>();
+
+  private final File file;
+  private final Path path;
+  private final FileChannel channel;
+
+  // the number of times the journal was opened and not closed, guarded by OPEN_JOURNALS
+  private int openCount;
+
+  /**
+   * Opens a journal for appending, creating it and its parent directories if needed.
+   * A journal that is already open in this JVM is shared, and each call must be
+   * matched with one call to {@link #close()}.
+   *
+   * @param file the journal file
+   * @return the journal
+   * @throws IOException if the journal cannot be opened, or if another process has it
+   *                     open
+   */
+  public static AllocationJournal open(File file) throws IOException {
+    Path path = file.getAbsoluteFile().toPath().normalize();
+    synchronized (OPEN_JOURNALS) {
+      AllocationJournal journal = OPEN_JOURNALS.get(path);
+      if (journal == null) {
+        journal = new AllocationJournal(file, path, openLocked(path));
+        OPEN_JOURNALS.put(path, journal);
+      }
+      journal.openCount++;
+      return journal;
+    }
+  }
+
+  private static FileChannel openLocked(Path path) throws IOException {
+    if (path.getParent() != null) {
+      OwnerOnlyFiles.createDirectories(path.getParent());
+    }
+    FileChannel channel = OwnerOnlyFiles.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    try {
+      FileLock lock;
+      try {
+        lock = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        // locked in this JVM, though not by a journal
+        lock = null;
+      }
+      if (lock == null) {
+        throw new IOException("The allocation journal " + path + " is in use by another " +
+            "TCK process");
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  private AllocationJournal(File file, Path path, FileChannel channel) {
+    this.file = file;
+    this.path = path;
+    this.channel = channel;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Records instance IDs that are about to be allocated.
+   *
+   * @param template    the template the instances are allocated with
+   * @param instanceIds the instance IDs
+   * @throws IOException if the record cannot be written to disk
+   */
+  public void recordAllocating(Template template, Collection<String> instanceIds)
+      throws IOException {
+    append(ALLOCATING, template, instanceIds);
+  }
+
+  /**
+   * Records instance IDs that are known to be deleted, or that were never allocated.
+   *
+   * @param template    the template the instances were allocated with
+   * @param instanceIds the instance IDs
+   * @throws IOException if the record cannot be written to disk
+   */
+  public void recordDeleted(Template template, Collection<String> instanceIds)
+      throws IOException {
+    append(DELETED, template, instanceIds);
+  }
+
+  private synchronized void append(String event, Template template,
+      Collection<String> instanceIds) throws IOException {
+    Map<String, Object> record = new LinkedHashMap<String, Object>();
+    record.put(EVENT, event);
+    record.put(TIME, System.currentTimeMillis());
+    record.put(CLOUD_PROVIDER, template.getCloudProviderId());
+    record.put(RESOURCE_PROVIDER, template.getResourceProviderId());
+    record.put(CONFIGS, template.getConfigs());
+    record.put(TAGS, template.getTags());
+    record.put(INSTANCE_IDS, new ArrayList<String>(instanceIds));
+
+    String line = ConfigValueFactory.fromMap(record).render(ConfigRenderOptions.concise()) + "\n";
+    ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    channel.force(false);
+  }
+
+  /**
+   * Deletes the journal file if it has no leftovers, before the lock is released so
+   * that no other process can write to it in between. The journal must then only be
+   * closed. Nothing is deleted while the journal is also open elsewhere in this JVM.
+   *
+   * @return true if the file was deleted
+   * @throws IOException if the journal cannot be read or deleted
+   */
+  public boolean deleteIfEmpty() throws IOException {
+    synchronized (OPEN_JOURNALS) {
+      if (openCount != 1) {
+        return false;
+      }
+      synchronized (this) {
+        if (!readLeftovers(file).isEmpty()) {
+          return false;
+        }
+        Files.deleteIfExists(path);
+        // later writes fail instead of going to the deleted file
+        channel.close();
+      }
+      OPEN_JOURNALS.remove(path, this);
+    }
+    return true;
+  }
+
+  /**
+   * Closes the journal, and releases its file once it is closed as many times as it
+   * was opened.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (OPEN_JOURNALS) {
+      if (openCount == 0 || --openCount > 0) {
+        return;
+      }
+      OPEN_JOURNALS.remove(path, this);
+    }
+    synchronized (this) {
+      channel.close();
+    }
+  }
+
+  /**
+   * Reads a journal and finds the instances that were allocated but not deleted.
+   *
+   * @param file the journal file
+   * @return the IDs of the instances left behind, by template, in journal order.
+   * Empty if the file does not exist
+   * @throws IOException if the journal cannot be read
+   */
+  public static Map<Template, Set<String>> readLeftovers(File file) throws IOException {
+    Map<Template, Set<String>> leftovers = new LinkedHashMap<Template, Set<String>>();
+    if (!file.isFile()) {
+      return leftovers;
+    }
+
+    List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+
+      Template template;
+      boolean allocating;
+      List<String> instanceIds;
+      try {
+        Config record = ConfigFactory.parseString(line);
+        template = new Template(record.getString(CLOUD_PROVIDER),
+            record.getString(RESOURCE_PROVIDER),
+            toStringMap(record.getObject(CONFIGS).entrySet()),
+            toStringMap(record.getObject(TAGS).entrySet()));
+        allocating = ALLOCATING.equals(record.getString(EVENT));
+        instanceIds = record.getStringList(INSTANCE_IDS);
+      } catch (ConfigException e) {
+        LOG.warning(String.format("Skipping unreadable record at line %d of %s: %s",
+            i + 1, file, e.getMessage()));
+        continue;
+      }
+
+      Set<String> ids = leftovers.get(template);
+      if (ids == null) {
+        ids = new LinkedHashSet<String>();
+        leftovers.put(template, ids);
+      }
+      if (allocating) {
+        ids.addAll(instanceIds);
+      } else {
+        ids.removeAll(instanceIds);
+      }
+    }
+
+    leftovers.values().removeIf(Set::isEmpty);
+    return leftovers;
+  }
+
+  private static Map<String, String> toStringMap(Set<Map.Entry<String, ConfigValue>> entries) {
+    Map<String, String> result = new TreeMap<String, String>();
+    for (Map.Entry<String, ConfigValue> entry : entries) {
+      result.put(entry.getKey(), entry.getValue().unwrapped().toString());
+    }
+    return result;
+  }
+
+  /**
+   * What is needed to create the template of journaled instances again: the cloud
+   * and resource provider IDs, and the configuration and tags of the template.
+   */
+  public static final class Template {
+
+    private final String cloudProviderId;
+    private final String resourceProviderId;
+    private final Map<String, String> configs;
+    private final Map<String, String> tags;
+
+    public Template(String cloudProviderId, String resourceProviderId,
+        Map<String, String> configs, Map<String, String> tags) {
+      this.cloudProviderId = checkNotNull(cloudProviderId, "cloudProviderId is null");
+      this.resourceProviderId = checkNotNull(resourceProviderId, "resourceProviderId is null");
+      this.configs = Collections.unmodifiableMap(new TreeMap<String, String>(configs));
+      this.tags = Collections.unmodifiableMap(new TreeMap<String, String>(tags));
+    }
+
+    public String getCloudProviderId() {
+      return cloudProviderId;
+    }
+
+    public String getResourceProviderId() {
+      return resourceProviderId;
+    }
+
+    public Map<String, String> getConfigs() {
+      return configs;
+    }
+
+    public Map<String, String> getTags() {
+      return tags;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Template that = (Template) o;
+      return cloudProviderId.equals(that.cloudProviderId) &&
+          resourceProviderId.equals(that.resourceProviderId) &&
+          configs.equals(that.configs) &&
+          tags.equals(that.tags);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(cloudProviderId, resourceProviderId, configs, tags);
+    }
+
+    @Override
+    public String toString() {
+      // the configuration may hold secrets, so it is left out
+      return cloudProviderId + "/" + resourceProviderId + " template with tags " + tags;
+    }
+  }
+}
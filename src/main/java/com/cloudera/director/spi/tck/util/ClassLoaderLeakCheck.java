@@ -0,0 +1,131 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static com.cloudera.director.spi.tck.util.DaemonThreadFactory.TCK_THREAD_PREFIX;
+import static com.cloudera.director.spi.tck.util.Preconditions.checkNotNull;
+
+import java.lang.ref.WeakReference;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Logger;
+
+/**
+ * Checks that a plugin class loader can be garbage collected once the TCK is done
+ * with the plugin. Only a weak reference to the class loader is kept, so the check
+ * itself never keeps it alive.
+ * <p/>
+ * A class loader that is not collected keeps all the plugin classes and their
+ * static state in memory. When the TCK runs inside a long-lived process every
+ * validation of such a plugin leaks metaspace.
+ */
+public class ClassLoaderLeakCheck {
+
+  private static final int DEFAULT_GC_ATTEMPTS = 10;
+  private static final long GC_PAUSE_MILLIS = 100;
+
+  private final WeakReference<ClassLoader> classLoaderRef;
+
+  /**
+   * Creates a check for a class loader.
+   *
+   * @param classLoader the plugin class loader
+   */
+  public ClassLoaderLeakCheck(ClassLoader classLoader) {
+    this.classLoaderRef =
+        new WeakReference<ClassLoader>(checkNotNull(classLoader, "classLoader is null"));
+  }
+
+  /**
+   * Returns whether the class loader has been collected.
+   *
+   * @return true if the class loader has been collected
+   */
+  public boolean isCollected() {
+    return classLoaderRef.get() == null;
+  }
+
+  /**
+   * Gets the class loader if it has not been collected yet. Callers must not keep
+   * the returned reference.
+   *
+   * @return the class loader, or null if it has been collected
+   */
+  public ClassLoader getClassLoader() {
+    return classLoaderRef.get();
+  }
+
+  /**
+   * Requests garbage collections until the class loader is collected, using the
+   * default number of attempts.
+   *
+   * @return true if the class loader has been collected
+   * @throws InterruptedException if interrupted while waiting between collections
+   */
+  public boolean awaitCollection() throws InterruptedException {
+    return awaitCollection(DEFAULT_GC_ATTEMPTS);
+  }
+
+  /**
+   * Requests garbage collections until the class loader is collected.
+   *
+   * @param attempts the maximum number of garbage collections to request
+   * @return true if the class loader has been collected
+   * @throws InterruptedException if interrupted while waiting between collections
+   */
+  public boolean awaitCollection(int attempts) throws InterruptedException {
+    for (int i = 0; i < attempts && !isCollected(); i++) {
+      System.gc();
+      if (!isCollected()) {
+        Thread.sleep(GC_PAUSE_MILLIS);
+      }
+    }
+    return isCollected();
+  }
+
+  /**
+   * Finds the usual suspects that keep a class loader alive from outside the plugin:
+   * live threads created by the plugin or running with its class loader as context
+   * class loader, security providers and root log handlers registered by the plugin.
+   * Threads of the TCK itself are not suspects.
+   *
+   * @return a description of each suspect, empty if there is none or the class
+   * loader has been collected
+   */
+  public List<String> findSuspects() {
+    List<String> suspects = new ArrayList<String>();
+    ClassLoader classLoader = classLoaderRef.get();
+    if (classLoader == null) {
+      return suspects;
+    }
+
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith(TCK_THREAD_PREFIX)) {
+        continue;
+      }
+      if (thread.getClass().getClassLoader() == classLoader) {
+        suspects.add(String.format("thread '%s' of plugin class %s",
+            thread.getName(), thread.getClass().getName()));
+      } else if (thread.getContextClassLoader() == classLoader) {
+        suspects.add(String.format("thread '%s' with the plugin context class loader",
+            thread.getName()));
+      }
+    }
+
+    for (Provider provider : Security.getProviders()) {
+      if (provider.getClass().getClassLoader() == classLoader) {
+        suspects.add(String.format("security provider %s", provider.getClass().getName()));
+      }
+    }
+
+    for (Handler handler : Logger.getLogger("").getHandlers()) {
+      if (handler.getClass().getClassLoader() == classLoader) {
+        suspects.add(String.format("root log handler %s", handler.getClass().getName()));
+      }
+    }
+    return suspects;
+  }
+}
@@ -13,22 +13,48 @@ import com.typesafe.config.Config;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
  * Wrap a HOCON config fragment object as an SPI V2 configured object.
+ * <p/>
+ * By default every lookup goes to the underlying config object. A wrapper created
+ * with {@link #snapshot} resolves all the exposed properties once instead, so that
+ * plugins calling {@link #getConfiguration} and {@link #getConfigurationValue} in a
+ * loop get constant time lookups that do not allocate.
  *
  * @see com.typesafe.config.Config
  * @see com.cloudera.director.spi.v2.model.Configured
  */
 public class ConfigFragmentWrapper implements Configured {
 
+  /**
+   * Constructs a new wrapper that resolves all the properties when it is built.
+   * The config object is only used afterwards for properties that were not
+   * declared when the wrapper was built.
+   *
+   * @param config     fragment of a config object
+   * @param components properties that should be exposed
+   *                   from the underlying object
+   * @return the wrapper
+   */
+  public static ConfigFragmentWrapper snapshot(Config config,
+      List<ConfigurationProperty>... components) {
+    return new ConfigFragmentWrapper(config, true, components);
+  }
+
   private final Config config;
   private final List<ConfigurationProperty> properties;
 
+  // resolved values by config key, or null if every lookup goes to the config object
+  private final Map<String, String> values;
+  private final Set<String> missingRequiredProperties;
+
   /**
    * Constructs a new wrapper around a config instance.
    *
@@ -37,8 +63,56 @@ public class ConfigFragmentWrapper implements Configured {
    *                   from the underlying object
    */
   public ConfigFragmentWrapper(Config config, List<ConfigurationProperty>... components) {
+    this(config, false, components);
+  }
+
+  private ConfigFragmentWrapper(Config config, boolean snapshot,
+      List<ConfigurationProperty>... components) {
     this.config = checkNotNull(config, "config is null");
     this.properties = ConfigurationPropertiesUtil.merge(components);
+
+    Set<String> missing = new LinkedHashSet<String>();
+    if (snapshot) {
+      Map<String, String> resolved = new HashMap<String, String>(properties.size() * 4 / 3 + 1);
+      for (ConfigurationProperty property : properties) {
+        String configKey = property.getConfigKey();
+        if (config.hasPath(configKey)) {
+          resolved.put(configKey, config.getString(configKey));
+        } else if (property.isRequired()) {
+          missing.add(configKey);
+        } else {
+          resolved.put(configKey, property.getDefaultValue());
+        }
+      }
+      this.values = Collections.unmodifiableMap(resolved);
+    } else {
+      for (ConfigurationProperty property : properties) {
+        if (property.isRequired() && !config.hasPath(property.getConfigKey())) {
+          missing.add(property.getConfigKey());
+        }
+      }
+      this.values = null;
+    }
+    this.missingRequiredProperties = Collections.unmodifiableSet(missing);
+  }
+
+  /**
+   * Returns whether all the properties were resolved when this wrapper was built.
+   *
+   * @return true if this wrapper is a snapshot
+   */
+  public boolean isSnapshot() {
+    return values != null;
+  }
+
+  /**
+   * Gets the config keys of the required properties that are not set, in
+   * declaration order.
+   *
+   * @return the config keys of the missing required properties
+   */
+  public Set<String> getMissingRequiredProperties() {
+    return missingRequiredProperties;
   }
 
   /**
@@ -50,6 +124,10 @@ public class ConfigFragmentWrapper implements Configured {
   @Override
   @SuppressWarnings("PMD.EmptyCatchBlock")
   public Map<String, String> getConfiguration(LocalizationContext localizationContext) {
+    if (values != null) {
+      return values;
+    }
+
     Map<String, String> result = new HashMap<String, String>();
     for (ConfigurationProperty property : properties) {
       try {
@@ -81,6 +159,16 @@ public class ConfigFragmentWrapper implements Configured {
                                       LocalizationContext localizationContext) {
     String configKey = property.getConfigKey();
 
+    if (values != null) {
+      String value = values.get(configKey);
+      if (value != null || values.containsKey(configKey)) {
+        return value;
+      } else if (missingRequiredProperties.contains(configKey)) {
+        throw new NoSuchElementException(property.getMissingValueErrorMessage(localizationContext));
+      }
+      // not declared when this wrapper was built, fall back to the config object
+    }
+
     if (config.hasPath(configKey)) {
       return config.getString(configKey);
 
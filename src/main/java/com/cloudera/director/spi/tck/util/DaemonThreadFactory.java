@@ -0,0 +1,43 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static com.cloudera.director.spi.tck.util.Preconditions.checkNotNull;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so that TCK background work never keeps the JVM alive.
+ * The threads run with the TCK class loader as context class loader, whichever thread
+ * starts them: pools start their threads on demand, often from a thread that calls
+ * into a plugin with the plugin class loader, which a TCK thread must not keep alive.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+  /**
+   * The prefix of the names of all the threads that the TCK starts, which tells them
+   * apart from the threads of the plugin.
+   */
+  public static final String TCK_THREAD_PREFIX = "tck-";
+
+  private final String namePrefix;
+  private final AtomicInteger counter = new AtomicInteger();
+
+  /**
+   * Creates a new thread factory.
+   *
+   * @param namePrefix the prefix for thread names, followed by a sequence number
+   */
+  public DaemonThreadFactory(String namePrefix) {
+    this.namePrefix = checkNotNull(namePrefix, "namePrefix is null");
+  }
+
+  @Override
+  public Thread newThread(Runnable runnable) {
+    Thread thread = new Thread(runnable, namePrefix + "-" + counter.incrementAndGet());
+    thread.setDaemon(true);
+    thread.setContextClassLoader(DaemonThreadFactory.class.getClassLoader());
+    return thread;
+  }
+}
@@ -0,0 +1,272 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static com.cloudera.director.spi.tck.util.Preconditions.checkNotNull;
+
+import com.cloudera.director.spi.tck.Summary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Checks that a database server accepts sessions, not only TCP connections, by
+ * reading the first bytes of its wire protocol. No credentials are needed:
+ * <ul>
+ * <li>a MySQL server greets every new connection with a handshake packet (or an
+ * error packet if it refuses the client), which is read and checked;</li>
+ * <li>a PostgreSQL server answers a startup message with an authentication request
+ * once it accepts sessions. An error response also shows that it does, e.g. for an
+ * unknown user, unless its SQLSTATE is {@value #POSTGRESQL_CANNOT_CONNECT_NOW}, which
+ * a server that is starting up, shutting down or recovering sends.</li>
+ * </ul>
+ * A server whose port is open but that is still starting up usually closes the
+ * connection, says nothing or refuses sessions, which this probe tells apart from
+ * a server that is ready.
+ */
+public class DatabaseProtocolProbe {
+
+  private static final Logger LOG = Logger.getLogger(DatabaseProtocolProbe.class.getName());
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+  private static final int READ_TIMEOUT_MILLIS = 5000;
+
+  /**
+   * The database wire protocols the probe understands.
+   */
+  public enum Protocol {
+    MYSQL,
+    POSTGRESQL;
+
+    /**
+     * Gets the protocol of a database type, as named in database server templates.
+     *
+     * @param databaseType the database type, like {@code MYSQL} or {@code POSTGRES}
+     * @return the protocol
+     * @throws IllegalArgumentException if the probe does not understand the database type
+     */
+    public static Protocol fromDatabaseType(String databaseType) {
+      String type = databaseType.trim().toUpperCase(Locale.ROOT);
+      if (type.equals("MYSQL") || type.equals("MARIADB") || type.equals("AURORA")) {
+        return MYSQL;
+      } else if (type.equals("POSTGRES") || type.equals("POSTGRESQL")) {
+        return POSTGRESQL;
+      }
+      throw new IllegalArgumentException("No protocol probe for database type: " + databaseType);
+    }
+  }
+
+  /**
+   * The version 3.0 of the PostgreSQL protocol, as sent in startup messages.
+   */
+  static final int POSTGRESQL_PROTOCOL_V3 = 196608;
+
+  /**
+   * The SQLSTATE of the PostgreSQL error that refuses sessions while the server
+   * starts up, shuts down or recovers.
+   */
+  public static final String POSTGRESQL_CANNOT_CONNECT_NOW = "57P03";
+
+  /**
+   * The user and database the PostgreSQL startup message asks for. The session is
+   * never authenticated, so they do not need to exist.
+   */
+  static final String POSTGRESQL_USER = "director-spi-tck";
+  static final String POSTGRESQL_DATABASE = "postgres";
+
+  // error responses are short, so anything longer is not PostgreSQL
+  private static final int POSTGRESQL_MAX_MESSAGE_LENGTH = 64 * 1024;
+
+  /**
+   * The protocol version of the MySQL handshake packet.
+   */
+  static final int MYSQL_HANDSHAKE_V10 = 0x0a;
+
+  private static final int MYSQL_ERROR_PACKET = 0xff;
+
+  private final Protocol protocol;
+
+  public DatabaseProtocolProbe(Protocol protocol) {
+    this.protocol = checkNotNull(protocol, "protocol is null");
+  }
+
+  public Protocol getProtocol() {
+    return protocol;
+  }
+
+  /**
+   * Connects once and reads the first response of the server.
+   *
+   * @param address the address of the server
+   * @return a description of the response
+   * @throws IOException if the connection fails, or if the server does not respond
+   *                     with valid protocol bytes
+   */
+  public String probe(InetSocketAddress address) throws IOException {
+    try (Socket socket = new Socket()) {
+      socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+      socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+
+      if (protocol == Protocol.MYSQL) {
+        return readMySqlGreeting(in);
+      }
+
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.write(postgreSqlStartupMessage());
+      out.flush();
+      return readPostgreSqlStartupResponse(in);
+    }
+  }
+
+  /**
+   * Builds a PostgreSQL protocol 3.0 startup message.
+   */
+  static byte[] postgreSqlStartupMessage() {
+    ByteArrayOutputStream parameters = new ByteArrayOutputStream();
+    for (String value : new String[]{"user", POSTGRESQL_USER, "database", POSTGRESQL_DATABASE}) {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      parameters.write(bytes, 0, bytes.length);
+      parameters.write(0);
+    }
+    parameters.write(0);
+
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(message);
+    try {
+      out.writeInt(8 + parameters.size());
+      out.writeInt(POSTGRESQL_PROTOCOL_V3);
+      parameters.writeTo(out);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to write to memory", e);
+    }
+    return message.toByteArray();
+  }
+
+  private static String readPostgreSqlStartupResponse(DataInputStream in) throws IOException {
+    int type = in.read();
+    if (type < 0) {
+      throw new EOFException("Connection closed before a response");
+    }
+    if (type != 'R' && type != 'E') {
+      throw new ProtocolException("Unexpected response to a PostgreSQL startup message: " +
+          type);
+    }
+    int length = in.readInt();
+    if (length < 4 || length > POSTGRESQL_MAX_MESSAGE_LENGTH) {
+      throw new ProtocolException("Unexpected PostgreSQL message length: " + length);
+    }
+    byte[] body = new byte[length - 4];
+    in.readFully(body);
+
+    if (type == 'R') {
+      if (body.length < 4) {
+        throw new ProtocolException("Truncated PostgreSQL authentication request");
+      }
+      int code = (body[0] & 0xff) << 24 | (body[1] & 0xff) << 16 | (body[2] & 0xff) << 8 |
+          (body[3] & 0xff);
+      return "PostgreSQL authentication request " + code;
+    }
+
+    // error fields: a one byte type and a null terminated string each, then a zero
+    String sqlState = null;
+    String message = null;
+    int start = 0;
+    while (start < body.length && body[start] != 0) {
+      int end = start + 1;
+      while (end < body.length && body[end] != 0) {
+        end++;
+      }
+      String value = new String(body, start + 1, end - start - 1, StandardCharsets.UTF_8);
+      if (body[start] == 'C') {
+        sqlState = value;
+      } else if (body[start] == 'M') {
+        message = value;
+      }
+      start = end + 1;
+    }
+    if (POSTGRESQL_CANNOT_CONNECT_NOW.equals(sqlState)) {
+      throw new IOException("PostgreSQL server does not accept sessions yet: " + message);
+    }
+    // the server is up, but refuses this client, which is enough to know it is ready
+    return String.format("PostgreSQL error %s: %s", sqlState, message);
+  }
+
+  private static String readMySqlGreeting(DataInputStream in) throws IOException {
+    int length = in.readUnsignedByte() | in.readUnsignedByte() << 8 | in.readUnsignedByte() << 16;
+    int sequence = in.readUnsignedByte();
+    if (length < 1 || sequence != 0) {
+      throw new ProtocolException(String.format(
+          "Unexpected MySQL packet header: length %d, sequence %d", length, sequence));
+    }
+
+    int kind = in.readUnsignedByte();
+    if (kind == MYSQL_ERROR_PACKET) {
+      // the server is up, but refuses this client, which is enough to know it is ready
+      int code = in.readUnsignedByte() | in.readUnsignedByte() << 8;
+      return "MySQL error packet " + code;
+    }
+    if (kind != MYSQL_HANDSHAKE_V10) {
+      throw new ProtocolException("Unexpected MySQL protocol version: " + kind);
+    }
+
+    ByteArrayOutputStream serverVersion = new ByteArrayOutputStream();
+    for (int i = 1; i < length; i++) {
+      int b = in.readUnsignedByte();
+      if (b == 0) {
+        break;
+      }
+      serverVersion.write(b);
+    }
+    return "MySQL handshake from server version " +
+        new String(serverVersion.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Probes a server until it responds.
+   *
+   * @param summary       a summary of errors and warnings that will be updated
+   * @param address       the address of the server
+   * @param pollingPolicy the policy for delays between attempts and the timeout
+   * @return the number of milliseconds it took for the server to respond, or -1 if it
+   * did not
+   * @throws InterruptedException if interrupted between attempts
+   */
+  public long waitForResponse(Summary summary, InetSocketAddress address,
+      PollingPolicy pollingPolicy) throws InterruptedException {
+
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    int attempts = 0;
+    IOException lastFailure = null;
+
+    while (stopwatch.elapsed(TimeUnit.MILLISECONDS) < pollingPolicy.getTimeoutMillis()) {
+      attempts++;
+      try {
+        String response = probe(address);
+        long millis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+        LOG.info(String.format("Got %s from %s after %d attempts in %d ms", response, address,
+            attempts, millis));
+        return millis;
+
+      } catch (IOException e) {
+        lastFailure = e;
+        PollingPolicies.sleepBeforeNextPoll(pollingPolicy, attempts, stopwatch);
+      }
+    }
+
+    summary.addError("No %s protocol response from %s after %s seconds (%d attempts): %s",
+        protocol, address, TimeUnit.MILLISECONDS.toSeconds(pollingPolicy.getTimeoutMillis()),
+        attempts, lastFailure);
+    return -1;
+  }
+}
@@ -0,0 +1,83 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import java.util.Random;
+
+/**
+ * A polling policy that polls quickly for a few attempts and then backs off
+ * exponentially, up to a maximum delay. Delays are randomized by a jitter factor so
+ * that many waits started at the same time do not poll in lockstep.
+ * <p/>
+ * Fast plugins are noticed soon after they are ready, while slow plugins are not
+ * polled more often than once every maximum delay.
+ */
+public class ExponentialBackoffPollingPolicy implements PollingPolicy {
+
+  private final long initialDelayMillis;
+  private final int fastAttempts;
+  private final double multiplier;
+  private final long maxDelayMillis;
+  private final double jitter;
+  private final long timeoutMillis;
+  private final Random random;
+
+  /**
+   * Creates a new exponential backoff polling policy.
+   *
+   * @param initialDelayMillis the delay during the fast initial phase
+   * @param fastAttempts       the number of polls made with the initial delay
+   * @param multiplier         the growth factor of the delay after the fast phase
+   * @param maxDelayMillis     the cap for the delay
+   * @param jitter             the maximum fraction by which a delay is randomly
+   *                           shortened or lengthened, between 0 and 1
+   * @param timeoutMillis      how long to keep polling
+   * @param random             the source of randomness for the jitter
+   * @throws IllegalArgumentException if any argument is out of range
+   */
+  public ExponentialBackoffPollingPolicy(long initialDelayMillis, int fastAttempts,
+      double multiplier, long maxDelayMillis, double jitter, long timeoutMillis, Random random) {
+    if (initialDelayMillis < 0 || fastAttempts < 0 || maxDelayMillis < initialDelayMillis ||
+        timeoutMillis < 0) {
+      throw new IllegalArgumentException("Invalid polling delays or timeout");
+    }
+    if (multiplier < 1) {
+      throw new IllegalArgumentException("Backoff multiplier must be at least 1: " + multiplier);
+    }
+    if (jitter < 0 || jitter > 1) {
+      throw new IllegalArgumentException("Jitter must be between 0 and 1: " + jitter);
+    }
+    this.initialDelayMillis = initialDelayMillis;
+    this.fastAttempts = fastAttempts;
+    this.multiplier = multiplier;
+    this.maxDelayMillis = maxDelayMillis;
+    this.jitter = jitter;
+    this.timeoutMillis = timeoutMillis;
+    this.random = Preconditions.checkNotNull(random, "random is null");
+  }
+
+  @Override
+  public long getDelayMillis(int attempt) {
+    double delay = initialDelayMillis;
+    if (attempt > fastAttempts) {
+      delay = Math.min(maxDelayMillis,
+          initialDelayMillis * Math.pow(multiplier, attempt - fastAttempts));
+    }
+    if (jitter > 0) {
+      delay = delay * (1 - jitter + 2 * jitter * random.nextDouble());
+    }
+    return Math.min(maxDelayMillis, Math.round(delay));
+  }
+
+  @Override
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d ms between the first %d checks, then backing off by %.1fx " +
+            "up to %d ms, %d seconds timeout",
+        initialDelayMillis, fastAttempts, multiplier, maxDelayMillis, timeoutMillis / 1000);
+  }
+}
@@ -0,0 +1,43 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+/**
+ * A polling policy that always waits the same amount of time between polls.
+ */
+public class FixedIntervalPollingPolicy implements PollingPolicy {
+
+  private final long intervalMillis;
+  private final long timeoutMillis;
+
+  /**
+   * Creates a new fixed interval polling policy.
+   *
+   * @param intervalMillis the delay between two polls
+   * @param timeoutMillis  how long to keep polling
+   * @throws IllegalArgumentException if any argument is negative
+   */
+  public FixedIntervalPollingPolicy(long intervalMillis, long timeoutMillis) {
+    if (intervalMillis < 0 || timeoutMillis < 0) {
+      throw new IllegalArgumentException("Polling interval and timeout must not be negative");
+    }
+    this.intervalMillis = intervalMillis;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  @Override
+  public long getDelayMillis(int attempt) {
+    return intervalMillis;
+  }
+
+  @Override
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d ms between checks, %d seconds timeout",
+        intervalMillis, timeoutMillis / 1000);
+  }
+}
@@ -0,0 +1,305 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static com.cloudera.director.spi.tck.util.Preconditions.checkNotNull;
+
+import com.cloudera.director.spi.v2.model.InstanceState;
+import com.cloudera.director.spi.v2.model.InstanceStatus;
+import com.cloudera.director.spi.v2.model.InstanceTemplate;
+import com.cloudera.director.spi.v2.provider.InstanceProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Waits for instances to reach target statuses. All the outstanding instance IDs
+ * for the same instance provider and template are merged into a single
+ * {@link InstanceProvider#getInstanceState} call per tick, so the number of calls
+ * stays flat no matter how many instances are tracked.
+ * <p/>
+ * Each wait is a future that completes with the status that was reached. It fails
+ * with a {@link TimeoutException} when the polling policy timeout expires, with a
+ * {@link NoSuchElementException} when the instance is missing from the states
+ * returned by the plugin, or with the exception thrown by the plugin. An instance
+ * that is {@link InstanceStatus#FAILED FAILED} will never reach another status, so
+ * unless FAILED is one of the expected statuses the wait fails right away with an
+ * {@link IllegalStateException}, instead of polling until the timeout.
+ * <p/>
+ * The group of a provider and template is dropped once its last wait is over, so
+ * templates that are no longer used are not kept alive by the poller.
+ */
+public class InstanceStatusPoller {
+
+  private static final Logger LOG = Logger.getLogger(InstanceStatusPoller.class.getName());
+
+  private final ScheduledExecutorService scheduler;
+  private final SpiCallMetrics metrics;
+  private final AtomicLong stateCalls = new AtomicLong();
+
+  // groups are keyed by provider, then by template, using object identity
+  private final Map<InstanceProvider, Map<InstanceTemplate, Group>> groups =
+      new IdentityHashMap<InstanceProvider, Map<InstanceTemplate, Group>>();
+
+  /**
+   * Creates a new poller.
+   *
+   * @param scheduler the executor that runs the polling ticks
+   * @param metrics   the metrics that record the latency of state calls
+   */
+  public InstanceStatusPoller(ScheduledExecutorService scheduler, SpiCallMetrics metrics) {
+    this.scheduler = checkNotNull(scheduler, "scheduler is null");
+    this.metrics = checkNotNull(metrics, "metrics is null");
+  }
+
+  /**
+   * Starts waiting for an instance to reach one of the expected statuses.
+   *
+   * @param providerId       the ID of the instance provider, for metrics
+   * @param provider         the instance provider
+   * @param template         the template the instance was allocated with
+   * @param id               the instance ID
+   * @param pollingPolicy    the polling policy for this wait. The first wait
+   *                         registered for a template also sets the tick delays
+   * @param expectedStatuses the statuses that end the wait
+   * @return a future that completes with the status reached by the instance, and
+   * fails as soon as the instance is FAILED unless that status is expected
+   */
+  public CompletableFuture<InstanceStatus> waitForStatus(String providerId,
+      InstanceProvider provider, InstanceTemplate template, String id,
+      PollingPolicy pollingPolicy, InstanceStatus... expectedStatuses) {
+
+    Waiter waiter = new Waiter(id, pollingPolicy, Arrays.asList(expectedStatuses));
+    synchronized (this) {
+      // under the poller lock, so that the group cannot be dropped in between
+      getGroup(providerId, provider, template, pollingPolicy).add(waiter);
+    }
+    return waiter.future;
+  }
+
+  /**
+   * Gets the number of {@code getInstanceState} calls made so far.
+   *
+   * @return the number of state calls
+   */
+  public long getStateCallCount() {
+    return stateCalls.get();
+  }
+
+  /**
+   * Gets the number of groups of waits, one per provider and template with waits
+   * that are not over yet.
+   */
+  synchronized int getGroupCount() {
+    int count = 0;
+    for (Map<InstanceTemplate, Group> byTemplate : groups.values()) {
+      count += byTemplate.size();
+    }
+    return count;
+  }
+
+  // guarded by this
+  private Group getGroup(String providerId, InstanceProvider provider,
+      InstanceTemplate template, PollingPolicy pollingPolicy) {
+    Map<InstanceTemplate, Group> byTemplate = groups.get(provider);
+    if (byTemplate == null) {
+      byTemplate = new IdentityHashMap<InstanceTemplate, Group>();
+      groups.put(provider, byTemplate);
+    }
+    Group group = byTemplate.get(template);
+    if (group == null) {
+      group = new Group(providerId, provider, template, pollingPolicy, LogPrefix.getLabel());
+      byTemplate.put(template, group);
+    }
+    return group;
+  }
+
+  /**
+   * A single wait for one instance.
+   */
+  private static class Waiter {
+
+    private final String id;
+    private final PollingPolicy pollingPolicy;
+    private final List<InstanceStatus> expectedStatuses;
+    private final Stopwatch stopwatch = Stopwatch.createStarted();
+    private final CompletableFuture<InstanceStatus> future = new CompletableFuture<InstanceStatus>();
+    private int polls;
+
+    Waiter(String id, PollingPolicy pollingPolicy, List<InstanceStatus> expectedStatuses) {
+      this.id = checkNotNull(id, "id is null");
+      this.pollingPolicy = checkNotNull(pollingPolicy, "pollingPolicy is null");
+      this.expectedStatuses = expectedStatuses;
+    }
+
+    /**
+     * Checks the latest instance state and completes the future if the wait is over.
+     */
+    void update(InstanceState state) {
+      polls++;
+      long elapsed = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+
+      if (state == null) {
+        future.completeExceptionally(new NoSuchElementException(
+            "The instance ID " + id + " was not part of the list of states"));
+        return;
+      }
+
+      InstanceStatus status = state.getInstanceStatus();
+      if (expectedStatuses.contains(status)) {
+        LOG.info(String.format("Found instance %s as expected %s after %d polls in %d ms",
+            id, status, polls, elapsed));
+        future.complete(status);
+
+      } else if (status == InstanceStatus.FAILED) {
+        future.completeExceptionally(new IllegalStateException(String.format(
+            "Instance %s failed while waiting for status in %s", id, expectedStatuses)));
+
+      } else if (elapsed >= pollingPolicy.getTimeoutMillis()) {
+        future.completeExceptionally(new TimeoutException(String.format(
+            "Instance %s did not transition to status in %s in %d seconds (%d polls)",
+            id, expectedStatuses, TimeUnit.MILLISECONDS.toSeconds(pollingPolicy.getTimeoutMillis()),
+            polls)));
+      }
+    }
+  }
+
+  /**
+   * All the waits for the same instance provider and template.
+   */
+  private class Group implements Runnable {
+
+    private final String providerId;
+    private final InstanceProvider provider;
+    private final InstanceTemplate template;
+    private final PollingPolicy pollingPolicy;
+    private final String logLabel;
+
+    private final List<Waiter> waiters = new ArrayList<Waiter>();
+    private ScheduledFuture<?> nextTick;
+
+    Group(String providerId, InstanceProvider provider, InstanceTemplate template,
+        PollingPolicy pollingPolicy, String logLabel) {
+      this.providerId = providerId;
+      this.provider = provider;
+      this.template = template;
+      this.pollingPolicy = pollingPolicy;
+      this.logLabel = logLabel;
+    }
+
+    synchronized void add(Waiter waiter) {
+      waiters.add(waiter);
+
+      // make sure a new waiter is polled soon, even if the group is backing off
+      long firstDelay = pollingPolicy.getDelayMillis(1);
+      if (nextTick == null) {
+        nextTick = scheduler.schedule(this, 0, TimeUnit.MILLISECONDS);
+      } else if (nextTick.getDelay(TimeUnit.MILLISECONDS) > firstDelay && nextTick.cancel(false)) {
+        nextTick = scheduler.schedule(this, firstDelay, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    @Override
+    public void run() {
+      List<Waiter> snapshot;
+      synchronized (this) {
+        snapshot = new ArrayList<Waiter>(waiters);
+      }
+
+      Set<String> ids = new LinkedHashSet<String>();
+      for (Waiter waiter : snapshot) {
+        if (!waiter.future.isDone()) {
+          ids.add(waiter.id);
+        }
+      }
+
+      if (logLabel != null) {
+        LogPrefix.set(logLabel);
+      }
+      try {
+        if (!ids.isEmpty()) {
+          poll(snapshot, ids);
+        }
+      } finally {
+        LogPrefix.clear();
+        scheduleNextTick();
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void poll(List<Waiter> snapshot, Set<String> ids) {
+      Map<String, InstanceState> states;
+      long start = System.nanoTime();
+      try {
+        stateCalls.incrementAndGet();
+        states = provider.getInstanceState(template, Collections.unmodifiableSet(ids));
+        metrics.record(providerId, "getInstanceState", System.nanoTime() - start, false);
+
+      } catch (Throwable t) {
+        metrics.record(providerId, "getInstanceState", System.nanoTime() - start, true);
+        LOG.log(Level.SEVERE, "Failed to get the state of instances " + ids, t);
+        for (Waiter waiter : snapshot) {
+          waiter.future.completeExceptionally(t);
+        }
+        return;
+      }
+
+      for (Waiter waiter : snapshot) {
+        if (!waiter.future.isDone()) {
+          waiter.update(states.get(waiter.id));
+        }
+      }
+    }
+
+    private void scheduleNextTick() {
+      // the poller lock is taken first, as when waiters are added
+      synchronized (InstanceStatusPoller.this) {
+        synchronized (this) {
+          int minPolls = Integer.MAX_VALUE;
+          for (Waiter waiter : new ArrayList<Waiter>(waiters)) {
+            if (waiter.future.isDone()) {
+              waiters.remove(waiter);
+            } else {
+              minPolls = Math.min(minPolls, waiter.polls);
+            }
+          }
+
+          if (waiters.isEmpty()) {
+            nextTick = null;
+            remove();
+          } else {
+            // the most recent waiter drives the delay, so it gets the fast initial phase
+            nextTick = scheduler.schedule(this, pollingPolicy.getDelayMillis(Math.max(1, minPolls)),
+                TimeUnit.MILLISECONDS);
+          }
+        }
+      }
+    }
+
+    // guarded by the poller
+    private void remove() {
+      Map<InstanceTemplate, Group> byTemplate = groups.get(provider);
+      if (byTemplate != null && byTemplate.get(template) == this) {
+        byTemplate.remove(template);
+        if (byTemplate.isEmpty()) {
+          groups.remove(provider);
+        }
+      }
+    }
+  }
+}
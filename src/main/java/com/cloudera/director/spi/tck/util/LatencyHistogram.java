@@ -0,0 +1,113 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with logarithmic buckets. Every power of two is split
+ * in 16 linear sub-buckets, so percentiles are reported with a relative error below
+ * 7% while recording is a handful of atomic operations on a fixed size array.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+  /**
+   * Records a value.
+   *
+   * @param value the value, usually a duration in nanoseconds. Negative values are
+   *              recorded as zero
+   */
+  public void record(long value) {
+    long v = Math.max(0, value);
+    counts.incrementAndGet(bucketIndex(v));
+    count.incrementAndGet();
+
+    long current;
+    while (v < (current = min.get()) && !min.compareAndSet(current, v)) {
+      // retry
+    }
+    while (v > (current = max.get()) && !max.compareAndSet(current, v)) {
+      // retry
+    }
+  }
+
+  /**
+   * Gets the number of recorded values.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Gets the smallest recorded value, or 0 if nothing was recorded.
+   */
+  public long getMin() {
+    long value = min.get();
+    return (value == Long.MAX_VALUE) ? 0 : value;
+  }
+
+  /**
+   * Gets the largest recorded value, or 0 if nothing was recorded.
+   */
+  public long getMax() {
+    long value = max.get();
+    return (value == Long.MIN_VALUE) ? 0 : value;
+  }
+
+  /**
+   * Gets an approximation of a percentile of the recorded values. The result is the
+   * upper bound of the bucket that holds the percentile, capped by the largest value.
+   *
+   * @param percentile the percentile, between 0 and 100
+   * @return the approximate percentile, or 0 if nothing was recorded
+   */
+  public long getPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("Percentile out of range: " + percentile);
+    }
+    long total = getCount();
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.max(getMin(), Math.min(bucketUpperBound(i), getMax()));
+      }
+    }
+    return getMax();
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    int shift = magnitude - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long subBucket = index % SUB_BUCKETS;
+    long lowerBound = (1L << (shift + SUB_BUCKET_BITS)) | (subBucket << shift);
+    return lowerBound + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,45 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import java.util.List;
+
+/**
+ * Least squares fit of a straight line through a series of values sampled at
+ * regular intervals, used to tell slow growth apart from noise.
+ */
+public final class LinearTrend {
+
+  private LinearTrend() {
+  }
+
+  /**
+   * Computes the slope of the line that best fits the values, with the position of
+   * each value in the list as the x coordinate.
+   *
+   * @param values the values, in sampling order
+   * @return the growth of the values per sample, or 0 with less than two values
+   */
+  public static double slope(List<? extends Number> values) {
+    int n = values.size();
+    if (n < 2) {
+      return 0;
+    }
+
+    double meanX = (n - 1) / 2.0;
+    double meanY = 0;
+    for (Number value : values) {
+      meanY += value.doubleValue();
+    }
+    meanY /= n;
+
+    double covariance = 0;
+    double variance = 0;
+    for (int i = 0; i < n; i++) {
+      double dx = i - meanX;
+      covariance += dx * (values.get(i).doubleValue() - meanY);
+      variance += dx * dx;
+    }
+    return covariance / variance;
+  }
+}
@@ -0,0 +1,63 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+/**
+ * A per-thread prefix added to log lines by the {@link SingleLineFormatter}. Used to
+ * tell apart log lines coming from validations that run at the same time.
+ */
+public final class LogPrefix {
+
+  private LogPrefix() {
+  }
+
+  private static final ThreadLocal<String> PREFIX = new ThreadLocal<String>();
+
+  /**
+   * Sets the log prefix for the current thread.
+   *
+   * @param prefix a short label, e.g. a provider ID
+   */
+  public static void set(String prefix) {
+    PREFIX.set(prefix);
+  }
+
+  /**
+   * Removes the log prefix for the current thread.
+   */
+  public static void clear() {
+    PREFIX.remove();
+  }
+
+  /**
+   * Gets the label of the log prefix for the current thread, so that it can be set
+   * again on another thread that works on its behalf.
+   *
+   * @return the label, or null if none is set
+   */
+  public static String getLabel() {
+    return PREFIX.get();
+  }
+
+  /**
+   * Gets a label nested under the label of the current thread, so that log lines of
+   * work started on behalf of the current thread can be traced back to it.
+   *
+   * @param label a short label, e.g. a provider ID
+   * @return "parent/label" if the current thread has a label, or the label itself
+   */
+  public static String nest(String label) {
+    String parent = PREFIX.get();
+    return (parent == null) ? label : parent + "/" + label;
+  }
+
+  /**
+   * Gets the log prefix for the current thread.
+   *
+   * @return the prefix as "[label] ", or an empty string if none is set
+   */
+  public static String get() {
+    String prefix = PREFIX.get();
+    return (prefix == null) ? "" : "[" + prefix + "] ";
+  }
+}
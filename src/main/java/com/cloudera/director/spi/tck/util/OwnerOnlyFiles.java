@@ -0,0 +1,60 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Creates files and directories that only their owner can read and write, for the
+ * files of the TCK that hold secrets or the IDs of cloud resources. On file systems
+ * without POSIX permissions the files are created with the default permissions.
+ */
+public final class OwnerOnlyFiles {
+
+  private OwnerOnlyFiles() {
+  }
+
+  /**
+   * Opens a file, which is created with mode 0600 if it does not exist yet.
+   *
+   * @param file    the file
+   * @param options the options to open the file with, as for {@link FileChannel#open}
+   * @return the channel
+   * @throws IOException if the file cannot be opened
+   */
+  public static FileChannel open(Path file, OpenOption... options) throws IOException {
+    return FileChannel.open(file, new HashSet<OpenOption>(Arrays.asList(options)),
+        permissions(file.getFileSystem(), "rw-------"));
+  }
+
+  /**
+   * Creates a directory and its missing parents, with mode 0700 for the directories
+   * that are created. An existing directory, or link to one, is left as it is.
+   *
+   * @param directory the directory
+   * @throws IOException if the directory cannot be created
+   */
+  public static void createDirectories(Path directory) throws IOException {
+    if (Files.isDirectory(directory)) {
+      return;
+    }
+    Files.createDirectories(directory, permissions(directory.getFileSystem(), "rwx------"));
+  }
+
+  private static FileAttribute<?>[] permissions(FileSystem fileSystem, String permissions) {
+    if (!fileSystem.supportedFileAttributeViews().contains("posix")) {
+      return new FileAttribute<?>[0];
+    }
+    return new FileAttribute<?>[]{
+        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions))};
+  }
+}
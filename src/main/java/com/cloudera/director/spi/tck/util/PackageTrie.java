@@ -0,0 +1,241 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A trie of Java packages built from a list of class names, for package checks that
+ * do not scale with the number of classes. Packages are matched on segment
+ * boundaries, so {@code com.foo} contains {@code com.foo.Bar} and
+ * {@code com.foo.baz.Qux} but not {@code com.foobar.Bar}.
+ */
+public class PackageTrie {
+
+  /**
+   * The number of class names kept per package as samples.
+   */
+  private static final int SAMPLES_PER_PACKAGE = 5;
+
+  private final Node root = new Node("");
+
+  /**
+   * Builds a trie from fully qualified class names.
+   *
+   * @param classNames the class names
+   */
+  public PackageTrie(Collection<String> classNames) {
+    for (String className : classNames) {
+      add(className);
+    }
+  }
+
+  private void add(String className) {
+    Node node = root;
+    node.totalClasses++;
+
+    int start = 0;
+    int dot;
+    while ((dot = className.indexOf('.', start)) != -1) {
+      node = node.getOrCreateChild(className.substring(start, dot));
+      node.totalClasses++;
+      start = dot + 1;
+    }
+
+    if (node.samples.size() < SAMPLES_PER_PACKAGE) {
+      node.samples.add(className);
+    }
+  }
+
+  /**
+   * Gets the total number of classes.
+   *
+   * @return the number of classes
+   */
+  public int getClassCount() {
+    return root.totalClasses;
+  }
+
+  /**
+   * Counts the classes in a package and all its subpackages.
+   *
+   * @param packageName the package name, empty for the whole trie
+   * @return the number of classes in the package
+   */
+  public int countClassesIn(String packageName) {
+    Node node = find(packageName);
+    return (node == null) ? 0 : node.totalClasses;
+  }
+
+  /**
+   * Finds all the classes that are not in a package or its subpackages, grouped by
+   * the outermost packages that hold them. For example, with {@code com.foo} as the
+   * expected package, classes in {@code org.slf4j} and {@code org.apache} are
+   * reported under {@code org}, and classes in {@code com.google.common} under
+   * {@code com.google}. Classes in the default package are reported under the
+   * empty package name.
+   *
+   * @param packageName the expected package
+   * @param maxSamples  the maximum number of class names to report per group
+   * @return the classes outside of the package, keyed by outermost package name
+   */
+  public Map<String, PackageClasses> findClassesOutside(String packageName, int maxSamples) {
+    Map<String, PackageClasses> result = new TreeMap<String, PackageClasses>();
+    if (packageName.isEmpty()) {
+      return result;
+    }
+
+    Node node = root;
+    String prefix = "";
+    for (String segment : splitPackage(packageName)) {
+      // classes directly in a parent package of the expected package
+      if (!node.samples.isEmpty()) {
+        result.put(prefix, new PackageClasses(prefix, node.totalClasses - childTotal(node),
+            limit(node.samples, maxSamples)));
+      }
+
+      for (Map.Entry<String, Node> child : node.children.entrySet()) {
+        if (!child.getKey().equals(segment)) {
+          String childPackage = prefix.isEmpty() ? child.getKey() : prefix + "." + child.getKey();
+          List<String> samples = new ArrayList<String>();
+          collectSamples(child.getValue(), samples, maxSamples);
+          result.put(childPackage,
+              new PackageClasses(childPackage, child.getValue().totalClasses, samples));
+        }
+      }
+
+      node = node.children.get(segment);
+      if (node == null) {
+        break;
+      }
+      prefix = prefix.isEmpty() ? segment : prefix + "." + segment;
+    }
+    return result;
+  }
+
+  private Node find(String packageName) {
+    Node node = root;
+    if (packageName.isEmpty()) {
+      return node;
+    }
+    for (String segment : splitPackage(packageName)) {
+      node = node.children.get(segment);
+      if (node == null) {
+        return null;
+      }
+    }
+    return node;
+  }
+
+  private static List<String> splitPackage(String packageName) {
+    List<String> segments = new ArrayList<String>();
+    int start = 0;
+    int dot;
+    while ((dot = packageName.indexOf('.', start)) != -1) {
+      segments.add(packageName.substring(start, dot));
+      start = dot + 1;
+    }
+    segments.add(packageName.substring(start));
+    return segments;
+  }
+
+  private static int childTotal(Node node) {
+    int total = 0;
+    for (Node child : node.children.values()) {
+      total += child.totalClasses;
+    }
+    return total;
+  }
+
+  private static void collectSamples(Node node, List<String> samples, int maxSamples) {
+    for (String sample : node.samples) {
+      if (samples.size() >= maxSamples) {
+        return;
+      }
+      samples.add(sample);
+    }
+    for (Node child : new TreeMap<String, Node>(node.children).values()) {
+      if (samples.size() >= maxSamples) {
+        return;
+      }
+      collectSamples(child, samples, maxSamples);
+    }
+  }
+
+  private static List<String> limit(List<String> values, int max) {
+    return new ArrayList<String>(values.subList(0, Math.min(max, values.size())));
+  }
+
+  /**
+   * A package segment, with the classes directly in it and its subpackages.
+   */
+  private static class Node {
+
+    private final String segment;
+    private final Map<String, Node> children = new HashMap<String, Node>();
+    private final List<String> samples = new ArrayList<String>(1);
+    private int totalClasses;
+
+    Node(String segment) {
+      this.segment = segment;
+    }
+
+    Node getOrCreateChild(String childSegment) {
+      Node child = children.get(childSegment);
+      if (child == null) {
+        child = new Node(childSegment);
+        children.put(childSegment, child);
+      }
+      return child;
+    }
+
+    @Override
+    public String toString() {
+      return segment;
+    }
+  }
+
+  /**
+   * The classes found in a package and its subpackages: how many, and a few of
+   * their names.
+   */
+  public static class PackageClasses {
+
+    private final String packageName;
+    private final int count;
+    private final List<String> samples;
+
+    PackageClasses(String packageName, int count, List<String> samples) {
+      this.packageName = packageName;
+      this.count = count;
+      this.samples = Collections.unmodifiableList(samples);
+    }
+
+    public String getPackageName() {
+      return packageName;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    public List<String> getSamples() {
+      return samples;
+    }
+
+    @Override
+    public String toString() {
+      return "PackageClasses{" +
+          "packageName='" + packageName + '\'' +
+          ", count=" + count +
+          ", samples=" + samples +
+          '}';
+    }
+  }
+}
@@ -0,0 +1,57 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The class loader of a plugin jar. Keeps count of the classes it defines, so that
+ * the TCK can tell how many plugin classes a phase of the validation loaded.
+ */
+public class PluginClassLoader extends URLClassLoader {
+
+  static {
+    ClassLoader.registerAsParallelCapable();
+  }
+
+  private final AtomicInteger definedClassCount = new AtomicInteger();
+
+  /**
+   * Creates a class loader for a plugin.
+   *
+   * @param urls   the plugin jar URLs
+   * @param parent the parent class loader, which provides the SPI
+   */
+  public PluginClassLoader(URL[] urls, ClassLoader parent) {
+    super(urls, parent);
+  }
+
+  @Override
+  protected Class<?> findClass(String name) throws ClassNotFoundException {
+    Class<?> definedClass = super.findClass(name);
+    definedClassCount.incrementAndGet();
+    return definedClass;
+  }
+
+  /**
+   * Gets the number of classes defined by this class loader so far.
+   *
+   * @return the number of plugin classes loaded
+   */
+  public int getDefinedClassCount() {
+    return definedClassCount.get();
+  }
+
+  /**
+   * Returns whether a class has been defined by this class loader, without loading it.
+   *
+   * @param name the binary name of the class
+   * @return true if the class is a loaded plugin class
+   */
+  public boolean isPluginClass(String name) {
+    Class<?> loadedClass = findLoadedClass(name);
+    return loadedClass != null && loadedClass.getClassLoader() == this;
+  }
+}
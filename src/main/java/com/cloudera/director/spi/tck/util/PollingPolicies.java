@@ -0,0 +1,106 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import com.cloudera.director.spi.tck.Configurations;
+import com.typesafe.config.Config;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Factory methods for polling policies.
+ */
+public final class PollingPolicies {
+
+  private PollingPolicies() {
+  }
+
+  public static final String FIXED_STRATEGY = "fixed";
+  public static final String EXPONENTIAL_STRATEGY = "exponential";
+
+  private static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+  private static final long DEFAULT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+  private static final long DEFAULT_INITIAL_DELAY_MILLIS = 500;
+  private static final int DEFAULT_FAST_ATTEMPTS = 4;
+  private static final double DEFAULT_MULTIPLIER = 2.0;
+  private static final long DEFAULT_MAX_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+  private static final double DEFAULT_JITTER = 0.2;
+
+  /**
+   * Gets the policy used when nothing is configured: exponential backoff from 500 ms
+   * up to 10 seconds between polls, with a 10 minutes timeout.
+   *
+   * @return the default polling policy
+   */
+  public static PollingPolicy defaultPolicy() {
+    return new ExponentialBackoffPollingPolicy(DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_FAST_ATTEMPTS,
+        DEFAULT_MULTIPLIER, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_JITTER, DEFAULT_TIMEOUT_MILLIS,
+        new Random());
+  }
+
+  /**
+   * Builds a polling policy from an optional section of a provider configuration.
+   * Missing properties take their default values.
+   *
+   * @param config  the provider configuration
+   * @param section the name of the polling section
+   * @return the configured polling policy, or the default policy if the section is missing
+   * @throws IllegalArgumentException if the strategy is unknown or values are out of range
+   */
+  public static PollingPolicy fromConfig(Config config, String section) {
+    if (!config.hasPath(section)) {
+      return defaultPolicy();
+    }
+    Config polling = config.getConfig(section);
+
+    String strategy = polling.hasPath(Configurations.POLLING_STRATEGY_PROPERTY) ?
+        polling.getString(Configurations.POLLING_STRATEGY_PROPERTY) : EXPONENTIAL_STRATEGY;
+    long timeoutMillis = getMillis(polling, Configurations.POLLING_TIMEOUT_PROPERTY,
+        DEFAULT_TIMEOUT_MILLIS);
+
+    if (FIXED_STRATEGY.equals(strategy)) {
+      return new FixedIntervalPollingPolicy(
+          getMillis(polling, Configurations.POLLING_INTERVAL_PROPERTY, DEFAULT_INTERVAL_MILLIS),
+          timeoutMillis);
+
+    } else if (EXPONENTIAL_STRATEGY.equals(strategy)) {
+      return new ExponentialBackoffPollingPolicy(
+          getMillis(polling, Configurations.POLLING_INITIAL_DELAY_PROPERTY,
+              DEFAULT_INITIAL_DELAY_MILLIS),
+          polling.hasPath(Configurations.POLLING_FAST_ATTEMPTS_PROPERTY) ?
+              polling.getInt(Configurations.POLLING_FAST_ATTEMPTS_PROPERTY) : DEFAULT_FAST_ATTEMPTS,
+          polling.hasPath(Configurations.POLLING_MULTIPLIER_PROPERTY) ?
+              polling.getDouble(Configurations.POLLING_MULTIPLIER_PROPERTY) : DEFAULT_MULTIPLIER,
+          getMillis(polling, Configurations.POLLING_MAX_DELAY_PROPERTY, DEFAULT_MAX_DELAY_MILLIS),
+          polling.hasPath(Configurations.POLLING_JITTER_PROPERTY) ?
+              polling.getDouble(Configurations.POLLING_JITTER_PROPERTY) : DEFAULT_JITTER,
+          timeoutMillis,
+          new Random());
+    }
+
+    throw new IllegalArgumentException("Unknown polling strategy in " + section + ": " + strategy);
+  }
+
+  /**
+   * Sleeps before the next poll as requested by the policy, without going past
+   * the policy timeout.
+   *
+   * @param policy    the polling policy
+   * @param attempt   the number of polls made so far, starting at 1
+   * @param stopwatch a stopwatch started when polling started
+   * @throws InterruptedException if the sleep is interrupted
+   */
+  public static void sleepBeforeNextPoll(PollingPolicy policy, int attempt, Stopwatch stopwatch)
+      throws InterruptedException {
+    long remaining = policy.getTimeoutMillis() - stopwatch.elapsed(TimeUnit.MILLISECONDS);
+    long delay = Math.min(policy.getDelayMillis(attempt), remaining);
+    if (delay > 0) {
+      TimeUnit.MILLISECONDS.sleep(delay);
+    }
+  }
+
+  private static long getMillis(Config config, String path, long defaultMillis) {
+    return config.hasPath(path) ? config.getDuration(path, TimeUnit.MILLISECONDS) : defaultMillis;
+  }
+}
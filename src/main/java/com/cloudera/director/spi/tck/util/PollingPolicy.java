@@ -0,0 +1,26 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+/**
+ * Decides how long to wait between two polls of a condition and when to give up.
+ *
+ * @see PollingPolicies
+ */
+public interface PollingPolicy {
+
+  /**
+   * Gets how long to wait before the next poll.
+   *
+   * @param attempt the number of polls made so far, starting at 1
+   * @return the delay in milliseconds
+   */
+  long getDelayMillis(int attempt);
+
+  /**
+   * Gets how long to keep polling before giving up.
+   *
+   * @return the timeout in milliseconds
+   */
+  long getTimeoutMillis();
+}
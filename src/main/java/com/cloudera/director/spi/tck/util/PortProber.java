@@ -0,0 +1,267 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static com.cloudera.director.spi.tck.util.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Waits for TCP ports to accept connections. A single thread drives non-blocking
+ * connects for any number of endpoints with a {@link Selector}, so waiting for many
+ * instances does not need a thread per instance, and an endpoint is reported as soon
+ * as its port accepts a connection instead of at the end of a sleep.
+ * <p/>
+ * Refused or timed out connects are retried with the delays of the polling policy
+ * of the endpoint, until its timeout expires.
+ */
+public class PortProber implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(PortProber.class.getName());
+
+  private static final long CONNECT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+  private final Selector selector;
+  private final Queue<Probe> newProbes = new ConcurrentLinkedQueue<Probe>();
+  private final Thread thread;
+  private final AtomicLong connectAttempts = new AtomicLong();
+  private volatile boolean closed;
+
+  /**
+   * Creates a new port prober and starts its selector thread.
+   *
+   * @throws IOException if the selector cannot be opened
+   */
+  public PortProber() throws IOException {
+    this.selector = Selector.open();
+    this.thread = new DaemonThreadFactory("tck-port-prober").newThread(new Runnable() {
+      @Override
+      public void run() {
+        loop();
+      }
+    });
+    this.thread.start();
+  }
+
+  /**
+   * Starts waiting for a port to accept connections.
+   *
+   * @param address       the address and port to connect to
+   * @param pollingPolicy the policy for delays between attempts and the timeout
+   * @return a future that completes with the number of milliseconds it took for the
+   * port to accept a connection, or fails with a {@link TimeoutException}
+   */
+  public CompletableFuture<Long> probe(InetSocketAddress address, PollingPolicy pollingPolicy) {
+    Probe probe = new Probe(checkNotNull(address, "address is null"),
+        checkNotNull(pollingPolicy, "pollingPolicy is null"));
+    newProbes.add(probe);
+    // the selector thread drains the new probes once it sees closed, so a probe added
+    // after that is failed here, whichever of both threads gets to it first
+    if (closed) {
+      newProbes.remove(probe);
+      probe.future.completeExceptionally(new IOException("Port prober is closed"));
+    } else {
+      selector.wakeup();
+    }
+    return probe.future;
+  }
+
+  /**
+   * Gets the number of connection attempts made so far, for all endpoints.
+   *
+   * @return the number of connection attempts
+   */
+  public long getConnectAttemptCount() {
+    return connectAttempts.get();
+  }
+
+  /**
+   * Stops the selector thread. Probes still in progress fail.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    selector.wakeup();
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void loop() {
+    List<Probe> waiting = new LinkedList<Probe>();
+    try {
+      while (!closed) {
+        Probe probe;
+        while ((probe = newProbes.poll()) != null) {
+          connect(probe, waiting);
+        }
+
+        selector.select(getSelectTimeoutMillis(waiting));
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          finishConnect((Probe) key.attachment(), waiting);
+        }
+
+        long now = System.nanoTime();
+        for (Probe current : new ArrayList<Probe>(waiting)) {
+          if (current.channel != null && now >= current.deadlineNanos) {
+            closeChannel(current);
+            retryLater(current, waiting);
+          } else if (current.channel == null && now >= current.deadlineNanos) {
+            waiting.remove(current);
+            connect(current, waiting);
+          }
+        }
+      }
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Port prober failed", e);
+    } finally {
+      shutdown(waiting);
+    }
+  }
+
+  /**
+   * Starts a non-blocking connect. The probe waits either for the connect to finish
+   * or for the next attempt.
+   */
+  private void connect(Probe probe, List<Probe> waiting) {
+    if (probe.future.isDone()) {
+      return;
+    }
+    probe.attempts++;
+    connectAttempts.incrementAndGet();
+    waiting.add(probe);
+    try {
+      probe.channel = SocketChannel.open();
+      probe.channel.configureBlocking(false);
+      if (probe.channel.connect(probe.address)) {
+        succeed(probe, waiting);
+      } else {
+        probe.channel.register(selector, SelectionKey.OP_CONNECT, probe);
+        probe.deadlineNanos = System.nanoTime() + CONNECT_TIMEOUT_NANOS;
+      }
+    } catch (IOException e) {
+      closeChannel(probe);
+      retryLater(probe, waiting);
+    }
+  }
+
+  private void finishConnect(Probe probe, List<Probe> waiting) {
+    try {
+      if (probe.channel.finishConnect()) {
+        succeed(probe, waiting);
+      }
+    } catch (IOException e) {
+      closeChannel(probe);
+      retryLater(probe, waiting);
+    }
+  }
+
+  private void succeed(Probe probe, List<Probe> waiting) {
+    closeChannel(probe);
+    waiting.remove(probe);
+    long elapsed = probe.stopwatch.elapsed(TimeUnit.MILLISECONDS);
+    LOG.info(String.format("Connection successful. Found port %d open on %s as expected " +
+        "after %d attempts in %d ms", probe.address.getPort(), probe.address.getAddress(),
+        probe.attempts, elapsed));
+    probe.future.complete(elapsed);
+  }
+
+  private void retryLater(Probe probe, List<Probe> waiting) {
+    long elapsed = probe.stopwatch.elapsed(TimeUnit.MILLISECONDS);
+    if (elapsed >= probe.pollingPolicy.getTimeoutMillis()) {
+      waiting.remove(probe);
+      probe.future.completeExceptionally(new TimeoutException(String.format(
+          "Unable to connect on port %s of %s after %d seconds (%d attempts)",
+          probe.address.getPort(), probe.address.getAddress(),
+          TimeUnit.MILLISECONDS.toSeconds(probe.pollingPolicy.getTimeoutMillis()),
+          probe.attempts)));
+      return;
+    }
+
+    long delay = Math.min(probe.pollingPolicy.getDelayMillis(probe.attempts),
+        probe.pollingPolicy.getTimeoutMillis() - elapsed);
+    probe.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+  }
+
+  private long getSelectTimeoutMillis(List<Probe> waiting) {
+    if (waiting.isEmpty()) {
+      return 0;  // block until woken up by a new probe
+    }
+    long next = Long.MAX_VALUE;
+    for (Probe probe : waiting) {
+      next = Math.min(next, probe.deadlineNanos);
+    }
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next - System.nanoTime()));
+  }
+
+  private void closeChannel(Probe probe) {
+    if (probe.channel != null) {
+      try {
+        probe.channel.close();
+      } catch (IOException e) {
+        LOG.log(Level.FINE, "Failed to close channel", e);
+      }
+      probe.channel = null;
+    }
+  }
+
+  private void shutdown(List<Probe> waiting) {
+    List<Probe> remaining = new ArrayList<Probe>(waiting);
+    Probe probe;
+    while ((probe = newProbes.poll()) != null) {
+      remaining.add(probe);
+    }
+    for (Probe current : remaining) {
+      closeChannel(current);
+      current.future.completeExceptionally(new IOException("Port prober is closed"));
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Failed to close selector", e);
+    }
+  }
+
+  /**
+   * The state of the wait for one endpoint. Only used by the selector thread.
+   */
+  private static class Probe {
+
+    private final InetSocketAddress address;
+    private final PollingPolicy pollingPolicy;
+    private final Stopwatch stopwatch = Stopwatch.createStarted();
+    private final CompletableFuture<Long> future = new CompletableFuture<Long>();
+
+    private SocketChannel channel;
+    private long deadlineNanos;
+    private int attempts;
+
+    Probe(InetSocketAddress address, PollingPolicy pollingPolicy) {
+      this.address = address;
+      this.pollingPolicy = pollingPolicy;
+    }
+  }
+}
@@ -0,0 +1,355 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static com.cloudera.director.spi.tck.util.DaemonThreadFactory.TCK_THREAD_PREFIX;
+
+import com.cloudera.director.spi.tck.Configurations;
+import com.cloudera.director.spi.tck.Summary;
+import com.typesafe.config.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that a plugin leaves no threads and no open file descriptors behind once
+ * it has been torn down. A snapshot of the live threads and of the open file
+ * descriptors is taken before the plugin is loaded, and compared with the state of
+ * the JVM after teardown.
+ * <p/>
+ * A new thread belongs to the plugin if its class is a plugin class, if its context
+ * class loader is the plugin class loader (threads inherit the context class loader
+ * of the thread that creates them, and the TCK calls the plugin with the plugin
+ * class loader as context class loader) or if it is running plugin code. Other new
+ * threads are only logged, since they may belong to the JVM or to another plugin.
+ * <p/>
+ * Open file descriptors are listed in {@code /proc/self/fd}, so they are only
+ * checked on Linux. They cannot be traced back to the plugin, so every new file
+ * descriptor that is not a file of the JVM itself is reported, and they are not
+ * checked at all when other plugins were validated at the same time. The files
+ * the JVM opens lazily and keeps open, like the random number sources, are opened
+ * before the snapshot.
+ */
+public class ResourceLeakCheck {
+
+  private static final Logger LOG = Logger.getLogger(ResourceLeakCheck.class.getName());
+
+  private static final long DEFAULT_GRACE_PERIOD_MILLIS = TimeUnit.SECONDS.toMillis(2);
+  private static final long POLL_INTERVAL_MILLIS = 100;
+  private static final int MAX_STACK_FRAMES = 8;
+  private static final int MAX_FILE_DESCRIPTOR_SAMPLES = 20;
+
+  // idle workers of the shared pool linger for a while and do not belong to anyone
+  private static final List<String> DEFAULT_THREAD_ALLOWLIST =
+      Arrays.asList("ForkJoinPool\\.commonPool-worker-\\d+");
+
+  // the JVM keeps its random number sources open once they are used
+  private static final List<String> DEFAULT_FILE_DESCRIPTOR_ALLOWLIST =
+      Arrays.asList("/dev/u?random");
+
+  private static final Path FILE_DESCRIPTOR_DIRECTORY = Paths.get("/proc/self/fd");
+
+  private final long gracePeriodMillis;
+  private final boolean checkFileDescriptors;
+  private final List<Pattern> threadAllowlist;
+  private final List<Pattern> fileDescriptorAllowlist;
+  private final ValidationWindow window;
+
+  private final Set<Long> threadIdsBefore;
+  private final Map<String, String> fileDescriptorsBefore;
+
+  /**
+   * Takes a snapshot of the live threads and open file descriptors, for a plugin
+   * validation that runs alone.
+   *
+   * @param config the TCK configuration, with an optional leak check section
+   * @return the check, to run once the plugin has been torn down
+   */
+  public static ResourceLeakCheck start(Config config) {
+    return start(config, null);
+  }
+
+  /**
+   * Takes a snapshot of the live threads and open file descriptors.
+   *
+   * @param config the TCK configuration, with an optional leak check section
+   * @param window the window of the plugin validation, or null if it runs alone
+   * @return the check, to run once the plugin has been torn down
+   */
+  public static ResourceLeakCheck start(Config config, ValidationWindow window) {
+    Config leakConfig = config.hasPath(Configurations.LEAK_CHECK_SECTION) ?
+        config.getConfig(Configurations.LEAK_CHECK_SECTION) : null;
+
+    long gracePeriodMillis = DEFAULT_GRACE_PERIOD_MILLIS;
+    boolean checkFileDescriptors = true;
+    List<String> threadAllowlist = new ArrayList<String>(DEFAULT_THREAD_ALLOWLIST);
+    List<String> fileDescriptorAllowlist =
+        new ArrayList<String>(DEFAULT_FILE_DESCRIPTOR_ALLOWLIST);
+
+    if (leakConfig != null) {
+      if (leakConfig.hasPath(Configurations.LEAK_CHECK_GRACE_PERIOD_PROPERTY)) {
+        gracePeriodMillis = leakConfig.getDuration(
+            Configurations.LEAK_CHECK_GRACE_PERIOD_PROPERTY, TimeUnit.MILLISECONDS);
+      }
+      if (leakConfig.hasPath(Configurations.LEAK_CHECK_FILE_DESCRIPTORS_PROPERTY)) {
+        checkFileDescriptors =
+            leakConfig.getBoolean(Configurations.LEAK_CHECK_FILE_DESCRIPTORS_PROPERTY);
+      }
+      if (leakConfig.hasPath(Configurations.LEAK_CHECK_THREAD_ALLOWLIST_PROPERTY)) {
+        threadAllowlist.addAll(
+            leakConfig.getStringList(Configurations.LEAK_CHECK_THREAD_ALLOWLIST_PROPERTY));
+      }
+      if (leakConfig.hasPath(Configurations.LEAK_CHECK_FILE_DESCRIPTOR_ALLOWLIST_PROPERTY)) {
+        fileDescriptorAllowlist.addAll(leakConfig.getStringList(
+            Configurations.LEAK_CHECK_FILE_DESCRIPTOR_ALLOWLIST_PROPERTY));
+      }
+    }
+
+    if (checkFileDescriptors) {
+      openJvmFiles();
+    }
+    return new ResourceLeakCheck(gracePeriodMillis, checkFileDescriptors,
+        compile(threadAllowlist), compile(fileDescriptorAllowlist), window);
+  }
+
+  /**
+   * Opens the files that the JVM opens on first use and never closes, so that they
+   * are part of the snapshot instead of being blamed on the plugin.
+   */
+  private static void openJvmFiles() {
+    UUID.randomUUID();
+    new SecureRandom().nextBytes(new byte[1]);
+  }
+
+  private static List<Pattern> compile(List<String> regexes) {
+    List<Pattern> patterns = new ArrayList<Pattern>(regexes.size());
+    for (String regex : regexes) {
+      patterns.add(Pattern.compile(regex));
+    }
+    return patterns;
+  }
+
+  private ResourceLeakCheck(long gracePeriodMillis, boolean checkFileDescriptors,
+      List<Pattern> threadAllowlist, List<Pattern> fileDescriptorAllowlist,
+      ValidationWindow window) {
+    this.gracePeriodMillis = gracePeriodMillis;
+    this.checkFileDescriptors = checkFileDescriptors;
+    this.threadAllowlist = threadAllowlist;
+    this.fileDescriptorAllowlist = fileDescriptorAllowlist;
+    this.window = window;
+
+    this.threadIdsBefore = new HashSet<Long>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      threadIdsBefore.add(thread.getId());
+    }
+    this.fileDescriptorsBefore = listFileDescriptors();
+  }
+
+  /**
+   * Reports every thread of the plugin that is still alive after teardown, with a
+   * sample of its stack, and every file descriptor opened since the snapshot that
+   * is still open. Threads are given a grace period to finish.
+   *
+   * @param summary     a summary of errors and warnings that will be updated
+   * @param pluginCheck the check for the plugin class loader, used to tell which
+   *                    threads belong to the plugin
+   * @throws InterruptedException if interrupted during the grace period
+   */
+  public void check(Summary summary, ClassLoaderLeakCheck pluginCheck)
+      throws InterruptedException {
+    LOG.info("Checking that the plugin left no threads or file descriptors behind");
+
+    List<String> otherThreads = new ArrayList<String>();
+    List<String> leakedThreads = findLeakedThreads(pluginCheck, otherThreads);
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    while (!leakedThreads.isEmpty() &&
+        stopwatch.elapsed(TimeUnit.MILLISECONDS) < gracePeriodMillis) {
+      Thread.sleep(POLL_INTERVAL_MILLIS);
+      otherThreads.clear();
+      leakedThreads = findLeakedThreads(pluginCheck, otherThreads);
+    }
+    if (!otherThreads.isEmpty()) {
+      LOG.info("Threads started during the validation that do not belong to the plugin: " +
+          otherThreads);
+    }
+    for (String leakedThread : leakedThreads) {
+      summary.addError("%s", leakedThread);
+    }
+
+    if (checkFileDescriptors && window != null && !window.isExclusive()) {
+      LOG.info("Skipping the check of open file descriptors, since other plugins were " +
+          "validated at the same time");
+    } else if (checkFileDescriptors) {
+      List<String> leakedFileDescriptors = findLeakedFileDescriptors();
+      if (!leakedFileDescriptors.isEmpty()) {
+        summary.addError("%d file descriptors opened during the validation are still open " +
+                "after teardown: %s", leakedFileDescriptors.size(),
+            leakedFileDescriptors.subList(0,
+                Math.min(MAX_FILE_DESCRIPTOR_SAMPLES, leakedFileDescriptors.size())));
+      }
+    }
+  }
+
+  /**
+   * Finds the plugin threads that were started since the snapshot and are still alive.
+   *
+   * @param pluginCheck  the check for the plugin class loader
+   * @param otherThreads the names of the other new threads, which will be updated
+   * @return a description of each thread with a sample of its stack
+   */
+  List<String> findLeakedThreads(ClassLoaderLeakCheck pluginCheck, List<String> otherThreads) {
+    ClassLoader classLoader = pluginCheck.getClassLoader();
+    if (classLoader == null) {
+      // a thread of the plugin would keep its class loader alive
+      return new ArrayList<String>();
+    }
+
+    List<String> leaks = new ArrayList<String>();
+    for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+      Thread thread = entry.getKey();
+      if (threadIdsBefore.contains(thread.getId()) || !thread.isAlive() ||
+          thread == Thread.currentThread() || thread.getName().startsWith(TCK_THREAD_PREFIX) ||
+          matches(threadAllowlist, thread.getName())) {
+        continue;
+      }
+
+      String owner = getOwner(thread, entry.getValue(), classLoader);
+      if (owner == null) {
+        otherThreads.add(thread.getName());
+      } else {
+        leaks.add(String.format("Thread '%s' (%s) is still alive after teardown%s",
+            thread.getName(), owner, formatStack(entry.getValue())));
+      }
+    }
+    return leaks;
+  }
+
+  /**
+   * Tells why a thread belongs to the plugin.
+   *
+   * @return the reason, or null if the thread does not belong to the plugin
+   */
+  private static String getOwner(Thread thread, StackTraceElement[] stack,
+      ClassLoader classLoader) {
+    if (thread.getClass().getClassLoader() == classLoader) {
+      return "plugin class " + thread.getClass().getName();
+    }
+    if (thread.getContextClassLoader() == classLoader) {
+      return "plugin context class loader";
+    }
+    if (classLoader instanceof PluginClassLoader) {
+      for (StackTraceElement frame : stack) {
+        if (((PluginClassLoader) classLoader).isPluginClass(frame.getClassName())) {
+          return "running plugin class " + frame.getClassName();
+        }
+      }
+    }
+    return null;
+  }
+
+  private static String formatStack(StackTraceElement[] stack) {
+    StringBuilder sample = new StringBuilder();
+    for (int i = 0; i < Math.min(MAX_STACK_FRAMES, stack.length); i++) {
+      sample.append("\n    at ").append(stack[i]);
+    }
+    if (stack.length > MAX_STACK_FRAMES) {
+      sample.append("\n    ...");
+    }
+    return sample.toString();
+  }
+
+  /**
+   * Finds the file descriptors that were opened since the snapshot and are still
+   * open, leaving out the files of the JVM itself, the jars of the TCK and the
+   * allowlist.
+   *
+   * @return a description of each file descriptor, empty if they cannot be listed
+   */
+  List<String> findLeakedFileDescriptors() {
+    String javaHome = System.getProperty("java.home");
+    Set<String> classPath = getClassPathEntries();
+    List<String> leaks = new ArrayList<String>();
+    for (Map.Entry<String, String> entry : listFileDescriptors().entrySet()) {
+      String target = entry.getValue();
+      if (target.equals(fileDescriptorsBefore.get(entry.getKey())) ||
+          target.startsWith("/proc/") || (javaHome != null && target.startsWith(javaHome)) ||
+          classPath.contains(target) || matches(fileDescriptorAllowlist, target)) {
+        continue;
+      }
+      leaks.add(entry.getKey() + " -> " + target);
+    }
+    return leaks;
+  }
+
+  /**
+   * Gets the real paths of the jars of the TCK class path, which the JVM opens when
+   * it first loads a class from them.
+   */
+  private static Set<String> getClassPathEntries() {
+    Set<String> entries = new HashSet<String>();
+    for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+      if (entry.isEmpty()) {
+        continue;
+      }
+      try {
+        entries.add(Paths.get(entry).toRealPath().toString());
+      } catch (IOException | InvalidPathException e) {
+        // not there, so not open either
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Lists the open file descriptors of the JVM with their targets, e.g.
+   * {@code socket:[12345]} or a file path.
+   *
+   * @return the targets keyed by file descriptor number, empty if not on Linux
+   */
+  private static Map<String, String> listFileDescriptors() {
+    Map<String, String> fileDescriptors = new TreeMap<String, String>();
+    if (!Files.isDirectory(FILE_DESCRIPTOR_DIRECTORY)) {
+      return fileDescriptors;
+    }
+
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(FILE_DESCRIPTOR_DIRECTORY)) {
+      for (Path fd : stream) {
+        try {
+          fileDescriptors.put(fd.getFileName().toString(),
+              Files.readSymbolicLink(fd).toString());
+        } catch (IOException e) {
+          // closed while listing
+        }
+      }
+    } catch (IOException e) {
+      LOG.warning("Unable to list open file descriptors: " + e.getMessage());
+    }
+    return fileDescriptors;
+  }
+
+  private static boolean matches(List<Pattern> allowlist, String value) {
+    for (Pattern pattern : allowlist) {
+      if (pattern.matcher(value).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
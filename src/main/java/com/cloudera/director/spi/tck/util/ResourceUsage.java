@@ -0,0 +1,80 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.OperatingSystemMXBean;
+
+/**
+ * A snapshot of the JVM resources that plugins can leak: metaspace, loaded classes
+ * and open file descriptors. Values that the JVM does not expose are
+ * {@link #UNKNOWN}.
+ */
+public final class ResourceUsage {
+
+  /**
+   * The value of resources that the JVM does not expose.
+   */
+  public static final long UNKNOWN = -1;
+
+  private static final String METASPACE_POOL_NAME = "Metaspace";
+
+  private final long metaspaceUsedBytes;
+  private final long loadedClassCount;
+  private final long openFileDescriptorCount;
+
+  private ResourceUsage(long metaspaceUsedBytes, long loadedClassCount,
+      long openFileDescriptorCount) {
+    this.metaspaceUsedBytes = metaspaceUsedBytes;
+    this.loadedClassCount = loadedClassCount;
+    this.openFileDescriptorCount = openFileDescriptorCount;
+  }
+
+  /**
+   * Captures the current resource usage of the JVM.
+   *
+   * @return the resource usage
+   */
+  public static ResourceUsage capture() {
+    long metaspaceUsedBytes = UNKNOWN;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (METASPACE_POOL_NAME.equals(pool.getName())) {
+        metaspaceUsedBytes = pool.getUsage().getUsed();
+      }
+    }
+
+    long openFileDescriptorCount = UNKNOWN;
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof UnixOperatingSystemMXBean) {
+      openFileDescriptorCount = ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+    }
+
+    return new ResourceUsage(metaspaceUsedBytes,
+        ManagementFactory.getClassLoadingMXBean().getLoadedClassCount(),
+        openFileDescriptorCount);
+  }
+
+  public long getMetaspaceUsedBytes() {
+    return metaspaceUsedBytes;
+  }
+
+  public long getLoadedClassCount() {
+    return loadedClassCount;
+  }
+
+  public long getOpenFileDescriptorCount() {
+    return openFileDescriptorCount;
+  }
+
+  @Override
+  public String toString() {
+    return "ResourceUsage{" +
+        "metaspaceUsedBytes=" + metaspaceUsedBytes +
+        ", loadedClassCount=" + loadedClassCount +
+        ", openFileDescriptorCount=" + openFileDescriptorCount +
+        '}';
+  }
+}
@@ -33,6 +33,7 @@ public class SingleLineFormatter extends Formatter {
         .append(" ")
         .append(record.getLevel().getLocalizedName())
         .append(": ")
+        .append(LogPrefix.get())
         .append(formatMessage(record))
         .append(LINE_SEPARATOR);
 
@@ -0,0 +1,163 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Latency statistics for calls made by the TCK into a plugin, keyed by provider ID
+ * and SPI method name. Resource providers are identified by the ID of their cloud
+ * provider and their own ID, as in {@code aws/compute}, since resource provider IDs
+ * are only unique within a cloud provider. Safe for use by validations that run in
+ * parallel.
+ */
+public class SpiCallMetrics {
+
+  private final ConcurrentMap<List<String>, CallStats> stats =
+      new ConcurrentHashMap<List<String>, CallStats>();
+
+  /**
+   * Makes an SPI call and records how long it took, whether it succeeded or not.
+   *
+   * @param providerId the ID of the provider (or launcher) that is called
+   * @param method     the name of the SPI method
+   * @param call       the call
+   * @return the result of the call
+   * @throws Exception any exception thrown by the call
+   */
+  public <T> T time(String providerId, String method, Callable<T> call) throws Exception {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      T result = call.call();
+      failed = false;
+      return result;
+    } finally {
+      record(providerId, method, System.nanoTime() - start, failed);
+    }
+  }
+
+  /**
+   * Records the duration of an SPI call.
+   *
+   * @param providerId    the ID of the provider (or launcher) that was called
+   * @param method        the name of the SPI method
+   * @param durationNanos how long the call took
+   * @param failed        whether the call threw an exception
+   */
+  public void record(String providerId, String method, long durationNanos, boolean failed) {
+    List<String> key = Arrays.asList(providerId, method);
+    CallStats callStats = stats.get(key);
+    if (callStats == null) {
+      CallStats newStats = new CallStats(providerId, method);
+      callStats = stats.putIfAbsent(key, newStats);
+      if (callStats == null) {
+        callStats = newStats;
+      }
+    }
+    callStats.latencies.record(durationNanos);
+    callStats.totalNanos.addAndGet(durationNanos);
+    if (failed) {
+      callStats.failures.incrementAndGet();
+    }
+  }
+
+  /**
+   * Gets the statistics for all the calls made so far, sorted by provider ID and method.
+   *
+   * @return the call statistics
+   */
+  public List<CallStats> getCallStats() {
+    List<CallStats> result = new ArrayList<CallStats>(stats.values());
+    Collections.sort(result, (a, b) -> {
+      int byProvider = a.providerId.compareTo(b.providerId);
+      return (byProvider != 0) ? byProvider : a.method.compareTo(b.method);
+    });
+    return result;
+  }
+
+  /**
+   * Logs a table with the latency statistics of all calls, in milliseconds.
+   *
+   * @param logger the logger used as output
+   */
+  public void log(Logger logger) {
+    List<CallStats> callStats = getCallStats();
+    if (callStats.isEmpty()) {
+      return;
+    }
+
+    String format = "%-30s %-24s %7s %7s %10s %10s %10s %10s %10s";
+    logger.info("SPI call latencies (ms):");
+    logger.info(String.format(format,
+        "provider", "method", "count", "errors", "min", "p50", "p90", "p99", "max"));
+    for (CallStats current : callStats) {
+      LatencyHistogram latencies = current.getLatencies();
+      logger.info(String.format(format,
+          current.getProviderId(), current.getMethod(),
+          latencies.getCount(), current.getFailureCount(),
+          formatMillis(latencies.getMin()),
+          formatMillis(latencies.getPercentile(50)),
+          formatMillis(latencies.getPercentile(90)),
+          formatMillis(latencies.getPercentile(99)),
+          formatMillis(latencies.getMax())));
+    }
+  }
+
+  private static String formatMillis(long nanos) {
+    return String.format("%.1f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+  }
+
+  /**
+   * Statistics for one SPI method of one provider.
+   */
+  public static class CallStats {
+
+    private final String providerId;
+    private final String method;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    CallStats(String providerId, String method) {
+      this.providerId = providerId;
+      this.method = method;
+    }
+
+    public String getProviderId() {
+      return providerId;
+    }
+
+    public String getMethod() {
+      return method;
+    }
+
+    /**
+     * Gets the latencies of the calls, in nanoseconds.
+     */
+    public LatencyHistogram getLatencies() {
+      return latencies;
+    }
+
+    /**
+     * Gets the sum of the latencies of the calls, in nanoseconds.
+     */
+    public long getTotalNanos() {
+      return totalNanos.get();
+    }
+
+    public long getFailureCount() {
+      return failures.get();
+    }
+  }
+}
@@ -0,0 +1,195 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of a plugin startup phase, such as {@code Launcher.initialize}: wall
+ * time, CPU time, classes loaded, bytes allocated and threads started.
+ * <p/>
+ * CPU time and allocated bytes are those of the calling thread, since that is
+ * where the plugin does its startup work; threads started in the background are
+ * counted in the JVM as a whole, leaving out the threads of the TCK itself (those
+ * named with {@link DaemonThreadFactory#TCK_THREAD_PREFIX}) that are still alive
+ * when the phase is over. Classes are counted in the plugin class loader if
+ * the plugin was loaded with a {@link PluginClassLoader}, otherwise in the JVM as a
+ * whole. Values that the JVM does not expose are {@link #UNKNOWN}.
+ */
+public final class StartupProfile {
+
+  /**
+   * The value of measurements that the JVM does not expose.
+   */
+  public static final long UNKNOWN = -1;
+
+  private final String phase;
+  private final long wallTimeMillis;
+  private final long cpuTimeMillis;
+  private final long classesLoaded;
+  private final boolean pluginClassesOnly;
+  private final long allocatedBytes;
+  private final long threadsStarted;
+
+  private StartupProfile(String phase, long wallTimeMillis, long cpuTimeMillis,
+      long classesLoaded, boolean pluginClassesOnly, long allocatedBytes, long threadsStarted) {
+    this.phase = phase;
+    this.wallTimeMillis = wallTimeMillis;
+    this.cpuTimeMillis = cpuTimeMillis;
+    this.classesLoaded = classesLoaded;
+    this.pluginClassesOnly = pluginClassesOnly;
+    this.allocatedBytes = allocatedBytes;
+    this.threadsStarted = threadsStarted;
+  }
+
+  /**
+   * Starts profiling a phase on the current thread.
+   *
+   * @param phase             the name of the phase, e.g. the SPI method
+   * @param pluginClassLoader the plugin class loader
+   * @return a recorder to stop on the same thread when the phase is over
+   */
+  public static Recorder start(String phase, ClassLoader pluginClassLoader) {
+    return new Recorder(phase, pluginClassLoader);
+  }
+
+  public String getPhase() {
+    return phase;
+  }
+
+  public long getWallTimeMillis() {
+    return wallTimeMillis;
+  }
+
+  public long getCpuTimeMillis() {
+    return cpuTimeMillis;
+  }
+
+  public long getClassesLoaded() {
+    return classesLoaded;
+  }
+
+  /**
+   * Returns whether only the classes of the plugin class loader were counted.
+   *
+   * @return true if only plugin classes were counted, false if all the classes
+   * loaded in the JVM were
+   */
+  public boolean isPluginClassesOnly() {
+    return pluginClassesOnly;
+  }
+
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  public long getThreadsStarted() {
+    return threadsStarted;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %d ms wall time, %s CPU time, %d %s loaded, %s allocated, " +
+            "%d threads started", phase, wallTimeMillis,
+        (cpuTimeMillis == UNKNOWN) ? "unknown" : cpuTimeMillis + " ms",
+        classesLoaded, pluginClassesOnly ? "plugin classes" : "classes",
+        (allocatedBytes == UNKNOWN) ? "unknown" : (allocatedBytes / 1024) + " KB",
+        threadsStarted);
+  }
+
+  /**
+   * Records the cost of a phase between its creation and {@link #stop}.
+   */
+  public static final class Recorder {
+
+    private final String phase;
+    private final PluginClassLoader pluginClassLoader;
+    private final Stopwatch stopwatch;
+    private final long cpuTimeNanos;
+    private final long classCount;
+    private final long allocatedBytes;
+    private final long startedThreadCount;
+    private final Set<Long> tckThreadIds;
+
+    private Recorder(String phase, ClassLoader classLoader) {
+      this.phase = phase;
+      this.pluginClassLoader = (classLoader instanceof PluginClassLoader) ?
+          (PluginClassLoader) classLoader : null;
+      // listing the threads is not part of the cost of the phase, so it comes first
+      this.tckThreadIds = tckThreadIds();
+      this.cpuTimeNanos = currentThreadCpuTimeNanos();
+      this.classCount = classCount(pluginClassLoader);
+      this.allocatedBytes = currentThreadAllocatedBytes();
+      this.startedThreadCount = ManagementFactory.getThreadMXBean().getTotalStartedThreadCount();
+      this.stopwatch = Stopwatch.createStarted();
+    }
+
+    /**
+     * Stops recording.
+     *
+     * @return the cost of the phase
+     */
+    public StartupProfile stop() {
+      long wallTimeMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+      long cpuTimeNow = currentThreadCpuTimeNanos();
+      long allocatedBytesNow = currentThreadAllocatedBytes();
+      long threadsStarted =
+          ManagementFactory.getThreadMXBean().getTotalStartedThreadCount() - startedThreadCount;
+      Set<Long> newTckThreadIds = tckThreadIds();
+      newTckThreadIds.removeAll(tckThreadIds);
+
+      return new StartupProfile(phase, wallTimeMillis,
+          (cpuTimeNanos == UNKNOWN || cpuTimeNow == UNKNOWN) ? UNKNOWN :
+              TimeUnit.NANOSECONDS.toMillis(cpuTimeNow - cpuTimeNanos),
+          classCount(pluginClassLoader) - classCount,
+          pluginClassLoader != null,
+          (allocatedBytes == UNKNOWN || allocatedBytesNow == UNKNOWN) ? UNKNOWN :
+              allocatedBytesNow - allocatedBytes,
+          Math.max(0, threadsStarted - newTckThreadIds.size()));
+    }
+
+    private static Set<Long> tckThreadIds() {
+      Set<Long> ids = new HashSet<Long>();
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+        if (thread.getName().startsWith(DaemonThreadFactory.TCK_THREAD_PREFIX)) {
+          ids.add(thread.getId());
+        }
+      }
+      return ids;
+    }
+
+    private static long classCount(PluginClassLoader pluginClassLoader) {
+      if (pluginClassLoader != null) {
+        return pluginClassLoader.getDefinedClassCount();
+      }
+      ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+      return classLoading.getTotalLoadedClassCount();
+    }
+
+    private static long currentThreadCpuTimeNanos() {
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      if (!threads.isCurrentThreadCpuTimeSupported() || !threads.isThreadCpuTimeEnabled()) {
+        return UNKNOWN;
+      }
+      return threads.getCurrentThreadCpuTime();
+    }
+
+    private static long currentThreadAllocatedBytes() {
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+        return UNKNOWN;
+      }
+      com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+      if (!sunThreads.isThreadAllocatedMemorySupported() ||
+          !sunThreads.isThreadAllocatedMemoryEnabled()) {
+        return UNKNOWN;
+      }
+      return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+  }
+}
@@ -0,0 +1,151 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import com.cloudera.director.spi.tck.Configurations;
+import com.cloudera.director.spi.tck.Summary;
+import com.typesafe.config.Config;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits on the cost of plugin startup phases. A phase that goes over a warning
+ * limit adds a warning to the summary, and one that goes over an error limit adds
+ * an error. Limits are configured per phase in an optional top-level section:
+ * <pre>
+ *   startupThresholds {
+ *     initialize {
+ *       warning { wallTime: 10s, allocatedBytes: 512M }
+ *       error { wallTime: 60s }
+ *     }
+ *     createCloudProvider {
+ *       warning { threadsStarted: 4 }
+ *     }
+ *   }
+ * </pre>
+ */
+public class StartupThresholds {
+
+  private static final String WARNING = "warning";
+  private static final String ERROR = "error";
+
+  private final Map<String, Limits> warningLimits;
+  private final Map<String, Limits> errorLimits;
+
+  /**
+   * Reads the startup thresholds from the TCK configuration.
+   *
+   * @param config the TCK configuration
+   * @return the thresholds, without any limit if none is configured
+   */
+  public static StartupThresholds fromConfig(Config config) {
+    Map<String, Limits> warningLimits = new HashMap<String, Limits>();
+    Map<String, Limits> errorLimits = new HashMap<String, Limits>();
+
+    if (config.hasPath(Configurations.STARTUP_THRESHOLDS_SECTION)) {
+      Config thresholds = config.getConfig(Configurations.STARTUP_THRESHOLDS_SECTION);
+      for (String phase : thresholds.root().keySet()) {
+        Config phaseThresholds = thresholds.getConfig(phase);
+        if (phaseThresholds.hasPath(WARNING)) {
+          warningLimits.put(phase, Limits.fromConfig(phaseThresholds.getConfig(WARNING)));
+        }
+        if (phaseThresholds.hasPath(ERROR)) {
+          errorLimits.put(phase, Limits.fromConfig(phaseThresholds.getConfig(ERROR)));
+        }
+      }
+    }
+    return new StartupThresholds(warningLimits, errorLimits);
+  }
+
+  StartupThresholds(Map<String, Limits> warningLimits, Map<String, Limits> errorLimits) {
+    this.warningLimits = Collections.unmodifiableMap(warningLimits);
+    this.errorLimits = Collections.unmodifiableMap(errorLimits);
+  }
+
+  /**
+   * Checks the cost of a startup phase against its limits. Every measurement over
+   * its error limit is reported as an error, and every other measurement over its
+   * warning limit as a warning.
+   *
+   * @param summary a summary of errors and warnings that will be updated
+   * @param profile the cost of the phase
+   */
+  public void check(Summary summary, StartupProfile profile) {
+    Limits errors = errorLimits.get(profile.getPhase());
+    Limits warnings = warningLimits.get(profile.getPhase());
+
+    check(summary, profile, "wall time", profile.getWallTimeMillis(), " ms",
+        (errors == null) ? Long.MAX_VALUE : errors.wallTimeMillis,
+        (warnings == null) ? Long.MAX_VALUE : warnings.wallTimeMillis);
+    check(summary, profile, "CPU time", profile.getCpuTimeMillis(), " ms",
+        (errors == null) ? Long.MAX_VALUE : errors.cpuTimeMillis,
+        (warnings == null) ? Long.MAX_VALUE : warnings.cpuTimeMillis);
+    check(summary, profile, "classes loaded", profile.getClassesLoaded(), "",
+        (errors == null) ? Long.MAX_VALUE : errors.classesLoaded,
+        (warnings == null) ? Long.MAX_VALUE : warnings.classesLoaded);
+    check(summary, profile, "allocated bytes", profile.getAllocatedBytes(), "",
+        (errors == null) ? Long.MAX_VALUE : errors.allocatedBytes,
+        (warnings == null) ? Long.MAX_VALUE : warnings.allocatedBytes);
+    check(summary, profile, "threads started", profile.getThreadsStarted(), "",
+        (errors == null) ? Long.MAX_VALUE : errors.threadsStarted,
+        (warnings == null) ? Long.MAX_VALUE : warnings.threadsStarted);
+  }
+
+  private static void check(Summary summary, StartupProfile profile, String measurement,
+      long value, String unit, long errorLimit, long warningLimit) {
+    if (value == StartupProfile.UNKNOWN) {
+      return;
+    }
+    if (value > errorLimit) {
+      summary.addError("Startup phase %s is too expensive: %s %d%s is over the limit of %d%s",
+          profile.getPhase(), measurement, value, unit, errorLimit, unit);
+    } else if (value > warningLimit) {
+      summary.addWarning("Startup phase %s is expensive: %s %d%s is over the limit of %d%s",
+          profile.getPhase(), measurement, value, unit, warningLimit, unit);
+    }
+  }
+
+  /**
+   * The limits for one phase and one severity. Missing limits are
+   * {@link Long#MAX_VALUE}.
+   */
+  static class Limits {
+
+    private final long wallTimeMillis;
+    private final long cpuTimeMillis;
+    private final long classesLoaded;
+    private final long allocatedBytes;
+    private final long threadsStarted;
+
+    Limits(long wallTimeMillis, long cpuTimeMillis, long classesLoaded, long allocatedBytes,
+        long threadsStarted) {
+      this.wallTimeMillis = wallTimeMillis;
+      this.cpuTimeMillis = cpuTimeMillis;
+      this.classesLoaded = classesLoaded;
+      this.allocatedBytes = allocatedBytes;
+      this.threadsStarted = threadsStarted;
+    }
+
+    static Limits fromConfig(Config config) {
+      return new Limits(
+          getMillis(config, Configurations.STARTUP_WALL_TIME_PROPERTY),
+          getMillis(config, Configurations.STARTUP_CPU_TIME_PROPERTY),
+          getLong(config, Configurations.STARTUP_CLASSES_LOADED_PROPERTY),
+          config.hasPath(Configurations.STARTUP_ALLOCATED_BYTES_PROPERTY) ?
+              config.getBytes(Configurations.STARTUP_ALLOCATED_BYTES_PROPERTY) : Long.MAX_VALUE,
+          getLong(config, Configurations.STARTUP_THREADS_STARTED_PROPERTY));
+    }
+
+    private static long getMillis(Config config, String path) {
+      return config.hasPath(path) ?
+          config.getDuration(path, TimeUnit.MILLISECONDS) : Long.MAX_VALUE;
+    }
+
+    private static long getLong(Config config, String path) {
+      return config.hasPath(path) ? config.getLong(path) : Long.MAX_VALUE;
+    }
+  }
+}
@@ -3,6 +3,7 @@
 package com.cloudera.director.spi.tck.util;
 
 import com.cloudera.director.spi.tck.PluginMetadata;
+import com.cloudera.director.spi.tck.PluginMetadataCache;
 import com.cloudera.director.spi.tck.Summary;
 
 import java.io.File;
@@ -12,10 +13,14 @@ import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.URL;
-import java.net.URLClassLoader;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
@@ -23,11 +28,23 @@ public class TCKUtil {
 
   private static final Logger LOG = Logger.getLogger(TCKUtil.class.getName());
 
-  private static final int DEFAULT_PORT_TIMEOUT_MINUTES = 10;
-  private static final int DEFAULT_PORT_WAIT_BETWEEN_ATTEMPTS_SECONDS = 5;
+  /**
+   * The version of the packaging checks, part of the key of the packaging verdicts
+   * in the plugin metadata cache. Bump it whenever the checks change, so that the
+   * verdicts of the older checks are not reused.
+   */
+  public static final int PACKAGING_CHECKS_VERSION = 1;
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 500;
 
   private static final String JAR_FILE_EXTENSION = ".jar";
 
+  private static final int MAX_CLASS_SAMPLES = 3;
+
+  private static final String METASPACE_DELTA_COUNTER = "metaspaceDeltaBytes";
+  private static final String LOADED_CLASSES_DELTA_COUNTER = "loadedClassesDelta";
+  private static final String OPEN_FILE_DESCRIPTORS_DELTA_COUNTER = "openFileDescriptorsDelta";
+
   /**
    * Validates the internal file structure of a plugin.
    *
@@ -42,13 +59,43 @@ public class TCKUtil {
   }
 
   /**
-   * Retrieves a class loader from a plugin JAR file.
+   * Validates the internal file structure of a plugin, reusing the outcome of an
+   * earlier validation of the same jar if it is in the cache.
+   *
+   * @param summary a summary of errors and warnings that will be updated
+   * @param metadata the plugin metadata
+   * @param version the SPI version
+   * @param pluginFile the plugin jar
+   * @param cache the plugin metadata cache, or null to always validate
+   * @throws IOException if the cache cannot be read or written
+   */
+  public void validateJar(Summary summary, PluginMetadata metadata, String version,
+      File pluginFile, PluginMetadataCache cache) throws IOException {
+    if (cache == null) {
+      validateJar(summary, metadata, version);
+      return;
+    }
+
+    Summary packagingSummary = cache.getPackagingSummary(pluginFile, version);
+    if (packagingSummary == null) {
+      packagingSummary = new Summary(summary.getMaxFindings());
+      validateJar(packagingSummary, metadata, version);
+      cache.putPackagingSummary(pluginFile, version, packagingSummary);
+    } else {
+      LOG.info("Skipping plugin jar file internal structure validation (cached)");
+    }
+    summary.add(packagingSummary);
+  }
+
+  /**
+   * Retrieves a class loader from a plugin JAR file. The caller owns the class
+   * loader and should close it when done with the plugin, to release the JAR file.
    *
    * @param pluginFile the plugin
    * @return a class loader for the plugin
    * @throws IOException
    */
-  public ClassLoader getClassLoader(File pluginFile) throws IOException {
+  public PluginClassLoader getClassLoader(File pluginFile) throws IOException {
     LOG.info("Loading plugin file via a new ClassLoader from: " + pluginFile.getAbsolutePath());
 
     final URL pluginUrl;
@@ -59,16 +106,82 @@ public class TCKUtil {
     }
 
     return AccessController.doPrivileged(
-        new PrivilegedAction<URLClassLoader>() {
-          public URLClassLoader run() {
-            return new URLClassLoader(new URL[] { pluginUrl },
+        new PrivilegedAction<PluginClassLoader>() {
+          public PluginClassLoader run() {
+            return new PluginClassLoader(new URL[] { pluginUrl },
                 this.getClass().getClassLoader());
           }
         });
   }
 
   /**
-   * Wait until successful connection to the specified port.
+   * Checks that a plugin can be unloaded after its class loader has been closed,
+   * and reports how much metaspace, how many loaded classes and how many open file
+   * descriptors the validation left behind. A class loader that cannot be garbage
+   * collected is reported as a warning together with the likely culprits.
+   *
+   * The resource usage is that of the whole JVM, so it is only reported if the
+   * validation ran alone.
+   *
+   * @param summary a summary of errors and warnings that will be updated
+   * @param leakCheck the leak check for the closed plugin class loader
+   * @param usageBefore the resource usage before the plugin was loaded
+   * @param window the window of the validation
+   * @throws InterruptedException if interrupted while waiting for the collection
+   */
+  public void checkPluginUnloaded(Summary summary, ClassLoaderLeakCheck leakCheck,
+      ResourceUsage usageBefore, ValidationWindow window) throws InterruptedException {
+    LOG.info("Checking that the plugin class loader can be garbage collected");
+
+    if (leakCheck.awaitCollection()) {
+      LOG.info("The plugin class loader was garbage collected");
+    } else {
+      List<String> suspects = leakCheck.findSuspects();
+      summary.addWarning("The plugin class loader was not garbage collected after the " +
+          "validation, so every load of the plugin leaks its classes. It is still referenced " +
+          "from %s", suspects.isEmpty() ?
+          "static state outside the plugin, e.g. JDBC drivers, shutdown hooks or thread locals" :
+          suspects);
+    }
+
+    if (!window.isExclusive()) {
+      LOG.info("Not reporting the change of metaspace, loaded classes and open file " +
+          "descriptors, since other plugins were validated at the same time");
+      return;
+    }
+    ResourceUsage usageAfter = ResourceUsage.capture();
+    reportDelta(summary, METASPACE_DELTA_COUNTER,
+        usageBefore.getMetaspaceUsedBytes(), usageAfter.getMetaspaceUsedBytes());
+    reportDelta(summary, LOADED_CLASSES_DELTA_COUNTER,
+        usageBefore.getLoadedClassCount(), usageAfter.getLoadedClassCount());
+    reportDelta(summary, OPEN_FILE_DESCRIPTORS_DELTA_COUNTER,
+        usageBefore.getOpenFileDescriptorCount(), usageAfter.getOpenFileDescriptorCount());
+  }
+
+  private static void reportDelta(Summary summary, String counter, long before, long after) {
+    if (before == ResourceUsage.UNKNOWN || after == ResourceUsage.UNKNOWN) {
+      return;
+    }
+    LOG.info(String.format("Change of %s after teardown: %+d", counter, after - before));
+    summary.addCounter(counter, after - before);
+  }
+
+  /**
+   * Generates a random ID for a new instance. The ID never starts with a digit.
+   *
+   * @return a new instance ID
+   */
+  public String newInstanceId() {
+    String id;
+    do {
+      id = UUID.randomUUID().toString();
+    } while (Character.isDigit(id.charAt(0)));
+    return id;
+  }
+
+  /**
+   * Wait until successful connection to the specified port, using the default
+   * polling policy.
    *
    * @param summary a summary of errors and warnings that will be updated
    * @param privateIpAddress the private ip of the machine to check
@@ -78,29 +191,75 @@ public class TCKUtil {
    */
   public void waitForPort(Summary summary, InetAddress privateIpAddress, int port)
       throws InterruptedException, IOException {
+    waitForPort(summary, privateIpAddress, port, PollingPolicies.defaultPolicy());
+  }
+
+  /**
+   * Wait until successful connection to the specified port.
+   *
+   * @param summary a summary of errors and warnings that will be updated
+   * @param privateIpAddress the private ip of the machine to check
+   * @param port the port number of the machine to check
+   * @param pollingPolicy the policy for delays between attempts and the timeout
+   * @throws InterruptedException if the operation is interrupted
+   * @throws IOException if an error occurs when closing the connection
+   */
+  public void waitForPort(Summary summary, InetAddress privateIpAddress, int port,
+      PollingPolicy pollingPolicy) throws InterruptedException, IOException {
 
     Stopwatch stopwatch = Stopwatch.createStarted();
     InetSocketAddress address = new InetSocketAddress(privateIpAddress.getHostName(), port);
+    int attempts = 0;
 
-    while (stopwatch.elapsed(TimeUnit.MINUTES) < DEFAULT_PORT_TIMEOUT_MINUTES) {
+    while (stopwatch.elapsed(TimeUnit.MILLISECONDS) < pollingPolicy.getTimeoutMillis()) {
+      attempts++;
       LOG.info("Attempting connection to " + address);
       Socket socket = new Socket();
       try {
-        socket.connect(address, 500);
-        LOG.info(String.format("Connection successful. Found port %d open as expected", port));
-        break;  // connection successful
+        socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+        LOG.info(String.format("Connection successful. Found port %d open as expected " +
+            "after %d attempts in %d ms", port, attempts, stopwatch.elapsed(TimeUnit.MILLISECONDS)));
+        return;  // connection successful
 
       } catch (IOException e) {
-        TimeUnit.SECONDS.sleep(DEFAULT_PORT_WAIT_BETWEEN_ATTEMPTS_SECONDS);
+        PollingPolicies.sleepBeforeNextPoll(pollingPolicy, attempts, stopwatch);
 
       } finally {
         socket.close();
       }
     }
 
-    if (stopwatch.elapsed(TimeUnit.MINUTES) >= DEFAULT_PORT_TIMEOUT_MINUTES) {
-      summary.addError("Unable to connect on port %s after %s minutes",
-          port, DEFAULT_PORT_TIMEOUT_MINUTES);
+    summary.addError("Unable to connect on port %s after %s seconds (%d attempts)",
+        port, TimeUnit.MILLISECONDS.toSeconds(pollingPolicy.getTimeoutMillis()), attempts);
+  }
+
+  /**
+   * Wait until successful connection to the specified port, using a shared port
+   * prober instead of the calling thread.
+   *
+   * @param summary a summary of errors and warnings that will be updated
+   * @param prober the port prober
+   * @param privateIpAddress the private ip of the machine to check
+   * @param port the port number of the machine to check
+   * @param pollingPolicy the policy for delays between attempts and the timeout
+   * @return the number of milliseconds it took for the port to open, or -1 if it did not
+   * @throws InterruptedException if the operation is interrupted
+   */
+  public long waitForPort(Summary summary, PortProber prober, InetAddress privateIpAddress,
+      int port, PollingPolicy pollingPolicy) throws InterruptedException {
+
+    Future<Long> future = prober.probe(new InetSocketAddress(privateIpAddress, port),
+        pollingPolicy);
+    try {
+      return future.get();
+
+    } catch (ExecutionException e) {
+      summary.addError("%s", e.getCause().getMessage());
+      return -1;
+
+    } catch (InterruptedException e) {
+      future.cancel(false);
+      throw e;
     }
   }
 
@@ -108,17 +267,27 @@ public class TCKUtil {
    * Checks that everything is shaded properly. The launcher classes should
    * define the root of the Java package hierarchy; every other class in the
    * plugin must be in that package or below it.
+   * <p/>
+   * Classes that are not are reported with one error per outermost offending
+   * package, with a count and a few sample class names, to keep the output of
+   * badly shaded plugins readable.
    */
   private void validatePackaging(Summary summary, PluginMetadata metadata, String version) {
+    PackageTrie packages = new PackageTrie(metadata.getClasses());
+
     // with multiple launcher classes, this only works if the launchers are all
     // in the same package, which is what we want
     for (ClassReference launcherClassRef : metadata.getLauncherClasses(version)) {
       String expectedNamespace = launcherClassRef.getPackageName();
-      for (String candidate : metadata.getClasses()) {
-        if (!candidate.startsWith(expectedNamespace)) {
-          summary.addError("Class '%s' should be relocated under '%s', due to launcher class '%s'",
-              candidate, expectedNamespace, launcherClassRef.getCanonicalClassName());
-        }
+      Map<String, PackageTrie.PackageClasses> violations =
+          packages.findClassesOutside(expectedNamespace, MAX_CLASS_SAMPLES);
+
+      for (PackageTrie.PackageClasses violation : violations.values()) {
+        String packageName = violation.getPackageName().isEmpty() ?
+            "the default package" : "package '" + violation.getPackageName() + "'";
+        summary.addError("%d classes in %s should be relocated under '%s', due to launcher " +
+                "class '%s'. Examples: %s", violation.getCount(), packageName, expectedNamespace,
+            launcherClassRef.getCanonicalClassName(), violation.getSamples());
       }
     }
   }
@@ -0,0 +1,55 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The time during which one plugin is validated, used to tell whether other plugin
+ * validations ran in the same JVM at the same time, as in batch mode. JVM-wide
+ * measurements, like open file descriptors or loaded classes, can only be blamed
+ * on a plugin if its validation ran alone.
+ */
+public final class ValidationWindow implements Closeable {
+
+  private static final AtomicInteger ACTIVE = new AtomicInteger();
+  private static final AtomicLong STARTED = new AtomicLong();
+
+  private final boolean aloneAtOpen;
+  private final long startedAtOpen;
+  private boolean closed;
+
+  private ValidationWindow(boolean aloneAtOpen, long startedAtOpen) {
+    this.aloneAtOpen = aloneAtOpen;
+    this.startedAtOpen = startedAtOpen;
+  }
+
+  /**
+   * Opens a window for a new plugin validation.
+   *
+   * @return the window, to close once the validation is over
+   */
+  public static ValidationWindow open() {
+    long started = STARTED.incrementAndGet();
+    boolean alone = ACTIVE.incrementAndGet() == 1;
+    return new ValidationWindow(alone, started);
+  }
+
+  /**
+   * Tells whether the validation has run alone so far: no other validation was
+   * running when the window opened, and none has started since.
+   */
+  public boolean isExclusive() {
+    return aloneAtOpen && STARTED.get() == startedAtOpen;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (!closed) {
+      closed = true;
+      ACTIVE.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,367 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A fast, read-only scanner for the central directory of ZIP (and jar) files.
+ * <p/>
+ * The central directory is memory-mapped and parsed in place. Unlike
+ * {@link java.util.jar.JarFile#entries()}, no object or string is created per entry
+ * unless the visitor asks for the name, and only the entries whose content is
+ * explicitly requested are read and inflated. Directory entries are skipped without
+ * decoding their names. ZIP64 archives are supported.
+ */
+public class ZipCentralDirectory {
+
+  /**
+   * Receives the non-directory entries of a ZIP file, in central directory order.
+   */
+  public interface Visitor {
+
+    /**
+     * Visits an entry. The entry object is reused for the next entry, so it should
+     * not be kept after this method returns.
+     *
+     * @param entry the current entry
+     * @throws IOException if the content of the entry cannot be read
+     */
+    void visit(Entry entry) throws IOException;
+  }
+
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+  private static final int MAX_COMMENT_SIZE = 0xFFFF;
+  private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+  private static final int METHOD_STORED = 0;
+  private static final int METHOD_DEFLATED = 8;
+
+  private ZipCentralDirectory() {
+  }
+
+  /**
+   * Scans all the non-directory entries of a ZIP file.
+   *
+   * @param file    the ZIP file
+   * @param visitor the visitor that receives the entries
+   * @throws IOException if the file cannot be read or is not a valid ZIP file
+   */
+  public static void scan(File file, Visitor visitor) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long[] directory = locateCentralDirectory(channel, file);
+      long offset = directory[0];
+      long size = directory[1];
+      long count = directory[2];
+
+      if (size > Integer.MAX_VALUE) {
+        throw new ZipException("Central directory too large in " + file);
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+      Entry entry = new Entry(channel, buffer);
+      int position = 0;
+      for (long i = 0; i < count; i++) {
+        if (position + CENTRAL_HEADER_SIZE > size ||
+            buffer.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+          throw new ZipException("Invalid central directory header in " + file);
+        }
+        entry.reset(position);
+        position = entry.nextHeaderPosition;
+        if (!entry.isDirectory()) {
+          visitor.visit(entry);
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds the offset, size and number of entries of the central directory.
+   */
+  private static long[] locateCentralDirectory(FileChannel channel, File file)
+      throws IOException {
+    long fileSize = channel.size();
+    int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+    long tailStart = fileSize - tailSize;
+    ByteBuffer tail = read(channel, tailStart, tailSize);
+
+    for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        continue;
+      }
+      long count = tail.getShort(i + 10) & 0xFFFF;
+      long size = tail.getInt(i + 12) & ZIP64_MAGIC;
+      long offset = tail.getInt(i + 16) & ZIP64_MAGIC;
+
+      long locatorStart = tailStart + i - ZIP64_LOCATOR_SIZE;
+      if (locatorStart >= 0) {
+        ByteBuffer locator = read(channel, locatorStart, ZIP64_LOCATOR_SIZE);
+        if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+          ByteBuffer zip64 = read(channel, locator.getLong(8), 56);
+          if (zip64.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+            throw new ZipException("Invalid ZIP64 end of central directory in " + file);
+          }
+          count = zip64.getLong(32);
+          size = zip64.getLong(40);
+          offset = zip64.getLong(48);
+        }
+      }
+
+      if (offset + size > fileSize) {
+        throw new ZipException("Invalid central directory location in " + file);
+      }
+      return new long[]{offset, size, count};
+    }
+    throw new ZipException("End of central directory not found in " + file);
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int length)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new ZipException("Unexpected end of ZIP file");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * A view of one central directory entry, backed by the mapped central directory.
+   */
+  public static class Entry {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    private int namePosition;
+    private int nameLength;
+    private int nextHeaderPosition;
+    private int method;
+    private long compressedSize;
+    private long uncompressedSize;
+    private long localHeaderOffset;
+
+    Entry(FileChannel channel, ByteBuffer buffer) {
+      this.channel = channel;
+      this.buffer = buffer;
+    }
+
+    void reset(int position) throws ZipException {
+      method = buffer.getShort(position + 10) & 0xFFFF;
+      compressedSize = buffer.getInt(position + 20) & ZIP64_MAGIC;
+      uncompressedSize = buffer.getInt(position + 24) & ZIP64_MAGIC;
+      nameLength = buffer.getShort(position + 28) & 0xFFFF;
+      int extraLength = buffer.getShort(position + 30) & 0xFFFF;
+      int commentLength = buffer.getShort(position + 32) & 0xFFFF;
+      localHeaderOffset = buffer.getInt(position + 42) & ZIP64_MAGIC;
+
+      namePosition = position + CENTRAL_HEADER_SIZE;
+      nextHeaderPosition = namePosition + nameLength + extraLength + commentLength;
+      if (nextHeaderPosition > buffer.limit()) {
+        throw new ZipException("Truncated central directory header");
+      }
+
+      if (uncompressedSize == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC ||
+          localHeaderOffset == ZIP64_MAGIC) {
+        readZip64ExtraField(namePosition + nameLength, extraLength);
+      }
+    }
+
+    private void readZip64ExtraField(int position, int length) throws ZipException {
+      int end = position + length;
+      while (position + 4 <= end) {
+        int id = buffer.getShort(position) & 0xFFFF;
+        int size = buffer.getShort(position + 2) & 0xFFFF;
+        int fieldEnd = position + 4 + size;
+        if (fieldEnd > end) {
+          throw new ZipException("Truncated extra field in central directory header");
+        }
+        if (id == ZIP64_EXTRA_FIELD_ID) {
+          int field = position + 4;
+          if (uncompressedSize == ZIP64_MAGIC) {
+            uncompressedSize = readZip64Value(field, fieldEnd);
+            field += 8;
+          }
+          if (compressedSize == ZIP64_MAGIC) {
+            compressedSize = readZip64Value(field, fieldEnd);
+            field += 8;
+          }
+          if (localHeaderOffset == ZIP64_MAGIC) {
+            localHeaderOffset = readZip64Value(field, fieldEnd);
+          }
+          return;
+        }
+        position = fieldEnd;
+      }
+    }
+
+    private long readZip64Value(int field, int fieldEnd) throws ZipException {
+      if (field + 8 > fieldEnd) {
+        throw new ZipException("Truncated ZIP64 extra field in central directory header");
+      }
+      long value = buffer.getLong(field);
+      if (value < 0) {
+        throw new ZipException("Invalid ZIP64 extra field in central directory header");
+      }
+      return value;
+    }
+
+    boolean isDirectory() {
+      return nameLength > 0 && buffer.get(namePosition + nameLength - 1) == '/';
+    }
+
+    /**
+     * Checks whether the entry name starts with an ASCII prefix, without decoding it.
+     *
+     * @param prefix the prefix
+     * @return whether the name starts with the prefix
+     */
+    public boolean nameStartsWith(String prefix) {
+      return regionMatches(0, prefix);
+    }
+
+    /**
+     * Checks whether the entry name ends with an ASCII suffix, without decoding it.
+     *
+     * @param suffix the suffix
+     * @return whether the name ends with the suffix
+     */
+    public boolean nameEndsWith(String suffix) {
+      return regionMatches(nameLength - suffix.length(), suffix);
+    }
+
+    private boolean regionMatches(int offset, String value) {
+      if (offset < 0 || offset + value.length() > nameLength) {
+        return false;
+      }
+      for (int i = 0; i < value.length(); i++) {
+        if (buffer.get(namePosition + offset + i) != value.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Decodes the entry name.
+     *
+     * @return the entry name
+     */
+    public String getName() {
+      return decodeName(0, nameLength, false);
+    }
+
+    /**
+     * Decodes the entry name with {@code /} replaced by {@code .} in a single pass,
+     * dropping some characters at the start and at the end. This turns
+     * {@code com/example/Foo.class} into the class name {@code com.example.Foo}
+     * without building intermediate strings.
+     *
+     * @param skipStart the number of characters to drop at the start of the name
+     * @param skipEnd   the number of characters to drop at the end of the name
+     * @return the dotted name
+     */
+    public String getDottedName(int skipStart, int skipEnd) {
+      return decodeName(skipStart, nameLength - skipStart - skipEnd, true);
+    }
+
+    private String decodeName(int offset, int length, boolean dotted) {
+      char[] chars = new char[length];
+      for (int i = 0; i < length; i++) {
+        byte b = buffer.get(namePosition + offset + i);
+        if (b < 0) {
+          return decodeUtf8Name(offset, length, dotted);
+        }
+        chars[i] = (dotted && b == '/') ? '.' : (char) b;
+      }
+      return new String(chars);
+    }
+
+    private String decodeUtf8Name(int offset, int length, boolean dotted) {
+      byte[] bytes = new byte[length];
+      for (int i = 0; i < length; i++) {
+        bytes[i] = buffer.get(namePosition + offset + i);
+      }
+      String name = new String(bytes, StandardCharsets.UTF_8);
+      return dotted ? name.replace('/', '.') : name;
+    }
+
+    /**
+     * Reads and, if needed, inflates the content of the entry.
+     *
+     * @return the uncompressed content
+     * @throws IOException if the content cannot be read or uses an unsupported
+     *                     compression method
+     */
+    public byte[] readContent() throws IOException {
+      if (uncompressedSize > Integer.MAX_VALUE || compressedSize > Integer.MAX_VALUE) {
+        throw new ZipException("Entry too large: " + getName());
+      }
+
+      ByteBuffer localHeader = read(channel, localHeaderOffset, LOCAL_HEADER_SIZE);
+      if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+        throw new ZipException("Invalid local header for entry: " + getName());
+      }
+      long dataOffset = localHeaderOffset + LOCAL_HEADER_SIZE +
+          (localHeader.getShort(26) & 0xFFFF) + (localHeader.getShort(28) & 0xFFFF);
+      byte[] data = read(channel, dataOffset, (int) compressedSize).array();
+
+      if (method == METHOD_STORED) {
+        return data;
+      } else if (method != METHOD_DEFLATED) {
+        throw new ZipException("Unsupported compression method " + method +
+            " for entry: " + getName());
+      }
+
+      byte[] content = new byte[(int) uncompressedSize];
+      Inflater inflater = new Inflater(true);
+      try {
+        inflater.setInput(data);
+        int length = 0;
+        boolean dummyByteAdded = false;
+        while (length < content.length) {
+          int inflated = inflater.inflate(content, length, content.length - length);
+          if (inflated == 0 && inflater.needsInput() && !dummyByteAdded) {
+            // raw inflaters may need one extra byte of input to finish (see Inflater)
+            inflater.setInput(new byte[1]);
+            dummyByteAdded = true;
+          } else if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+            break;
+          }
+          length += inflated;
+        }
+        if (length != content.length) {
+          throw new ZipException("Truncated content for entry: " + getName());
+        }
+        return content;
+      } catch (DataFormatException e) {
+        throw new ZipException("Invalid compressed data for entry " + getName() + ": " +
+            e.getMessage());
+      } finally {
+        inflater.end();
+      }
+    }
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import static com.cloudera.director.spi.tck.FakeInstanceProvider.newTemplate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.cloudera.director.spi.tck.util.AllocationJournal;
+import com.cloudera.director.spi.tck.util.StartupThresholds;
+import com.cloudera.director.spi.tck.util.TCKUtil;
+import com.cloudera.director.spi.v2.model.Instance;
+import com.cloudera.director.spi.v2.model.InstanceTemplate;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BulkAllocationStageTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final Config CONFIG = ConfigFactory.parseString(
+      "expectedOpenPort: -1\n" +
+          "instanceStatusPolling { strategy: fixed, interval: 10ms, timeout: 1s }\n" +
+          "portPolling { strategy: fixed, interval: 10ms, timeout: 1s }\n" +
+          "bulkAllocation { count: 4, minCount: 3 }");
+
+  private File journalFile;
+  private ValidationContext context;
+  private InstanceTemplate template;
+
+  @Before
+  public void setUp() throws Exception {
+    journalFile = new File(folder.getRoot(), "journal.json");
+    context = new ValidationContext(1, StartupThresholds.fromConfig(ConfigFactory.empty()),
+        AllocationJournal.open(journalFile));
+    template = newTemplate();
+    context.registerTemplate(template, new AllocationJournal.Template("cloud", "compute",
+        Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap()));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    context.close();
+  }
+
+  @Test
+  public void testAllInstancesReturned() throws Exception {
+    FakeProvider fake = new FakeProvider(4);
+    Summary summary = run(fake);
+
+    assertFalse(summary.toString(), summary.hasErrors());
+    assertFalse(summary.hasWarnings());
+    assertTrue(fake.live.isEmpty());
+    assertTrue(AllocationJournal.readLeftovers(journalFile).isEmpty());
+  }
+
+  @Test
+  public void testPartialReturn() throws Exception {
+    FakeProvider fake = new FakeProvider(3);
+    Summary summary = run(fake);
+
+    assertFalse(summary.toString(), summary.hasErrors());
+    assertEquals(Collections.singletonList("Bulk allocation returned 3 of 4 requested instances"),
+        summary.getWarnings());
+    assertTrue(fake.live.isEmpty());
+    // the instance that was not returned is not left in the journal
+    assertTrue(AllocationJournal.readLeftovers(journalFile).isEmpty());
+  }
+
+  @Test
+  public void testUnrequestedInstanceIsDeleted() throws Exception {
+    FakeProvider fake = new FakeProvider(3, "stray-1");
+    Summary summary = run(fake);
+
+    assertEquals(Collections.singletonList(
+        "Bulk allocation returned an instance that was not requested: stray-1"),
+        summary.getErrors());
+    assertTrue(fake.live.isEmpty());
+    assertTrue(AllocationJournal.readLeftovers(journalFile).isEmpty());
+  }
+
+  @Test
+  public void testOverReturnIsDeleted() throws Exception {
+    FakeProvider fake = new FakeProvider(4, "stray-1", "stray-2");
+    Summary summary = run(fake);
+
+    assertEquals(summary.getErrors().toString(), 3, summary.getErrors().size());
+    assertTrue(summary.getErrors().get(2),
+        summary.getErrors().get(2).endsWith("between 3 and 4 instances. Found 6"));
+    assertTrue(fake.live.isEmpty());
+    assertTrue(AllocationJournal.readLeftovers(journalFile).isEmpty());
+  }
+
+  @Test
+  public void testFewerThanMinCount() throws Exception {
+    FakeProvider fake = new FakeProvider(2);
+    Summary summary = run(fake);
+
+    assertEquals(summary.getErrors().toString(), 1, summary.getErrors().size());
+    assertTrue(summary.getErrors().get(0),
+        summary.getErrors().get(0).endsWith("between 3 and 4 instances. Found 2"));
+    assertTrue(fake.live.isEmpty());
+    assertTrue(AllocationJournal.readLeftovers(journalFile).isEmpty());
+  }
+
+  private Summary run(FakeProvider fake) throws Exception {
+    Summary summary = new Summary();
+    new BulkAllocationStage(new TCKUtil(), CONFIG)
+        .run(summary, context, "compute", fake.asProvider(), template);
+    return summary;
+  }
+
+  /**
+   * An instance provider that allocates some of the requested instances, and
+   * optionally instances that were not requested.
+   */
+  private static class FakeProvider extends FakeInstanceProvider {
+
+    private final int returned;
+    private final List<String> strayIds;
+
+    FakeProvider(int returned, String... strayIds) {
+      this.returned = returned;
+      this.strayIds = Arrays.asList(strayIds);
+    }
+
+    @Override
+    protected Collection<Instance> allocate(Collection<String> ids, int minCount)
+        throws Exception {
+      List<String> allocated =
+          new ArrayList<String>(new ArrayList<String>(ids).subList(0, returned));
+      allocated.addAll(strayIds);
+      live.addAll(allocated);
+      return newInstances(allocated);
+    }
+  }
+}
@@ -0,0 +1,227 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import static com.cloudera.director.spi.tck.FakeInstanceProvider.newTemplate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.cloudera.director.spi.tck.util.AllocationJournal;
+import com.cloudera.director.spi.tck.util.StartupThresholds;
+import com.cloudera.director.spi.tck.util.TCKUtil;
+import com.cloudera.director.spi.v2.model.Instance;
+import com.cloudera.director.spi.v2.model.InstanceStatus;
+import com.cloudera.director.spi.v2.model.InstanceTemplate;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConcurrentLifecycleStageTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final Config CONFIG = ConfigFactory.parseString(
+      "expectedOpenPort: -1\n" +
+          "instanceStatusPolling { strategy: fixed, interval: 10ms, timeout: 10s }\n" +
+          "concurrentLifecycles { count: 200, callThreads: 4 }");
+
+  private ValidationContext context;
+
+  @Before
+  public void setUp() throws Exception {
+    // a single scheduler thread drives all the waits
+    context = new ValidationContext(1, StartupThresholds.fromConfig(ConfigFactory.empty()));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    context.close();
+  }
+
+  @Test
+  public void testManyOverlappingLifecycles() throws Exception {
+    FakeProvider fake = new FakeProvider(null);
+    Summary summary = new Summary();
+
+    new ConcurrentLifecycleStage(new TCKUtil(), CONFIG)
+        .run(summary, context, "cloud/compute", fake.asProvider(), newTemplate());
+
+    assertFalse(summary.toString(), summary.hasErrors());
+    assertEquals(200L, (long) summary.getCounters().get("cloud/compute/concurrentLifecyclesSucceeded"));
+    assertEquals(200, fake.allocated.size());
+    assertEquals(fake.allocated, fake.deleted.keySet());
+    // the batched delete calls run on the single shared call thread of the context
+    assertTrue(fake.maxCallsInFlight <= 4 + 1);
+    assertTrue(fake.deleteCalls < 200);
+    // the waits of all lifecycles are merged into a few state calls
+    assertTrue(context.getInstanceStatusPoller().getStateCallCount() < 200 * 2);
+  }
+
+  @Test
+  public void testInstancesDeletedWhenLifecyclesFail() throws Exception {
+    FakeProvider fake = new FakeProvider("find");
+    Summary summary = new Summary();
+
+    new ConcurrentLifecycleStage(new TCKUtil(), CONFIG)
+        .run(summary, context, "cloud/compute", fake.asProvider(), newTemplate());
+
+    assertEquals(summary.getErrors().toString(), 1, summary.getErrors().size());
+    assertTrue(summary.getErrors().get(0),
+        summary.getErrors().get(0).endsWith("(200 of 200 lifecycles)"));
+    assertEquals(fake.allocated, fake.deleted.keySet());
+  }
+
+  @Test
+  public void testDeleteAttemptedWhenAllocateFails() throws Exception {
+    FakeProvider fake = new FakeProvider("allocate");
+    Summary summary = new Summary();
+
+    new ConcurrentLifecycleStage(new TCKUtil(), CONFIG)
+        .run(summary, context, "cloud/compute", fake.asProvider(), newTemplate());
+
+    assertTrue(summary.hasErrors());
+    assertEquals(200, fake.deleted.size());
+  }
+
+  @Test
+  public void testInstancesDeletedWhenInterrupted() throws Exception {
+    final FakeProvider fake = new FakeProvider(null);
+    // the lifecycles wait for RUNNING until they are interrupted
+    fake.allocatedStatus = InstanceStatus.PENDING;
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    Thread stage = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          new ConcurrentLifecycleStage(new TCKUtil(), CONFIG)
+              .run(new Summary(), context, "cloud/compute", fake.asProvider(), newTemplate());
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      }
+    });
+    stage.start();
+    while (fake.allocated.size() < 200) {
+      Thread.sleep(10);
+    }
+    stage.interrupt();
+    stage.join(10000);
+
+    assertFalse(stage.isAlive());
+    assertTrue(String.valueOf(failure.get()), failure.get() instanceof InterruptedException);
+    assertEquals(fake.allocated, fake.deleted.keySet());
+  }
+
+  @Test
+  public void testNoDeleteWhenJournalWriteFails() throws Exception {
+    AllocationJournal journal = AllocationJournal.open(folder.newFile("journal.json"));
+    // a closed journal fails every write
+    journal.close();
+    ValidationContext journaledContext = new ValidationContext(1,
+        StartupThresholds.fromConfig(ConfigFactory.empty()), journal);
+    FakeProvider fake = new FakeProvider(null);
+    InstanceTemplate template = newTemplate();
+    journaledContext.registerTemplate(template, new AllocationJournal.Template("cloud",
+        "compute", Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap()));
+    Summary summary = new Summary();
+
+    try {
+      new ConcurrentLifecycleStage(new TCKUtil(), CONFIG)
+          .run(summary, journaledContext, "cloud/compute", fake.asProvider(), template);
+    } finally {
+      journaledContext.close();
+    }
+
+    assertTrue(summary.hasErrors());
+    assertTrue(fake.allocated.isEmpty());
+    assertEquals(0, fake.deleteCalls);
+  }
+
+  /**
+   * An instance provider whose instances are RUNNING as soon as they are allocated,
+   * and DELETED as soon as they are deleted. It can fail every call to one method.
+   */
+  private static class FakeProvider extends FakeInstanceProvider {
+
+    private final String failingMethod;
+    private final Set<String> allocated = Collections.newSetFromMap(
+        new ConcurrentHashMap<String, Boolean>());
+    private final Map<String, Boolean> deleted = new ConcurrentHashMap<String, Boolean>();
+    private volatile InstanceStatus allocatedStatus = InstanceStatus.RUNNING;
+    private int callsInFlight;
+    private int maxCallsInFlight;
+    private int deleteCalls;
+
+    FakeProvider(String failingMethod) {
+      this.failingMethod = failingMethod;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+      String name = method.getName();
+      if (name.equals(failingMethod)) {
+        throw new IllegalStateException(name + " is broken");
+      }
+      if ("getInstanceState".equals(name)) {
+        return super.invoke(proxy, method, args);
+      }
+
+      synchronized (this) {
+        callsInFlight++;
+        maxCallsInFlight = Math.max(maxCallsInFlight, callsInFlight);
+      }
+      try {
+        Thread.sleep(1);
+        return super.invoke(proxy, method, args);
+      } finally {
+        synchronized (this) {
+          callsInFlight--;
+        }
+      }
+    }
+
+    @Override
+    protected Collection<Instance> allocate(Collection<String> ids, int minCount)
+        throws Exception {
+      allocated.addAll(ids);
+      return newInstances(ids);
+    }
+
+    @Override
+    protected Collection<Instance> find(Collection<String> ids) throws Exception {
+      return newInstances(ids);
+    }
+
+    @Override
+    protected InstanceStatus getStatus(String id) {
+      return deleted.containsKey(id) ? InstanceStatus.DELETED :
+          allocated.contains(id) ? allocatedStatus : InstanceStatus.UNKNOWN;
+    }
+
+    @Override
+    protected void delete(Collection<String> ids) {
+      synchronized (this) {
+        deleteCalls++;
+      }
+      for (String id : ids) {
+        deleted.put(id, true);
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import static com.cloudera.director.spi.tck.FakeInstanceProvider.newTemplate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.cloudera.director.spi.v2.model.Instance;
+import com.typesafe.config.ConfigFactory;
+
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ConcurrentReadStageTest {
+
+  private static final String INSTANCE_ID = "instance-1";
+
+  @Test
+  public void testThreadCounts() {
+    assertEquals(Arrays.asList(1), ConcurrentReadStage.getThreadCounts(1));
+    assertEquals(Arrays.asList(1, 2, 4, 8), ConcurrentReadStage.getThreadCounts(8));
+    assertEquals(Arrays.asList(1, 2, 4, 6), ConcurrentReadStage.getThreadCounts(6));
+  }
+
+  @Test
+  public void testThreadSafeProvider() throws Exception {
+    Summary summary = new Summary();
+
+    newStage().run(summary, "cloud/compute", new FakeProvider(false).asProvider(), newTemplate(),
+        INSTANCE_ID);
+
+    assertFalse(summary.toString(), summary.hasErrors());
+    assertTrue(summary.getCounters().containsKey("cloud/compute/concurrentReadsPerSecondAt1Threads"));
+    assertTrue(summary.getCounters().containsKey("cloud/compute/concurrentReadsPerSecondAt4Threads"));
+    assertTrue(summary.getCounters().containsKey("cloud/compute/concurrentReadsP99MicrosAt4Threads"));
+  }
+
+  @Test
+  public void testProviderThatFailsUnderConcurrency() throws Exception {
+    Summary summary = new Summary();
+
+    newStage().run(summary, "cloud/compute", new FakeProvider(true).asProvider(), newTemplate(),
+        INSTANCE_ID);
+
+    assertTrue(summary.hasErrors());
+    for (String error : summary.getErrors()) {
+      assertFalse(error, error.startsWith("With 1 concurrent threads"));
+      assertTrue(error, error.contains("ConcurrentModificationException"));
+    }
+  }
+
+  private static ConcurrentReadStage newStage() {
+    return new ConcurrentReadStage(
+        ConfigFactory.parseString("concurrentReads { maxThreads: 4, callsPerThread: 5 }"));
+  }
+
+  /**
+   * An instance provider with one running instance, optionally failing when two calls
+   * overlap, like a plugin that shares an unsafe client between threads.
+   */
+  private static class FakeProvider extends FakeInstanceProvider {
+
+    private final boolean failOnOverlap;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    FakeProvider(boolean failOnOverlap) {
+      this.failOnOverlap = failOnOverlap;
+      live.add(INSTANCE_ID);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+      if (inFlight.incrementAndGet() > 1 && failOnOverlap) {
+        inFlight.decrementAndGet();
+        throw new ConcurrentModificationException("client is busy");
+      }
+      try {
+        Thread.sleep(1);
+        return super.invoke(proxy, method, args);
+      } finally {
+        inFlight.decrementAndGet();
+      }
+    }
+
+    @Override
+    protected Instance newInstance(String id) throws Exception {
+      return newInstance(id, InetAddress.getByName("10.0.0.1"));
+    }
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import static com.cloudera.director.spi.tck.FakeInstanceProvider.newTemplate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.cloudera.director.spi.tck.sim.FakeDatabaseServer;
+import com.cloudera.director.spi.tck.util.DatabaseProtocolProbe.Protocol;
+import com.cloudera.director.spi.tck.util.StartupThresholds;
+import com.cloudera.director.spi.tck.util.TCKUtil;
+import com.cloudera.director.spi.v2.database.DatabaseServerInstance;
+import com.cloudera.director.spi.v2.model.Instance;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DatabaseReadinessStageTest {
+
+  private static final Config CONFIG = ConfigFactory.parseString(
+      "expectedOpenPort: -1\n" +
+          "resourceConfigs { type: MYSQL }\n" +
+          "instanceStatusPolling { strategy: fixed, interval: 10ms, timeout: 1s }\n" +
+          "portPolling { strategy: fixed, interval: 20ms, timeout: 1s }\n" +
+          "databaseReadiness {}");
+
+  private ValidationContext context;
+
+  @Before
+  public void setUp() throws Exception {
+    context = new ValidationContext(1, StartupThresholds.fromConfig(ConfigFactory.empty()));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    context.close();
+  }
+
+  @Test
+  public void testReadiness() throws Exception {
+    try (FakeDatabaseServer server = FakeDatabaseServer.start(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), Protocol.MYSQL, 200)) {
+      FakeProvider fake = new FakeProvider(server.getPort());
+      Summary summary = run(fake, CONFIG);
+
+      assertFalse(summary.toString(), summary.hasErrors());
+      Map<String, Long> counters = summary.getCounters();
+      assertTrue(counters.toString(), counters.get("cloud/database/databaseFirstResponseMillis") >=
+          counters.get("cloud/database/databasePortOpenMillis"));
+      assertTrue(counters.toString(), counters.get("cloud/database/databasePortOpenMillis") >=
+          counters.get("cloud/database/databaseRunningMillis"));
+      assertTrue(counters.toString(), counters.containsKey("cloud/database/databaseDeletedMillis"));
+      assertTrue(fake.live.isEmpty());
+    }
+  }
+
+  @Test
+  public void testNoProtocolResponse() throws Exception {
+    try (FakeDatabaseServer server = FakeDatabaseServer.start(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), null, 0)) {
+      FakeProvider fake = new FakeProvider(server.getPort());
+      Summary summary = run(fake, ConfigFactory.parseString(
+          "databaseReadiness { protocol: postgresql }").withFallback(CONFIG));
+
+      assertEquals(summary.getErrors().toString(), 1, summary.getErrors().size());
+      assertTrue(summary.getErrors().get(0),
+          summary.getErrors().get(0).startsWith("No POSTGRESQL protocol response"));
+      assertTrue(summary.getCounters().containsKey("cloud/database/databasePortOpenMillis"));
+      assertFalse(summary.getCounters().containsKey("cloud/database/databaseFirstResponseMillis"));
+      assertTrue(fake.live.isEmpty());
+    }
+  }
+
+  @Test
+  public void testDeleteFailureDoesNotHideStageFailure() throws Exception {
+    FakeProvider fake = new FakeProvider(-1) {
+      @Override
+      protected Collection<Instance> find(Collection<String> ids) {
+        throw new IllegalStateException("find failed");
+      }
+
+      @Override
+      protected void delete(Collection<String> ids) {
+        throw new IllegalStateException("delete failed");
+      }
+    };
+
+    try {
+      run(fake, CONFIG);
+      fail("Expected the stage to fail");
+    } catch (IllegalStateException e) {
+      assertEquals("find failed", e.getMessage());
+      assertEquals(1, e.getSuppressed().length);
+      assertEquals("delete failed", e.getSuppressed()[0].getMessage());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingProtocol() {
+    new DatabaseReadinessStage(new TCKUtil(),
+        CONFIG.withoutPath(Configurations.RESOURCE_CONFIGS_SECTION));
+  }
+
+  private Summary run(FakeProvider fake, Config config) throws Exception {
+    Summary summary = new Summary();
+    new DatabaseReadinessStage(new TCKUtil(), config)
+        .run(summary, context, "cloud/database", fake.asProvider(), newTemplate());
+    return summary;
+  }
+
+  /**
+   * A database server provider whose instances are running as soon as they are
+   * allocated, and listen on the port of a fake database server.
+   */
+  private static class FakeProvider extends FakeInstanceProvider {
+
+    private final int port;
+
+    FakeProvider(int port) {
+      this.port = port;
+    }
+
+    @Override
+    protected Instance newInstance(String id) {
+      return (Instance) Proxy.newProxyInstance(DatabaseServerInstance.class.getClassLoader(),
+          new Class<?>[]{DatabaseServerInstance.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+              case "getId":
+                return id;
+              case "getPort":
+                return port;
+              case "getPrivateIpAddress":
+                return InetAddress.getLoopbackAddress();
+              default:
+                return null;
+            }
+          });
+    }
+  }
+}
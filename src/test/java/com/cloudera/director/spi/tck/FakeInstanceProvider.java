@@ -0,0 +1,152 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import com.cloudera.director.spi.v2.model.Instance;
+import com.cloudera.director.spi.v2.model.InstanceState;
+import com.cloudera.director.spi.v2.model.InstanceStatus;
+import com.cloudera.director.spi.v2.model.InstanceTemplate;
+import com.cloudera.director.spi.v2.provider.InstanceProvider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An instance provider for the stage tests, built as a dynamic proxy. Its instances
+ * are RUNNING as soon as they are allocated and UNKNOWN once they are deleted, and
+ * tests change that by overriding the methods of the provider they need. Calls to
+ * the other methods of {@link InstanceProvider} fail.
+ */
+public class FakeInstanceProvider implements InvocationHandler {
+
+  /**
+   * The instances that were allocated and not deleted yet.
+   */
+  public final Set<String> live = Collections.newSetFromMap(
+      new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * Gets the provider backed by this fake.
+   */
+  public InstanceProvider asProvider() {
+    return (InstanceProvider) Proxy.newProxyInstance(InstanceProvider.class.getClassLoader(),
+        new Class<?>[]{InstanceProvider.class}, this);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+    switch (method.getName()) {
+      case "allocate":
+        return allocate((Collection<String>) args[1], (Integer) args[2]);
+      case "find":
+        return find((Collection<String>) args[1]);
+      case "getInstanceState":
+        return getInstanceState((Collection<String>) args[1]);
+      case "delete":
+        delete((Collection<String>) args[1]);
+        return null;
+      default:
+        throw new UnsupportedOperationException(method.getName());
+    }
+  }
+
+  protected Collection<Instance> allocate(Collection<String> ids, int minCount)
+      throws Exception {
+    live.addAll(ids);
+    return newInstances(ids);
+  }
+
+  protected Collection<Instance> find(Collection<String> ids) throws Exception {
+    List<String> found = new ArrayList<String>(ids);
+    found.retainAll(live);
+    return newInstances(found);
+  }
+
+  protected Map<String, InstanceState> getInstanceState(Collection<String> ids)
+      throws Exception {
+    Map<String, InstanceState> states = new HashMap<String, InstanceState>();
+    for (String id : ids) {
+      InstanceStatus status = getStatus(id);
+      if (status != null) {
+        states.put(id, newState(status));
+      }
+    }
+    return states;
+  }
+
+  /**
+   * Gets the status of one instance, or null to leave it out of the state map.
+   */
+  protected InstanceStatus getStatus(String id) {
+    return live.contains(id) ? InstanceStatus.RUNNING : InstanceStatus.UNKNOWN;
+  }
+
+  protected void delete(Collection<String> ids) throws Exception {
+    live.removeAll(ids);
+  }
+
+  /**
+   * Creates the instance that allocate and find return for an ID.
+   */
+  protected Instance newInstance(String id) throws Exception {
+    return newInstance(id, InetAddress.getLoopbackAddress());
+  }
+
+  protected List<Instance> newInstances(Collection<String> ids) throws Exception {
+    List<Instance> instances = new ArrayList<Instance>();
+    for (String id : ids) {
+      instances.add(newInstance(id));
+    }
+    return instances;
+  }
+
+  /**
+   * Creates an instance with an ID and a private IP address.
+   */
+  public static Instance newInstance(String id, InetAddress privateIpAddress) {
+    return (Instance) Proxy.newProxyInstance(Instance.class.getClassLoader(),
+        new Class<?>[]{Instance.class}, (proxy, method, args) -> {
+          if ("getId".equals(method.getName())) {
+            return id;
+          } else if ("getPrivateIpAddress".equals(method.getName())) {
+            return privateIpAddress;
+          }
+          return null;
+        });
+  }
+
+  /**
+   * Creates an instance state with a status.
+   */
+  public static InstanceState newState(InstanceStatus status) {
+    return (InstanceState) Proxy.newProxyInstance(InstanceState.class.getClassLoader(),
+        new Class<?>[]{InstanceState.class},
+        (proxy, method, args) -> "getInstanceStatus".equals(method.getName()) ? status : null);
+  }
+
+  /**
+   * Creates a template that is only equal to itself.
+   */
+  public static InstanceTemplate newTemplate() {
+    return (InstanceTemplate) Proxy.newProxyInstance(InstanceTemplate.class.getClassLoader(),
+        new Class<?>[]{InstanceTemplate.class}, (proxy, method, args) -> {
+          if ("hashCode".equals(method.getName())) {
+            return System.identityHashCode(proxy);
+          } else if ("equals".equals(method.getName())) {
+            return proxy == args[0];
+          }
+          return null;
+        });
+  }
+}
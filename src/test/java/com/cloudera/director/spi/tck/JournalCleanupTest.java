@@ -0,0 +1,153 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.cloudera.director.spi.tck.sim.SimulatedLauncher;
+import com.cloudera.director.spi.tck.util.AllocationJournal;
+import com.cloudera.director.spi.tck.util.ConfigFragmentWrapper;
+import com.cloudera.director.spi.v2.common.http.HttpProxyParameters;
+import com.cloudera.director.spi.v2.model.InstanceTemplate;
+import com.cloudera.director.spi.v2.provider.CloudProvider;
+import com.cloudera.director.spi.v2.provider.CloudProviderMetadata;
+import com.cloudera.director.spi.v2.provider.InstanceProvider;
+import com.cloudera.director.spi.v2.provider.ResourceProviderMetadata;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JournalCleanupTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private SimulatedLauncher launcher;
+  private File journalFile;
+  private Config config;
+
+  @Before
+  public void setUp() throws Exception {
+    File configurationDirectory = temporaryFolder.newFolder();
+    FileUtils.write(new File(configurationDirectory, "simulation.conf"),
+        "simulation { allocationDelay: 0ms, stateCallDelay: 0ms, pendingTime: 50ms, " +
+            "deletionTime: 50ms, port: " + findFreePort() + " }", StandardCharsets.UTF_8);
+    journalFile = new File(temporaryFolder.getRoot(), "allocations.journal");
+
+    String polling = "instanceStatusPolling { strategy: fixed, interval: 10ms, timeout: 10s }";
+    config = ConfigFactory.parseString(
+        "configurationDirectory: \"" + configurationDirectory.getAbsolutePath() + "\"\n" +
+            "allocationJournal: \"" + journalFile.getAbsolutePath() + "\"\n" +
+            "simulated { configs {}\n" +
+            "  compute { configs {}, resourceConfigs { image: sim, type: standard }, " +
+            "    resourceTags { owner: tck }, expectedOpenPort: -1, " + polling + " }\n" +
+            "  database { configs {}, resourceConfigs { type: MYSQL, adminUsername: admin, " +
+            "    adminPassword: secret }, resourceTags {}, expectedOpenPort: -1, " + polling + " }\n" +
+            "}");
+
+    launcher = new SimulatedLauncher();
+    launcher.initialize(configurationDirectory, new HttpProxyParameters());
+  }
+
+  @After
+  public void tearDown() {
+    launcher.shutdown();
+  }
+
+  @Test
+  public void testValidationLeavesNothingInJournal() throws Exception {
+    Summary summary = new Summary();
+    new TCKv2().validate(launcher, config, summary);
+
+    assertFalse(summary.toString(), summary.hasErrors());
+    assertTrue(AllocationJournal.readLeftovers(journalFile).isEmpty());
+    // the database admin password is sensitive
+    String journal = FileUtils.readFileToString(journalFile, StandardCharsets.UTF_8);
+    assertTrue(journal, journal.contains("adminUsername"));
+    assertFalse(journal, journal.contains("secret"));
+  }
+
+  @Test
+  public void testLockedJournalNotCleanedUp() throws Exception {
+    Map<String, String> configs = Collections.singletonMap("image", "sim");
+    try (AllocationJournal journal = AllocationJournal.open(journalFile)) {
+      journal.recordAllocating(new AllocationJournal.Template("simulated", "compute", configs,
+          Collections.<String, String>emptyMap()), Collections.singletonList("i-1"));
+    }
+
+    Summary summary;
+    try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+      // as if another TCK process had the journal open
+      channel.lock();
+      summary = new JournalCleanup(config).cleanUp(launcher);
+    }
+
+    assertEquals(summary.getErrors().toString(), 1, summary.getErrors().size());
+    assertTrue(summary.getErrors().get(0), summary.getErrors().get(0).contains("in use"));
+    assertEquals(Collections.singleton("i-1"),
+        AllocationJournal.readLeftovers(journalFile).values().iterator().next());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testCleanUpLeftovers() throws Exception {
+    CloudProviderMetadata cloudMetadata = launcher.getCloudProviderMetadata().get(0);
+    ResourceProviderMetadata computeMetadata = cloudMetadata.getResourceProviderMetadata().get(0);
+    CloudProvider cloudProvider = launcher.createCloudProvider(cloudMetadata.getId(),
+        new ConfigFragmentWrapper(ConfigFactory.empty()), Locale.getDefault());
+    InstanceProvider provider = (InstanceProvider) cloudProvider.createResourceProvider(
+        computeMetadata.getId(), new ConfigFragmentWrapper(ConfigFactory.empty()));
+
+    Map<String, String> configs = new LinkedHashMap<String, String>();
+    configs.put("image", "sim");
+    configs.put("type", "standard");
+    Map<String, String> tags = Collections.singletonMap("owner", "tck");
+    InstanceTemplate template = (InstanceTemplate) provider.createResourceTemplate("test",
+        ConfigFragmentWrapper.snapshot(ConfigFactory.parseMap(configs),
+            computeMetadata.getResourceTemplateConfigurationProperties()), tags);
+
+    // more leftovers than fit in one delete call, as if the TCK had died
+    List<String> ids = new ArrayList<String>();
+    for (int i = 0; i < JournalCleanup.DELETE_BATCH_SIZE + 20; i++) {
+      ids.add("i-" + i);
+    }
+    try (AllocationJournal journal = AllocationJournal.open(journalFile)) {
+      journal.recordAllocating(new AllocationJournal.Template(cloudMetadata.getId(),
+          computeMetadata.getId(), configs, tags), ids);
+    }
+    assertEquals(ids.size(), provider.allocate(template, ids, ids.size()).size());
+
+    Summary summary = new JournalCleanup(config).cleanUp(launcher);
+
+    assertFalse(summary.toString(), summary.hasErrors());
+    assertTrue(provider.find(template, ids).isEmpty());
+    assertFalse(journalFile.exists());
+  }
+
+  private static int findFreePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
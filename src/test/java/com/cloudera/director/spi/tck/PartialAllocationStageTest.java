@@ -0,0 +1,168 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import static com.cloudera.director.spi.tck.FakeInstanceProvider.newTemplate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.cloudera.director.spi.tck.util.StartupThresholds;
+import com.cloudera.director.spi.tck.util.TCKUtil;
+import com.cloudera.director.spi.v2.model.Instance;
+import com.cloudera.director.spi.v2.model.exception.UnrecoverableProviderException;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PartialAllocationStageTest {
+
+  private static final Config CONFIG = ConfigFactory.parseString(
+      "instanceStatusPolling { strategy: fixed, interval: 10ms, timeout: 1s }\n" +
+          "partialAllocation { count: 10, minCount: 8, deadline: 500ms }");
+
+  private ValidationContext context;
+
+  @Before
+  public void setUp() throws Exception {
+    context = new ValidationContext(1, StartupThresholds.fromConfig(ConfigFactory.empty()));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    context.close();
+  }
+
+  @Test
+  public void testAllocationFailsAndCleansUp() throws Exception {
+    FakeProvider fake = new FakeProvider(5, Behavior.FAIL_AND_CLEAN_UP);
+    Summary summary = run(fake);
+
+    assertFalse(summary.toString(), summary.hasErrors());
+    assertFalse(summary.hasWarnings());
+    assertTrue(summary.getCounters().containsKey("cloud/compute/partialAllocationMillis"));
+    assertTrue(summary.getCounters().containsKey("cloud/compute/partialAllocationCleanupMillis"));
+    assertTrue(fake.live.isEmpty());
+  }
+
+  @Test
+  public void testAllocationFailsAndLeavesInstancesBehind() throws Exception {
+    FakeProvider fake = new FakeProvider(5, Behavior.FAIL_AND_LEAVE);
+    Summary summary = run(fake);
+
+    assertEquals(summary.getErrors().toString(), 1, summary.getErrors().size());
+    assertTrue(summary.getErrors().get(0), summary.getErrors().get(0).startsWith("5 instances"));
+    assertTrue(fake.live.isEmpty());
+  }
+
+  @Test
+  public void testAllocationReturnsFewerThanMinCount() throws Exception {
+    FakeProvider fake = new FakeProvider(5, Behavior.RETURN);
+    Summary summary = run(fake);
+
+    assertEquals(summary.getErrors().toString(), 1, summary.getErrors().size());
+    assertTrue(summary.getErrors().get(0), summary.getErrors().get(0).contains("minCount 8"));
+    assertTrue(fake.live.isEmpty());
+  }
+
+  @Test
+  public void testAllocationSatisfied() throws Exception {
+    FakeProvider fake = new FakeProvider(10, Behavior.RETURN);
+    Summary summary = run(fake);
+
+    assertFalse(summary.toString(), summary.hasErrors());
+    assertEquals(1, summary.getWarnings().size());
+    assertTrue(fake.live.isEmpty());
+  }
+
+  @Test
+  public void testAllocationFailsWithUnexpectedException() throws Exception {
+    FakeProvider fake = new FakeProvider(5, Behavior.FAIL_UNEXPECTEDLY);
+    Summary summary = run(fake);
+
+    assertEquals(summary.getErrors().toString(), 1, summary.getErrors().size());
+    assertTrue(summary.getErrors().get(0),
+        summary.getErrors().get(0).contains("NullPointerException"));
+    assertTrue(fake.live.isEmpty());
+  }
+
+  @Test
+  public void testUnrequestedInstanceIsDeleted() throws Exception {
+    FakeProvider fake = new FakeProvider(10, Behavior.RETURN_UNREQUESTED);
+    Summary summary = run(fake);
+
+    assertEquals(Collections.singletonList(
+        "Partial allocation returned an instance that was not requested: stray-1"),
+        summary.getErrors());
+    assertTrue(fake.live.isEmpty());
+  }
+
+  @Test
+  public void testAllocationHangs() throws Exception {
+    FakeProvider fake = new FakeProvider(5, Behavior.HANG);
+    Summary summary = run(fake);
+
+    assertEquals(summary.getErrors().toString(), 1, summary.getErrors().size());
+    assertTrue(summary.getErrors().get(0), summary.getErrors().get(0).contains("within 500 ms"));
+  }
+
+  private Summary run(FakeProvider fake) throws Exception {
+    Summary summary = new Summary();
+    new PartialAllocationStage(new TCKUtil(), CONFIG)
+        .run(summary, context, "cloud/compute", fake.asProvider(), newTemplate());
+    return summary;
+  }
+
+  private enum Behavior {
+    RETURN, RETURN_UNREQUESTED, FAIL_AND_CLEAN_UP, FAIL_AND_LEAVE, FAIL_UNEXPECTEDLY, HANG
+  }
+
+  /**
+   * An instance provider with room for a limited number of instances.
+   */
+  private static class FakeProvider extends FakeInstanceProvider {
+
+    private final int capacity;
+    private final Behavior behavior;
+
+    FakeProvider(int capacity, Behavior behavior) {
+      this.capacity = capacity;
+      this.behavior = behavior;
+    }
+
+    @Override
+    protected Collection<Instance> allocate(Collection<String> ids, int minCount)
+        throws Exception {
+      if (behavior == Behavior.HANG) {
+        Thread.sleep(Long.MAX_VALUE);
+      }
+      List<String> allocated =
+          new ArrayList<String>(new ArrayList<String>(ids).subList(0, capacity));
+      live.addAll(allocated);
+      switch (behavior) {
+        case RETURN_UNREQUESTED:
+          allocated.add("stray-1");
+          live.add("stray-1");
+          return newInstances(allocated);
+        case FAIL_AND_CLEAN_UP:
+          live.removeAll(allocated);
+          throw new UnrecoverableProviderException("Out of capacity");
+        case FAIL_AND_LEAVE:
+          throw new UnrecoverableProviderException("Out of capacity");
+        case FAIL_UNEXPECTEDLY:
+          live.removeAll(allocated);
+          throw new NullPointerException("quota");
+        default:
+          return newInstances(allocated);
+      }
+    }
+  }
+}
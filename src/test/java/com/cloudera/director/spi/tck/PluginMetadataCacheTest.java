@@ -0,0 +1,165 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PluginMetadataCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File jar;
+  private File cacheDirectory;
+  private PluginMetadataCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    jar = folder.newFile("plugin.jar");
+    PluginMetadataTest.writeJar(jar, 1000, false);
+    cacheDirectory = new File(folder.getRoot(), "cache");
+    cache = new PluginMetadataCache(cacheDirectory);
+  }
+
+  @Test
+  public void testMetadataIsStoredAndReloaded() throws Exception {
+    PluginMetadata expected = PluginMetadata.fromExternalJarFile(jar);
+
+    assertEquals(expected, cache.getMetadata(jar));
+    assertEquals(1, listEntries().size());
+
+    // a new cache object reads the stored entry
+    assertEquals(expected, new PluginMetadataCache(cacheDirectory).getMetadata(jar));
+    assertEquals(1, listEntries().size());
+  }
+
+  @Test
+  public void testChangedJarIsRescanned() throws Exception {
+    cache.getMetadata(jar);
+
+    PluginMetadataTest.writeJar(jar, 10, false);
+    assertTrue(jar.setLastModified(jar.lastModified() + 2000));
+
+    assertEquals(10, cache.getMetadata(jar).getClasses().size());
+    assertEquals(2, listEntries().size());
+  }
+
+  @Test
+  public void testCorruptEntryIsIgnoredAndRewritten() throws Exception {
+    PluginMetadata expected = cache.getMetadata(jar);
+    File entry = listEntries().get(0);
+    FileUtils.writeStringToFile(entry, "garbage", StandardCharsets.UTF_8);
+
+    assertEquals(expected, cache.getMetadata(jar));
+    assertEquals(expected, cache.getMetadata(jar));
+  }
+
+  @Test
+  public void testPackagingSummaryRoundTrip() throws Exception {
+    assertNull(cache.getPackagingSummary(jar, "v2"));
+
+    Summary summary = new Summary(50);
+    summary.addError("Class %s should be relocated", "org.Foo");
+    summary.addError("Class %s should be relocated", "org.Bar");
+    summary.addError("Class %s should be relocated", "org.Foo");
+    summary.addWarning("A 100%% legitimate warning");
+    cache.putPackagingSummary(jar, "v2", summary);
+
+    Summary cached = cache.getPackagingSummary(jar, "v2");
+    assertNotNull(cached);
+    assertEquals(summary, cached);
+    assertEquals(50, cached.getMaxFindings());
+    assertEquals(summary.getErrorCounts(), cached.getErrorCounts());
+    assertEquals(summary.getWarningCounts(), cached.getWarningCounts());
+    assertEquals(Long.valueOf(3), cached.getErrorCounts().get("Class %s should be relocated"));
+    assertNull(cache.getPackagingSummary(jar, "v1"));
+  }
+
+  @Test
+  public void testPackagingSummaryWithDroppedFindingsIsNotCached() throws Exception {
+    Summary summary = new Summary(1);
+    summary.addError("Class %s should be relocated", "org.Foo");
+    summary.addError("Class %s should be relocated", "org.Bar");
+    cache.putPackagingSummary(jar, "v2", summary);
+
+    assertNull(cache.getPackagingSummary(jar, "v2"));
+  }
+
+  @Test
+  public void testPackagingEntryWithInvalidCountIsIgnored() throws Exception {
+    cache.putPackagingSummary(jar, "v2", new Summary());
+    File entry = listEntries().get(0);
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(entry))) {
+      out.writeInt(0x54434b50);
+      out.writeByte(2);
+      out.write(new byte[]{1, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07});
+    }
+
+    assertNull(cache.getPackagingSummary(jar, "v2"));
+  }
+
+  @Test
+  public void testPackagingSummaryOfOtherChecksVersionIgnored() throws Exception {
+    Summary summary = new Summary();
+    summary.addError("%s", "unshaded class");
+    new PluginMetadataCache(cacheDirectory, "tck1-checks1").putPackagingSummary(jar, "v2", summary);
+
+    assertNull(new PluginMetadataCache(cacheDirectory, "tck2-checks1").getPackagingSummary(jar, "v2"));
+    assertNull(new PluginMetadataCache(cacheDirectory, "tck1-checks2").getPackagingSummary(jar, "v2"));
+    assertEquals(summary.getErrors(), new PluginMetadataCache(cacheDirectory, "tck1-checks1")
+        .getPackagingSummary(jar, "v2").getErrors());
+  }
+
+  @Test
+  public void testConcurrentReadersAndWriters() throws Exception {
+    final PluginMetadata expected = PluginMetadata.fromExternalJarFile(jar);
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<PluginMetadata>> futures = new ArrayList<Future<PluginMetadata>>();
+      for (int i = 0; i < 32; i++) {
+        futures.add(executor.submit(new Callable<PluginMetadata>() {
+          @Override
+          public PluginMetadata call() throws Exception {
+            // separate cache objects behave like separate processes
+            return new PluginMetadataCache(cacheDirectory).getMetadata(jar);
+          }
+        }));
+      }
+      for (Future<PluginMetadata> future : futures) {
+        assertEquals(expected, future.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // no temporary files are left behind
+    assertEquals(1, listEntries().size());
+  }
+
+  private List<File> listEntries() {
+    File[] files = cacheDirectory.listFiles();
+    return (files == null) ? new ArrayList<File>() : Arrays.asList(files);
+  }
+}
@@ -9,10 +9,18 @@ import static org.junit.Assert.assertTrue;
 import com.cloudera.director.spi.tck.util.ClassReference;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Set;
 import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.Before;
@@ -22,6 +30,12 @@ import org.junit.rules.TemporaryFolder;
 
 public class PluginMetadataTest {
 
+  private static final String LAUNCHER_SERVICE_FILE =
+      "META-INF/services/com.cloudera.director.spi.v2.provider.Launcher";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   private File pluginFile = new File("target/byon-provider-example.jar");
 
   @Test
@@ -42,5 +56,104 @@ public class PluginMetadataTest {
         .contains("META-INF/maven/com.cloudera.director/byon-provider-example/pom.xml"));
     assertFalse(metadata.getFiles()
         .contains("META-INF/services/com.cloudera.director.spi.v1.provider.Launcher"));
+
+    assertEquals(metadata, PluginMetadata.fromExternalJarFile(pluginFile));
+  }
+
+  @Test
+  public void testCentralDirectoryScanMatchesJarFile() throws IOException {
+    File jar = folder.newFile("plugin.jar");
+    writeJar(jar, 100, false);
+
+    PluginMetadata expected = PluginMetadata.fromExternalJarFile(new JarFile(jar));
+    PluginMetadata actual = PluginMetadata.fromExternalJarFile(jar);
+
+    assertEquals(expected, actual);
+    assertEquals(100, actual.getClasses().size());
+    assertEquals("com.example.plugin.pkg0.Class0", actual.getClasses().get(0));
+    assertEquals("com.example.plugin.ExampleLauncher",
+        actual.getLauncherClasses("v2").get(0).getCanonicalClassName());
+    assertTrue(actual.getFiles().contains("com/example/plugin/messages_\u00e9.properties"));
+  }
+
+  @Test
+  public void testCentralDirectoryScanWithStoredEntriesAndZip64() throws IOException {
+    File jar = folder.newFile("plugin-zip64.jar");
+    writeJar(jar, 70000, true);
+
+    PluginMetadata expected = PluginMetadata.fromExternalJarFile(new JarFile(jar));
+    PluginMetadata actual = PluginMetadata.fromExternalJarFile(jar);
+
+    assertEquals(expected, actual);
+    assertEquals(70000, actual.getClasses().size());
+  }
+
+  @Test(expected = IOException.class)
+  public void testCentralDirectoryScanRejectsInvalidFile() throws IOException {
+    File file = folder.newFile("not-a-jar.jar");
+    FileUtils.writeStringToFile(file, "not a jar", StandardCharsets.UTF_8);
+
+    PluginMetadata.fromExternalJarFile(file);
+  }
+
+  @Test(expected = ZipException.class)
+  public void testCentralDirectoryScanRejectsTruncatedZip64ExtraField() throws IOException {
+    File jar = folder.newFile("plugin-truncated-zip64.jar");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+      ZipEntry entry = new ZipEntry("com/example/plugin/Class0.class");
+      // an extra field with 4 bytes of data, turned into a ZIP64 one below
+      entry.setExtra(new byte[]{0x34, 0x12, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00});
+      out.putNextEntry(entry);
+      out.write(new byte[]{(byte) 0xCA, (byte) 0xFE});
+      out.closeEntry();
+    }
+
+    // mark the compressed size of the central directory header as stored in the
+    // ZIP64 extra field, which has no room for it
+    byte[] bytes = FileUtils.readFileToByteArray(jar);
+    ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    int header = bytes.length - 22;
+    while (buffer.getInt(header) != 0x02014b50) {
+      header--;
+    }
+    buffer.putInt(header + 20, 0xFFFFFFFF);
+    buffer.putShort(header + 46 + (buffer.getShort(header + 28) & 0xFFFF), (short) 0x0001);
+    FileUtils.writeByteArrayToFile(jar, bytes);
+
+    PluginMetadata.fromExternalJarFile(jar);
+  }
+
+  /**
+   * Writes a jar with directories, classes, a launcher service file and some other
+   * files, optionally with all entries stored instead of deflated.
+   */
+  static void writeJar(File file, int classCount, boolean stored) throws IOException {
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+      writeEntry(out, "META-INF/", new byte[0], stored);
+      writeEntry(out, LAUNCHER_SERVICE_FILE,
+          ("# launchers\ncom.example.plugin.ExampleLauncher # the launcher\n")
+              .getBytes(StandardCharsets.UTF_8), stored);
+      writeEntry(out, "com/example/plugin/messages_\u00e9.properties", new byte[]{'a'}, stored);
+      for (int i = 0; i < classCount; i++) {
+        writeEntry(out, "com/example/plugin/pkg" + (i % 10) + "/Class" + i + ".class",
+            new byte[]{(byte) 0xCA, (byte) 0xFE}, stored);
+      }
+    }
+  }
+
+  private static void writeEntry(ZipOutputStream out, String name, byte[] content,
+      boolean stored) throws IOException {
+    ZipEntry entry = new ZipEntry(name);
+    if (stored) {
+      CRC32 crc = new CRC32();
+      crc.update(content);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(content.length);
+      entry.setCompressedSize(content.length);
+      entry.setCrc(crc.getValue());
+    }
+    out.putNextEntry(entry);
+    out.write(content);
+    out.closeEntry();
   }
 }
@@ -0,0 +1,150 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.cloudera.director.spi.tck.util.StartupThresholds;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SoakStageTest {
+
+  private ValidationContext context;
+  private final List<Thread> leakedThreads = new ArrayList<Thread>();
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @Before
+  public void setUp() throws Exception {
+    context = new ValidationContext(1, StartupThresholds.fromConfig(ConfigFactory.empty()));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    release.countDown();
+    for (Thread thread : leakedThreads) {
+      thread.join();
+    }
+    context.close();
+  }
+
+  @Test
+  public void testSteadyLifecycle() throws Exception {
+    Summary summary = new Summary();
+    AtomicInteger runs = new AtomicInteger();
+
+    new SoakStage(soakConfig("iterations: 5, maxSlopes { liveThreads: 0.5 }"))
+        .run(summary, context, "compute", iterationSummary -> runs.incrementAndGet());
+
+    assertEquals(5, runs.get());
+    assertFalse(summary.toString(), summary.hasErrors());
+    assertFalse(summary.hasWarnings());
+    assertEquals(Long.valueOf(5), summary.getCounters().get("soakIterations"));
+  }
+
+  @Test
+  public void testGrowingThreadCountFails() throws Exception {
+    Summary summary = new Summary();
+
+    new SoakStage(soakConfig("iterations: 5, maxSlopes { liveThreads: 0.5 }"))
+        .run(summary, context, "compute", iterationSummary -> leakThread());
+
+    assertEquals(1, summary.getErrors().size());
+    assertTrue(summary.getErrors().get(0),
+        summary.getErrors().get(0).startsWith("The live threads grows by 1.000 per iteration"));
+  }
+
+  @Test
+  public void testGrowingThreadCountWarnsWithoutLimit() throws Exception {
+    Summary summary = new Summary();
+
+    new SoakStage(soakConfig("iterations: 5"))
+        .run(summary, context, "compute", iterationSummary -> leakThread());
+
+    assertFalse(summary.toString(), summary.hasErrors());
+    assertEquals(1, summary.getWarnings().size());
+    assertTrue(summary.getWarnings().get(0), summary.getWarnings().get(0)
+        .startsWith("The live threads grows by 1.000 per iteration during the soak test, " +
+            "over the default limit"));
+  }
+
+  @Test
+  public void testGrowingCallLatencyFails() throws Exception {
+    Summary summary = new Summary();
+    AtomicInteger runs = new AtomicInteger();
+
+    new SoakStage(soakConfig("iterations: 5, maxSlopes { callLatency: 2ms }"))
+        .run(summary, context, "compute", iterationSummary ->
+            context.getSpiCallMetrics().time("compute", "allocate", () -> {
+              Thread.sleep(10 * runs.incrementAndGet());
+              return null;
+            }));
+
+    assertEquals(1, summary.getErrors().size());
+    assertTrue(summary.getErrors().get(0),
+        summary.getErrors().get(0).startsWith("The mean latency of allocate grows by"));
+  }
+
+  @Test
+  public void testFailedIterationStopsTheSoakTest() throws Exception {
+    Summary summary = new Summary();
+    AtomicInteger runs = new AtomicInteger();
+
+    new SoakStage(soakConfig("iterations: 5")).run(summary, context, "compute",
+        iterationSummary -> {
+          if (runs.incrementAndGet() == 2) {
+            iterationSummary.addError("instance did not start");
+          }
+        });
+
+    assertEquals(2, runs.get());
+    assertEquals(1, summary.getErrors().size());
+    assertEquals("Soak iteration 2: instance did not start", summary.getErrors().get(0));
+    assertEquals(Long.valueOf(2), summary.getCounters().get("soakIterations"));
+  }
+
+  @Test
+  public void testTooFewIterationsForTrends() throws Exception {
+    Summary summary = new Summary();
+
+    new SoakStage(soakConfig("iterations: 2, warmupIterations: 0"))
+        .run(summary, context, "compute", iterationSummary -> {
+        });
+
+    assertFalse(summary.hasErrors());
+    assertEquals(1, summary.getWarnings().size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIterationsOrDurationIsRequired() {
+    new SoakStage(soakConfig("warmupIterations: 2"));
+  }
+
+  private void leakThread() {
+    Thread thread = new Thread(() -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+    leakedThreads.add(thread);
+  }
+
+  private static Config soakConfig(String soakSection) {
+    return ConfigFactory.parseString("soak { " + soakSection + " }");
+  }
+}
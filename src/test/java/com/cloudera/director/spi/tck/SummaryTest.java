@@ -6,7 +6,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.typesafe.config.ConfigFactory;
+
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -41,4 +46,165 @@ public class SummaryTest {
 
     assertEquals(Arrays.asList("Test warning"), summary.getWarnings());
   }
+
+  @Test
+  public void testAddOtherSummary() {
+    Summary summary = new Summary();
+    summary.addError("Test %s", "error");
+
+    Summary other = new Summary();
+    other.addError("Other %s", "error");
+    other.addWarning("Other %s", "warning");
+
+    summary.add(other);
+
+    assertEquals(Arrays.asList("Test error", "Other error"), summary.getErrors());
+    assertEquals(Arrays.asList("Other warning"), summary.getWarnings());
+  }
+
+  @Test
+  public void testAddOtherSummaryMergesStagesAndCounters() {
+    Summary summary = new Summary();
+    summary.addCounter("polls", 3);
+
+    Summary other = new Summary();
+    other.addStage(new StageResult("lifecycle", 10, Arrays.asList("Other error"),
+        Collections.<String>emptyList()));
+    other.addCounter("polls", 4);
+    other.addCounter("connects", 1);
+
+    summary.add(other);
+
+    assertEquals(1, summary.getStages().size());
+    assertFalse(summary.getStages().get(0).isPassed());
+    assertEquals(Long.valueOf(7), summary.getCounters().get("polls"));
+    assertEquals(Long.valueOf(1), summary.getCounters().get("connects"));
+  }
+
+  @Test
+  public void testConcurrentAdditions() throws InterruptedException {
+    final Summary summary = new Summary();
+
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 1000; j++) {
+            summary.addWarning("Warning %d", j);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(1000, summary.getWarnings().size());
+    assertEquals(Long.valueOf(4000), summary.getWarningCounts().get("Warning %d"));
+    assertEquals(0, summary.getDroppedWarningCount());
+  }
+
+  @Test
+  public void testDuplicatesAreKeptOnce() {
+    Summary summary = new Summary();
+    summary.addError("Instance %s failed", "i-1");
+    summary.addError("Instance %s failed", "i-2");
+    summary.addError("Instance %s failed", "i-1");
+    summary.addError("Timed out");
+
+    assertEquals(Arrays.asList("Instance i-1 failed", "Instance i-2 failed", "Timed out"),
+        summary.getErrors());
+    assertEquals(Long.valueOf(3), summary.getErrorCounts().get("Instance %s failed"));
+    assertEquals(Long.valueOf(1), summary.getErrorCounts().get("Timed out"));
+  }
+
+  @Test
+  public void testArgumentsAreCapturedWhenAdded() {
+    Summary summary = new Summary();
+    List<String> ids = new ArrayList<String>(Collections.singletonList("i-1"));
+    summary.addError("Left behind: %s", ids);
+    ids.add("i-2");
+
+    assertEquals(Collections.singletonList("Left behind: [i-1]"), summary.getErrors());
+  }
+
+  @Test
+  public void testInvalidFormatIsKept() {
+    Summary summary = new Summary();
+    summary.addWarning("Took %d ms", "long");
+
+    assertEquals(Collections.singletonList("Took %d ms [long]"), summary.getWarnings());
+  }
+
+  @Test
+  public void testMaxFindings() {
+    Summary summary = new Summary(2);
+    for (int i = 0; i < 5; i++) {
+      summary.addError("Error %d", i);
+    }
+    summary.addError("Error %d", 0);
+
+    assertEquals(Arrays.asList("Error 0", "Error 1"), summary.getErrors());
+    assertEquals(3, summary.getDroppedErrorCount());
+    assertEquals(Long.valueOf(6), summary.getErrorCounts().get("Error %d"));
+  }
+
+  @Test
+  public void testAddOtherSummaryRespectsMaxFindings() {
+    Summary summary = new Summary(2);
+    summary.addWarning("Warning %d", 0);
+
+    Summary other = new Summary(2);
+    other.addWarning("Warning %d", 0);
+    other.addWarning("Warning %d", 1);
+    other.addWarning("Warning %d", 2);
+
+    summary.add(other);
+
+    assertEquals(Arrays.asList("Warning 0", "Warning 1"), summary.getWarnings());
+    assertEquals(1, summary.getDroppedWarningCount());
+    assertEquals(Long.valueOf(4), summary.getWarningCounts().get("Warning %d"));
+  }
+
+  @Test
+  public void testFromConfig() {
+    Summary summary = Summary.fromConfig(ConfigFactory.parseString("maxFindings: 1"));
+    summary.addError("First");
+    summary.addError("Second");
+
+    assertEquals(Collections.singletonList("First"), summary.getErrors());
+    assertEquals(1, summary.getDroppedErrorCount());
+  }
+
+  @Test
+  public void testConcurrentMerges() throws InterruptedException {
+    final Summary summary = new Summary(100);
+
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      final int thread = i;
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 100; j++) {
+            Summary stageSummary = new Summary();
+            stageSummary.addError("Error %d-%d", thread, j);
+            stageSummary.addCounter("stages", 1);
+            summary.add(stageSummary);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertTrue(summary.getErrors().size() <= 100);
+    assertEquals(400, summary.getErrors().size() + summary.getDroppedErrorCount());
+    assertEquals(Long.valueOf(400), summary.getErrorCounts().get("Error %d-%d"));
+    assertEquals(Long.valueOf(400), summary.getCounters().get("stages"));
+  }
 }
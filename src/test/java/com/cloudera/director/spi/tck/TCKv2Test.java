@@ -48,6 +48,22 @@ public class TCKv2Test {
     assertFalse(summary.hasWarnings());
   }
 
+  @Test
+  public void testValidateByonProviderInParallel() throws Exception {
+    TCK tck = new TCKv2();
+
+    Config config = ConfigFactory
+        .parseResourcesAnySyntax("test.byon.conf", CONFIG_PARSER_OPTIONS)
+        .withValue("byon.compute.expectedOpenPort", ConfigValueFactory.fromAnyRef(localTestPort))
+        .withValue(Configurations.PARALLELISM_PROPERTY, ConfigValueFactory.fromAnyRef(2));
+
+    PluginMetadata metadata = PluginMetadata.fromExternalJarFile(new JarFile(pluginFile));
+    Summary summary = tck.validate(pluginFile, metadata, config);
+
+    assertFalse(summary.hasErrors());
+    assertFalse(summary.hasWarnings());
+  }
+
   private int setUpLocalServerToAcceptOneConnectionOnRandomPort() throws IOException {
     final ServerSocket serverSocket = new ServerSocket(0);
 
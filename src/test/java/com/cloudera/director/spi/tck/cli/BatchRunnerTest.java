@@ -0,0 +1,148 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.cli;
+
+import static org.junit.Assert.assertEquals;
+
+import com.cloudera.director.spi.tck.StageResult;
+import com.cloudera.director.spi.tck.Summary;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchRunnerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testParsePlugins() {
+    Config manifest = ConfigFactory.parseString(
+        "plugins: [\n" +
+            "  { name: aws, plugin: aws.jar, config: aws.conf }\n" +
+            "  { plugin: /opt/plugins/azure-provider.jar, config: azure.conf }\n" +
+            "]");
+    File base = new File("/manifests");
+
+    List<BatchRunner.PluginRun> runs = BatchRunner.parsePlugins(manifest, base);
+
+    assertEquals(2, runs.size());
+    assertEquals("aws", runs.get(0).name);
+    assertEquals(new File(base, "aws.jar"), runs.get(0).pluginFile);
+    assertEquals(new File(base, "aws.conf"), runs.get(0).configFile);
+    assertEquals("azure-provider", runs.get(1).name);
+    assertEquals(new File("/opt/plugins/azure-provider.jar"), runs.get(1).pluginFile);
+  }
+
+  @Test(expected = ConfigException.class)
+  public void testDuplicateNamesAreRejected() {
+    Config manifest = ConfigFactory.parseString(
+        "plugins: [\n" +
+            "  { plugin: a/plugin.jar, config: a.conf }\n" +
+            "  { plugin: b/plugin.jar, config: b.conf }\n" +
+            "]");
+    BatchRunner.parsePlugins(manifest, new File("."));
+  }
+
+  @Test
+  public void testInvalidManifest() throws Exception {
+    assertEquals(ExitCodes.INVALID_BATCH_MANIFEST,
+        new BatchRunner(new File(folder.getRoot(), "missing.conf"), folder.getRoot())
+            .run(null, new Summary()));
+
+    File manifest = writeManifest("plugins: [ { plugin: foo.jar } ]");
+    assertEquals(ExitCodes.INVALID_BATCH_MANIFEST,
+        new BatchRunner(manifest, folder.getRoot()).run(null, new Summary()));
+
+    manifest = writeManifest("plugins: []");
+    assertEquals(ExitCodes.INVALID_BATCH_MANIFEST,
+        new BatchRunner(manifest, folder.getRoot()).run(null, new Summary()));
+  }
+
+  @Test
+  public void testPerPluginExitCodes() throws Exception {
+    folder.newFile("present.jar");
+    File manifest = writeManifest(
+        "parallelism: 2\n" +
+            "plugins: [\n" +
+            "  { name: no-config, plugin: present.jar, config: missing.conf }\n" +
+            "  { name: no-jar, plugin: missing.jar, config: missing.conf }\n" +
+            "]");
+    File reportDirectory = new File(folder.getRoot(), "reports");
+
+    // the first failed plugin in manifest order decides the batch exit code
+    Summary summary = new Summary();
+    assertEquals(ExitCodes.CONFIG_FILE_NOT_FOUND,
+        new BatchRunner(manifest, folder.getRoot()).run(reportDirectory, summary));
+    assertEquals(2, summary.getErrors().size());
+
+    Config report = ConfigFactory.parseFile(
+        new File(reportDirectory, BatchRunner.BATCH_REPORT_FILE_NAME));
+    assertEquals("failed", report.getString("status"));
+    List<? extends Config> plugins = report.getConfigList("plugins");
+    assertEquals("no-config", plugins.get(0).getString("name"));
+    assertEquals(ExitCodes.CONFIG_FILE_NOT_FOUND, plugins.get(0).getInt("exitCode"));
+    assertEquals("no-jar", plugins.get(1).getString("name"));
+    assertEquals(ExitCodes.PLUGIN_FILE_NOT_FOUND, plugins.get(1).getInt("exitCode"));
+    assertEquals(1, plugins.get(1).getInt("errors"));
+  }
+
+  @Test
+  public void testCombine() {
+    BatchRunner.PluginRun aws = new BatchRunner.PluginRun("aws", new File("aws.jar"),
+        new File("aws.conf"));
+    aws.summary.addError("allocation failed");
+    aws.summary.addError("Class %s should be relocated", "org.Foo");
+    aws.summary.addError("Class %s should be relocated", "org.Foo");
+    aws.summary.addCounter("instanceStateCalls", 10);
+    aws.summary.addStage(new StageResult("packaging", 5, Collections.singletonList("bad"),
+        Collections.<String>emptyList()));
+    BatchRunner.PluginRun gcp = new BatchRunner.PluginRun("gcp", new File("gcp.jar"),
+        new File("gcp.conf"));
+    gcp.summary.addWarning("slow delete");
+    gcp.summary.addCounter("instanceStateCalls", 5);
+
+    Summary combined = BatchRunner.combine(ConfigFactory.empty(), Arrays.asList(aws, gcp));
+
+    assertEquals(Arrays.asList("aws: allocation failed",
+        "aws: Class org.Foo should be relocated"), combined.getErrors());
+    assertEquals(Long.valueOf(2), combined.getErrorCounts().get("aws: Class %s should be relocated"));
+    assertEquals(Arrays.asList("gcp: slow delete"), combined.getWarnings());
+    assertEquals(Long.valueOf(15), combined.getCounters().get("instanceStateCalls"));
+    assertEquals("aws: packaging", combined.getStages().get(0).getName());
+    assertEquals(Collections.singletonList("aws: bad"), combined.getStages().get(0).getErrors());
+  }
+
+  @Test
+  public void testCombineWithMaxFindingsOfManifest() {
+    BatchRunner.PluginRun aws = new BatchRunner.PluginRun("aws", new File("aws.jar"),
+        new File("aws.conf"));
+    aws.summary.addError("allocation failed");
+    BatchRunner.PluginRun gcp = new BatchRunner.PluginRun("gcp", new File("gcp.jar"),
+        new File("gcp.conf"));
+    gcp.summary.addError("allocation failed");
+
+    Summary combined = BatchRunner.combine(ConfigFactory.parseString("maxFindings: 1"),
+        Arrays.asList(aws, gcp));
+
+    assertEquals(Arrays.asList("aws: allocation failed"), combined.getErrors());
+    assertEquals(1, combined.getDroppedErrorCount());
+  }
+
+  private File writeManifest(String content) throws Exception {
+    File manifest = new File(folder.getRoot(), "batch.conf");
+    FileUtils.writeStringToFile(manifest, content, StandardCharsets.UTF_8);
+    return manifest;
+  }
+}
@@ -0,0 +1,280 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.cli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.cloudera.director.spi.tck.Configurations;
+import com.cloudera.director.spi.v2.provider.Launcher;
+import com.typesafe.config.Config;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DaemonTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File tokenFile;
+  private Daemon tckDaemon;
+  private ServerSocket serverSocket;
+  private ExecutorService executor;
+
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+  @Before
+  public void setUp() throws Exception {
+    tokenFile = new File(folder.getRoot(), "tokens/daemon.token");
+    tckDaemon = new Daemon(0, tokenFile);
+    serverSocket = tckDaemon.bind();
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+    serverSocket.close();
+  }
+
+  @Test
+  public void testJobOutputIsStreamedToClient() throws Exception {
+    Future<?> daemon = serveOneJob();
+
+    int exitCode = runClient("missing-plugin.jar", "missing.conf");
+
+    daemon.get();
+    assertEquals(ExitCodes.PLUGIN_FILE_NOT_FOUND, exitCode);
+    String log = new String(err.toByteArray(), StandardCharsets.UTF_8);
+    assertTrue(log, log.contains("Plugin not a file or not found: "
+        + new File("missing-plugin.jar").getAbsolutePath()));
+  }
+
+  @Test
+  public void testWrongArguments() throws Exception {
+    Future<?> daemon = serveOneJob();
+
+    int exitCode = runClient("only-one-argument.jar");
+
+    daemon.get();
+    assertEquals(ExitCodes.WRONG_ARGUMENT_COUNT, exitCode);
+  }
+
+  @Test
+  public void testMissingReportArgument() throws Exception {
+    Future<?> daemon = serveOneJob();
+
+    int exitCode = runClient("plugin.jar", "plugin.conf", "--report");
+
+    daemon.get();
+    assertEquals(ExitCodes.WRONG_ARGUMENT_COUNT, exitCode);
+    String log = new String(err.toByteArray(), StandardCharsets.UTF_8);
+    assertTrue(log, log.contains("Missing argument for option: --report"));
+  }
+
+  @Test
+  public void testDaemonUnavailable() throws Exception {
+    int port = serverSocket.getLocalPort();
+    serverSocket.close();
+
+    assertEquals(ExitCodes.DAEMON_UNAVAILABLE, new DaemonClient(port, tokenFile,
+        new PrintStream(out, true), new PrintStream(err, true)).run(Arrays.asList("a", "b")));
+  }
+
+  @Test
+  public void testTokenFileIsOwnerOnly() throws Exception {
+    Assume.assumeTrue(tokenFile.toPath().getFileSystem()
+        .supportedFileAttributeViews().contains("posix"));
+
+    assertEquals("rw-------",
+        PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())));
+    assertEquals("rwx------", PosixFilePermissions.toString(
+        Files.getPosixFilePermissions(tokenFile.getParentFile().toPath())));
+  }
+
+  @Test
+  public void testWrongTokenIsRejected() throws Exception {
+    Future<?> daemon = serveOneJob();
+
+    List<String> records = sendJob("not-the-token", "missing-plugin.jar", "missing.conf");
+
+    daemon.get();
+    assertEquals("EXIT " + ExitCodes.DAEMON_TOKEN_REJECTED, records.get(records.size() - 1));
+  }
+
+  @Test
+  public void testEmptyArgumentsAreKept() throws Exception {
+    Future<?> daemon = serveOneJob();
+
+    // two arguments, so the job looks for the plugin instead of failing on the count
+    List<String> records = sendJob(Daemon.readToken(tokenFile), "", "missing.conf");
+
+    daemon.get();
+    assertEquals("EXIT " + ExitCodes.PLUGIN_FILE_NOT_FOUND, records.get(records.size() - 1));
+  }
+
+  @Test
+  public void testRelativeConfigPathsAreResolvedAgainstClientDirectory() throws Exception {
+    File configFile = folder.newFile("plugin.conf");
+    Files.write(configFile.toPath(), ("configurationDirectory: conf\n" +
+        "allocationJournal: /var/tmp/journal\n").getBytes(StandardCharsets.UTF_8));
+    File clientDirectory = folder.newFolder("client");
+
+    Config config = Runner.loadConfigFile(configFile, clientDirectory);
+
+    assertEquals(new File(clientDirectory, "conf").getPath(),
+        config.getString(Configurations.CONFIGURATION_DIRECTORY_PROPERTY));
+    assertEquals("/var/tmp/journal",
+        config.getString(Configurations.ALLOCATION_JOURNAL_PROPERTY));
+  }
+
+  @Test
+  public void testDaemonKeepsServingAfterBrokenPlugin() throws Exception {
+    File pluginFile = folder.newFile("broken-plugin.jar");
+    writeBrokenPlugin(pluginFile);
+    File configFile = folder.newFile("broken-plugin.conf");
+
+    Future<?> daemon = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        tckDaemon.serve(serverSocket);
+        return null;
+      }
+    });
+    try {
+      String token = Daemon.readToken(tokenFile);
+      List<String> records = sendJob(token, pluginFile.getPath(), configFile.getPath());
+      assertEquals("EXIT " + ExitCodes.UNEXPECTED_EXCEPTION, records.get(records.size() - 1));
+
+      records = sendJob(token, "missing-plugin.jar", "missing.conf");
+      assertEquals("EXIT " + ExitCodes.PLUGIN_FILE_NOT_FOUND, records.get(records.size() - 1));
+    } finally {
+      serverSocket.close();
+      daemon.get();
+    }
+  }
+
+  @Test
+  public void testInvalidExitRecord() throws Exception {
+    Future<?> daemon = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        try (Socket socket = serverSocket.accept()) {
+          Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+          Daemon.writeRecord(writer, Daemon.EXIT_RECORD, "not a number");
+          writer.flush();
+        }
+        return null;
+      }
+    });
+
+    int exitCode = runClient("plugin.jar", "plugin.conf");
+
+    daemon.get();
+    assertEquals(ExitCodes.DAEMON_PROTOCOL_ERROR, exitCode);
+  }
+
+  @Test
+  public void testEscaping() {
+    String text = "line 1\nline 2\r\n\\n is not a newline";
+    assertEquals(-1, Daemon.escape(text).indexOf('\n'));
+    assertEquals(text, Daemon.unescape(Daemon.escape(text)));
+  }
+
+  @Test
+  public void testPathsAreMadeAbsolute() {
+    List<String> args = DaemonClient.toAbsolutePaths(
+        Arrays.asList("--report", "report.json", "plugin.jar", "plugin.conf"));
+
+    assertEquals(Arrays.asList("--report", new File("report.json").getAbsolutePath(),
+        new File("plugin.jar").getAbsolutePath(), new File("plugin.conf").getAbsolutePath()),
+        args);
+  }
+
+  private Future<?> serveOneJob() {
+    return executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        try (Socket socket = serverSocket.accept()) {
+          tckDaemon.handle(socket);
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Writes a v2 plugin whose launcher class cannot be defined, so that loading it
+   * fails with a {@link LinkageError} instead of an exception.
+   */
+  private static void writeBrokenPlugin(File file) throws Exception {
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+      out.putNextEntry(new ZipEntry("META-INF/services/" + Launcher.class.getName()));
+      out.write("com.example.plugin.BrokenLauncher\n".getBytes(StandardCharsets.UTF_8));
+      out.closeEntry();
+      out.putNextEntry(new ZipEntry("com/example/plugin/BrokenLauncher.class"));
+      out.write(new byte[]{(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0, 0});
+      out.closeEntry();
+    }
+  }
+
+  private int runClient(String... args) {
+    return new DaemonClient(serverSocket.getLocalPort(), tokenFile, new PrintStream(out, true),
+        new PrintStream(err, true)).run(Arrays.asList(args));
+  }
+
+  /**
+   * Sends a job without the client, which rewrites arguments, and returns the
+   * records of the answer.
+   */
+  private List<String> sendJob(String token, String... args) throws Exception {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+        serverSocket.getLocalPort())) {
+      Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+      writer.write(token + "\n" + folder.getRoot() + "\n" + args.length + "\n");
+      for (String arg : args) {
+        writer.write(Daemon.escape(arg) + "\n");
+      }
+      writer.flush();
+
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      List<String> records = new ArrayList<String>();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        records.add(line);
+      }
+      return records;
+    }
+  }
+}
@@ -0,0 +1,168 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.cli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.cloudera.director.spi.tck.StageResult;
+import com.cloudera.director.spi.tck.Summary;
+import com.cloudera.director.spi.tck.util.SpiCallMetrics;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+public class ReportTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testWriteJson() throws Exception {
+    File reportFile = folder.newFile("report.json");
+    newReport().writeJson(reportFile);
+
+    Config json = ConfigFactory.parseFile(reportFile);
+    assertEquals("failed", json.getString("status"));
+
+    Config validation = json.getConfigList("validations").get(0);
+    assertEquals("v2", validation.getString("spiVersion"));
+    assertEquals(42, validation.getLong("counters.instanceStateCalls"));
+
+    List<? extends Config> stages = validation.getConfigList("stages");
+    assertEquals(2, stages.size());
+    assertEquals("passed", stages.get(0).getString("status"));
+    assertEquals("failed", stages.get(1).getString("status"));
+    assertEquals(1500, stages.get(1).getLong("durationMillis"));
+    assertEquals(Collections.singletonList("timed out"), stages.get(1).getStringList("errors"));
+
+    Config spiCall = validation.getConfigList("spiCalls").get(0);
+    assertEquals("allocate", spiCall.getString("method"));
+    assertEquals(2, spiCall.getLong("count"));
+    assertEquals(1, spiCall.getLong("errors"));
+    assertEquals(20.0, spiCall.getDouble("maxMillis"), 0.001);
+  }
+
+  @Test
+  public void testWriteJUnitXml() throws Exception {
+    File reportFile = folder.newFile("report.xml");
+    newReport().writeJUnitXml(reportFile);
+
+    Document document =
+        DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(reportFile);
+    Element testSuites = document.getDocumentElement();
+    assertEquals("2", testSuites.getAttribute("tests"));
+    assertEquals("1", testSuites.getAttribute("failures"));
+
+    NodeList testCases = document.getElementsByTagName("testcase");
+    assertEquals("packaging", ((Element) testCases.item(0)).getAttribute("name"));
+    assertEquals("1.500", ((Element) testCases.item(1)).getAttribute("time"));
+
+    Element failure = (Element) document.getElementsByTagName("failure").item(0);
+    assertEquals("timed out", failure.getAttribute("message"));
+  }
+
+  @Test
+  public void testUnattributedErrorsBecomeATestCase() throws Exception {
+    Summary summary = new Summary();
+    summary.addError("Not a launcher");
+    Report report = new Report(new File("plugin.jar"), new File("plugin.conf"));
+    report.addValidation("v2", summary, 10);
+
+    File reportFile = folder.newFile("report.xml");
+    report.writeJUnitXml(reportFile);
+
+    Document document =
+        DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(reportFile);
+    Element testCase = (Element) document.getElementsByTagName("testcase").item(0);
+    assertEquals("validation", testCase.getAttribute("name"));
+    assertEquals(1, document.getElementsByTagName("failure").getLength());
+  }
+
+  @Test
+  public void testJUnitXmlFileName() {
+    assertEquals("report.xml", Report.getJUnitXmlFile(new File("report.json")).getName());
+    assertEquals("report.xml", Report.getJUnitXmlFile(new File("report")).getName());
+    assertEquals("report.junit.xml", Report.getJUnitXmlFile(new File("report.xml")).getName());
+  }
+
+  @Test
+  public void testReportWriteFailureDoesNotHideValidationFailure() throws Exception {
+    File reportFile = new File(folder.newFile("not-a-directory"), "report.json");
+    Exception failure = new IllegalStateException("validation failed");
+
+    Runner.writeReport(newReport(), reportFile, failure);
+
+    assertEquals(1, failure.getSuppressed().length);
+    assertTrue(failure.getSuppressed()[0] instanceof IOException);
+  }
+
+  @Test
+  public void testReportWriteFailureIsThrownWithoutValidationFailure() throws Exception {
+    File reportFile = new File(folder.newFile("not-a-directory"), "report.json");
+
+    try {
+      Runner.writeReport(newReport(), reportFile, null);
+      fail("Expected the report write to fail");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testValidationErrorIsReported() throws Exception {
+    File reportFile = folder.newFile("report.json");
+    Report report = new Report(new File("plugin.jar"), new File("plugin.conf"));
+    Error error = new NoClassDefFoundError("com/example/Missing");
+
+    try {
+      Runner.validate(report, "v2", (pluginFile, metadata, config) -> {
+        throw error;
+      }, new File("plugin.jar"), null, ConfigFactory.parseString("maxFindings: 5"));
+      fail("Expected the validation to fail");
+    } catch (NoClassDefFoundError e) {
+      assertEquals(error, e);
+    }
+    report.writeJson(reportFile);
+
+    Config validation = ConfigFactory.parseFile(reportFile).getConfigList("validations").get(0);
+    assertEquals(Collections.singletonList("Validation failed with an exception: " + error),
+        validation.getStringList("errors"));
+  }
+
+  private static Report newReport() {
+    SpiCallMetrics metrics = new SpiCallMetrics();
+    metrics.record("compute", "allocate", TimeUnit.MILLISECONDS.toNanos(10), false);
+    metrics.record("compute", "allocate", TimeUnit.MILLISECONDS.toNanos(20), true);
+
+    Summary summary = new Summary();
+    summary.addStage(new StageResult("packaging", 5, Collections.<String>emptyList(),
+        Collections.<String>emptyList()));
+    summary.addStage(new StageResult("aws/compute lifecycle", 1500,
+        Collections.singletonList("timed out"), Arrays.asList("slow")));
+    summary.addError("timed out");
+    summary.addWarning("slow");
+    summary.addSpiCallStats(metrics.getCallStats());
+    summary.addCounter("instanceStateCalls", 40);
+    summary.addCounter("instanceStateCalls", 2);
+
+    Report report = new Report(new File("plugin.jar"), new File("plugin.conf"));
+    report.addValidation("v2", summary, 2000);
+    return report;
+  }
+}
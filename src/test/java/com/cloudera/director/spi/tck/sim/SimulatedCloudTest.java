@@ -0,0 +1,218 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.sim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.cloudera.director.spi.tck.Summary;
+import com.cloudera.director.spi.tck.TCKv2;
+import com.cloudera.director.spi.v2.model.InstanceStatus;
+import com.cloudera.director.spi.v2.model.exception.UnrecoverableProviderException;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SimulatedCloudTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testInstanceLifecycle() throws Exception {
+    SimulatedCloud cloud = new SimulatedCloud(newSettings(findFreePort(),
+        "pendingTime: 100ms, deletionTime: 100ms"));
+    List<String> ids = Collections.singletonList("i-1");
+
+    assertEquals(1, cloud.allocate(ids, 1).size());
+    assertEquals(InstanceStatus.PENDING, cloud.getStatuses(ids).get("i-1"));
+    Thread.sleep(150);
+    assertEquals(InstanceStatus.RUNNING, cloud.getStatuses(ids).get("i-1"));
+    assertEquals(1, cloud.find(ids).size());
+
+    cloud.delete(ids);
+    assertEquals(InstanceStatus.DELETING, cloud.getStatuses(ids).get("i-1"));
+    Thread.sleep(150);
+    assertEquals(InstanceStatus.DELETED, cloud.getStatuses(ids).get("i-1"));
+    assertEquals(InstanceStatus.UNKNOWN, cloud.getStatuses(ids).get("i-1"));
+    assertTrue(cloud.find(ids).isEmpty());
+  }
+
+  @Test
+  public void testStartFailures() throws Exception {
+    SimulatedCloud cloud = new SimulatedCloud(newSettings(findFreePort(),
+        "pendingTime: 0ms, startFailureRate: 1.0"));
+    List<String> ids = Arrays.asList("i-1", "i-2");
+
+    cloud.allocate(ids, 2);
+    assertEquals(InstanceStatus.FAILED, cloud.getStatuses(ids).get("i-1"));
+    assertEquals(InstanceStatus.FAILED, cloud.getStatuses(ids).get("i-2"));
+    cloud.shutdown();
+  }
+
+  @Test
+  public void testAllocationBelowMinCount() throws Exception {
+    SimulatedCloud cloud = new SimulatedCloud(newSettings(findFreePort(),
+        "allocationFailureRate: 1.0"));
+    List<String> ids = Arrays.asList("i-1", "i-2");
+
+    assertTrue(cloud.allocate(ids, 0).isEmpty());
+    try {
+      cloud.allocate(ids, 1);
+      fail("Expected the allocation to fail");
+    } catch (UnrecoverableProviderException e) {
+      assertEquals(InstanceStatus.UNKNOWN, cloud.getStatuses(ids).get("i-1"));
+    }
+  }
+
+  @Test
+  public void testCapacity() throws Exception {
+    SimulatedCloud cloud = new SimulatedCloud(newSettings(findFreePort(), "capacity: 2"));
+
+    try {
+      cloud.allocate(Arrays.asList("i-1", "i-2", "i-3"), 3);
+      fail("Expected the allocation to fail");
+    } catch (UnrecoverableProviderException e) {
+      assertEquals(InstanceStatus.UNKNOWN, cloud.getStatuses(Collections.singletonList("i-1")).get("i-1"));
+    }
+    assertEquals(2, cloud.allocate(Arrays.asList("i-1", "i-2", "i-3"), 1).size());
+    assertTrue(cloud.allocate(Collections.singletonList("i-4"), 0).isEmpty());
+    cloud.shutdown();
+  }
+
+  @Test
+  public void testPortOpenWhileInstancesExist() throws Exception {
+    int port = findFreePort();
+    SimulatedCloud cloud = new SimulatedCloud(newSettings(port, ""));
+
+    assertFalse(canConnect(port));
+    cloud.allocate(Arrays.asList("i-1", "i-2"), 2);
+    assertTrue(canConnect(port));
+
+    cloud.delete(Collections.singletonList("i-1"));
+    assertTrue(canConnect(port));
+    cloud.delete(Collections.singletonList("i-2"));
+    assertFalse(canConnect(port));
+  }
+
+  @Test
+  public void testAllocatingExistingIdReturnsStoredInstance() throws Exception {
+    SimulatedCloud cloud = new SimulatedCloud(newSettings(findFreePort(), "capacity: 1"));
+    List<String> ids = Collections.singletonList("i-1");
+
+    SimulatedInstance instance = cloud.allocate(ids, 1).get(0);
+    assertSame(instance, cloud.allocate(ids, 0).get(0));
+    assertSame(instance, cloud.find(ids).get(0));
+    cloud.shutdown();
+  }
+
+  @Test
+  public void testDeletedInstancesArePurgedWithoutPolling() throws Exception {
+    SimulatedCloud cloud = new SimulatedCloud(newSettings(findFreePort(),
+        "deletionTime: 10ms"), 10);
+
+    cloud.allocate(Arrays.asList("i-1", "i-2"), 2);
+    cloud.delete(Collections.singletonList("i-1"));
+    assertEquals(2, cloud.getKnownInstanceCount());
+
+    Thread.sleep(50);
+    cloud.allocate(Collections.singletonList("i-3"), 1);
+    assertEquals(2, cloud.getKnownInstanceCount());
+    assertEquals(InstanceStatus.UNKNOWN, cloud.getStatuses(Collections.singletonList("i-1")).get("i-1"));
+    cloud.shutdown();
+  }
+
+  @Test
+  public void testPortInUseLeavesNoInstance() throws Exception {
+    int port = findFreePort();
+    SimulatedCloud cloud = new SimulatedCloud(newSettings(port, "capacity: 1"));
+    List<String> ids = Collections.singletonList("i-1");
+
+    try (ServerSocket occupied =
+             new ServerSocket(port, 1, InetAddress.getLoopbackAddress())) {
+      cloud.allocate(ids, 1);
+      fail("Expected the allocation to fail");
+    } catch (UnrecoverableProviderException e) {
+      assertEquals(InstanceStatus.UNKNOWN, cloud.getStatuses(ids).get("i-1"));
+    }
+    assertEquals(1, cloud.allocate(ids, 1).size());
+    assertTrue(canConnect(port));
+    cloud.shutdown();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidFailureRate() {
+    SimulationSettings.fromConfig(ConfigFactory.parseString("startFailureRate: 1.5"));
+  }
+
+  @Test
+  public void testValidateSimulatedPlugin() throws Exception {
+    File configurationDirectory = temporaryFolder.newFolder();
+    int port = findFreePort();
+    FileUtils.write(new File(configurationDirectory, SimulationSettings.SETTINGS_FILE_NAME),
+        "simulation { allocationDelay: 0ms, stateCallDelay: 0ms, pendingTime: 50ms, " +
+            "deletionTime: 50ms, port: " + port + ", databaseProtocol: mysql, " +
+            "sessionDelay: 100ms }", StandardCharsets.UTF_8);
+
+    String polling = "instanceStatusPolling { strategy: fixed, interval: 10ms, timeout: 10s }, " +
+        "portPolling { strategy: fixed, interval: 10ms, timeout: 10s }, ";
+    Config config = ConfigFactory.parseString(
+        "configurationDirectory: \"" + configurationDirectory.getAbsolutePath() + "\"\n" +
+            "simulated { configs {}\n" +
+            "  compute { configs {}, resourceConfigs { image: sim, type: standard }, " +
+            "    resourceTags {}, " + polling + "expectedOpenPort: " + port + " }\n" +
+            "  database { configs {}, resourceConfigs { type: MYSQL, adminUsername: admin, " +
+            "    adminPassword: secret }, resourceTags {}, " + polling +
+            "    expectedOpenPort: " + port + ", databaseReadiness {} }\n" +
+            "}");
+
+    SimulatedLauncher launcher = new SimulatedLauncher();
+    Summary summary = new Summary();
+    try {
+      new TCKv2().validate(launcher, config, summary);
+    } finally {
+      launcher.shutdown();
+    }
+
+    assertFalse(summary.toString(), summary.hasErrors());
+    assertTrue(summary.getCounters().containsKey("simulated/database/databaseFirstResponseMillis"));
+    assertFalse(canConnect(port));
+  }
+
+  private static SimulationSettings newSettings(int port, String settings) {
+    return SimulationSettings.fromConfig(ConfigFactory.parseString(
+        "allocationDelay: 0ms, stateCallDelay: 0ms, port: " + port + "\n" + settings));
+  }
+
+  private static int findFreePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static boolean canConnect(int port) throws IOException {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      return true;
+    } catch (ConnectException e) {
+      return false;
+    }
+  }
+}
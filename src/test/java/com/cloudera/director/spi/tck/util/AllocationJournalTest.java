@@ -0,0 +1,173 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AllocationJournalTest {
+
+  private static final AllocationJournal.Template COMPUTE = new AllocationJournal.Template(
+      "cloud", "compute", Collections.singletonMap("image", "ami-1"),
+      Collections.singletonMap("owner", "tck"));
+
+  private static final AllocationJournal.Template DATABASE = new AllocationJournal.Template(
+      "cloud", "database", Collections.singletonMap("type", "MYSQL"),
+      Collections.<String, String>emptyMap());
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testLeftovers() throws Exception {
+    File file = new File(temporaryFolder.getRoot(), "journal/allocations.log");
+    try (AllocationJournal journal = AllocationJournal.open(file)) {
+      journal.recordAllocating(COMPUTE, Arrays.asList("i-1", "i-2", "i-3"));
+      journal.recordAllocating(DATABASE, Collections.singletonList("db-1"));
+      journal.recordDeleted(COMPUTE, Collections.singletonList("i-2"));
+      journal.recordDeleted(DATABASE, Collections.singletonList("db-1"));
+    }
+
+    Map<AllocationJournal.Template, Set<String>> leftovers = AllocationJournal.readLeftovers(file);
+    assertEquals(Collections.singleton(COMPUTE), leftovers.keySet());
+    assertEquals(new LinkedHashSet<String>(Arrays.asList("i-1", "i-3")), leftovers.get(COMPUTE));
+  }
+
+  @Test
+  public void testReopenAppends() throws Exception {
+    File file = temporaryFolder.newFile();
+    try (AllocationJournal journal = AllocationJournal.open(file)) {
+      journal.recordAllocating(COMPUTE, Collections.singletonList("i-1"));
+    }
+    try (AllocationJournal journal = AllocationJournal.open(file)) {
+      journal.recordAllocating(COMPUTE, Collections.singletonList("i-2"));
+    }
+
+    assertEquals(new LinkedHashSet<String>(Arrays.asList("i-1", "i-2")),
+        AllocationJournal.readLeftovers(file).get(COMPUTE));
+  }
+
+  @Test
+  public void testTornLastLineSkipped() throws Exception {
+    File file = temporaryFolder.newFile();
+    try (AllocationJournal journal = AllocationJournal.open(file)) {
+      journal.recordAllocating(COMPUTE, Collections.singletonList("i-1"));
+    }
+    FileUtils.write(file, "{\"event\":\"allocating\",\"cloudPro", StandardCharsets.UTF_8, true);
+
+    Map<AllocationJournal.Template, Set<String>> leftovers = AllocationJournal.readLeftovers(file);
+    assertEquals(Collections.singleton("i-1"), leftovers.get(COMPUTE));
+  }
+
+  @Test
+  public void testMissingJournalHasNoLeftovers() throws Exception {
+    assertTrue(AllocationJournal.readLeftovers(
+        new File(temporaryFolder.getRoot(), "missing")).isEmpty());
+  }
+
+  @Test
+  public void testRecordWithMissingFieldsSkipped() throws Exception {
+    File file = temporaryFolder.newFile();
+    try (AllocationJournal journal = AllocationJournal.open(file)) {
+      journal.recordAllocating(COMPUTE, Collections.singletonList("i-1"));
+    }
+    FileUtils.write(file, "{\"cloudProvider\":\"cloud\",\"resourceProvider\":\"compute\"," +
+        "\"configs\":{\"image\":\"ami-1\"},\"tags\":{\"owner\":\"tck\"}}\n",
+        StandardCharsets.UTF_8, true);
+
+    assertEquals(Collections.singleton("i-1"), AllocationJournal.readLeftovers(file).get(COMPUTE));
+  }
+
+  @Test
+  public void testJournalIsOwnerOnly() throws Exception {
+    File file = new File(temporaryFolder.getRoot(), "journal/allocations.log");
+    Assume.assumeTrue(temporaryFolder.getRoot().toPath().getFileSystem()
+        .supportedFileAttributeViews().contains("posix"));
+
+    try (AllocationJournal journal = AllocationJournal.open(file)) {
+      journal.recordAllocating(COMPUTE, Collections.singletonList("i-1"));
+    }
+
+    assertEquals("rw-------",
+        PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+  }
+
+  @Test
+  public void testOpenJournalIsSharedInJvm() throws Exception {
+    File file = temporaryFolder.newFile();
+    try (AllocationJournal first = AllocationJournal.open(file);
+         AllocationJournal second = AllocationJournal.open(file)) {
+      assertSame(first, second);
+    }
+    // released once closed as many times as opened
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      assertTrue(channel.tryLock() != null);
+    }
+  }
+
+  @Test
+  public void testDeleteIfEmpty() throws Exception {
+    File file = temporaryFolder.newFile();
+    try (AllocationJournal journal = AllocationJournal.open(file)) {
+      journal.recordAllocating(COMPUTE, Collections.singletonList("i-1"));
+      assertFalse(journal.deleteIfEmpty());
+      assertTrue(file.exists());
+
+      // not while the journal is also used elsewhere in the JVM
+      journal.recordDeleted(COMPUTE, Collections.singletonList("i-1"));
+      try (AllocationJournal shared = AllocationJournal.open(file)) {
+        assertFalse(shared.deleteIfEmpty());
+      }
+
+      assertTrue(journal.deleteIfEmpty());
+      assertFalse(file.exists());
+      try {
+        journal.recordAllocating(COMPUTE, Collections.singletonList("i-2"));
+        fail("Expected writes to a deleted journal to fail");
+      } catch (IOException e) {
+        // expected
+      }
+    }
+    // a new journal can be opened at the same path
+    try (AllocationJournal journal = AllocationJournal.open(file)) {
+      journal.recordAllocating(COMPUTE, Collections.singletonList("i-3"));
+    }
+    assertEquals(Collections.singleton("i-3"), AllocationJournal.readLeftovers(file).get(COMPUTE));
+  }
+
+  @Test
+  public void testLockedJournalCannotBeOpened() throws Exception {
+    File file = temporaryFolder.newFile();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      channel.lock();
+      try {
+        AllocationJournal.open(file);
+        fail("Expected the journal to be in use");
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("in use"));
+      }
+    }
+  }
+}
@@ -0,0 +1,120 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+public class ClassLoaderLeakCheckTest {
+
+  @Test
+  public void testClosedClassLoaderIsCollected() throws Exception {
+    ClassLoaderLeakCheck leakCheck = useAndCloseClassLoader();
+
+    assertTrue(leakCheck.awaitCollection());
+    assertEquals(Collections.<String>emptyList(), leakCheck.findSuspects());
+  }
+
+  @Test
+  public void testThreadKeepsClassLoaderAlive() throws Exception {
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          done.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, "plugin-worker");
+
+    URLClassLoader classLoader = new URLClassLoader(new URL[0]);
+    ClassLoaderLeakCheck leakCheck = new ClassLoaderLeakCheck(classLoader);
+    thread.setContextClassLoader(classLoader);
+    thread.setDaemon(true);
+    thread.start();
+    classLoader.close();
+    classLoader = null;
+
+    try {
+      assertFalse(leakCheck.awaitCollection(2));
+
+      List<String> suspects = leakCheck.findSuspects();
+      assertEquals(1, suspects.size());
+      assertTrue(suspects.get(0).contains("plugin-worker"));
+
+    } finally {
+      done.countDown();
+      thread.join();
+    }
+  }
+
+  @Test
+  public void testTckThreadsDoNotKeepClassLoaderAlive() throws Exception {
+    final CountDownLatch done = new CountDownLatch(1);
+    Runnable waitForDone = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          done.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+
+    URLClassLoader classLoader = new URLClassLoader(new URL[0]);
+    ClassLoaderLeakCheck leakCheck = new ClassLoaderLeakCheck(classLoader);
+    Thread currentThread = Thread.currentThread();
+    ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+    ExecutorService executor = Executors.newSingleThreadExecutor(
+        new DaemonThreadFactory("tck-leak-check-test"));
+    Thread tckThread = new Thread(waitForDone, "tck-named-thread");
+    try {
+      // the pool thread is started on demand, while the plugin class loader is current
+      currentThread.setContextClassLoader(classLoader);
+      executor.submit(waitForDone);
+      tckThread.setContextClassLoader(classLoader);
+      tckThread.setDaemon(true);
+      tckThread.start();
+    } finally {
+      currentThread.setContextClassLoader(contextClassLoader);
+    }
+    classLoader.close();
+    classLoader = null;
+
+    try {
+      assertEquals(Collections.<String>emptyList(), leakCheck.findSuspects());
+    } finally {
+      done.countDown();
+      executor.shutdown();
+      tckThread.join();
+    }
+  }
+
+  @Test
+  public void testResourceUsage() {
+    ResourceUsage usage = ResourceUsage.capture();
+    assertTrue(usage.getLoadedClassCount() > 0);
+    assertTrue(usage.getMetaspaceUsedBytes() > 0
+        || usage.getMetaspaceUsedBytes() == ResourceUsage.UNKNOWN);
+  }
+
+  private static ClassLoaderLeakCheck useAndCloseClassLoader() throws Exception {
+    try (URLClassLoader classLoader = new URLClassLoader(new URL[0])) {
+      return new ClassLoaderLeakCheck(classLoader);
+    }
+  }
+}
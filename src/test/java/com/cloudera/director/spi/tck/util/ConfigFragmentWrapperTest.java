@@ -3,6 +3,10 @@
 package com.cloudera.director.spi.tck.util;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
 import com.cloudera.director.spi.v2.model.ConfigurationProperty;
 import com.cloudera.director.spi.v2.model.LocalizationContext;
 import com.cloudera.director.spi.v2.model.util.DefaultLocalizationContext;
@@ -13,6 +17,7 @@ import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigParseOptions;
 import com.typesafe.config.ConfigSyntax;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -107,4 +112,70 @@ public class ConfigFragmentWrapperTest {
     thrown.expect(NoSuchElementException.class);
     wrapper.getConfigurationValue(TestPropertyToken.TEST_MISSING, LOCALIZATION_CONTEXT);
   }
+
+  @Test
+  public void testSnapshotMatchesLiveLookups() {
+    Config config = ConfigFactory
+        .parseResourcesAnySyntax("test.conf", CONFIG_PARSER_OPTIONS).resolve();
+
+    ConfigFragmentWrapper live = new ConfigFragmentWrapper(config,
+        ConfigurationPropertiesUtil.asConfigurationPropertyList(TestPropertyToken.values()));
+    ConfigFragmentWrapper snapshot = ConfigFragmentWrapper.snapshot(config,
+        ConfigurationPropertiesUtil.asConfigurationPropertyList(TestPropertyToken.values()));
+
+    assertFalse(live.isSnapshot());
+    assertTrue(snapshot.isSnapshot());
+    assertEquals(live.getConfiguration(LOCALIZATION_CONTEXT),
+        snapshot.getConfiguration(LOCALIZATION_CONTEXT));
+    for (TestPropertyToken token : TestPropertyToken.values()) {
+      if (token != TestPropertyToken.TEST_MISSING) {
+        assertEquals(live.getConfigurationValue(token, LOCALIZATION_CONTEXT),
+            snapshot.getConfigurationValue(token, LOCALIZATION_CONTEXT));
+      }
+    }
+
+    // the same immutable map is returned every time
+    assertSame(snapshot.getConfiguration(LOCALIZATION_CONTEXT),
+        snapshot.getConfiguration(LOCALIZATION_CONTEXT));
+  }
+
+  @Test
+  public void testMissingRequiredProperties() {
+    Config config = ConfigFactory
+        .parseResourcesAnySyntax("test.conf", CONFIG_PARSER_OPTIONS).resolve();
+
+    ConfigFragmentWrapper live = new ConfigFragmentWrapper(config,
+        ConfigurationPropertiesUtil.asConfigurationPropertyList(TestPropertyToken.values()));
+    ConfigFragmentWrapper snapshot = ConfigFragmentWrapper.snapshot(config,
+        ConfigurationPropertiesUtil.asConfigurationPropertyList(TestPropertyToken.values()));
+
+    assertEquals(Collections.singleton("test.missing"), live.getMissingRequiredProperties());
+    assertEquals(Collections.singleton("test.missing"), snapshot.getMissingRequiredProperties());
+  }
+
+  @Test
+  public void testSnapshotMissingRequiredProperty() {
+    Config config = ConfigFactory
+        .parseResourcesAnySyntax("test.conf", CONFIG_PARSER_OPTIONS).resolve();
+
+    ConfigFragmentWrapper wrapper = ConfigFragmentWrapper.snapshot(config,
+        ConfigurationPropertiesUtil.asConfigurationPropertyList(TestPropertyToken.values()));
+
+    thrown.expect(NoSuchElementException.class);
+    wrapper.getConfigurationValue(TestPropertyToken.TEST_MISSING, LOCALIZATION_CONTEXT);
+  }
+
+  @Test
+  public void testSnapshotFallsBackForUndeclaredProperties() {
+    Config config = ConfigFactory
+        .parseResourcesAnySyntax("test.conf", CONFIG_PARSER_OPTIONS).resolve();
+
+    ConfigFragmentWrapper wrapper = ConfigFragmentWrapper.snapshot(config);
+
+    assertEquals(0, wrapper.getConfiguration(LOCALIZATION_CONTEXT).size());
+    assertEquals("password", wrapper.getConfigurationValue(
+        TestPropertyToken.TEST_SENSITIVE, LOCALIZATION_CONTEXT));
+    assertEquals("the default", wrapper.getConfigurationValue(
+        TestPropertyToken.TEST_OPTIONAL, LOCALIZATION_CONTEXT));
+  }
 }
@@ -0,0 +1,125 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.cloudera.director.spi.tck.Summary;
+import com.cloudera.director.spi.tck.sim.FakeDatabaseServer;
+import com.cloudera.director.spi.tck.util.DatabaseProtocolProbe.Protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class DatabaseProtocolProbeTest {
+
+  private static final InetSocketAddress ANY_LOOPBACK_PORT =
+      new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+  @Test
+  public void testProbeMySql() throws Exception {
+    try (FakeDatabaseServer server = FakeDatabaseServer.start(ANY_LOOPBACK_PORT,
+        Protocol.MYSQL, 0)) {
+      String response = new DatabaseProtocolProbe(Protocol.MYSQL).probe(addressOf(server));
+      assertTrue(response, response.contains("5.7.0-fake"));
+    }
+  }
+
+  @Test
+  public void testProbePostgreSql() throws Exception {
+    try (FakeDatabaseServer server = FakeDatabaseServer.start(ANY_LOOPBACK_PORT,
+        Protocol.POSTGRESQL, 0)) {
+      String response = new DatabaseProtocolProbe(Protocol.POSTGRESQL).probe(addressOf(server));
+      assertEquals("PostgreSQL authentication request 3", response);
+    }
+  }
+
+  @Test
+  public void testProbePostgreSqlStartingUp() throws Exception {
+    try (FakeDatabaseServer server = FakeDatabaseServer.start(ANY_LOOPBACK_PORT,
+        Protocol.POSTGRESQL, TimeUnit.MINUTES.toMillis(1))) {
+      new DatabaseProtocolProbe(Protocol.POSTGRESQL).probe(addressOf(server));
+      fail("Expected a PostgreSQL server that is starting up not to be ready");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("the database system is starting up"));
+    }
+  }
+
+  @Test
+  public void testWaitForPostgreSqlAfterSessionDelay() throws Exception {
+    try (FakeDatabaseServer server = FakeDatabaseServer.start(ANY_LOOPBACK_PORT,
+        Protocol.POSTGRESQL, 300)) {
+      Summary summary = new Summary();
+      long millis = new DatabaseProtocolProbe(Protocol.POSTGRESQL).waitForResponse(summary,
+          addressOf(server), new FixedIntervalPollingPolicy(50, TimeUnit.SECONDS.toMillis(5)));
+
+      assertFalse(summary.toString(), summary.hasErrors());
+      assertTrue(String.valueOf(millis), millis >= 200);
+    }
+  }
+
+  @Test
+  public void testProbeSilentServer() throws Exception {
+    try (FakeDatabaseServer server = FakeDatabaseServer.start(ANY_LOOPBACK_PORT, null, 0)) {
+      for (Protocol protocol : Protocol.values()) {
+        try {
+          new DatabaseProtocolProbe(protocol).probe(addressOf(server));
+          fail("Expected no " + protocol + " response from a server that closes connections");
+        } catch (IOException e) {
+          // expected
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testWaitForResponseAfterSessionDelay() throws Exception {
+    try (FakeDatabaseServer server = FakeDatabaseServer.start(ANY_LOOPBACK_PORT,
+        Protocol.MYSQL, 300)) {
+      Summary summary = new Summary();
+      long millis = new DatabaseProtocolProbe(Protocol.MYSQL).waitForResponse(summary,
+          addressOf(server), new FixedIntervalPollingPolicy(50, TimeUnit.SECONDS.toMillis(5)));
+
+      assertFalse(summary.toString(), summary.hasErrors());
+      assertTrue(String.valueOf(millis), millis >= 200);
+    }
+  }
+
+  @Test
+  public void testWaitForResponseTimesOut() throws Exception {
+    try (FakeDatabaseServer server = FakeDatabaseServer.start(ANY_LOOPBACK_PORT, null, 0)) {
+      Summary summary = new Summary();
+      long millis = new DatabaseProtocolProbe(Protocol.POSTGRESQL).waitForResponse(summary,
+          addressOf(server), new FixedIntervalPollingPolicy(50, 300));
+
+      assertEquals(-1, millis);
+      assertEquals(1, summary.getErrors().size());
+      assertTrue(summary.getErrors().get(0),
+          summary.getErrors().get(0).startsWith("No POSTGRESQL protocol response"));
+    }
+  }
+
+  @Test
+  public void testFromDatabaseType() {
+    assertEquals(Protocol.MYSQL, Protocol.fromDatabaseType("mysql"));
+    assertEquals(Protocol.POSTGRESQL, Protocol.fromDatabaseType("POSTGRES"));
+    assertEquals(Protocol.POSTGRESQL, Protocol.fromDatabaseType("PostgreSQL"));
+    try {
+      Protocol.fromDatabaseType("ORACLE");
+      fail("Expected an unknown database type to be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private static InetSocketAddress addressOf(FakeDatabaseServer server) {
+    return new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+  }
+}
@@ -0,0 +1,50 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ExponentialBackoffPollingPolicyTest {
+
+  @Test
+  public void testFastPhaseThenBackoffUpToCap() {
+    PollingPolicy policy = new ExponentialBackoffPollingPolicy(100, 3, 2.0, 1000, 0, 60000,
+        new Random(42));
+
+    assertEquals(100, policy.getDelayMillis(1));
+    assertEquals(100, policy.getDelayMillis(2));
+    assertEquals(100, policy.getDelayMillis(3));
+    assertEquals(200, policy.getDelayMillis(4));
+    assertEquals(400, policy.getDelayMillis(5));
+    assertEquals(800, policy.getDelayMillis(6));
+    assertEquals(1000, policy.getDelayMillis(7));
+    assertEquals(1000, policy.getDelayMillis(100));
+    assertEquals(60000, policy.getTimeoutMillis());
+  }
+
+  @Test
+  public void testJitterStaysWithinBounds() {
+    PollingPolicy policy = new ExponentialBackoffPollingPolicy(1000, 10, 2.0, 5000, 0.25, 60000,
+        new Random(42));
+
+    for (int i = 0; i < 1000; i++) {
+      long delay = policy.getDelayMillis(1);
+      assertTrue("Delay out of bounds: " + delay, delay >= 750 && delay <= 1250);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxDelayBelowInitialDelay() {
+    new ExponentialBackoffPollingPolicy(1000, 1, 2.0, 500, 0, 60000, new Random());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testJitterOutOfRange() {
+    new ExponentialBackoffPollingPolicy(100, 1, 2.0, 500, 1.5, 60000, new Random());
+  }
+}
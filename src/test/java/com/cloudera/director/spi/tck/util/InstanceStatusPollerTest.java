@@ -0,0 +1,182 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static com.cloudera.director.spi.tck.FakeInstanceProvider.newTemplate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.cloudera.director.spi.tck.FakeInstanceProvider;
+import com.cloudera.director.spi.v2.model.InstanceState;
+import com.cloudera.director.spi.v2.model.InstanceStatus;
+import com.cloudera.director.spi.v2.model.InstanceTemplate;
+import com.cloudera.director.spi.v2.provider.InstanceProvider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstanceStatusPollerTest {
+
+  private static final PollingPolicy FAST_POLLING = new FixedIntervalPollingPolicy(10, 5000);
+
+  private ScheduledExecutorService scheduler;
+  private SpiCallMetrics metrics;
+  private InstanceStatusPoller poller;
+
+  @Before
+  public void setUp() {
+    scheduler = Executors.newScheduledThreadPool(2);
+    metrics = new SpiCallMetrics();
+    poller = new InstanceStatusPoller(scheduler, metrics);
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testStateCallsAreMergedAcrossInstances() throws Exception {
+    FakeProvider fake = new FakeProvider(3);
+    InstanceProvider provider = fake.asProvider();
+    InstanceTemplate template = newTemplate();
+
+    List<CompletableFuture<InstanceStatus>> futures =
+        new ArrayList<CompletableFuture<InstanceStatus>>();
+    for (int i = 0; i < 200; i++) {
+      futures.add(poller.waitForStatus("test", provider, template, "id-" + i, FAST_POLLING,
+          InstanceStatus.RUNNING));
+    }
+
+    for (CompletableFuture<InstanceStatus> future : futures) {
+      assertEquals(InstanceStatus.RUNNING, future.get(5, TimeUnit.SECONDS));
+    }
+
+    // the number of calls depends on the number of ticks, not on the number of instances
+    assertTrue("Too many state calls: " + fake.calls.get(), fake.calls.get() < 20);
+    assertEquals(fake.calls.get(), poller.getStateCallCount());
+    assertEquals(fake.calls.get(), metrics.getCallStats().get(0).getLatencies().getCount());
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    InstanceProvider provider = new FakeProvider(Integer.MAX_VALUE).asProvider();
+
+    CompletableFuture<InstanceStatus> future = poller.waitForStatus("test", provider, newTemplate(),
+        "id", new FixedIntervalPollingPolicy(10, 100), InstanceStatus.RUNNING);
+
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("Expected the wait to time out");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+  }
+
+  @Test
+  public void testMissingInstance() throws Exception {
+    FakeProvider fake = new FakeProvider(1);
+    fake.missingId = "missing";
+
+    CompletableFuture<InstanceStatus> future = poller.waitForStatus("test", fake.asProvider(),
+        newTemplate(), "missing", FAST_POLLING, InstanceStatus.RUNNING);
+
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("Expected the wait to fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof NoSuchElementException);
+    }
+  }
+
+  @Test
+  public void testFailedInstanceFailsWaitImmediately() throws Exception {
+    FakeProvider fake = new FakeProvider(0);
+    fake.finalStatus = InstanceStatus.FAILED;
+
+    CompletableFuture<InstanceStatus> future = poller.waitForStatus("test", fake.asProvider(),
+        newTemplate(), "id", new FixedIntervalPollingPolicy(10, 60000), InstanceStatus.RUNNING);
+
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("Expected the wait to fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    assertEquals(1, fake.calls.get());
+  }
+
+  @Test
+  public void testExpectedFailedStatus() throws Exception {
+    FakeProvider fake = new FakeProvider(0);
+    fake.finalStatus = InstanceStatus.FAILED;
+
+    CompletableFuture<InstanceStatus> future = poller.waitForStatus("test", fake.asProvider(),
+        newTemplate(), "id", FAST_POLLING, InstanceStatus.RUNNING, InstanceStatus.FAILED);
+
+    assertEquals(InstanceStatus.FAILED, future.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testGroupsAreDroppedWhenWaitsAreOver() throws Exception {
+    InstanceProvider provider = new FakeProvider(1).asProvider();
+
+    for (int i = 0; i < 10; i++) {
+      poller.waitForStatus("test", provider, newTemplate(), "id", FAST_POLLING,
+          InstanceStatus.RUNNING).get(5, TimeUnit.SECONDS);
+    }
+
+    // the group is dropped right after the tick that completed its last wait
+    long deadline = System.currentTimeMillis() + 5000;
+    while (poller.getGroupCount() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, poller.getGroupCount());
+  }
+
+  /**
+   * An instance provider that reports every instance as PENDING for a number of
+   * calls, then as RUNNING or another final status.
+   */
+  private static class FakeProvider extends FakeInstanceProvider {
+
+    private final int pendingCalls;
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile String missingId;
+    private volatile InstanceStatus finalStatus = InstanceStatus.RUNNING;
+
+    FakeProvider(int pendingCalls) {
+      this.pendingCalls = pendingCalls;
+    }
+
+    @Override
+    protected Map<String, InstanceState> getInstanceState(Collection<String> ids) {
+      InstanceStatus status = (calls.incrementAndGet() > pendingCalls) ?
+          finalStatus : InstanceStatus.PENDING;
+
+      Map<String, InstanceState> states = new HashMap<String, InstanceState>();
+      for (String id : ids) {
+        if (!id.equals(missingId)) {
+          states.put(id, newState(status));
+        }
+      }
+      return states;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testEmptyHistogram() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMin());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.getPercentile(99));
+  }
+
+  @Test
+  public void testPercentilesWithinRelativeError() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000);
+    }
+
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1000, histogram.getMin());
+    assertEquals(1000000, histogram.getMax());
+    assertWithinError(500000, histogram.getPercentile(50));
+    assertWithinError(900000, histogram.getPercentile(90));
+    assertWithinError(990000, histogram.getPercentile(99));
+    assertEquals(1000000, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void testBucketsCoverValues() {
+    for (long value : new long[]{0, 1, 15, 16, 17, 31, 32, 1000, 123456789, Long.MAX_VALUE}) {
+      int index = LatencyHistogram.bucketIndex(value);
+      assertTrue("Bucket too small for " + value, LatencyHistogram.bucketUpperBound(index) >= value);
+      if (index > 0) {
+        assertTrue("Bucket too large for " + value,
+            LatencyHistogram.bucketUpperBound(index - 1) < value);
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidPercentile() {
+    new LatencyHistogram().getPercentile(101);
+  }
+
+  private static void assertWithinError(long expected, long actual) {
+    assertTrue("Expected about " + expected + " but was " + actual,
+        Math.abs(actual - expected) <= expected * 0.07);
+  }
+}
@@ -0,0 +1,30 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class LinearTrendTest {
+
+  @Test
+  public void testTooFewValues() {
+    assertEquals(0, LinearTrend.slope(Collections.<Long>emptyList()), 0);
+    assertEquals(0, LinearTrend.slope(Collections.singletonList(42L)), 0);
+  }
+
+  @Test
+  public void testLinearGrowth() {
+    assertEquals(2.5, LinearTrend.slope(Arrays.asList(10.0, 12.5, 15.0, 17.5)), 1e-9);
+    assertEquals(-1, LinearTrend.slope(Arrays.asList(3L, 2L, 1L, 0L)), 1e-9);
+  }
+
+  @Test
+  public void testNoiseAroundFlatLine() {
+    assertEquals(0, LinearTrend.slope(Arrays.asList(100L, 104L, 96L, 96L, 104L, 100L)), 1e-9);
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PackageTrieTest {
+
+  private final PackageTrie trie = new PackageTrie(Arrays.asList(
+      "com.foo.Launcher",
+      "com.foo.impl.Provider",
+      "com.foo.impl.Provider$Inner",
+      "com.foobar.Thing",
+      "com.Util",
+      "com.google.common.base.Strings",
+      "com.google.common.collect.Lists",
+      "org.slf4j.Logger",
+      "org.apache.commons.io.IOUtils",
+      "Default"));
+
+  @Test
+  public void testCountClassesOnPackageBoundaries() {
+    assertEquals(10, trie.getClassCount());
+    assertEquals(10, trie.countClassesIn(""));
+    assertEquals(3, trie.countClassesIn("com.foo"));
+    assertEquals(1, trie.countClassesIn("com.foobar"));
+    assertEquals(7, trie.countClassesIn("com"));
+    assertEquals(0, trie.countClassesIn("com.fo"));
+    assertEquals(0, trie.countClassesIn("net"));
+  }
+
+  @Test
+  public void testFindClassesOutsideGroupsByOutermostPackage() {
+    Map<String, PackageTrie.PackageClasses> outside = trie.findClassesOutside("com.foo", 10);
+
+    assertEquals(Arrays.asList("", "com", "com.foobar", "com.google", "org"),
+        new ArrayList<String>(outside.keySet()));
+    assertEquals(1, outside.get("").getCount());
+    assertEquals(Collections.singletonList("Default"), outside.get("").getSamples());
+    assertEquals(Collections.singletonList("com.Util"), outside.get("com").getSamples());
+    assertEquals(1, outside.get("com.foobar").getCount());
+    assertEquals(2, outside.get("com.google").getCount());
+    assertEquals(2, outside.get("org").getCount());
+
+    int total = 0;
+    for (PackageTrie.PackageClasses classes : outside.values()) {
+      total += classes.getCount();
+    }
+    assertEquals(trie.getClassCount() - trie.countClassesIn("com.foo"), total);
+  }
+
+  @Test
+  public void testFindClassesOutsideLimitsSamples() {
+    List<String> classNames = new ArrayList<String>();
+    for (int i = 0; i < 100000; i++) {
+      classNames.add("org.shaded" + (i % 7) + ".Class" + i);
+    }
+    classNames.add("com.foo.Launcher");
+
+    Map<String, PackageTrie.PackageClasses> outside =
+        new PackageTrie(classNames).findClassesOutside("com.foo", 3);
+
+    assertEquals(1, outside.size());
+    assertEquals(100000, outside.get("org").getCount());
+    assertEquals(3, outside.get("org").getSamples().size());
+    assertTrue(outside.get("org").getSamples().get(0).startsWith("org.shaded"));
+  }
+
+  @Test
+  public void testFindClassesOutsideUnknownOrDefaultPackage() {
+    assertEquals(10, sum(trie.findClassesOutside("net.example", 1)));
+    assertTrue(trie.findClassesOutside("", 1).isEmpty());
+  }
+
+  private static int sum(Map<String, PackageTrie.PackageClasses> classes) {
+    int total = 0;
+    for (PackageTrie.PackageClasses current : classes.values()) {
+      total += current.getCount();
+    }
+    return total;
+  }
+}
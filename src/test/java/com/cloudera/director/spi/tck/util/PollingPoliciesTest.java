@@ -0,0 +1,60 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.cloudera.director.spi.tck.Configurations;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PollingPoliciesTest {
+
+  @Test
+  public void testMissingSectionUsesDefaultPolicy() {
+    PollingPolicy policy = PollingPolicies.fromConfig(ConfigFactory.empty(),
+        Configurations.INSTANCE_STATUS_POLLING_SECTION);
+
+    assertTrue(policy instanceof ExponentialBackoffPollingPolicy);
+    assertEquals(TimeUnit.MINUTES.toMillis(10), policy.getTimeoutMillis());
+  }
+
+  @Test
+  public void testFixedStrategy() {
+    Config config = ConfigFactory.parseString(
+        "portPolling { strategy: fixed, interval: 2s, timeout: 3m }");
+
+    PollingPolicy policy = PollingPolicies.fromConfig(config, Configurations.PORT_POLLING_SECTION);
+
+    assertTrue(policy instanceof FixedIntervalPollingPolicy);
+    assertEquals(2000, policy.getDelayMillis(1));
+    assertEquals(2000, policy.getDelayMillis(50));
+    assertEquals(TimeUnit.MINUTES.toMillis(3), policy.getTimeoutMillis());
+  }
+
+  @Test
+  public void testExponentialStrategy() {
+    Config config = ConfigFactory.parseString("instanceStatusPolling { initialDelay: 200ms, " +
+        "fastAttempts: 2, multiplier: 3, maxDelay: 5s, jitter: 0, timeout: 90s }");
+
+    PollingPolicy policy = PollingPolicies.fromConfig(config,
+        Configurations.INSTANCE_STATUS_POLLING_SECTION);
+
+    assertEquals(200, policy.getDelayMillis(2));
+    assertEquals(600, policy.getDelayMillis(3));
+    assertEquals(1800, policy.getDelayMillis(4));
+    assertEquals(5000, policy.getDelayMillis(5));
+    assertEquals(90000, policy.getTimeoutMillis());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownStrategy() {
+    Config config = ConfigFactory.parseString("portPolling { strategy: random }");
+    PollingPolicies.fromConfig(config, Configurations.PORT_POLLING_SECTION);
+  }
+}
@@ -0,0 +1,133 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PortProberTest {
+
+  private static final PollingPolicy FAST_POLLING = new FixedIntervalPollingPolicy(20, 5000);
+
+  private PortProber prober;
+
+  @Before
+  public void setUp() throws IOException {
+    prober = new PortProber();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    prober.close();
+  }
+
+  @Test
+  public void testManyEndpointsOnOpenPort() throws Exception {
+    ServerSocket serverSocket = new ServerSocket(0, 200, InetAddress.getLoopbackAddress());
+    try {
+      InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+          serverSocket.getLocalPort());
+
+      List<CompletableFuture<Long>> futures = new ArrayList<CompletableFuture<Long>>();
+      for (int i = 0; i < 100; i++) {
+        futures.add(prober.probe(address, FAST_POLLING));
+      }
+      for (CompletableFuture<Long> future : futures) {
+        assertTrue(future.get(5, TimeUnit.SECONDS) >= 0);
+      }
+
+    } finally {
+      serverSocket.close();
+    }
+  }
+
+  @Test
+  public void testPortThatOpensLater() throws Exception {
+    int port = findFreePort();
+    CompletableFuture<Long> future = prober.probe(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port), FAST_POLLING);
+
+    TimeUnit.MILLISECONDS.sleep(300);
+    ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    try {
+      assertTrue(future.get(5, TimeUnit.SECONDS) >= 300);
+    } finally {
+      serverSocket.close();
+    }
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    CompletableFuture<Long> future = prober.probe(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), findFreePort()),
+        new FixedIntervalPollingPolicy(20, 200));
+
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("Expected the probe to time out");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+  }
+
+  @Test
+  public void testProbesRacingWithCloseAllComplete() throws Exception {
+    InetSocketAddress address =
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), findFreePort());
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<List<CompletableFuture<Long>>>> submitted =
+          new ArrayList<Future<List<CompletableFuture<Long>>>>();
+      for (int i = 0; i < 4; i++) {
+        submitted.add(executor.submit(() -> {
+          List<CompletableFuture<Long>> futures = new ArrayList<CompletableFuture<Long>>();
+          for (int j = 0; j < 500; j++) {
+            futures.add(prober.probe(address, FAST_POLLING));
+          }
+          return futures;
+        }));
+      }
+      prober.close();
+
+      for (Future<List<CompletableFuture<Long>>> future : submitted) {
+        for (CompletableFuture<Long> probe : future.get()) {
+          try {
+            probe.get(5, TimeUnit.SECONDS);
+            fail("Expected the probe to fail");
+          } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+          }
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static int findFreePort() throws IOException {
+    ServerSocket serverSocket = new ServerSocket(0);
+    try {
+      return serverSocket.getLocalPort();
+    } finally {
+      serverSocket.close();
+    }
+  }
+}
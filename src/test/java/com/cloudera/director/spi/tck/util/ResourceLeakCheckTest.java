@@ -0,0 +1,188 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.cloudera.director.spi.tck.Summary;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.net.URL;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResourceLeakCheckTest {
+
+  private static final Config NO_FILE_DESCRIPTORS =
+      ConfigFactory.parseString("leakCheck { gracePeriod: 200ms, checkFileDescriptors: false }");
+
+  private static final Config WITH_FILE_DESCRIPTORS =
+      ConfigFactory.parseString("leakCheck { gracePeriod: 200ms }");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final PluginClassLoader classLoader =
+      new PluginClassLoader(new URL[0], getClass().getClassLoader());
+  private final CountDownLatch done = new CountDownLatch(1);
+  private final List<Thread> threads = new ArrayList<Thread>();
+
+  @After
+  public void tearDown() throws Exception {
+    done.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    classLoader.close();
+  }
+
+  @Test
+  public void testPluginThreadIsReported() throws Exception {
+    ResourceLeakCheck check = ResourceLeakCheck.start(NO_FILE_DESCRIPTORS);
+    startThread("plugin-worker", classLoader);
+
+    Summary summary = new Summary();
+    check.check(summary, new ClassLoaderLeakCheck(classLoader));
+
+    assertEquals(1, summary.getErrors().size());
+    String error = summary.getErrors().get(0);
+    assertTrue(error, error.startsWith(
+        "Thread 'plugin-worker' (plugin context class loader) is still alive after teardown"));
+    assertTrue(error, error.contains("\n    at "));
+  }
+
+  @Test
+  public void testOtherAndAllowedThreadsAreNotReported() throws Exception {
+    ResourceLeakCheck check = ResourceLeakCheck.start(ConfigFactory.parseString(
+        "leakCheck { gracePeriod: 200ms, checkFileDescriptors: false, " +
+            "threadAllowlist: [\"plugin-timer-\\\\d+\"] }"));
+    startThread("plugin-timer-1", classLoader);
+    startThread("jvm-worker", getClass().getClassLoader());
+
+    Summary summary = new Summary();
+    check.check(summary, new ClassLoaderLeakCheck(classLoader));
+
+    assertFalse(summary.toString(), summary.hasErrors());
+  }
+
+  @Test
+  public void testThreadThatFinishesDuringGracePeriodIsNotReported() throws Exception {
+    ResourceLeakCheck check = ResourceLeakCheck.start(ConfigFactory.parseString(
+        "leakCheck { gracePeriod: 5s, checkFileDescriptors: false }"));
+    startThread("plugin-worker", classLoader);
+
+    new Thread(() -> {
+      try {
+        Thread.sleep(300);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      done.countDown();
+    }).start();
+
+    Summary summary = new Summary();
+    check.check(summary, new ClassLoaderLeakCheck(classLoader));
+
+    assertFalse(summary.toString(), summary.hasErrors());
+  }
+
+  @Test
+  public void testOpenFileDescriptorIsReported() throws Exception {
+    assumeTrue(new File("/proc/self/fd").isDirectory());
+    File file = folder.newFile("leaked.txt");
+
+    ResourceLeakCheck check = ResourceLeakCheck.start(ConfigFactory.empty());
+    try (FileInputStream in = new FileInputStream(file)) {
+      List<String> leaks = check.findLeakedFileDescriptors();
+      assertEquals(1, leaks.size());
+      assertTrue(leaks.get(0), leaks.get(0).endsWith(file.getCanonicalPath()));
+    }
+    assertEquals(0, check.findLeakedFileDescriptors().size());
+  }
+
+  @Test
+  public void testFileDescriptorCheckIgnoresJvmFiles() throws Exception {
+    assumeTrue(new File("/proc/self/fd").isDirectory());
+    ResourceLeakCheck check = ResourceLeakCheck.start(WITH_FILE_DESCRIPTORS);
+
+    // like the random number sources the JVM opens on first use and keeps open
+    try (FileInputStream random = new FileInputStream("/dev/urandom")) {
+      UUID.randomUUID();
+      new SecureRandom().nextBytes(new byte[16]);
+      try (FileInputStream in = new FileInputStream(folder.newFile("closed.txt"))) {
+        in.read();
+      }
+
+      Summary summary = new Summary();
+      check.check(summary, new ClassLoaderLeakCheck(classLoader));
+
+      assertFalse(summary.toString(), summary.hasErrors());
+    }
+  }
+
+  @Test
+  public void testLeakedFileDescriptorIsReported() throws Exception {
+    assumeTrue(new File("/proc/self/fd").isDirectory());
+    File file = folder.newFile("leaked.txt");
+    ResourceLeakCheck check = ResourceLeakCheck.start(WITH_FILE_DESCRIPTORS);
+
+    try (FileInputStream in = new FileInputStream(file)) {
+      Summary summary = new Summary();
+      check.check(summary, new ClassLoaderLeakCheck(classLoader));
+
+      assertEquals(summary.toString(), 1, summary.getErrors().size());
+      assertTrue(summary.getErrors().get(0),
+          summary.getErrors().get(0).contains(file.getCanonicalPath()));
+    }
+  }
+
+  @Test
+  public void testFileDescriptorsAreNotCheckedAlongsideOtherValidations() throws Exception {
+    assumeTrue(new File("/proc/self/fd").isDirectory());
+    File file = folder.newFile("other.txt");
+
+    try (ValidationWindow window = ValidationWindow.open()) {
+      ResourceLeakCheck check = ResourceLeakCheck.start(WITH_FILE_DESCRIPTORS, window);
+      assertTrue(window.isExclusive());
+
+      try (ValidationWindow other = ValidationWindow.open();
+           FileInputStream in = new FileInputStream(file)) {
+        assertFalse(window.isExclusive());
+        assertFalse(other.isExclusive());
+
+        Summary summary = new Summary();
+        check.check(summary, new ClassLoaderLeakCheck(classLoader));
+        assertFalse(summary.toString(), summary.hasErrors());
+      }
+      assertFalse(window.isExclusive());
+    }
+  }
+
+  private void startThread(String name, ClassLoader contextClassLoader) {
+    Thread thread = new Thread(() -> {
+      try {
+        done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, name);
+    thread.setContextClassLoader(contextClassLoader);
+    thread.setDaemon(true);
+    thread.start();
+    threads.add(thread);
+  }
+}
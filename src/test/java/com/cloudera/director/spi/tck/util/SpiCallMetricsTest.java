@@ -0,0 +1,35 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class SpiCallMetricsTest {
+
+  @Test
+  public void testCallsAreKeptPerProviderAndMethod() {
+    SpiCallMetrics metrics = new SpiCallMetrics();
+    metrics.record("aws/compute", "allocate", 1000, false);
+    metrics.record("gcp/compute", "allocate", 2000, true);
+    metrics.record("aws/compute", "allocate", 3000, false);
+    // would share a key if provider and method were joined with a space
+    metrics.record("a b", "c", 4000, false);
+    metrics.record("a", "b c", 5000, false);
+
+    List<SpiCallMetrics.CallStats> callStats = metrics.getCallStats();
+
+    assertEquals(4, callStats.size());
+    assertEquals("a", callStats.get(0).getProviderId());
+    assertEquals("a b", callStats.get(1).getProviderId());
+    assertEquals("aws/compute", callStats.get(2).getProviderId());
+    assertEquals(2, callStats.get(2).getLatencies().getCount());
+    assertEquals(4000, callStats.get(2).getTotalNanos());
+    assertEquals(0, callStats.get(2).getFailureCount());
+    assertEquals("gcp/compute", callStats.get(3).getProviderId());
+    assertEquals(1, callStats.get(3).getFailureCount());
+  }
+}
@@ -0,0 +1,80 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+public class StartupProfileTest {
+
+  @Test
+  public void testPluginClassesAreCounted() throws Exception {
+    URL classes = Preconditions.class.getProtectionDomain().getCodeSource().getLocation();
+    try (PluginClassLoader classLoader = new PluginClassLoader(new URL[] { classes },
+        ClassLoader.getSystemClassLoader().getParent())) {
+
+      StartupProfile.Recorder recorder = StartupProfile.start("initialize", classLoader);
+      Class<?> loaded = classLoader.loadClass(Preconditions.class.getName());
+      StartupProfile profile = recorder.stop();
+
+      assertEquals(classLoader, loaded.getClassLoader());
+      assertEquals("initialize", profile.getPhase());
+      assertTrue(profile.isPluginClassesOnly());
+      assertEquals(1, profile.getClassesLoaded());
+    }
+  }
+
+  @Test
+  public void testThreadsAndAllocationsAreCounted() throws Exception {
+    StartupProfile.Recorder recorder = StartupProfile.start("initialize", null);
+
+    List<int[]> garbage = new ArrayList<int[]>();
+    for (int i = 0; i < 100; i++) {
+      garbage.add(new int[1024]);
+    }
+    for (int i = 0; i < 2; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+        }
+      });
+      thread.start();
+      thread.join();
+    }
+    StartupProfile profile = recorder.stop();
+
+    assertFalse(profile.isPluginClassesOnly());
+    assertTrue(profile.getThreadsStarted() >= 2);
+    assertTrue(profile.getAllocatedBytes() == StartupProfile.UNKNOWN
+        || profile.getAllocatedBytes() >= 100 * 1024 * 4);
+    assertEquals(100, garbage.size());
+  }
+
+  @Test
+  public void testTckThreadsAreNotCounted() throws Exception {
+    ExecutorService executor =
+        Executors.newSingleThreadExecutor(new DaemonThreadFactory("tck-startup-test"));
+    try {
+      StartupProfile.Recorder recorder = StartupProfile.start("initialize", null);
+      executor.submit(new Runnable() {
+        @Override
+        public void run() {
+        }
+      }).get();
+      StartupProfile profile = recorder.stop();
+
+      assertEquals(0, profile.getThreadsStarted());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,70 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.cloudera.director.spi.tck.Summary;
+import com.typesafe.config.ConfigFactory;
+
+import java.net.URL;
+
+import org.junit.Test;
+
+public class StartupThresholdsTest {
+
+  private static final String CONFIG =
+      "startupThresholds {\n" +
+          "  initialize {\n" +
+          "    warning { wallTime: 0ms, threadsStarted: 1000000 }\n" +
+          "    error { classesLoaded: 0 }\n" +
+          "  }\n" +
+          "}";
+
+  @Test
+  public void testLimitsAreChecked() throws Exception {
+    StartupThresholds thresholds = StartupThresholds.fromConfig(ConfigFactory.parseString(CONFIG));
+
+    Summary summary = new Summary();
+    thresholds.check(summary, profileLoadingOneClass("initialize"));
+
+    assertEquals(1, summary.getErrors().size());
+    assertTrue(summary.getErrors().get(0), summary.getErrors().get(0).contains("classes loaded 1"));
+    // the wall time of loading one class may round down to 0 ms, which is not over 0 ms
+    for (String warning : summary.getWarnings()) {
+      assertTrue(warning, warning.contains("wall time"));
+    }
+  }
+
+  @Test
+  public void testOtherPhasesAreNotChecked() throws Exception {
+    StartupThresholds thresholds = StartupThresholds.fromConfig(ConfigFactory.parseString(CONFIG));
+
+    Summary summary = new Summary();
+    thresholds.check(summary, profileLoadingOneClass("createCloudProvider"));
+
+    assertEquals(0, summary.getErrors().size());
+    assertEquals(0, summary.getWarnings().size());
+  }
+
+  @Test
+  public void testNoThresholds() throws Exception {
+    Summary summary = new Summary();
+    StartupThresholds.fromConfig(ConfigFactory.empty())
+        .check(summary, profileLoadingOneClass("initialize"));
+
+    assertEquals(0, summary.getErrors().size());
+    assertEquals(0, summary.getWarnings().size());
+  }
+
+  private static StartupProfile profileLoadingOneClass(String phase) throws Exception {
+    URL classes = Preconditions.class.getProtectionDomain().getCodeSource().getLocation();
+    try (PluginClassLoader classLoader = new PluginClassLoader(new URL[] { classes },
+        ClassLoader.getSystemClassLoader().getParent())) {
+      StartupProfile.Recorder recorder = StartupProfile.start(phase, classLoader);
+      classLoader.loadClass(Preconditions.class.getName());
+      return recorder.stop();
+    }
+  }
+}
@@ -0,0 +1,116 @@
+// Copyright (c) 2017 Cloudera, Inc.
+
+package com.cloudera.director.spi.tck.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.cloudera.director.spi.tck.PluginMetadata;
+import com.cloudera.director.spi.tck.PluginMetadataCache;
+import com.cloudera.director.spi.tck.Summary;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TCKUtilTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final TCKUtil tckUtil = new TCKUtil();
+
+  @Test
+  public void testValidateJarAcceptsShadedPlugin() {
+    Summary summary = new Summary();
+    tckUtil.validateJar(summary, newMetadata(Arrays.asList(
+        "com.foo.Launcher", "com.foo.shaded.com.google.common.base.Strings")), "v2");
+
+    assertFalse(summary.hasErrors());
+  }
+
+  @Test
+  public void testValidateJarAggregatesUnshadedClasses() {
+    List<String> classes = new ArrayList<String>();
+    classes.add("com.foo.Launcher");
+    classes.add("com.foobar.NotShaded");
+    for (int i = 0; i < 1000; i++) {
+      classes.add("org.slf4j.Class" + i);
+    }
+
+    Summary summary = new Summary();
+    tckUtil.validateJar(summary, newMetadata(classes), "v2");
+
+    assertEquals(Arrays.asList(
+        "1 classes in package 'com.foobar' should be relocated under 'com.foo', due to " +
+            "launcher class 'com.foo.Launcher'. Examples: [com.foobar.NotShaded]",
+        "1000 classes in package 'org' should be relocated under 'com.foo', due to " +
+            "launcher class 'com.foo.Launcher'. Examples: " +
+            "[org.slf4j.Class0, org.slf4j.Class1, org.slf4j.Class2]"),
+        summary.getErrors());
+  }
+
+  @Test
+  public void testValidateJarUsesCachedVerdict() throws Exception {
+    File jar = folder.newFile("plugin.jar");
+    FileUtils.writeStringToFile(jar, "content", StandardCharsets.UTF_8);
+    PluginMetadataCache cache = new PluginMetadataCache(folder.newFolder("cache"));
+
+    Summary summary = new Summary();
+    tckUtil.validateJar(summary, newMetadata(Arrays.asList("org.Unshaded")), "v2", jar, cache);
+    assertEquals(1, summary.getErrors().size());
+
+    // the second validation returns the stored verdict without checking the classes
+    Summary cachedSummary = new Summary();
+    tckUtil.validateJar(cachedSummary, newMetadata(Arrays.asList("com.foo.Launcher")), "v2",
+        jar, cache);
+    assertEquals(summary, cachedSummary);
+  }
+
+  @Test
+  public void testResourceUsageIsReportedForExclusiveValidation() throws Exception {
+    Summary summary = new Summary();
+    try (ValidationWindow window = ValidationWindow.open()) {
+      tckUtil.checkPluginUnloaded(summary, newClosedClassLoaderCheck(), ResourceUsage.capture(),
+          window);
+    }
+
+    assertTrue(summary.getCounters().containsKey("loadedClassesDelta"));
+  }
+
+  @Test
+  public void testResourceUsageIsNotReportedForConcurrentValidations() throws Exception {
+    Summary summary = new Summary();
+    try (ValidationWindow window = ValidationWindow.open();
+         ValidationWindow other = ValidationWindow.open()) {
+      tckUtil.checkPluginUnloaded(summary, newClosedClassLoaderCheck(), ResourceUsage.capture(),
+          window);
+    }
+
+    assertFalse(summary.getCounters().containsKey("loadedClassesDelta"));
+  }
+
+  private static ClassLoaderLeakCheck newClosedClassLoaderCheck() throws Exception {
+    try (URLClassLoader classLoader = new URLClassLoader(new URL[0])) {
+      return new ClassLoaderLeakCheck(classLoader);
+    }
+  }
+
+  private static PluginMetadata newMetadata(List<String> classes) {
+    return new PluginMetadata(
+        Collections.singletonMap("v2",
+            Collections.singletonList(new ClassReference("com.foo.Launcher"))),
+        classes, Collections.<String>emptyList());
+  }
+}